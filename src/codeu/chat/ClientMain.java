@@ -20,6 +20,7 @@ import java.io.InputStreamReader;
 
 import codeu.chat.client.commandline.Chat;
 import codeu.chat.client.core.Context;
+import codeu.chat.client.core.SessionConnectionSource;
 import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
 import codeu.chat.util.connections.ClientConnectionSource;
@@ -43,7 +44,10 @@ final class ClientMain {
 
     final RemoteAddress address = RemoteAddress.parse(args[0]);
 
-    final ConnectionSource source = new ClientConnectionSource(address.host, address.port);
+    // Keep one connection open to the server and send every request over it
+    // rather than opening a new connection per request.
+    final ConnectionSource source =
+        new SessionConnectionSource(new ClientConnectionSource(address.host, address.port));
 
     LOG.info("Creating client...");
     final Chat chat = new Chat(new Context(source));
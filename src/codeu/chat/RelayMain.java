@@ -103,6 +103,13 @@ final class RelayMain {
             } catch (Exception ex) {
               LOG.error(ex, "Exception handling connection.");
             }
+
+            // Closing sends the buffered response.
+            try {
+              connection.close();
+            } catch (Exception ex) {
+              LOG.error(ex, "Exception closing connection.");
+            }
           }
         });
 
@@ -18,12 +18,18 @@ package codeu.chat;
 import java.io.IOException;
 import java.io.File;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.server.NoOpRelay;
 import codeu.chat.server.RemoteRelay;
+import codeu.chat.server.SelectorFrontEnd;
+import codeu.chat.server.ServerConfig;
 import codeu.chat.server.Server;
 import codeu.chat.server.Controller;
 import codeu.chat.util.*;
@@ -56,12 +62,27 @@ final class ServerMain {
     File persistentPath = null;
     RemoteAddress relayAddress = null;
 
+    // Options are given as "--name=value" and can appear anywhere on the
+    // command line. Everything else is a positional argument.
+    final Map<String, String> options = new HashMap<>();
+    final List<String> positional = new ArrayList<>();
+
+    for (final String arg : args) {
+      if (arg.startsWith("--")) {
+        final int split = arg.indexOf('=');
+        options.put(split < 0 ? arg.substring(2) : arg.substring(2, split),
+                    split < 0 ? "" : arg.substring(split + 1));
+      } else {
+        positional.add(arg);
+      }
+    }
+
     try {
-      id = Uuid.parse(args[0]);
-      secret = Secret.parse(args[1]);
-      port = Integer.parseInt(args[2]);
-      persistentPath = new File(args[3]);
-      relayAddress = args.length > 4 ? RemoteAddress.parse(args[4]) : null;
+      id = Uuid.parse(positional.get(0));
+      secret = Secret.parse(positional.get(1));
+      port = Integer.parseInt(positional.get(2));
+      persistentPath = new File(positional.get(3));
+      relayAddress = positional.size() > 4 ? RemoteAddress.parse(positional.get(4)) : null;
     } catch (Exception ex) {
       LOG.error(ex, "Failed to read command arguments");
       System.exit(1);
@@ -72,13 +93,39 @@ final class ServerMain {
       System.exit(1);
     }
 
+    ServerConfig config = null;
+
+    try {
+      config = ServerConfig.fromOptions(options);
+    } catch (Exception ex) {
+      LOG.error(ex, "Failed to read command options");
+      System.exit(1);
+    }
+
+    if (config.spillPath == null) {
+      config.spillPath = new File(persistentPath, "cold").getPath();
+    }
+
+    if (config.logPath == null) {
+      config.logPath = new File(persistentPath, "log").getPath();
+    }
+
     try (
-        final ConnectionSource serverSource = ServerConnectionSource.forPort(port);
         final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
     ) {
 
       LOG.info("Starting server...");
-      runServer(id, secret, serverSource, relaySource);
+      final Server server = createServer(id, secret, relaySource, config);
+
+      if (config.selectorFrontEnd) {
+        try (final SelectorFrontEnd frontEnd = new SelectorFrontEnd(server, port)) {
+          frontEnd.run();
+        }
+      } else {
+        try (final ConnectionSource serverSource = ServerConnectionSource.forPort(port)) {
+          runServer(server, serverSource);
+        }
+      }
 
     } catch (IOException ex) {
 
@@ -87,20 +134,26 @@ final class ServerMain {
     }
   }
 
-  private static void runServer(Uuid id,
-                                Secret secret,
-                                ConnectionSource serverSource,
-                                ConnectionSource relaySource) {
+  private static Server createServer(Uuid id,
+                                     Secret secret,
+                                     ConnectionSource relaySource,
+                                     ServerConfig config) {
 
     final Relay relay = relaySource == null ?
                         new NoOpRelay() :
                         new RemoteRelay(relaySource);
 
-    final Server server = new Server(id, secret, relay);
+    final Server server = new Server(id, secret, relay, config);
 
     LOG.info("Created server.");
 
     server.readTransactionLog();
+
+    return server;
+  }
+
+  private static void runServer(Server server, ConnectionSource serverSource) {
+
     while (true) {
 
       try {
@@ -18,6 +18,7 @@ import codeu.chat.client.core.*;
 import codeu.chat.common.AccessLevel;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ServerInfo;
+import codeu.chat.common.ServerMetrics;
 import codeu.chat.common.UserAccessLevel;
 import codeu.chat.util.Time;
 import codeu.chat.util.Tokenizer;
@@ -122,6 +123,8 @@ public final class Chat {
         System.out.println("    Display the version of the server.");
         System.out.println("  uptime");
         System.out.println("    Display the amount of time the server has been running.");
+        System.out.println("  metrics");
+        System.out.println("    Display how many requests the server has run and how long they took.");
         System.out.println("  exit");
         System.out.println("    Exit the program.");
       }
@@ -149,6 +152,43 @@ public final class Chat {
       }
     });
 
+    // METRICS
+    //
+    // Add a command to print the server's request counts and timings when the
+    // user enters "metrics" while on the root panel. Times are in microseconds.
+    //
+    panel.register("metrics", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        final ServerMetrics metrics = context.getMetrics();
+        if (metrics == null) {
+          System.out.println("ERROR: unable to retrieve server metrics");
+        } else {
+          System.out.format("TURNED AWAY %d\n", metrics.turnedAway);
+          System.out.format(
+              "%-32s %8s %6s %8s %8s %8s %8s %8s\n",
+              "REQUEST", "COUNT", "ERRORS", "MEAN", "P50", "P90", "P99", "MAX");
+          print(metrics.queueWait);
+          for (final ServerMetrics.Timing timing : metrics.commands) {
+            print(timing);
+          }
+        }
+      }
+
+      private void print(ServerMetrics.Timing timing) {
+        System.out.format(
+            "%-32s %8d %6d %8d %8d %8d %8d %8d\n",
+            timing.name,
+            timing.count,
+            timing.errors,
+            timing.mean,
+            timing.p50,
+            timing.p90,
+            timing.p99,
+            timing.max);
+      }
+    });
+
     // U-LIST (user list)
     //
     // Add a command to print all users registered on the server when the user
@@ -460,8 +500,14 @@ public final class Chat {
         System.out.println("USER MODE");
         System.out.println("  m-list");
         System.out.println("    List all messages in the current conversation.");
+        System.out.println("  m-search <words>");
+        System.out.println("    List the newest messages that use all the words. End a word with * to match its start.");
         System.out.println("  m-add <message>");
         System.out.println("    Add a new message to the current conversation as the current user.");
+        System.out.println("  m-delete <message id>");
+        System.out.println("    Delete a message (its author, owners and the creator only).");
+        System.out.println("  c-delete");
+        System.out.println("    Delete the current conversation and all its messages (creator only).");
         System.out.println("  set-default <access level>");
         System.out.println("    Set a new default access level for new users (creator only)");
         System.out.println("  n-make <userid>");
@@ -485,6 +531,9 @@ public final class Chat {
     // user enters "m-list" while on the conversation panel.
     //
     panel.register("m-list", new Panel.Command() {
+
+      private static final int PAGE_SIZE = 50;
+
       @Override
       public void invoke(List<String> args) {
         final AccessLevel accesslevel = conversation.getUserAccessLevel().getAccessLevel();
@@ -492,14 +541,13 @@ public final class Chat {
           System.out.println("ERROR: You do not have the valid access level to view Messages");
         } else {
           System.out.println("--- start of conversation ---");
-          for (MessageContext message = conversation.firstMessage();
-               message != null;
-               message = message.next()) {
+          for (final MessageContext message : conversation.messages(PAGE_SIZE)) {
             System.out.println();
+            System.out.format("ID   : %s\n", message.message.id);
             System.out.format("USER : %s\n", message.message.author);
             System.out.format("SENT : %s\n", message.message.creation);
             System.out.println();
-            System.out.println(message.message.content);
+            System.out.println(message.message.content());
             System.out.println();
           }
           System.out.println("---  end of conversation  ---");
@@ -507,6 +555,43 @@ public final class Chat {
       }
     });
 
+    // M-SEARCH (search messages)
+    //
+    // Add a command to print the newest messages in the current conversation
+    // that use all the given words when the user enters "m-search" while on
+    // the conversation panel.
+    //
+    panel.register("m-search", new Panel.Command() {
+
+      private static final int LIMIT = 20;
+
+      @Override
+      public void invoke(List<String> args) {
+        final AccessLevel accesslevel = conversation.getUserAccessLevel().getAccessLevel();
+        if (accesslevel == AccessLevel.NONE) {
+          System.out.println("ERROR: You do not have the valid access level to view Messages");
+        } else if (args.isEmpty()) {
+          System.out.println("ERROR: Missing <words>");
+        } else {
+          final StringBuilder query = new StringBuilder();
+          for (final String arg : args) {
+            query.append(arg).append(' ');
+          }
+          System.out.println("--- start of results ---");
+          for (final MessageContext message : conversation.search(query.toString(), LIMIT)) {
+            System.out.println();
+            System.out.format("ID   : %s\n", message.message.id);
+            System.out.format("USER : %s\n", message.message.author);
+            System.out.format("SENT : %s\n", message.message.creation);
+            System.out.println();
+            System.out.println(message.message.content());
+            System.out.println();
+          }
+          System.out.println("---  end of results  ---");
+        }
+      }
+    });
+
     // M-ADD (add message)
     //
     // Add a command to add a new message to the current conversation when the
@@ -529,6 +614,54 @@ public final class Chat {
       }
     });
 
+    // M-DELETE (delete message)
+    //
+    // Add a command to delete a message from the current conversation when the
+    // user enters "m-delete" while on the conversation panel. Only the author
+    // of the message, owners and the creator can delete it.
+    //
+    panel.register("m-delete", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        try {
+          final Uuid id = args.size() > 0 ? Uuid.parse(args.get(0)) : null;
+          final AccessLevel accesslevel = conversation.getUserAccessLevel().getAccessLevel();
+          final MessageContext message = id == null ? null : conversation.getMessage(id);
+          if (message == null) {
+            System.out.println("ERROR: Missing or unknown <message id>");
+          } else if (!message.message.author.equals(conversation.user.id) &&
+                     accesslevel != AccessLevel.OWNER &&
+                     accesslevel != AccessLevel.CREATOR) {
+            System.out.println("ERROR: You do not have the valid access level to delete this message");
+          } else if (!conversation.deleteMessage(id)) {
+            System.out.println("ERROR: Failed to delete message");
+          }
+        } catch (Exception ex) {
+          System.out.println("ERROR: Invalid <message id>");
+        }
+      }
+    });
+
+    // C-DELETE (delete conversation)
+    //
+    // Add a command to delete the current conversation and all its messages
+    // when the user enters "c-delete" while on the conversation panel. Only
+    // the creator can delete a conversation. Once it is gone the user is taken
+    // back to USER MODE.
+    //
+    panel.register("c-delete", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        if (!conversation.user.id.equals(conversation.conversation.owner)) {
+          System.out.println("ERROR: Only the creator can delete a conversation");
+        } else if (conversation.delete()) {
+          panels.pop();
+        } else {
+          System.out.println("ERROR: Failed to delete conversation");
+        }
+      }
+    });
+
     panel.register("set-default", new Panel.Command() {
       @Override
       public void invoke(List<String> args) {
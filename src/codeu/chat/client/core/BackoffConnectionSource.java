@@ -0,0 +1,156 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Random;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+// BACKOFF CONNECTION SOURCE
+//
+// Wraps another connection source so that requests the server turns away as
+// BUSY are sent again after a pause. The server does not run a request that
+// it answers with BUSY, so sending it again is safe even for requests that
+// change something.
+//
+// Each request is held until its response is asked for. If the response is
+// BUSY the request is sent again on a new connection, waiting at least as
+// long as the server asked and twice as long as the last time, plus a little
+// randomness so that clients turned away together do not all come back
+// together. After a few attempts the BUSY response is handed to the caller,
+// which treats it like any other failed response.
+public final class BackoffConnectionSource implements ConnectionSource {
+
+  private final static Logger.Log LOG = Logger.newLog(BackoffConnectionSource.class);
+
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long FIRST_BACKOFF_MS = 50;
+  private static final long MAX_BACKOFF_MS = 5000;
+
+  private final ConnectionSource source;
+  private final Random random = new Random();
+
+  public BackoffConnectionSource(ConnectionSource source) {
+    this.source = source;
+  }
+
+  @Override
+  public Connection connect() {
+
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+    return new Connection() {
+
+      private Connection current = null;
+      private InputStream response = null;
+
+      @Override
+      public InputStream in() throws IOException {
+        if (response == null) {
+          response = exchange();
+        }
+        return response;
+      }
+
+      @Override
+      public OutputStream out() {
+        return request;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (current == null && request.size() > 0) {
+          // Nothing was read back so the request still needs to be sent.
+          try (final Connection connection = source.connect()) {
+            request.writeTo(connection.out());
+          }
+        } else if (current != null) {
+          current.close();
+        }
+      }
+
+      private InputStream exchange() throws IOException {
+
+        long backoff = FIRST_BACKOFF_MS;
+
+        for (int attempt = 1; ; attempt++) {
+
+          current = source.connect();
+          request.writeTo(current.out());
+
+          final InputStream in = current.in();
+          final int type = Serializers.INTEGER.read(in);
+
+          if (type != NetworkCode.BUSY) {
+            return replay(type, null, in);
+          }
+
+          final int retryAfter = Serializers.INTEGER.read(in);
+
+          if (attempt == MAX_ATTEMPTS) {
+            LOG.warning("Server still busy after %d attempts.", attempt);
+            return replay(type, retryAfter, in);
+          }
+
+          current.close();
+          current = null;
+
+          backoff = Math.min(MAX_BACKOFF_MS, Math.max(retryAfter, backoff * 2));
+          pause(backoff + random.nextInt((int) (backoff / 2) + 1));
+        }
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+
+  // REPLAY
+  //
+  // Put the values that were read to look for BUSY back in front of the rest
+  // of the response.
+  private static InputStream replay(int type, Integer retryAfter, InputStream rest)
+      throws IOException {
+
+    final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(head, type);
+    if (retryAfter != null) {
+      Serializers.INTEGER.write(head, retryAfter);
+    }
+
+    return new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), rest);
+  }
+
+  private static void pause(long ms) throws IOException {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to retry", ex);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+// BATCH
+//
+// A group of requests that are sent to the server together and answered in a
+// single round trip. Requests are added with the methods on the Controller and
+// View that take a batch. Each of those returns a result that is filled in when
+// the batch is sent. The server runs the requests in the order they were
+// added, so a later request sees the changes made by an earlier one.
+//
+// Only requests that do not depend on the response to another request in the
+// same batch can be batched.
+public final class Batch {
+
+  private final static Logger.Log LOG = Logger.newLog(Batch.class);
+
+  // REQUEST
+  //
+  // Writes everything in a request that comes after its network code.
+  interface Request {
+    void write(OutputStream out) throws IOException;
+  }
+
+  // RESULT
+  //
+  // The response to one request in a batch. If the batch could not be sent,
+  // or the server did not answer the request, the value is null just as it
+  // would be if the request had been sent on its own.
+  public static final class Result<T> {
+
+    private final int responseCode;
+    private final Serializer<T> serializer;
+
+    private boolean ready = false;
+    private T value = null;
+
+    private Result(int responseCode, Serializer<T> serializer) {
+      this.responseCode = responseCode;
+      this.serializer = serializer;
+    }
+
+    public T get() {
+      if (!ready) {
+        throw new IllegalStateException("The batch has not been sent.");
+      }
+      return value;
+    }
+
+    private void read(byte[] response) throws IOException {
+
+      final InputStream in = new ByteArrayInputStream(response);
+
+      if (Serializers.INTEGER.read(in) == responseCode) {
+        value = serializer.read(in);
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    }
+  }
+
+  private final ConnectionSource source;
+
+  private final List<byte[]> requests = new ArrayList<>();
+  private final List<Result<?>> results = new ArrayList<>();
+
+  private boolean sent = false;
+
+  Batch(ConnectionSource source) {
+    this.source = source;
+  }
+
+  <T> Result<T> add(int requestCode,
+                    Request request,
+                    int responseCode,
+                    Serializer<T> serializer) {
+
+    if (sent) {
+      throw new IllegalStateException("The batch has already been sent.");
+    }
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    try {
+      Serializers.INTEGER.write(bytes, requestCode);
+      request.write(bytes);
+    } catch (IOException ex) {
+      // Writing to memory does not fail.
+      throw new IllegalStateException(ex);
+    }
+
+    final Result<T> result = new Result<>(responseCode, serializer);
+
+    requests.add(bytes.toByteArray());
+    results.add(result);
+
+    return result;
+  }
+
+  // SEND
+  //
+  // Send every request in the batch and wait for all the responses. Returns
+  // false if the batch could not be sent or was not answered. A batch can only
+  // be sent once.
+  public boolean send() {
+
+    if (sent) {
+      throw new IllegalStateException("The batch has already been sent.");
+    }
+
+    sent = true;
+
+    boolean answered = false;
+
+    if (requests.isEmpty()) {
+      answered = true;
+    } else {
+      try (final Connection connection = source.connect()) {
+
+        Serializers.INTEGER.write(connection.out(), NetworkCode.BATCH_REQUEST);
+        Serializers.collection(Serializers.BYTES).write(connection.out(), requests);
+
+        if (Serializers.INTEGER.read(connection.in()) == NetworkCode.BATCH_RESPONSE) {
+
+          final Collection<byte[]> responses = Serializers.collection(Serializers.BYTES).read(connection.in());
+
+          if (responses.size() == results.size()) {
+            final Iterator<byte[]> response = responses.iterator();
+            for (final Result<?> result : results) {
+              result.read(response.next());
+            }
+            answered = true;
+          } else {
+            LOG.error("Batch of %d requests got %d responses.", results.size(), responses.size());
+          }
+        } else {
+          LOG.error("Response from server failed.");
+        }
+      } catch (Exception ex) {
+        System.out.println("ERROR: Exception during call on server. Check log for details.");
+        LOG.error(ex, "Exception during call on server.");
+      }
+    }
+
+    for (final Result<?> result : results) {
+      result.ready = true;
+    }
+
+    return answered;
+  }
+}
@@ -20,6 +20,7 @@ import java.util.Collection;
 import codeu.chat.common.ServerInfo;
 import codeu.chat.common.BasicView;
 import codeu.chat.common.ServerInfo;
+import codeu.chat.common.ServerMetrics;
 import codeu.chat.common.User;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
@@ -30,9 +31,11 @@ public final class Context {
   private final View view;
   private final Controller controller;
 
-  public Context(ConnectionSource source) {	
-  	this.view = new View(source);
-    this.controller = new Controller(source);
+  public Context(ConnectionSource source) {
+    // Requests the server is too busy to take are sent again after a pause.
+    final ConnectionSource retrying = new BackoffConnectionSource(source);
+    this.view = new View(retrying);
+    this.controller = new Controller(retrying);
   }
 
   public UserContext create(String name) {
@@ -55,4 +58,7 @@ public final class Context {
   public ServerInfo getServerUptime() {
     return view.getServerUptime();
   }
+  public ServerMetrics getMetrics() {
+    return view.getMetrics();
+  }
 }
@@ -14,6 +14,8 @@
 
 package codeu.chat.client.core;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.Thread;
@@ -251,4 +253,85 @@ final class Controller implements BasicController {
 
     return response;
   }
+
+  @Override
+  public boolean deleteMessage(Uuid user, Uuid message) {
+    return delete(NetworkCode.DELETE_MESSAGE_REQUEST, NetworkCode.DELETE_MESSAGE_RESPONSE, user, message);
+  }
+
+  @Override
+  public boolean deleteConversation(Uuid user, Uuid conversation) {
+    return delete(NetworkCode.DELETE_CONVERSATION_REQUEST,
+                  NetworkCode.DELETE_CONVERSATION_RESPONSE,
+                  user,
+                  conversation);
+  }
+
+  private boolean delete(int request, int expectedResponse, Uuid user, Uuid id) {
+
+    boolean response = false;
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), request);
+      Uuid.SERIALIZER.write(connection.out(), user);
+      Uuid.SERIALIZER.write(connection.out(), id);
+
+      if (Serializers.INTEGER.read(connection.in()) == expectedResponse) {
+        response = Serializers.BOOLEAN.read(connection.in());
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return response;
+  }
+
+  // BATCHED CALLS
+  //
+  // These add a request to a batch instead of sending it straight away. The
+  // result can be read once the batch has been sent.
+
+  public Batch.Result<Message> newMessage(Batch batch,
+                                          final Uuid author,
+                                          final Uuid conversation,
+                                          final String body) {
+    return batch.add(NetworkCode.NEW_MESSAGE_REQUEST, new Batch.Request() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Uuid.SERIALIZER.write(out, author);
+        Uuid.SERIALIZER.write(out, conversation);
+        Serializers.STRING.write(out, body);
+      }
+    }, NetworkCode.NEW_MESSAGE_RESPONSE, Serializers.nullable(Message.SERIALIZER));
+  }
+
+  public Batch.Result<UserAccessLevel> newUserAccessLevel(Batch batch,
+                                                          final Uuid conversationId,
+                                                          final Uuid userId,
+                                                          final AccessLevel accessLevel) {
+    return batch.add(NetworkCode.NEW_ACCESS_LEVEL_REQUEST, new Batch.Request() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Uuid.SERIALIZER.write(out, conversationId);
+        Uuid.SERIALIZER.write(out, userId);
+        Serializers.STRING.write(out, accessLevel.toString());
+      }
+    }, NetworkCode.NEW_ACCESS_LEVEL_RESPONSE, Serializers.nullable(UserAccessLevel.SERIALIZER));
+  }
+
+  public Batch.Result<UserAccessLevel> getUserAccessLevel(Batch batch,
+                                                          final Uuid conversationId,
+                                                          final Uuid userId) {
+    return batch.add(NetworkCode.GET_ACCESS_LEVEL_REQUEST, new Batch.Request() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Uuid.SERIALIZER.write(out, conversationId);
+        Uuid.SERIALIZER.write(out, userId);
+      }
+    }, NetworkCode.GET_ACCESS_LEVEL_RESPONSE, Serializers.nullable(UserAccessLevel.SERIALIZER));
+  }
 }
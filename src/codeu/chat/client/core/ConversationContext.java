@@ -14,9 +14,12 @@
 
 package codeu.chat.client.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import codeu.chat.common.AccessLevel;
 import codeu.chat.common.BasicController;
@@ -80,6 +83,82 @@ public final class ConversationContext {
         getMessage(updated.lastMessage);
   }
 
+  // MESSAGES
+  //
+  // Every message in the conversation, oldest first. Messages are fetched a
+  // page at a time as the iteration reaches them, so reading the whole
+  // conversation takes one call to the server per page instead of one per
+  // message.
+  public Iterable<MessageContext> messages(final int pageSize) {
+    return new Iterable<MessageContext>() {
+      @Override
+      public Iterator<MessageContext> iterator() {
+        return new Iterator<MessageContext>() {
+
+          private Iterator<Message> page = Collections.<Message>emptyIterator();
+          // The newest message read so far. Its time goes along with its id
+          // so the next page still starts in the right place if it has been
+          // deleted in the meantime.
+          private Message last = null;
+          private boolean done = false;
+
+          @Override
+          public boolean hasNext() {
+            while (!page.hasNext() && !done) {
+              final Collection<Message> next =
+                  last == null ?
+                      view.getMessagePage(conversation.id, Uuid.NULL, null, true, pageSize) :
+                      view.getMessagePage(conversation.id, last.id, last.creation, true, pageSize);
+              // A short page means the end has been reached, so there is no
+              // need to ask for an empty one.
+              done = next.size() < pageSize;
+              page = next.iterator();
+            }
+            return page.hasNext();
+          }
+
+          @Override
+          public MessageContext next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            final Message message = page.next();
+            last = message;
+            return new MessageContext(message, view);
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  // Find the newest messages in this conversation that use every word in the
+  // query, oldest first. A word ending in "*" matches any word starting with it.
+  public Iterable<MessageContext> search(String query, int limit) {
+
+    final Collection<MessageContext> found = new ArrayList<>();
+
+    for (final Message message : view.searchMessages(conversation.id, query, limit)) {
+      found.add(new MessageContext(message, view));
+    }
+
+    return found;
+  }
+
+  // Delete one of the messages in this conversation as this user.
+  public boolean deleteMessage(Uuid message) {
+    return controller.deleteMessage(user.id, message);
+  }
+
+  // Delete this conversation and every message in it as this user.
+  public boolean delete() {
+    return controller.deleteConversation(user.id, conversation.id);
+  }
+
   public void addUserAccessLevel(Uuid userid, AccessLevel accesslevel) {
     controller.newUserAccessLevel(conversation.id, userid, accesslevel);
 
@@ -99,7 +178,8 @@ public final class ConversationContext {
     return payloads.hasNext() ? payloads.next() : null;
   }
 
-  private MessageContext getMessage(Uuid id) {
+  // Fetch a single message by its id, or null if there is no such message.
+  public MessageContext getMessage(Uuid id) {
     final Iterator<Message> messages = view.getMessages(Arrays.asList(id)).iterator();
     return messages.hasNext() ? new MessageContext(messages.next(), view) : null;
   }
@@ -0,0 +1,262 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.Frame;
+
+// SESSION CONNECTION SOURCE
+//
+// Implements the ConnectionSource interface on top of a single long-lived
+// connection. Every call to "connect" returns a light-weight connection that
+// buffers the request in memory. The first time the response is read, the
+// request is sent to the server as a frame and the caller blocks until the
+// frame with the matching id comes back. Any number of threads can have
+// requests in flight at the same time and the server may answer them in any
+// order.
+//
+// If the server does not understand sessions, every call to "connect" falls
+// back to the wrapped source so that one-shot servers keep working.
+public final class SessionConnectionSource implements ConnectionSource {
+
+  private final static Logger.Log LOG = Logger.newLog(SessionConnectionSource.class);
+
+  private static final class Pending {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private byte[] body;
+    private IOException error;
+
+    public void complete(byte[] body) {
+      this.body = body;
+      done.countDown();
+    }
+
+    public void fail(IOException error) {
+      this.error = error;
+      done.countDown();
+    }
+
+    public byte[] await() throws IOException {
+      try {
+        done.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for response", ex);
+      }
+      if (error != null) {
+        throw error;
+      }
+      return body;
+    }
+  }
+
+  // SESSION
+  //
+  // One open session with the server and the requests that are waiting on
+  // it. Requests are tracked per session so that when a session fails, only
+  // the requests that were sent over it fail with it.
+  private static final class Session {
+
+    public final Connection connection;
+    public final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+    public Session(Connection connection) {
+      this.connection = connection;
+    }
+  }
+
+  private final ConnectionSource source;
+
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  private final Object lock = new Object();
+  private Session session;  // guarded by "lock"
+  private boolean supported = true;  // guarded by "lock"
+
+  public SessionConnectionSource(ConnectionSource source) {
+    this.source = source;
+  }
+
+  @Override
+  public Connection connect() throws IOException {
+
+    synchronized (lock) {
+      if (session == null && supported) {
+        session = open();
+      }
+      if (!supported) {
+        return source.connect();
+      }
+    }
+
+    return new Connection() {
+
+      private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+      private InputStream response;
+
+      @Override
+      public InputStream in() throws IOException {
+        if (response == null) {
+          response = new ByteArrayInputStream(exchange(request.toByteArray()));
+        }
+        return response;
+      }
+
+      @Override
+      public OutputStream out() throws IOException {
+        return request;
+      }
+
+      @Override
+      public void close() throws IOException {
+        // The session is shared by every request, so there is nothing to
+        // close here.
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      if (session != null) {
+        session.connection.close();
+        session = null;
+      }
+    }
+    source.close();
+  }
+
+  // OPEN
+  //
+  // Open a new session with the server. If the server does not reply with
+  // a session response, it is an older server and sessions are turned off
+  // for this source. Must be called while holding "lock".
+  private Session open() throws IOException {
+
+    final Connection connection = source.connect();
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.SESSION_REQUEST);
+    connection.out().flush();
+
+    if (Serializers.INTEGER.read(connection.in()) != NetworkCode.SESSION_RESPONSE) {
+      LOG.warning("Server does not support sessions, using one connection per request.");
+      supported = false;
+      connection.close();
+      return null;
+    }
+
+    final Session opened = new Session(connection);
+
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+        read(opened);
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+
+    LOG.info("Session opened.");
+
+    return opened;
+  }
+
+  private byte[] exchange(byte[] body) throws IOException {
+
+    final int id = nextId.incrementAndGet();
+    final Pending request = new Pending();
+
+    synchronized (lock) {
+      if (session == null && supported) {
+        session = open();
+      }
+      if (session == null) {
+        throw new IOException("Server stopped supporting sessions");
+      }
+      session.pending.put(id, request);
+      try {
+        Frame.SERIALIZER.write(session.connection.out(), new Frame(id, body));
+        session.connection.out().flush();
+      } catch (IOException ex) {
+        session.pending.remove(id);
+        throw ex;
+      }
+    }
+
+    return request.await();
+  }
+
+  // READ
+  //
+  // Read response frames off the session until it fails, handing each one to
+  // the request that is waiting for it. When the session fails every request
+  // still in flight on it fails too and the next request opens a new session.
+  private void read(Session current) {
+
+    IOException error;
+
+    try {
+      // Take the input stream once. Asking for it sends any buffered output,
+      // which is the writers' job on a session.
+      final InputStream in = current.connection.in();
+      while (true) {
+        final Frame frame = Frame.SERIALIZER.read(in);
+        final Pending request = current.pending.remove(frame.id);
+        if (request == null) {
+          LOG.warning("Response for unknown request %d", frame.id);
+        } else {
+          request.complete(frame.body);
+        }
+      }
+    } catch (Exception ex) {
+      error = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+    }
+
+    LOG.info("Session closed (%s).", error.toString());
+
+    synchronized (lock) {
+      if (session == current) {
+        session = null;
+      }
+      try {
+        current.connection.close();
+      } catch (IOException ex) {
+        // The session is already broken - nothing more can be done.
+      }
+    }
+
+    // Nothing can be added to this session's requests anymore as it is no
+    // longer the active session.
+    for (final Pending request : current.pending.values()) {
+      request.fail(error);
+    }
+    current.pending.clear();
+  }
+}
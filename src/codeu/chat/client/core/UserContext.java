@@ -82,9 +82,27 @@ public final class UserContext {
   }
 
   public void joinConversation(Uuid conversationId) {
-    final UserAccessLevel userAccessLevel = controller.getUserAccessLevel(conversationId, user.id);
+
+    final UserAccessLevel userAccessLevel;
+    final AccessLevel defaultAccessLevel;
+
+    if (view instanceof View && controller instanceof Controller) {
+      // Ask for the user's access and the default together so that joining
+      // costs one round trip when the user already has access.
+      final Batch batch = ((View) view).newBatch();
+      final Batch.Result<UserAccessLevel> access =
+          ((Controller) controller).getUserAccessLevel(batch, conversationId, user.id);
+      final Batch.Result<AccessLevel> defaultAccess =
+          ((View) view).getDefaultAccessLevel(batch, conversationId);
+      batch.send();
+      userAccessLevel = access.get();
+      defaultAccessLevel = defaultAccess.get();
+    } else {
+      userAccessLevel = controller.getUserAccessLevel(conversationId, user.id);
+      defaultAccessLevel = userAccessLevel == null ? view.getDefaultAccessLevel(conversationId) : null;
+    }
+
     if (userAccessLevel == null) {
-      final AccessLevel defaultAccessLevel = view.getDefaultAccessLevel(conversationId);
       controller.newUserAccessLevel(conversationId, user.id, defaultAccessLevel);
     }
   }
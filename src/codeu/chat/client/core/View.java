@@ -14,6 +14,9 @@
 
 package codeu.chat.client.core;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -23,6 +26,7 @@ import java.util.Set;
 
 import codeu.chat.common.*;
 import codeu.chat.util.Logger;
+import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
@@ -38,6 +42,20 @@ final class View implements BasicView {
 
   private final static Logger.Log LOG = Logger.newLog(View.class);
 
+  // Access levels are sent as their names.
+  private static final Serializer<AccessLevel> ACCESS_LEVEL = new Serializer<AccessLevel>() {
+
+    @Override
+    public void write(OutputStream out, AccessLevel value) throws IOException {
+      Serializers.STRING.write(out, value.toString());
+    }
+
+    @Override
+    public AccessLevel read(InputStream in) throws IOException {
+      return AccessLevel.valueOf(Serializers.STRING.read(in));
+    }
+  };
+
   private final ConnectionSource source;
 
   public View(ConnectionSource source) {
@@ -113,6 +131,85 @@ final class View implements BasicView {
     return conversations;
   }
 
+  @Override
+  public Collection<Message> getMessagePage(Uuid conversation, Uuid from, Time at, boolean forward, int limit) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_PAGE_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), conversation);
+      Uuid.SERIALIZER.write(connection.out(), from);
+      Serializers.nullable(Time.SERIALIZER).write(connection.out(), at);
+      Serializers.BOOLEAN.write(connection.out(), forward);
+      Serializers.INTEGER.write(connection.out(), limit);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_PAGE_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
+  @Override
+  public Collection<Message> getMessagesByAuthor(Uuid author, Uuid from, Time at, boolean forward, int limit) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_BY_AUTHOR_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), author);
+      Uuid.SERIALIZER.write(connection.out(), from);
+      Serializers.nullable(Time.SERIALIZER).write(connection.out(), at);
+      Serializers.BOOLEAN.write(connection.out(), forward);
+      Serializers.INTEGER.write(connection.out(), limit);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_BY_AUTHOR_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
+  @Override
+  public Collection<Message> searchMessages(Uuid conversation, String query, int limit) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SEARCH_MESSAGES_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), conversation);
+      Serializers.STRING.write(connection.out(), query);
+      Serializers.INTEGER.write(connection.out(), limit);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SEARCH_MESSAGES_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
   @Override
   public Collection<Interests> getInterests() {
 
@@ -274,4 +371,70 @@ final class View implements BasicView {
     return null;
   }
 
+  // Get the request counts and timings the server has recorded since it
+  // started. Returns null if the server could not be asked.
+  public ServerMetrics getMetrics() {
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.METRICS_REQUEST);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.METRICS_RESPONSE) {
+        return ServerMetrics.SERIALIZER.read(connection.in());
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return null;
+  }
+
+  // BATCHED CALLS
+  //
+  // These add a request to a batch instead of sending it straight away. The
+  // result can be read once the batch has been sent.
+
+  public Batch newBatch() {
+    return new Batch(source);
+  }
+
+  public Batch.Result<Collection<ConversationPayload>> getConversationPayloads(Batch batch,
+                                                                              final Collection<Uuid> ids) {
+    return batch.add(NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST, new Batch.Request() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Serializers.collection(Uuid.SERIALIZER).write(out, ids);
+      }
+    }, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE, Serializers.collection(ConversationPayload.SERIALIZER));
+  }
+
+  public Batch.Result<Collection<Message>> getMessages(Batch batch, final Collection<Uuid> ids) {
+    return batch.add(NetworkCode.GET_MESSAGES_BY_ID_REQUEST, new Batch.Request() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Serializers.collection(Uuid.SERIALIZER).write(out, ids);
+      }
+    }, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE, Serializers.collection(Message.SERIALIZER));
+  }
+
+  public Batch.Result<Collection<UserAccessLevel>> getAccessLevels(Batch batch, final Uuid conversation) {
+    return batch.add(NetworkCode.GET_ALL_ACCESS_LEVELS_REQUEST, new Batch.Request() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Uuid.SERIALIZER.write(out, conversation);
+      }
+    }, NetworkCode.GET_ALL_ACCESS_LEVELS_RESPONSE, Serializers.collection(UserAccessLevel.SERIALIZER));
+  }
+
+  public Batch.Result<AccessLevel> getDefaultAccessLevel(Batch batch, final Uuid conversationId) {
+    return batch.add(NetworkCode.GET_DEFAULT_ACCESS_LEVEL_REQUEST, new Batch.Request() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Uuid.SERIALIZER.write(out, conversationId);
+      }
+    }, NetworkCode.GET_DEFAULT_ACCESS_LEVEL_RESPONSE, ACCESS_LEVEL);
+  }
 }
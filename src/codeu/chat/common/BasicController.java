@@ -70,6 +70,22 @@ public interface BasicController {
   //   state of the interests of the specified user on the server.
   Interests removeInterest(Uuid userid, Uuid interest);
 
+  // DELETE MESSAGE
+  //
+  //   Delete a message from the server on behalf of a user. The messages on
+  //   either side of it in its conversation are linked to each other instead.
+  //   Only the message's author and the owners and creator of its
+  //   conversation may delete it. Returns true if the message was found and
+  //   deleted.
+  boolean deleteMessage(Uuid user, Uuid message);
+
+  // DELETE CONVERSATION
+  //
+  //   Delete a conversation and every message in it from the server on behalf
+  //   of a user. Only the conversation's creator may delete it. Returns true
+  //   if the conversation was found and deleted.
+  boolean deleteConversation(Uuid user, Uuid conversation);
+
   //NEW USER ACCESS LEVEL
   //
   //   Create a new user access level on the server. All parameters must be provided
@@ -21,6 +21,7 @@ import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.Interests;
 import codeu.chat.common.Message;
 import codeu.chat.common.User;
+import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 import codeu.chat.common.UserAccessLevel;
 
@@ -54,6 +55,32 @@ public interface BasicView {
   //   Return all messages whose id is found in the given collection.
   Collection<Message> getMessages(Collection<Uuid> ids);
 
+  // GET MESSAGE PAGE
+  //
+  //   Return up to "limit" messages of a conversation in the order they were
+  //   sent. Going forward the page starts just after the cursor and going
+  //   backward it ends just before it. The cursor is the message "from"
+  //   unless that is Uuid.NULL, then the time "at" unless that is null, and
+  //   otherwise the start (forward) or end (backward) of the conversation.
+  //   Send the cursor's time as "at" along with "from": if the message has
+  //   been deleted the page carries on from strictly after (or before) it.
+  Collection<Message> getMessagePage(Uuid conversation, Uuid from, Time at, boolean forward, int limit);
+
+  // GET MESSAGES BY AUTHOR
+  //
+  //   Return up to "limit" of the messages a user wrote, in any conversation,
+  //   in the order they were sent. The cursor works the same way as for
+  //   getMessagePage.
+  Collection<Message> getMessagesByAuthor(Uuid author, Uuid from, Time at, boolean forward, int limit);
+
+  // SEARCH MESSAGES
+  //
+  //   Return the newest messages (at most "limit" of them) that use every
+  //   word in the query. A word that ends with "*" matches any word that
+  //   starts with it. If the conversation is not Uuid.NULL only messages in
+  //   that conversation are returned.
+  Collection<Message> searchMessages(Uuid conversation, String query, int limit);
+
   // GET INTERESTS
   //
   //   Return all the interests objects.
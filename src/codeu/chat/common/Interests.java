@@ -3,8 +3,11 @@ package codeu.chat.common;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
@@ -18,6 +21,7 @@ public final class Interests {
     public void write(OutputStream out, Interests value) throws IOException {
 
       Serializers.collection(Uuid.SERIALIZER).write(out, value.interests);
+      Uuid.SERIALIZER.write(out, value.id);
       Time.SERIALIZER.write(out, value.lastStatusUpdate);
       Time.SERIALIZER.write(out, value.creation);
 
@@ -36,9 +40,47 @@ public final class Interests {
     }
   };
 
+  private static final BufferSerializer<Collection<Uuid>> UUIDS =
+      BufferSerializers.collection(Uuid.BUFFER_SERIALIZER);
+
+  public static final BufferSerializer<Interests> BUFFER_SERIALIZER = new BufferSerializer<Interests>() {
+
+    @Override
+    public int size(Interests value) {
+
+      return UUIDS.size(value.interests) +
+             Uuid.BUFFER_SERIALIZER.size(value.id) +
+             Time.BUFFER_SERIALIZER.size(value.lastStatusUpdate) +
+             Time.BUFFER_SERIALIZER.size(value.creation);
+
+    }
+
+    @Override
+    public void write(ByteBuffer out, Interests value) {
+
+      UUIDS.write(out, value.interests);
+      Uuid.BUFFER_SERIALIZER.write(out, value.id);
+      Time.BUFFER_SERIALIZER.write(out, value.lastStatusUpdate);
+      Time.BUFFER_SERIALIZER.write(out, value.creation);
+
+    }
+
+    @Override
+    public Interests read(ByteBuffer in) {
+
+      return new Interests(
+          UUIDS.read(in),
+          Uuid.BUFFER_SERIALIZER.read(in),
+          Time.BUFFER_SERIALIZER.read(in),
+          Time.BUFFER_SERIALIZER.read(in)
+      );
+
+    }
+  };
+
   public final Collection<Uuid> interests;
   public final Uuid id;
-  public Time lastStatusUpdate;
+  public final Time lastStatusUpdate;
   public final Time creation;
   public Collection<Uuid> getHashSet (){
     return interests;
@@ -17,7 +17,11 @@ package codeu.chat.common;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import codeu.chat.util.BodyArena;
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
@@ -35,7 +39,13 @@ public final class Message {
       Uuid.SERIALIZER.write(out, value.previous);
       Time.SERIALIZER.write(out, value.creation);
       Uuid.SERIALIZER.write(out, value.author);
-      Serializers.STRING.write(out, value.content);
+
+      if (value.arena == null) {
+        Serializers.STRING.write(out, value.content);
+      } else {
+        Serializers.INTEGER.write(out, value.length);
+        value.arena.write(value.body, value.length, out);
+      }
 
     }
 
@@ -54,12 +64,71 @@ public final class Message {
     }
   };
 
+  public static final BufferSerializer<Message> BUFFER_SERIALIZER = new BufferSerializer<Message>() {
+
+    @Override
+    public int size(Message value) {
+
+      return Uuid.BUFFER_SERIALIZER.size(value.id) +
+             Uuid.BUFFER_SERIALIZER.size(value.next) +
+             Uuid.BUFFER_SERIALIZER.size(value.previous) +
+             Time.BUFFER_SERIALIZER.size(value.creation) +
+             Uuid.BUFFER_SERIALIZER.size(value.author) +
+             (value.arena == null ?
+                 BufferSerializers.STRING.size(value.content) :
+                 BufferSerializers.INTEGER_BYTES + value.length);
+
+    }
+
+    @Override
+    public void write(ByteBuffer out, Message value) {
+
+      Uuid.BUFFER_SERIALIZER.write(out, value.id);
+      Uuid.BUFFER_SERIALIZER.write(out, value.next);
+      Uuid.BUFFER_SERIALIZER.write(out, value.previous);
+      Time.BUFFER_SERIALIZER.write(out, value.creation);
+      Uuid.BUFFER_SERIALIZER.write(out, value.author);
+
+      if (value.arena == null) {
+        BufferSerializers.STRING.write(out, value.content);
+      } else {
+        out.putInt(value.length);
+        value.arena.write(value.body, value.length, out);
+      }
+
+    }
+
+    @Override
+    public Message read(ByteBuffer in) {
+
+      return new Message(
+          Uuid.BUFFER_SERIALIZER.read(in),
+          Uuid.BUFFER_SERIALIZER.read(in),
+          Uuid.BUFFER_SERIALIZER.read(in),
+          Time.BUFFER_SERIALIZER.read(in),
+          Uuid.BUFFER_SERIALIZER.read(in),
+          BufferSerializers.STRING.read(in)
+      );
+
+    }
+  };
+
   public final Uuid id;
   public final Uuid previous;
   public final Time creation;
   public final Uuid author;
-  public final String content;
-  public Uuid next;
+
+  // The only part of a message that changes, as messages are added after it
+  // or it is taken out of its conversation. It is volatile so that a reader
+  // on another thread sees the change without a lock.
+  public volatile Uuid next;
+
+  // The body is either held as a string or kept in an arena, in which case
+  // "content" is null and the body is found by its position and length.
+  private final String content;
+  private final BodyArena arena;
+  private final long body;
+  private final int length;
 
   public Message(Uuid id, Uuid next, Uuid previous, Time creation, Uuid author, String content) {
 
@@ -69,6 +138,47 @@ public final class Message {
     this.creation = creation;
     this.author = author;
     this.content = content;
+    this.arena = null;
+    this.body = 0;
+    this.length = 0;
+
+  }
+
+  // A message whose body has been appended to an arena at the given position.
+  public Message(Uuid id, Uuid next, Uuid previous, Time creation, Uuid author,
+                 BodyArena arena, long body, int length) {
+
+    this.id = id;
+    this.next = next;
+    this.previous = previous;
+    this.creation = creation;
+    this.author = author;
+    this.content = null;
+    this.arena = arena;
+    this.body = body;
+    this.length = length;
+
+  }
+
+  // The body of the message. A body kept in an arena is decoded every time
+  // this is called, so hold on to the result rather than calling it again.
+  public String content() {
+    return arena == null ? content : arena.decode(body, length);
+  }
+
+  // The same message with its body at a position already in an arena, e.g.
+  // one read back from disk whose body was appended to the arena before.
+  public Message withBodyAt(BodyArena arena, long body, int length) {
+    return new Message(id, next, previous, creation, author, arena, body, length);
+  }
+
+  // Where the body is in its arena and how many bytes it takes, for a
+  // message whose body is kept in one.
+  public long bodyPosition() {
+    return body;
+  }
 
+  public int bodyLength() {
+    return length;
   }
 }
@@ -59,5 +59,22 @@ public final class NetworkCode {
       SET_DEFAULT_ACCESS_LEVEL_REQUEST = 43,
       SET_DEFAULT_ACCESS_LEVEL_RESPONSE = 44,
       GET_DEFAULT_ACCESS_LEVEL_REQUEST = 45,
-      GET_DEFAULT_ACCESS_LEVEL_RESPONSE = 46;
+      GET_DEFAULT_ACCESS_LEVEL_RESPONSE = 46,
+      SESSION_REQUEST = 47,
+      SESSION_RESPONSE = 48,
+      BATCH_REQUEST = 49,
+      BATCH_RESPONSE = 50,
+      BUSY = 51,
+      METRICS_REQUEST = 52,
+      METRICS_RESPONSE = 53,
+      SEARCH_MESSAGES_REQUEST = 54,
+      SEARCH_MESSAGES_RESPONSE = 55,
+      GET_MESSAGES_PAGE_REQUEST = 56,
+      GET_MESSAGES_PAGE_RESPONSE = 57,
+      GET_MESSAGES_BY_AUTHOR_REQUEST = 58,
+      GET_MESSAGES_BY_AUTHOR_RESPONSE = 59,
+      DELETE_MESSAGE_REQUEST = 60,
+      DELETE_MESSAGE_RESPONSE = 61,
+      DELETE_CONVERSATION_REQUEST = 62,
+      DELETE_CONVERSATION_RESPONSE = 63;
 }
@@ -0,0 +1,145 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import codeu.chat.util.Histogram;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+
+// SERVER METRICS
+//
+// What the server has measured since it started: how many of each request it
+// has run and how long they took, and how long requests waited to be run.
+// All times are in microseconds.
+public final class ServerMetrics {
+
+  public static final class Timing {
+
+    public static final Serializer<Timing> SERIALIZER = new Serializer<Timing>() {
+
+      @Override
+      public void write(OutputStream out, Timing value) throws IOException {
+
+        Serializers.STRING.write(out, value.name);
+        Serializers.LONG.write(out, value.count);
+        Serializers.LONG.write(out, value.errors);
+        Serializers.LONG.write(out, value.mean);
+        Serializers.LONG.write(out, value.p50);
+        Serializers.LONG.write(out, value.p90);
+        Serializers.LONG.write(out, value.p99);
+        Serializers.LONG.write(out, value.max);
+
+      }
+
+      @Override
+      public Timing read(InputStream in) throws IOException {
+
+        return new Timing(
+            Serializers.STRING.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in));
+
+      }
+    };
+
+    public final String name;
+    public final long count;
+    public final long errors;
+    public final long mean;
+    public final long p50;
+    public final long p90;
+    public final long p99;
+    public final long max;
+
+    public Timing(String name, long count, long errors,
+                  long mean, long p50, long p90, long p99, long max) {
+      this.name = name;
+      this.count = count;
+      this.errors = errors;
+      this.mean = mean;
+      this.p50 = p50;
+      this.p90 = p90;
+      this.p99 = p99;
+      this.max = max;
+    }
+
+    public Timing(String name, Histogram histogram, long errors) {
+      this(name,
+           histogram.count(),
+           errors,
+           histogram.mean(),
+           histogram.percentile(0.50),
+           histogram.percentile(0.90),
+           histogram.percentile(0.99),
+           histogram.max());
+    }
+  }
+
+  public static final Serializer<ServerMetrics> SERIALIZER = new Serializer<ServerMetrics>() {
+
+    @Override
+    public void write(OutputStream out, ServerMetrics value) throws IOException {
+
+      Time.SERIALIZER.write(out, value.startTime);
+      Serializers.LONG.write(out, value.turnedAway);
+      Timing.SERIALIZER.write(out, value.queueWait);
+      Serializers.collection(Timing.SERIALIZER).write(out, value.commands);
+
+    }
+
+    @Override
+    public ServerMetrics read(InputStream in) throws IOException {
+
+      return new ServerMetrics(
+          Time.SERIALIZER.read(in),
+          Serializers.LONG.read(in),
+          Timing.SERIALIZER.read(in),
+          Serializers.collection(Timing.SERIALIZER).read(in));
+
+    }
+  };
+
+  public final Time startTime;
+
+  // Requests answered with BUSY instead of being run.
+  public final long turnedAway;
+
+  // From when a request was handed over to be run to when it started.
+  public final Timing queueWait;
+
+  // How long each kind of request took to run, by its network code. Once the
+  // server has committed its log this also has LOG_COMMIT, how long each
+  // commit took, and LOG_BATCH, which counts records per commit rather than
+  // microseconds.
+  public final Collection<Timing> commands;
+
+  public ServerMetrics(Time startTime, long turnedAway, Timing queueWait, Collection<Timing> commands) {
+    this.startTime = startTime;
+    this.turnedAway = turnedAway;
+    this.queueWait = queueWait;
+    this.commands = commands;
+  }
+}
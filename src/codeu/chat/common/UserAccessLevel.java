@@ -3,6 +3,7 @@ package codeu.chat.common;
 import codeu.chat.util.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -26,8 +27,30 @@ public class UserAccessLevel {
         }
     };
 
+    public static final BufferSerializer<UserAccessLevel> BUFFER_SERIALIZER = new BufferSerializer<UserAccessLevel>() {
+        @Override
+        public int size(UserAccessLevel value) {
+            return Uuid.BUFFER_SERIALIZER.size(value.user) +
+                   BufferSerializers.STRING.size(value.accessLevel.toString());
+        }
+
+        @Override
+        public void write(ByteBuffer out, UserAccessLevel value) {
+            Uuid.BUFFER_SERIALIZER.write(out, value.user);
+            BufferSerializers.STRING.write(out, value.accessLevel.toString());
+        }
+
+        @Override
+        public UserAccessLevel read(ByteBuffer in) {
+            return new UserAccessLevel(
+                    Uuid.BUFFER_SERIALIZER.read(in),
+                    AccessLevel.valueOf(BufferSerializers.STRING.read(in))
+            );
+        }
+    };
+
     private final Uuid user;
-    private AccessLevel accessLevel;
+    private final AccessLevel accessLevel;
 
     public UserAccessLevel(Uuid user, AccessLevel accessLevel) {
         this.user = user;
@@ -41,8 +64,4 @@ public class UserAccessLevel {
     public AccessLevel getAccessLevel() {
         return accessLevel;
     }
-
-    public void setAccessLevel(AccessLevel accessLevel) {
-        this.accessLevel = accessLevel;
-    }
 }
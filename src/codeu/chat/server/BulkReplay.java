@@ -0,0 +1,301 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.locks.Lock;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.store.UuidIndex;
+
+// BULK REPLAY
+//
+// Makes the changes in a snapshot and the log after it with the same result
+// as making them one at a time through the controller, only faster. It is
+// the decoder and the handler given to WriteAheadLog.replay and
+// Snapshots.load, so records are checked and decoded on the pool's threads
+// and come here in the order they were logged.
+//
+// Nearly every record adds a message. Those are not added as they come but
+// kept aside, partitioned by conversation, and a message that is deleted
+// while it is kept aside is simply dropped. "finish" links each
+// conversation's messages up and adds them all to the model at once. That
+// saves the controller's lock, log line, id lookups and new conversation
+// payload for every message. Everything else is rare and goes through the
+// controller as it comes.
+//
+// For the result to be the same, a message kept aside counts as being in
+// the model: its id is in use and its conversation is not empty. Deleting a
+// message that is in the model is the one change that needs the model to
+// have every message before it, so the messages kept aside are added first.
+//
+// Messages are added in the order they were logged, not a conversation at a
+// time, so that messages sent in the same millisecond are in the same order
+// in every index as when they are replayed one at a time.
+final class BulkReplay implements WriteAheadLog.Decoder<BulkReplay.Record>,
+                                  WriteAheadLog.Handler<BulkReplay.Record> {
+
+  private final static Logger.Log LOG = Logger.newLog(BulkReplay.class);
+
+  // A decoded record. Messages are read in full while decoding, as they are
+  // most of the work. Anything else keeps its payload to be read here.
+  static final class Record {
+
+    final byte type;
+    final ByteBuffer payload;
+    final LogRecords.AddedMessage added;
+
+    Record(byte type, ByteBuffer payload, LogRecords.AddedMessage added) {
+      this.type = type;
+      this.payload = payload;
+      this.added = added;
+    }
+  }
+
+  // The messages kept aside for one conversation, in the order they were
+  // logged.
+  private static final class Partition {
+
+    final Uuid conversation;
+    final UuidIndex<Message> messages = new UuidIndex<>();
+
+    Partition(Uuid conversation) {
+      this.conversation = conversation;
+    }
+  }
+
+  private final Model model;
+  private final Controller controller;
+
+  // Every message kept aside by id, in the order they were logged, and the
+  // same messages by conversation. A Uuid index keeps its values in the
+  // order they were added and can have them removed, which is all that is
+  // needed of either.
+  private UuidIndex<LogRecords.AddedMessage> pending = new UuidIndex<>();
+  private UuidIndex<Partition> partitions = new UuidIndex<>();
+
+  // Whether the model can have messages in it. While it cannot, a new
+  // message's id only has to be looked for among users, conversations and
+  // the messages kept aside.
+  private boolean messagesInModel;
+
+  BulkReplay(Model model, Controller controller) {
+    this.model = model;
+    this.controller = controller;
+    this.messagesInModel = model.conversationById().size() > 0;
+  }
+
+  @Override
+  public Record decode(byte type, ByteBuffer payload) {
+    try {
+      return type == LogRecords.ADD_MESSAGE ?
+          new Record(type, null, LogRecords.readAddMessage(payload)) :
+          new Record(type, payload, null);
+    } catch (RuntimeException ex) {
+      LOG.error(ex, "Failed to decode log record of type %d", type);
+      return null;
+    }
+  }
+
+  @Override
+  public void handle(Record record) {
+
+    if (record == null) {
+      return;
+    }
+
+    try {
+      switch (record.type) {
+
+        case LogRecords.ADD_MESSAGE:
+          addMessage(record.added);
+          break;
+
+        case LogRecords.DELETE_MESSAGE:
+          deleteMessage(Uuid.BUFFER_SERIALIZER.read(record.payload));
+          break;
+
+        case LogRecords.DELETE_CONVERSATION: {
+          final Uuid conversation = Uuid.BUFFER_SERIALIZER.read(record.payload.duplicate());
+          drop(conversation);
+          LogRecords.apply(record.type, record.payload, controller);
+          break;
+        }
+
+        case LogRecords.ADD_USER: {
+          final User user = User.BUFFER_SERIALIZER.read(record.payload.duplicate());
+          if (!inPending(user.id)) {
+            LogRecords.apply(record.type, record.payload, controller);
+          }
+          break;
+        }
+
+        case LogRecords.ADD_CONVERSATION: {
+          final ConversationHeader conversation =
+              ConversationHeader.BUFFER_SERIALIZER.read(record.payload.duplicate());
+          if (!inPending(conversation.id)) {
+            LogRecords.apply(record.type, record.payload, controller);
+          }
+          break;
+        }
+
+        default:
+          LogRecords.apply(record.type, record.payload, controller);
+          break;
+      }
+    } catch (RuntimeException ex) {
+      LOG.error(ex, "Failed to replay log record of type %d", record.type);
+    }
+  }
+
+  // FINISH
+  //
+  // Add every message kept aside to the model. Call this once every record
+  // has been handled.
+  void finish() {
+
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+
+      if (pending.size() == 0) {
+        return;
+      }
+
+      final int count = pending.size();
+
+      // Link each conversation's messages to the ones after them, and the
+      // last one already in the model to the first kept aside.
+      for (final Partition partition : partitions.all()) {
+
+        if (messagesInModel) {
+          model.warm(partition.conversation);
+        }
+
+        final ConversationPayload payload = model.conversationPayloadById().first(partition.conversation);
+        Message previous = model.messageById().first(payload.lastMessage);
+
+        for (final Message message : partition.messages.all()) {
+          if (previous != null) {
+            previous.next = message.id;
+          }
+          previous = message;
+        }
+      }
+
+      for (final LogRecords.AddedMessage added : pending.all()) {
+        model.add(added.conversation, added.message);
+        model.keepWithinBudget(Collections.singleton(added.conversation));
+      }
+
+      for (final Partition partition : partitions.all()) {
+
+        Uuid first = null;
+        Uuid last = null;
+        for (final Message message : partition.messages.all()) {
+          first = first == null ? message.id : first;
+          last = message.id;
+        }
+
+        final ConversationPayload payload = model.conversationPayloadById().first(partition.conversation);
+        model.conversationPayloadById().replace(partition.conversation, new ConversationPayload(
+            partition.conversation,
+            Uuid.equals(payload.firstMessage, Uuid.NULL) ? first : payload.firstMessage,
+            last));
+      }
+
+      pending = new UuidIndex<>();
+      partitions = new UuidIndex<>();
+      messagesInModel = true;
+
+      LOG.info("Added %d replayed messages", count);
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Keep a message aside if the controller would have added it.
+  private void addMessage(LogRecords.AddedMessage added) {
+
+    final Message message = added.message;
+
+    if (model.userById().first(message.author) == null ||
+        model.conversationPayloadById().first(added.conversation) == null ||
+        inUse(message.id)) {
+      return;
+    }
+
+    Partition partition = partitions.first(added.conversation);
+    if (partition == null) {
+      partition = new Partition(added.conversation);
+      partitions.insert(added.conversation, partition);
+    }
+
+    partition.messages.insert(message.id, message);
+    pending.insert(message.id, added);
+  }
+
+  private void deleteMessage(Uuid id) {
+
+    final LogRecords.AddedMessage added = pending.first(id);
+
+    if (added != null) {
+      pending.remove(id);
+      final Partition partition = partitions.first(added.conversation);
+      partition.messages.remove(id);
+      if (partition.messages.size() == 0) {
+        partitions.remove(added.conversation);
+      }
+      return;
+    }
+
+    if (messagesInModel && model.conversationOf(id) != null) {
+      finish();
+      controller.deleteMessage(id);
+    }
+  }
+
+  // Forget the messages kept aside for a conversation that is being deleted.
+  private void drop(Uuid conversation) {
+
+    final Partition partition = partitions.first(conversation);
+
+    if (partition != null) {
+      for (final Message message : partition.messages.all()) {
+        pending.remove(message.id);
+      }
+      partitions.remove(conversation);
+    }
+  }
+
+  private boolean inPending(Uuid id) {
+    return pending.first(id) != null;
+  }
+
+  // The same as the controller's check, with the messages kept aside.
+  private boolean inUse(Uuid id) {
+    return inPending(id) ||
+           model.userById().first(id) != null ||
+           model.conversationById().first(id) != null ||
+           (messagesInModel && (model.messageById().first(id) != null || model.conversationOf(id) != null));
+  }
+}
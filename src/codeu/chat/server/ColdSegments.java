@@ -0,0 +1,106 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+
+// COLD SEGMENTS
+//
+// Files that hold the messages of conversations that have been moved out of
+// memory. Every conversation that goes cold is written whole to a segment of
+// its own, and the segment is read back and deleted when the conversation is
+// needed again.
+//
+// Segments only live as long as the server. Everything in them can be built
+// again from the transaction log, so whatever an earlier run left behind is
+// deleted when the segments are opened.
+final class ColdSegments {
+
+  private final static Logger.Log LOG = Logger.newLog(ColdSegments.class);
+
+  private static final String SUFFIX = ".segment";
+
+  private static final Serializer<Collection<Message>> MESSAGES =
+      Serializers.collection(Message.SERIALIZER);
+
+  private final File directory;
+
+  // Names are never reused, so a segment being read is never one that is
+  // being written.
+  private long next = 0;
+
+  ColdSegments(File directory) throws IOException {
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create segment directory " + directory);
+    }
+
+    final File[] old = directory.listFiles();
+    if (old != null) {
+      for (final File file : old) {
+        if (file.getName().endsWith(SUFFIX) && !file.delete()) {
+          LOG.warning("Failed to delete old segment %s", file);
+        }
+      }
+    }
+
+    this.directory = directory;
+  }
+
+  // WRITE
+  //
+  // Write the messages to a new segment and return the segment.
+  synchronized File write(Collection<Message> messages) throws IOException {
+
+    final File segment = new File(directory, "conversation-" + (next++) + SUFFIX);
+
+    try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(segment))) {
+      MESSAGES.write(out, messages);
+    } catch (IOException ex) {
+      segment.delete();
+      throw ex;
+    }
+
+    return segment;
+  }
+
+  // READ
+  //
+  // The messages in a segment, in the order they were written.
+  Collection<Message> read(File segment) throws IOException {
+    try (final InputStream in = new BufferedInputStream(new FileInputStream(segment))) {
+      return MESSAGES.read(in);
+    }
+  }
+
+  void delete(File segment) {
+    if (!segment.delete()) {
+      LOG.warning("Failed to delete segment %s", segment);
+    }
+  }
+}
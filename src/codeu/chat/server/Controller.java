@@ -15,7 +15,9 @@
 package codeu.chat.server;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.locks.Lock;
 
 import codeu.chat.common.AccessLevel;
 import codeu.chat.common.BasicController;
@@ -43,152 +45,222 @@ public final class Controller implements RawController, BasicController {
     this.uuidGenerator = new RandomUuidGenerator(serverId, System.currentTimeMillis());
   }
 
+  // Every call that changes the model holds the model's write lock for as
+  // long as it looks at or changes the model. This keeps each change whole
+  // (e.g. adding a message and linking it into its conversation) when
+  // requests run on more than one thread, and readers see it all at once
+  // when the lock is given up. The lock is re-entrant so calls can build on
+  // each other.
+
   @Override
   public Message newMessage(Uuid author, Uuid conversation, String body) {
-    return newMessage(createId(), author, conversation, body, Time.now());
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      return newMessage(createId(), author, conversation, body, Time.now());
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
   public User newUser(String name) {
-    return newUser(createId(), name, Time.now());
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      return newUser(createId(), name, Time.now());
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
   public ConversationHeader newConversation(String title, Uuid owner, AccessLevel defaultAccessLevel) {
-    return newConversation(createId(), title, owner, Time.now(), defaultAccessLevel);
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      return newConversation(createId(), title, owner, Time.now(), defaultAccessLevel);
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
   public ConversationHeader newConversation(String title, Uuid owner) {
-    return newConversation(createId(), title, owner, Time.now());
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      return newConversation(createId(), title, owner, Time.now());
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
   public Interests newInterest(Uuid userid, Uuid interest) {
-    return newInterest(userid, interest, Time.now());
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      return newInterest(userid, interest, Time.now());
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
   public Message newMessage(Uuid id, Uuid author, Uuid conversation, String body, Time creationTime) {
-
-    final User foundUser = model.userById().first(author);
-    final ConversationPayload foundConversation = model.conversationPayloadById().first(conversation);
-
-    Message message = null;
-
-    if (foundUser != null && foundConversation != null && isIdFree(id)) {
-
-      message = new Message(id, Uuid.NULL, Uuid.NULL, creationTime, author, body);
-      model.add(message);
-      LOG.info("Message added: %s", message.id);
-
-      // Find and update the previous "last" message so that it's "next" value
-      // will point to the new message.
-
-      if (Uuid.equals(foundConversation.lastMessage, Uuid.NULL)) {
-
-        // The conversation has no messages in it, that's why the last message is NULL (the first
-        // message should be NULL too. Since there is no last message, then it is not possible
-        // to update the last message's "next" value.
-
-      } else {
-        final Message lastMessage = model.messageById().first(foundConversation.lastMessage);
-        lastMessage.next = message.id;
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final User foundUser = model.userById().first(author);
+      final ConversationPayload foundConversation = model.conversationPayloadById().first(conversation);
+
+      Message message = null;
+
+      if (foundUser != null && foundConversation != null && isIdFree(id)) {
+
+        message = model.add(conversation, new Message(id, Uuid.NULL, Uuid.NULL, creationTime, author, body));
+        LOG.info("Message added: %s", message.id);
+
+        // Find and update the previous "last" message so that it's "next" value
+        // will point to the new message.
+
+        if (Uuid.equals(foundConversation.lastMessage, Uuid.NULL)) {
+
+          // The conversation has no messages in it, that's why the last message is NULL (the first
+          // message should be NULL too. Since there is no last message, then it is not possible
+          // to update the last message's "next" value.
+
+        } else {
+          final Message lastMessage = model.messageById().first(foundConversation.lastMessage);
+          lastMessage.next = message.id;
+        }
+
+        // If the first message points to NULL it means that the conversation was empty and that
+        // the first message should be set to the new message. Otherwise the message should
+        // not change. The last message is always the new message.
+        //
+        // Payloads are never changed in place. A new one replaces the old so that readers
+        // see both ends change at once.
+
+        model.conversationPayloadById().replace(conversation, new ConversationPayload(
+            conversation,
+            Uuid.equals(foundConversation.firstMessage, Uuid.NULL) ?
+                message.id :
+                foundConversation.firstMessage,
+            message.id));
+
+        // Every message makes the model bigger, so this is where it may have
+        // gone over its memory budget. The conversation just written to is
+        // the last one that should go cold. The spill itself is left to the
+        // model's spiller so the message does not wait for it.
+        model.spillLater(Collections.singleton(conversation));
       }
 
-      // If the first message points to NULL it means that the conversation was empty and that
-      // the first message should be set to the new message. Otherwise the message should
-      // not change.
-
-      foundConversation.firstMessage =
-          Uuid.equals(foundConversation.firstMessage, Uuid.NULL) ?
-          message.id :
-          foundConversation.firstMessage;
-
-      // Update the conversation to point to the new last message as it has changed.
-
-      foundConversation.lastMessage = message.id;
+      return message;
+    } finally {
+      lock.unlock();
     }
-
-    return message;
   }
 
   @Override
   public User newUser(Uuid id, String name, Time creationTime) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      User user = null;
 
-    User user = null;
+      if (isIdFree(id)) {
 
-    if (isIdFree(id)) {
+        user = new User(id, name, creationTime);
+        model.add(user);
 
-      user = new User(id, name, creationTime);
-      model.add(user);
+        LOG.info(
+            "newUser success (user.id=%s user.name=%s user.time=%s)",
+            id,
+            name,
+            creationTime);
 
-      LOG.info(
-          "newUser success (user.id=%s user.name=%s user.time=%s)",
-          id,
-          name,
-          creationTime);
+      } else {
 
-    } else {
+        LOG.info(
+            "newUser fail - id in use (user.id=%s user.name=%s user.time=%s)",
+            id,
+            name,
+            creationTime);
+      }
 
-      LOG.info(
-          "newUser fail - id in use (user.id=%s user.name=%s user.time=%s)",
-          id,
-          name,
-          creationTime);
+      return user;
+    } finally {
+      lock.unlock();
     }
-
-    return user;
   }
 
   @Override
   public ConversationHeader newConversation(Uuid id, String title, Uuid owner, Time creationTime, AccessLevel defaultAccessLevel) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final User foundOwner = model.userById().first(owner);
 
-    final User foundOwner = model.userById().first(owner);
+      ConversationHeader conversation = null;
 
-    ConversationHeader conversation = null;
+      if (foundOwner != null && isIdFree(id)) {
+        conversation = new ConversationHeader(id, owner, creationTime, title);
+        model.add(conversation, defaultAccessLevel);
+        LOG.info("Conversation added: " + id);
+      }
 
-    if (foundOwner != null && isIdFree(id)) {
-      conversation = new ConversationHeader(id, owner, creationTime, title);
-      model.add(conversation, defaultAccessLevel);
-      LOG.info("Conversation added: " + id);
+      return conversation;
+    } finally {
+      lock.unlock();
     }
-
-    return conversation;
   }
 
   @Override
   public ConversationHeader newConversation(Uuid id, String title, Uuid owner, Time creationTime) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final User foundOwner = model.userById().first(owner);
 
-    final User foundOwner = model.userById().first(owner);
+      ConversationHeader conversation = null;
 
-    ConversationHeader conversation = null;
+      if (foundOwner != null && isIdFree(id)) {
+        conversation = new ConversationHeader(id, owner, creationTime, title);
+        model.add(conversation);
+        LOG.info("Conversation added: " + id);
+      }
 
-    if (foundOwner != null && isIdFree(id)) {
-      conversation = new ConversationHeader(id, owner, creationTime, title);
-      model.add(conversation);
-      LOG.info("Conversation added: " + id);
+      return conversation;
+    } finally {
+      lock.unlock();
     }
-
-    return conversation;
   }
 
   @Override
   public UserAccessLevel newUserAccessLevel(Uuid conversationId, Uuid userId, AccessLevel accessLevel) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final User foundUser = model.userById().first(userId);
+      UserAccessLevel userAccess = null;
+      if(foundUser != null) {
+        userAccess = new UserAccessLevel (userId, accessLevel);
+        model.add(conversationId, userAccess);
+        LOG.info("AccessLevel " + accessLevel + " added to user " + userId);
+      }
 
-    final User foundUser = model.userById().first(userId);
-    UserAccessLevel userAccess = null;
-    if(foundUser != null) {
-      userAccess = new UserAccessLevel (userId, accessLevel);
-      model.add(conversationId, userAccess);
-      LOG.info("AccessLevel " + accessLevel + " added to user " + userId);
+      return userAccess;
+    } finally {
+      lock.unlock();
     }
-
-    return userAccess;
   }
 
   @Override
   public UserAccessLevel getUserAccessLevel(Uuid conversationId, Uuid userId) {
+    // Access level sets are replaced rather than changed, so one can be read
+    // without a lock.
     Collection<UserAccessLevel> accessLevels = model.accessLevelsByConvId().first(conversationId);
     Iterator<UserAccessLevel> iterator = accessLevels.iterator();
     UserAccessLevel current;
@@ -203,39 +275,225 @@ public final class Controller implements RawController, BasicController {
 
   @Override
   public AccessLevel setDefaultAccessLevel(Uuid conversationId, AccessLevel defaultAccessLevel) {
-    final ConversationHeader foundConversation = model.conversationById().first(conversationId);
-
-    if (foundConversation != null) {
-      LOG.info("AccessLevel " + defaultAccessLevel + " set to conversation " + conversationId);
-      return model.setDefaultAccessLevel(conversationId, defaultAccessLevel);
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final ConversationHeader foundConversation = model.conversationById().first(conversationId);
+
+      if (foundConversation != null) {
+        LOG.info("AccessLevel " + defaultAccessLevel + " set to conversation " + conversationId);
+        return model.setDefaultAccessLevel(conversationId, defaultAccessLevel);
+      }
+      return null;
+    } finally {
+      lock.unlock();
     }
-    return null;
   }
 
   @Override
   public Interests newInterest(Uuid userid, Uuid interest, Time creationTime) {
-    final User foundUser = model.userById().first(userid);
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final User foundUser = model.userById().first(userid);
+
+      if (foundUser != null) {
+        model.add(userid, interest, creationTime);
+        LOG.info("Interest with id " + interest + " added to user " + userid);
+      }
 
-    if (foundUser != null) {
-      model.add(userid, interest, creationTime);
-      LOG.info("Interest with id " + interest + " added to user " + userid);
+      return model.interestsByUserId().first(userid);
+    } finally {
+      lock.unlock();
     }
-
-    return model.interestsByUserId().first(userid);
   }
 
   public Interests removeInterest(Uuid userid, Uuid interest) {
-    final User foundUser = model.userById().first(userid);
-    Interests interests = null;
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final User foundUser = model.userById().first(userid);
+      Interests interests = null;
+
+      if (foundUser != null) {
+        model.remove(userid, interest);
+        interests = model.interestsByUserId().first(userid);
+        LOG.info("Interest with id " + interest + " removed from user " + userid);
+
+      }
+
+      return interests;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Note when a user was last sent an update on their interests.
+  public void statusUpdate(Uuid userid, Time time) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      model.statusUpdated(userid, time);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean deleteMessage(Uuid user, Uuid id) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      model.warm(model.conversationOf(id));
+
+      final Message message = model.messageById().first(id);
+      final Uuid conversation = model.conversationOf(id);
+
+      if (message == null || conversation == null) {
+        return false;
+      }
+
+      final AccessLevel access = accessLevel(conversation, user);
+      if (!Uuid.equals(message.author, user) && access != AccessLevel.OWNER && access != AccessLevel.CREATOR) {
+        LOG.warning("User %s may not delete message %s", user, id);
+        return false;
+      }
+
+      return deleteMessage(id);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Delete a message without checking who asked, e.g. when the deletion is
+  // read back from the log.
+  public boolean deleteMessage(Uuid id) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      model.warm(model.conversationOf(id));
+
+      final Message message = model.messageById().first(id);
+      final Uuid conversation = model.conversationOf(id);
+      final ConversationPayload payload = conversation == null ?
+          null :
+          model.conversationPayloadById().first(conversation);
+
+      if (message == null || payload == null) {
+        return false;
+      }
+
+      // Messages only point forward, so the one before has to be found to
+      // point past this one.
+      final Message previous;
+      Uuid first = payload.firstMessage;
+      Uuid last = payload.lastMessage;
+
+      if (Uuid.equals(first, message.id)) {
+        previous = null;
+        first = message.next;
+      } else {
+        previous = findPrevious(conversation, payload, message);
+        if (previous != null) {
+          previous.next = message.next;
+        }
+      }
+
+      if (Uuid.equals(last, message.id)) {
+        last = previous == null ? Uuid.NULL : previous.id;
+      }
+
+      if (!Uuid.equals(first, payload.firstMessage) || !Uuid.equals(last, payload.lastMessage)) {
+        model.conversationPayloadById().replace(conversation, new ConversationPayload(conversation, first, last));
+      }
+
+      model.remove(conversation, message);
+      LOG.info("Message deleted: %s", id);
+
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean deleteConversation(Uuid user, Uuid id) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final ConversationHeader conversation = model.conversationById().first(id);
+
+      if (conversation == null) {
+        return false;
+      }
 
-    if (foundUser != null) {
-      interests = model.interestsByUserId().first(userid);
-      interests.interests.remove(interest);
-      LOG.info("Interest with id " + interest + " removed from user " + userid);
+      if (!Uuid.equals(conversation.owner, user) && accessLevel(id, user) != AccessLevel.CREATOR) {
+        LOG.warning("User %s may not delete conversation %s", user, id);
+        return false;
+      }
+
+      return deleteConversation(id);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Delete a conversation without checking who asked, e.g. when the deletion
+  // is read back from the log.
+  public boolean deleteConversation(Uuid id) {
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      final ConversationHeader conversation = model.conversationById().first(id);
+
+      if (conversation == null) {
+        return false;
+      }
+
+      model.remove(conversation);
+      LOG.info("Conversation deleted: %s", id);
 
+      return true;
+    } finally {
+      lock.unlock();
     }
+  }
 
-    return interests;
+  // The access level a user was given in a conversation, or null if they were
+  // not given one.
+  private AccessLevel accessLevel(Uuid conversation, Uuid user) {
+    final Collection<UserAccessLevel> accessLevels = model.accessLevelsByConvId().first(conversation);
+    if (accessLevels != null) {
+      for (final UserAccessLevel access : accessLevels) {
+        if (Uuid.equals(access.getUser(), user)) {
+          return access.getAccessLevel();
+        }
+      }
+    }
+    return null;
+  }
+
+  // The message whose "next" is the given message, or null if there is none.
+  // Messages are linked in the order they were added, which is nearly always
+  // the order they were sent, so the message sent just before is checked
+  // first and the list is only walked if that is not it.
+  private Message findPrevious(Uuid conversation, ConversationPayload payload, Message message) {
+
+    for (final Message before : model.messagePage(conversation, message.id, null, false, 1)) {
+      if (Uuid.equals(before.next, message.id)) {
+        return before;
+      }
+    }
+
+    for (Message current = model.messageById().first(payload.firstMessage);
+         current != null;
+         current = model.messageById().first(current.next)) {
+      if (Uuid.equals(current.next, message.id)) {
+        return current;
+      }
+    }
+
+    return null;
   }
 
   private Uuid createId() {
@@ -256,7 +514,9 @@ public final class Controller implements RawController, BasicController {
   }
 
   private boolean isIdInUse(Uuid id) {
+    // Messages in cold conversations are only found by their conversation.
     return model.messageById().first(id) != null ||
+           model.conversationOf(id) != null ||
            model.conversationById().first(id) != null ||
            model.userById().first(id) != null;
   }
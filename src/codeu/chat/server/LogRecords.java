@@ -0,0 +1,261 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.nio.ByteBuffer;
+
+import codeu.chat.common.AccessLevel;
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// LOG RECORDS
+//
+// The records the server puts in its write ahead log: a type byte for each
+// change and the payload that goes with it. Payloads are written with the
+// buffer serializers and "apply" reads them back and makes the change again
+// through the controller.
+final class LogRecords {
+
+  private final static Logger.Log LOG = Logger.newLog(LogRecords.class);
+
+  static final byte ADD_USER = 1;
+  static final byte ADD_CONVERSATION = 2;
+  static final byte ADD_MESSAGE = 3;
+  static final byte ADD_INTEREST = 4;
+  static final byte REMOVE_INTEREST = 5;
+  static final byte STATUS_UPDATE = 6;
+  static final byte NEW_ACCESS_LEVEL = 7;
+  static final byte SET_DEFAULT_ACCESS_LEVEL = 8;
+  static final byte DELETE_MESSAGE = 9;
+  static final byte DELETE_CONVERSATION = 10;
+
+  // Only found in snapshots, after their last record.
+  static final byte SNAPSHOT_END = 11;
+
+  private LogRecords() { }
+
+  // The user's id, name and creation time.
+  static ByteBuffer addUser(User user) {
+    final ByteBuffer out = ByteBuffer.allocate(
+        User.BUFFER_SERIALIZER.size(user));
+    User.BUFFER_SERIALIZER.write(out, user);
+    return finish(out);
+  }
+
+  // The conversation's id, owner, creation time and title.
+  static ByteBuffer addConversation(ConversationHeader conversation) {
+    final ByteBuffer out = ByteBuffer.allocate(
+        ConversationHeader.BUFFER_SERIALIZER.size(conversation));
+    ConversationHeader.BUFFER_SERIALIZER.write(out, conversation);
+    return finish(out);
+  }
+
+  // A message does not know which conversation it is in, so that is written
+  // along with it.
+  static ByteBuffer addMessage(Uuid conversation, Message message) {
+    final ByteBuffer out = ByteBuffer.allocate(
+        Uuid.BUFFER_SERIALIZER.size(message.id) +
+        Uuid.BUFFER_SERIALIZER.size(message.author) +
+        Uuid.BUFFER_SERIALIZER.size(conversation) +
+        BufferSerializers.STRING.size(message.content()) +
+        Time.BUFFER_SERIALIZER.size(message.creation));
+    Uuid.BUFFER_SERIALIZER.write(out, message.id);
+    Uuid.BUFFER_SERIALIZER.write(out, message.author);
+    Uuid.BUFFER_SERIALIZER.write(out, conversation);
+    BufferSerializers.STRING.write(out, message.content());
+    Time.BUFFER_SERIALIZER.write(out, message.creation);
+    return finish(out);
+  }
+
+  static ByteBuffer addInterest(Uuid user, Uuid interest, Time creation) {
+    final ByteBuffer out = ByteBuffer.allocate(
+        Uuid.BUFFER_SERIALIZER.size(user) +
+        Uuid.BUFFER_SERIALIZER.size(interest) +
+        Time.BUFFER_SERIALIZER.size(creation));
+    Uuid.BUFFER_SERIALIZER.write(out, user);
+    Uuid.BUFFER_SERIALIZER.write(out, interest);
+    Time.BUFFER_SERIALIZER.write(out, creation);
+    return finish(out);
+  }
+
+  static ByteBuffer removeInterest(Uuid user, Uuid interest) {
+    return ids(user, interest);
+  }
+
+  static ByteBuffer statusUpdate(Uuid user, Time time) {
+    final ByteBuffer out = ByteBuffer.allocate(
+        Uuid.BUFFER_SERIALIZER.size(user) +
+        Time.BUFFER_SERIALIZER.size(time));
+    Uuid.BUFFER_SERIALIZER.write(out, user);
+    Time.BUFFER_SERIALIZER.write(out, time);
+    return finish(out);
+  }
+
+  static ByteBuffer newAccessLevel(Uuid conversation, Uuid user, AccessLevel level) {
+    final ByteBuffer out = ByteBuffer.allocate(
+        Uuid.BUFFER_SERIALIZER.size(conversation) +
+        Uuid.BUFFER_SERIALIZER.size(user) +
+        BufferSerializers.STRING.size(level.name()));
+    Uuid.BUFFER_SERIALIZER.write(out, conversation);
+    Uuid.BUFFER_SERIALIZER.write(out, user);
+    BufferSerializers.STRING.write(out, level.name());
+    return finish(out);
+  }
+
+  static ByteBuffer setDefaultAccessLevel(Uuid conversation, AccessLevel level) {
+    final ByteBuffer out = ByteBuffer.allocate(
+        Uuid.BUFFER_SERIALIZER.size(conversation) +
+        BufferSerializers.STRING.size(level.name()));
+    Uuid.BUFFER_SERIALIZER.write(out, conversation);
+    BufferSerializers.STRING.write(out, level.name());
+    return finish(out);
+  }
+
+  static ByteBuffer deleteMessage(Uuid message) {
+    return ids(message);
+  }
+
+  static ByteBuffer deleteConversation(Uuid conversation) {
+    return ids(conversation);
+  }
+
+  static ByteBuffer snapshotEnd() {
+    return ByteBuffer.allocate(0);
+  }
+
+  // ADDED MESSAGE
+  //
+  // An ADD_MESSAGE record read back: the message as the controller would
+  // make it, not yet linked to any other, and the conversation it goes in.
+  static final class AddedMessage {
+
+    final Uuid conversation;
+    final Message message;
+
+    AddedMessage(Uuid conversation, Message message) {
+      this.conversation = conversation;
+      this.message = message;
+    }
+  }
+
+  static AddedMessage readAddMessage(ByteBuffer in) {
+    final Uuid id = Uuid.BUFFER_SERIALIZER.read(in);
+    final Uuid author = Uuid.BUFFER_SERIALIZER.read(in);
+    final Uuid conversation = Uuid.BUFFER_SERIALIZER.read(in);
+    final String content = BufferSerializers.STRING.read(in);
+    final Time creation = Time.BUFFER_SERIALIZER.read(in);
+    return new AddedMessage(conversation, new Message(id, Uuid.NULL, Uuid.NULL, creation, author, content));
+  }
+
+  // APPLY
+  //
+  // Make the change a record describes. Records of a type this server does
+  // not know are skipped.
+  static void apply(byte type, ByteBuffer in, Controller controller) {
+
+    switch (type) {
+
+      case ADD_USER: {
+        final User user = User.BUFFER_SERIALIZER.read(in);
+        controller.newUser(user.id, user.name, user.creation);
+        break;
+      }
+
+      case ADD_CONVERSATION: {
+        final ConversationHeader conversation = ConversationHeader.BUFFER_SERIALIZER.read(in);
+        controller.newConversation(conversation.id, conversation.title, conversation.owner, conversation.creation);
+        break;
+      }
+
+      case ADD_MESSAGE: {
+        final AddedMessage added = readAddMessage(in);
+        final Message message = added.message;
+        controller.newMessage(message.id, message.author, added.conversation, message.content(), message.creation);
+        break;
+      }
+
+      case ADD_INTEREST: {
+        final Uuid user = Uuid.BUFFER_SERIALIZER.read(in);
+        final Uuid interest = Uuid.BUFFER_SERIALIZER.read(in);
+        final Time creation = Time.BUFFER_SERIALIZER.read(in);
+        controller.newInterest(user, interest, creation);
+        break;
+      }
+
+      case REMOVE_INTEREST: {
+        final Uuid user = Uuid.BUFFER_SERIALIZER.read(in);
+        final Uuid interest = Uuid.BUFFER_SERIALIZER.read(in);
+        controller.removeInterest(user, interest);
+        break;
+      }
+
+      case STATUS_UPDATE: {
+        final Uuid user = Uuid.BUFFER_SERIALIZER.read(in);
+        final Time time = Time.BUFFER_SERIALIZER.read(in);
+        controller.statusUpdate(user, time);
+        break;
+      }
+
+      case NEW_ACCESS_LEVEL: {
+        final Uuid conversation = Uuid.BUFFER_SERIALIZER.read(in);
+        final Uuid user = Uuid.BUFFER_SERIALIZER.read(in);
+        final AccessLevel level = AccessLevel.valueOf(BufferSerializers.STRING.read(in));
+        controller.newUserAccessLevel(conversation, user, level);
+        break;
+      }
+
+      case SET_DEFAULT_ACCESS_LEVEL: {
+        final Uuid conversation = Uuid.BUFFER_SERIALIZER.read(in);
+        final AccessLevel level = AccessLevel.valueOf(BufferSerializers.STRING.read(in));
+        controller.setDefaultAccessLevel(conversation, level);
+        break;
+      }
+
+      case DELETE_MESSAGE:
+        controller.deleteMessage(Uuid.BUFFER_SERIALIZER.read(in));
+        break;
+
+      case DELETE_CONVERSATION:
+        controller.deleteConversation(Uuid.BUFFER_SERIALIZER.read(in));
+        break;
+
+      default:
+        LOG.warning("Skipping log record of unknown type %d", type);
+        break;
+    }
+  }
+
+  private static ByteBuffer ids(Uuid... ids) {
+    int size = 0;
+    for (final Uuid id : ids) {
+      size += Uuid.BUFFER_SERIALIZER.size(id);
+    }
+    final ByteBuffer out = ByteBuffer.allocate(size);
+    for (final Uuid id : ids) {
+      Uuid.BUFFER_SERIALIZER.write(out, id);
+    }
+    return finish(out);
+  }
+
+  private static ByteBuffer finish(ByteBuffer out) {
+    out.flip();
+    return out;
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.ServerMetrics;
+import codeu.chat.util.Histogram;
+import codeu.chat.util.Time;
+
+// METRICS
+//
+// Counts and times every request the server runs, by network code, how long
+// requests wait between being handed over and starting to run, and how the
+// write ahead log commits. There is one histogram per request code, made up
+// front from the codes in NetworkCode, so recording never has to look
+// anything up or lock.
+final class Metrics {
+
+  private static final String REQUEST_SUFFIX = "_REQUEST";
+
+  private static final class Command {
+
+    final String name;
+    final Histogram latency = new Histogram();
+    final AtomicLong errors = new AtomicLong();
+
+    Command(String name) {
+      this.name = name;
+    }
+  }
+
+  // Indexed by network code. Codes that are not requests are null.
+  private final Command[] commands;
+
+  private final Histogram queueWait = new Histogram();
+  private final AtomicLong turnedAway = new AtomicLong();
+
+  // How long each commit of the write ahead log took and how many records
+  // were in it.
+  private final Histogram logCommit = new Histogram();
+  private final Histogram logBatch = new Histogram();
+
+  Metrics() {
+
+    final Collection<Field> requests = new ArrayList<>();
+    int highest = 0;
+
+    for (final Field field : NetworkCode.class.getFields()) {
+      if (field.getType() == int.class &&
+          Modifier.isStatic(field.getModifiers()) &&
+          field.getName().endsWith(REQUEST_SUFFIX)) {
+        requests.add(field);
+        highest = Math.max(highest, codeOf(field));
+      }
+    }
+
+    commands = new Command[highest + 1];
+
+    for (final Field field : requests) {
+      final String name = field.getName();
+      commands[codeOf(field)] = new Command(name.substring(0, name.length() - REQUEST_SUFFIX.length()));
+    }
+  }
+
+  // Record how long the command for a network code took to run and whether
+  // it threw.
+  void command(int code, long nanos, boolean failed) {
+
+    final Command command = code >= 0 && code < commands.length ? commands[code] : null;
+
+    if (command != null) {
+      command.latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+      if (failed) {
+        command.errors.incrementAndGet();
+      }
+    }
+  }
+
+  void queueWait(long nanos) {
+    queueWait.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  void turnedAway() {
+    turnedAway.incrementAndGet();
+  }
+
+  void logCommit(long nanos, int records) {
+    logCommit.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    logBatch.record(records);
+  }
+
+  // SNAPSHOT
+  //
+  // What has been measured so far. Only requests that have been seen at least
+  // once are included.
+  ServerMetrics snapshot(Time startTime) {
+
+    final Collection<ServerMetrics.Timing> timings = new ArrayList<>();
+
+    for (final Command command : commands) {
+      if (command != null && command.latency.count() > 0) {
+        timings.add(new ServerMetrics.Timing(command.name, command.latency, command.errors.get()));
+      }
+    }
+
+    if (logCommit.count() > 0) {
+      timings.add(new ServerMetrics.Timing("LOG_COMMIT", logCommit, 0));
+      timings.add(new ServerMetrics.Timing("LOG_BATCH", logBatch, 0));
+    }
+
+    return new ServerMetrics(
+        startTime,
+        turnedAway.get(),
+        new ServerMetrics.Timing("QUEUE_WAIT", queueWait, 0),
+        timings);
+  }
+
+  private static int codeOf(Field field) {
+    try {
+      return field.getInt(null);
+    } catch (IllegalAccessException ex) {
+      throw new IllegalStateException("Cannot read network code " + field.getName(), ex);
+    }
+  }
+}
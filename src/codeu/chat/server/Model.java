@@ -14,68 +14,310 @@
 
 package codeu.chat.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import codeu.chat.common.*;
+import codeu.chat.util.BodyArena;
+import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
-import codeu.chat.util.store.Store;
+import codeu.chat.util.store.ConcurrentStore;
 import codeu.chat.util.store.StoreAccessor;
+import codeu.chat.util.store.UuidIndex;
 
 public final class Model {
 
-  private static final Comparator<Uuid> UUID_COMPARE = new Comparator<Uuid>() {
+  private final static Logger.Log LOG = Logger.newLog(Model.class);
 
+  private static final Comparator<Time> TIME_COMPARE = new Comparator<Time>() {
     @Override
-    public int compare(Uuid a, Uuid b) {
+    public int compare(Time a, Time b) {
+      return a.compareTo(b);
+    }
+  };
+
+  private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
+
+  private static final StoreAccessor<Time, Message> NO_MESSAGES = new TimeOrderedMessages();
+
+  // An index is compacted once at least one value has been removed for every
+  // this many that are still in it.
+  private static final int COMPACT_RATIO = 4;
+
+  // Ids are only ever looked up one at a time, so they are hashed rather than
+  // kept in order. The time and text indexes can have many values with the
+  // same key (all the messages sent in the same millisecond, or users with
+  // the same name) so they keep the values for a key together.
+  private final UuidIndex<User> userById = new UuidIndex<>();
+  private final ConcurrentStore<Time, User> userByTime = new ConcurrentStore<>(TIME_COMPARE);
+  private final ConcurrentStore<String, User> userByText = new ConcurrentStore<>(STRING_COMPARE);
 
-      if (a == b) { return 0; }
+  private final UuidIndex<ConversationHeader> conversationById = new UuidIndex<>();
+  private final ConcurrentStore<Time, ConversationHeader> conversationByTime = new ConcurrentStore<>(TIME_COMPARE);
+  private final ConcurrentStore<String, ConversationHeader> conversationByText = new ConcurrentStore<>(STRING_COMPARE);
 
-      if (a == null && b != null) { return -1; }
+  private final UuidIndex<ConversationPayload> conversationPayloadById = new UuidIndex<>();
 
-      if (a != null && b == null) { return 1; }
+  private final UuidIndex<Message> messageById = new UuidIndex<>();
+  private final ConcurrentStore<Time, Message> messageByTime = new ConcurrentStore<>(TIME_COMPARE);
+  private final UuidIndex<TimeOrderedMessages> messagesByConversation = new UuidIndex<>();
+  private final UuidIndex<TimeOrderedMessages> messagesByAuthor = new UuidIndex<>();
+  private final UuidIndex<Uuid> conversationByMessageId = new UuidIndex<>();
 
-      final int order = Integer.compare(a.id(), b.id());
-      return order == 0 ? compare(a.root(), b.root()) : order;
+  // Finds messages by the words in them.
+  private final SearchIndex search = new SearchIndex();
+
+  private final UuidIndex<Interests> interestsByUserId = new UuidIndex<>();
+  private final UuidIndex<Set<UserAccessLevel>> accessLevelsByConvId = new UuidIndex<>();
+  private final UuidIndex<UserAccessLevel> defaultAccessLevelsByConvId = new UuidIndex<>();
+
+  // COLD
+  //
+  // What stays in memory of a conversation whose messages have been moved out
+  // to a segment: enough to count its messages and to know who wrote in it
+  // without reading the segment back.
+  private static final class Cold {
+
+    final Uuid conversation;
+    final File segment;
+
+    // When every message was sent, in ms, oldest first.
+    final long[] times;
+
+    // When each author last wrote in the conversation, in ms.
+    final Map<Uuid, Long> newestByAuthor;
+
+    // The footprint the messages had while they were in memory.
+    final long bytes;
+
+    // Where each message's body is in the arena, in the same order as
+    // "times", or null when bodies are not kept in an arena. Bodies are never
+    // taken out of an arena, so they are used again when the conversation is
+    // read back rather than appended a second time.
+    final long[] bodies;
+    final int[] lengths;
+
+    Cold(Uuid conversation,
+         File segment,
+         long[] times,
+         Map<Uuid, Long> newestByAuthor,
+         long bytes,
+         long[] bodies,
+         int[] lengths) {
+      this.conversation = conversation;
+      this.segment = segment;
+      this.times = times;
+      this.newestByAuthor = newestByAuthor;
+      this.bytes = bytes;
+      this.bodies = bodies;
+      this.lengths = lengths;
     }
-  };
+  }
 
-  private static final Comparator<Time> TIME_COMPARE = new Comparator<Time>() {
-    @Override
-    public int compare(Time a, Time b) {
-      return a.compareTo(b);
+  private final UuidIndex<Cold> coldConversations = new UuidIndex<>();
+
+  // When each conversation was last used, by System.nanoTime. Readers write
+  // to this too, which is why it is not one of the indexes.
+  private final ConcurrentMap<Uuid, AtomicLong> lastUsed = new ConcurrentHashMap<>();
+
+  // Where cold conversations go, or null to keep everything in memory.
+  private final ColdSegments segments;
+  private final long memoryBudget;
+
+  // Where spills asked for with spillLater run. Writing segments can take a
+  // while, so the server gives this a thread of its own and no request waits
+  // for one. Only one spill is queued at a time, and the conversations to
+  // keep are gathered until it starts.
+  private final Executor spiller;
+  private final AtomicBoolean spillQueued = new AtomicBoolean();
+  private final Set<Uuid> spillKeep = Collections.newSetFromMap(new ConcurrentHashMap<Uuid, Boolean>());
+
+  // The estimated heap the model takes up. Only changed by writers.
+  private volatile long footprint = 0;
+
+  // Rough heap sizes, in bytes, used to estimate the model's footprint. A
+  // user or conversation is its record and its entries in every index, and
+  // the same for a message not counting its body. A message in a cold
+  // conversation leaves behind its entry in the conversation-by-message index
+  // and its send time (and where its body is, with an arena). Bodies in an
+  // arena are off the heap and are not counted.
+  private static final int RECORD_BYTES = 256;
+  private static final int MESSAGE_BYTES = 320;
+  private static final int COLD_MESSAGE_BYTES = 64;
+
+  // Once over budget, conversations are moved out until the footprint is this
+  // far under it, so that the next message does not have to move one out too.
+  private static final double LOW_WATER = 0.9;
+
+  // A read that sees a write half done runs again, as many times as this,
+  // before it gives up and waits for the writers with the write lock.
+  private static final int OPTIMISTIC_READS = 8;
+
+  // READER
+  //
+  // A read of the model. It can be run more than once, so it must not change
+  // anything but what it returns.
+  public interface Reader<T> {
+    T read();
+  }
+
+  // Writers (the controller) hold the write lock while they touch the model.
+  // Readers (the view) never lock. Every index can be read while it is being
+  // written to, and records that change (payloads, interests and access
+  // levels) are replaced with new copies rather than changed in place, so a
+  // reader never sees a record half written. What a reader can see is some
+  // of the records of a write and not others, e.g. a conversation's new last
+  // message before the message before it points to it.
+  //
+  // To keep reads whole, a write holds a StampedLock's write lock for as long
+  // as it runs. A read takes an optimistic stamp, reads, and validates the
+  // stamp. If a write started in the meantime the read saw part of it and is
+  // run again. The fences in tryOptimisticRead and validate keep the reader's
+  // plain reads of the indexes between the two, and the write lock keeps the
+  // writer's stores after it is taken, which a volatile version counter on
+  // its own does not. The result of a read is always the model as it was
+  // between two writes.
+  //
+  // A StampedLock is not re-entrant and has no owner, so writers take the
+  // re-entrant lock first, and only the outermost lock and unlock take and
+  // give up the stamped one.
+  private final ReentrantLock writers = new ReentrantLock();
+  private final StampedLock stamps = new StampedLock();
+  private final Lock writeLock = new VersionLock();
+
+  // The stamp of the write in progress. Only used by the thread holding
+  // "writers".
+  private long writeStamp = 0;
+
+  // Only for reporting; see version().
+  private volatile long version = 0;
+
+  // Where message bodies are kept, or null to keep them on the heap.
+  private final BodyArena arena;
+
+  public Model() {
+    this(null);
+  }
+
+  public Model(BodyArena arena) {
+    this(arena, null, 0);
+  }
+
+  // A model that keeps its footprint under "memoryBudget" bytes by moving the
+  // messages of the conversations used longest ago out to segments. Spills
+  // run on the thread that asks for them.
+  Model(BodyArena arena, ColdSegments segments, long memoryBudget) {
+    this(arena, segments, memoryBudget, new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        runnable.run();
+      }
+    });
+  }
+
+  // The same, with spills run by "spiller".
+  Model(BodyArena arena, ColdSegments segments, long memoryBudget, Executor spiller) {
+    this.arena = arena;
+    this.segments = segments;
+    this.memoryBudget = memoryBudget;
+    this.spiller = spiller;
+  }
+
+  public Lock writeLock() {
+    return writeLock;
+  }
+
+  // The number of writes that have been finished, twice over, plus one while
+  // a write is in progress. Reads do not use this; they validate their
+  // stamps.
+  public long version() {
+    return version;
+  }
+
+  // READ
+  //
+  // Run the reader against the model as it was between two writes and return
+  // what it returns. Reads run at the same time as each other and as writes;
+  // only a read that keeps colliding with writes falls back to the lock.
+  //
+  // A read that sees part of a write cannot go on forever. The indexes never
+  // make a reader walk past the arrays it started with (see UuidIndex and
+  // TimeOrderedMessages), and a message's "next" is only ever set to a
+  // message after it or to one that is not linked in yet, so following the
+  // links cannot go round in a circle.
+  public <T> T read(Reader<T> reader) {
+
+    // A writer sees its own write as it goes.
+    if (writers.isHeldByCurrentThread()) {
+      return reader.read();
     }
-  };
 
-  private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
+    for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
 
-  private final Store<Uuid, User> userById = new Store<>(UUID_COMPARE);
-  private final Store<Time, User> userByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, User> userByText = new Store<>(STRING_COMPARE);
+      final long stamp = stamps.tryOptimisticRead();
 
-  private final Store<Uuid, ConversationHeader> conversationById = new Store<>(UUID_COMPARE);
-  private final Store<Time, ConversationHeader> conversationByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, ConversationHeader> conversationByText = new Store<>(STRING_COMPARE);
+      if (stamp == 0) {
+        // A write is in progress and would make the stamp invalid.
+        Thread.yield();
+        continue;
+      }
 
-  private final Store<Uuid, ConversationPayload> conversationPayloadById = new Store<>(UUID_COMPARE);
+      final T result;
+      try {
+        result = reader.read();
+      } catch (RuntimeException | Error ex) {
+        // A read that saw part of a write can trip over it, in any way at
+        // all. That is only a failure if nothing was written.
+        if (stamps.validate(stamp)) {
+          throw ex;
+        }
+        continue;
+      }
 
-  private final Store<Uuid, Message> messageById = new Store<>(UUID_COMPARE);
-  private final Store<Time, Message> messageByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Message> messageByText = new Store<>(STRING_COMPARE);
+      if (stamps.validate(stamp)) {
+        return result;
+      }
+    }
 
-  private final Store<Uuid, Interests> interestsByUserId = new Store<>(UUID_COMPARE);
-  private final Store<Uuid, Set<UserAccessLevel>> accessLevelsByConvId = new Store<>(UUID_COMPARE);
-  private final Store<Uuid, UserAccessLevel> defaultAccessLevelsByConvId = new Store<>(UUID_COMPARE);
+    // Holding the lock keeps writers out without taking the stamped write
+    // lock, so other reads are not made to run again.
+    writers.lock();
+    try {
+      return reader.read();
+    } finally {
+      writers.unlock();
+    }
+  }
 
   public void add(User user) {
+    footprint = footprint + RECORD_BYTES + textBytes(user.name);
     userById.insert(user.id, user);
     userByTime.insert(user.creation, user);
     userByText.insert(user.name, user);
   }
 
-  public StoreAccessor<Uuid, User> userById() {
+  public UuidIndex<User> userById() {
     return userById;
   }
 
@@ -88,6 +330,7 @@ public final class Model {
   }
 
   public void add(ConversationHeader conversation, AccessLevel defaultAccessLevel) {
+    footprint = footprint + RECORD_BYTES + textBytes(conversation.title);
     conversationById.insert(conversation.id, conversation);
     conversationByTime.insert(conversation.creation, conversation);
     conversationByText.insert(conversation.title, conversation);
@@ -95,13 +338,51 @@ public final class Model {
   }
 
   public void add(ConversationHeader conversation) {
+    footprint = footprint + RECORD_BYTES + textBytes(conversation.title);
     conversationById.insert(conversation.id, conversation);
     conversationByTime.insert(conversation.creation, conversation);
     conversationByText.insert(conversation.title, conversation);
     conversationPayloadById.insert(conversation.id, new ConversationPayload(conversation.id));
   }
 
-  public StoreAccessor<Uuid, ConversationHeader> conversationById() {
+  // REMOVE CONVERSATION
+  //
+  // Take a conversation, every message in it, and everything about who can
+  // see it out of every index.
+  public void remove(ConversationHeader conversation) {
+
+    load(conversation.id);
+
+    final TimeOrderedMessages messages = messagesByConversation.first(conversation.id);
+
+    if (messages != null) {
+      for (final Message message : messages.all()) {
+        messageById.remove(message.id);
+        messageByTime.remove(message.creation, message);
+        conversationByMessageId.remove(message.id);
+        footprint = footprint - messageBytes(message);
+
+        final TimeOrderedMessages byAuthor = messagesByAuthor.first(message.author);
+        if (byAuthor != null) {
+          byAuthor.remove(message);
+        }
+      }
+      messagesByConversation.remove(conversation.id);
+    }
+
+    search.removeConversation(conversation.id);
+
+    conversationById.remove(conversation.id);
+    conversationByTime.remove(conversation.creation, conversation);
+    conversationByText.remove(conversation.title, conversation);
+    conversationPayloadById.remove(conversation.id);
+    accessLevelsByConvId.remove(conversation.id);
+    defaultAccessLevelsByConvId.remove(conversation.id);
+    lastUsed.remove(conversation.id);
+    footprint = footprint - RECORD_BYTES - textBytes(conversation.title);
+  }
+
+  public UuidIndex<ConversationHeader> conversationById() {
     return conversationById;
   }
 
@@ -113,17 +394,65 @@ public final class Model {
     return conversationByText;
   }
 
-  public StoreAccessor<Uuid, ConversationPayload> conversationPayloadById() {
+  public UuidIndex<ConversationPayload> conversationPayloadById() {
     return conversationPayloadById;
   }
 
-  public void add(Message message) {
+  // Add a message to a conversation and return the message as it is kept.
+  // When bodies are kept in an arena this is a new message whose body is in
+  // the arena, and it is the one that must be used from then on.
+  public Message add(Uuid conversation, Message message) {
+
+    if (segments != null) {
+      load(conversation);
+      touch(conversation);
+    }
+
+    final String content = message.content();
+    footprint = footprint + MESSAGE_BYTES + (arena == null ? textBytes(content) : 0);
+
+    if (arena != null) {
+      message = inArena(message);
+    }
+
     messageById.insert(message.id, message);
     messageByTime.insert(message.creation, message);
-    messageByText.insert(message.content, message);
+    search.add(conversation, message, content);
+
+    conversationByMessageId.insert(message.id, conversation);
+    timeOrdered(messagesByConversation, conversation).add(message);
+    timeOrdered(messagesByAuthor, message.author).add(message);
+
+    return message;
+  }
+
+  // REMOVE MESSAGE
+  //
+  // Take a message out of every message index. The caller is left to unlink
+  // it from its neighbours in the conversation. A body kept in an arena is
+  // not given back; arenas only ever grow.
+  public void remove(Uuid conversation, Message message) {
+
+    load(conversation);
+
+    footprint = footprint - messageBytes(message);
+    messageById.remove(message.id);
+    messageByTime.remove(message.creation, message);
+    conversationByMessageId.remove(message.id);
+    search.remove(conversation, message);
+
+    final TimeOrderedMessages inConversation = messagesByConversation.first(conversation);
+    if (inConversation != null) {
+      inConversation.remove(message);
+    }
+
+    final TimeOrderedMessages byAuthor = messagesByAuthor.first(message.author);
+    if (byAuthor != null) {
+      byAuthor.remove(message);
+    }
   }
 
-  public StoreAccessor<Uuid, Message> messageById() {
+  public UuidIndex<Message> messageById() {
     return messageById;
   }
 
@@ -131,14 +460,160 @@ public final class Model {
     return messageByTime;
   }
 
-  public StoreAccessor<String, Message> messageByText() {
-    return messageByText;
+  // The messages a user wrote, in the order they were sent.
+  public StoreAccessor<Time, Message> messagesByAuthor(Uuid author) {
+    final TimeOrderedMessages messages = messagesByAuthor.first(author);
+    return messages == null ? NO_MESSAGES : messages;
+  }
+
+  // The messages in a conversation, in the order they were sent.
+  public StoreAccessor<Time, Message> messagesByConversation(Uuid conversation) {
+    final TimeOrderedMessages messages = messagesByConversation.first(conversation);
+    return messages == null ? NO_MESSAGES : messages;
+  }
+
+  // ALL MESSAGES
+  //
+  // Every message in a conversation in the order of their "next" links,
+  // which is the order they were added in. That is not always the order they
+  // were sent in, as a message from a relay can be older than the ones added
+  // before it. A cold conversation's segment is read without bringing it
+  // back. Must be called with the write lock held. The list is a copy, so it
+  // can be used once the lock is let go.
+  public List<Message> allMessages(Uuid conversation) throws IOException {
+
+    final Cold cold = segments == null ? null : coldConversations.first(conversation);
+
+    final Collection<Message> sent;
+    if (cold == null) {
+      sent = new ArrayList<>();
+      for (final Message message : messagesByConversation(conversation).all()) {
+        sent.add(message);
+      }
+    } else {
+      sent = segments.read(cold.segment);
+    }
+
+    final Map<Uuid, Message> unlinked = new HashMap<>();
+    for (final Message message : sent) {
+      unlinked.put(message.id, message);
+    }
+
+    final List<Message> linked = new ArrayList<>(sent.size());
+    final ConversationPayload payload = conversationPayloadById.first(conversation);
+
+    Uuid next = payload == null ? Uuid.NULL : payload.firstMessage;
+    while (!Uuid.equals(next, Uuid.NULL)) {
+      final Message message = unlinked.remove(next);
+      if (message == null) {
+        break;
+      }
+      linked.add(message);
+      next = message.next;
+    }
+
+    // A message the links do not reach should not be possible, but it is
+    // kept rather than lost, after the rest in the order it was sent.
+    if (!unlinked.isEmpty()) {
+      LOG.warning("%d messages in conversation %s are not linked", unlinked.size(), conversation);
+      for (final Message message : sent) {
+        if (unlinked.containsKey(message.id)) {
+          linked.add(message);
+        }
+      }
+    }
+
+    return linked;
+  }
+
+  // The number of messages in a conversation sent at or after a time. A cold
+  // conversation is counted without being read back.
+  public int countMessages(Uuid conversation, Time start) {
+
+    final Cold cold = coldConversations.first(conversation);
+
+    if (cold != null) {
+      // The first message sent at or after the time.
+      int at = Arrays.binarySearch(cold.times, start.inMs());
+      if (at < 0) {
+        at = -(at + 1);
+      }
+      while (at > 0 && cold.times[at - 1] == start.inMs()) {
+        at--;
+      }
+      return cold.times.length - at;
+    }
+
+    final TimeOrderedMessages messages = messagesByConversation.first(conversation);
+    return messages == null ? 0 : messages.countAfter(start);
+  }
+
+  // The conversations a user has written in at or after a time, cold or not.
+  public Collection<Uuid> conversationsWrittenIn(Uuid author, Time start) {
+
+    final Collection<Uuid> conversations = new HashSet<>();
+
+    for (final Message message : messagesByAuthor(author).after(start)) {
+      final Uuid conversation = conversationOf(message.id);
+      if (conversation != null) {
+        conversations.add(conversation);
+      }
+    }
+
+    for (final Cold cold : coldConversations.all()) {
+      final Long newest = cold.newestByAuthor.get(author);
+      if (newest != null && newest >= start.inMs()) {
+        conversations.add(cold.conversation);
+      }
+    }
+
+    return conversations;
+  }
+
+  // The conversation a message is in, or null if there is no such message.
+  public Uuid conversationOf(Uuid message) {
+    return conversationByMessageId.first(message);
+  }
+
+  // MESSAGE PAGE
+  //
+  // Up to "limit" messages of a conversation, oldest first, next to a cursor.
+  // The cursor is the message with the id "from" if there is one, or else
+  // the time "at" if it is not null, or else the start (going forward) or the
+  // end (going backward) of the conversation.
+  public Collection<Message> messagePage(Uuid conversation, Uuid from, Time at, boolean forward, int limit) {
+    return page(messagesByConversation.first(conversation), from, at, forward, limit);
+  }
+
+  // AUTHOR PAGE
+  //
+  // The same as a message page but over the messages a user wrote, in every
+  // conversation.
+  public Collection<Message> authorPage(Uuid author, Uuid from, Time at, boolean forward, int limit) {
+    return page(messagesByAuthor.first(author), from, at, forward, limit);
+  }
+
+  // SEARCH MESSAGES
+  //
+  // Find the newest messages that use every word in the query. A word ending
+  // in "*" matches every word that starts with it. With a conversation, only
+  // messages in that conversation are found.
+  public Collection<Message> searchMessages(Uuid conversation, String query, int limit) {
+    return search.search(conversation, query, limit);
+  }
+
+  // The same as "searchMessages", but the ids of matches in cold
+  // conversations are added to "cold" rather than the results.
+  public Collection<Message> searchMessages(Uuid conversation, String query, int limit, Collection<Uuid> cold) {
+    return search.search(conversation, query, limit, cold);
   }
 
   public void add(Uuid userid, Uuid interest, Time creationTime) {
     Interests interests = interestsByUserId().first(userid);
     if (interests != null) {
-      interests.interests.add(interest);
+      final Set<Uuid> set = new HashSet<Uuid>(interests.interests);
+      set.add(interest);
+      interestsByUserId.replace(userid, new Interests(set, userid, interests.lastStatusUpdate, interests.creation));
       return;
     }
     HashSet<Uuid> set = new HashSet<Uuid>();
@@ -149,25 +624,36 @@ public final class Model {
   public void remove(Uuid userid, Uuid interest) {
     Interests interests = interestsByUserId().first(userid);
     if (interests != null) {
-      interests.interests.remove(interest);
+      final Set<Uuid> set = new HashSet<Uuid>(interests.interests);
+      set.remove(interest);
+      interestsByUserId.replace(userid, new Interests(set, userid, interests.lastStatusUpdate, interests.creation));
       return;
     }
   }
 
-  public StoreAccessor<Uuid, Interests> interestsByUserId() {
+  // Note when a user was last told what their interests have been up to.
+  public void statusUpdated(Uuid userid, Time time) {
+    Interests interests = interestsByUserId().first(userid);
+    if (interests != null) {
+      interestsByUserId.replace(userid, new Interests(interests.interests, userid, time, interests.creation));
+    }
+  }
+
+  public UuidIndex<Interests> interestsByUserId() {
     return interestsByUserId;
   }
 
   public void add(Uuid conversationid, UserAccessLevel access) {
     Set<UserAccessLevel> accesses = accessLevelsByConvId().first(conversationid);
     if (accesses != null) {
+      final Set<UserAccessLevel> set = new HashSet<UserAccessLevel>();
       for (UserAccessLevel useraccess : accesses) {
-         if (useraccess.getUser().equals(access.getUser())) {
-            useraccess.setAccessLevel(access.getAccessLevel());
-            return;
+         if (!useraccess.getUser().equals(access.getUser())) {
+            set.add(useraccess);
          }
       }
-      accesses.add(access);
+      set.add(access);
+      accessLevelsByConvId.replace(conversationid, set);
       return;
     }
 
@@ -176,17 +662,17 @@ public final class Model {
     accessLevelsByConvId.insert(conversationid, set);
   }
 
-  public StoreAccessor<Uuid, Set<UserAccessLevel>> accessLevelsByConvId() {
+  public UuidIndex<Set<UserAccessLevel>> accessLevelsByConvId() {
     return accessLevelsByConvId;
   }
 
-  public StoreAccessor<Uuid, UserAccessLevel> defaultAccessLevelsByConvId() {
+  public UuidIndex<UserAccessLevel> defaultAccessLevelsByConvId() {
     return defaultAccessLevelsByConvId;
   }
 
   public AccessLevel setDefaultAccessLevel(Uuid conversationId, AccessLevel defaultAccessLevel) {
     if (defaultAccessLevelsByConvId.first(conversationId) != null) {
-      defaultAccessLevelsByConvId.first(conversationId).setAccessLevel(defaultAccessLevel);
+      defaultAccessLevelsByConvId.replace(conversationId, new UserAccessLevel(conversationId, defaultAccessLevel));
       return defaultAccessLevel;
     } else {
       final UserAccessLevel defaultAccess = new UserAccessLevel(conversationId, defaultAccessLevel);
@@ -194,4 +680,500 @@ public final class Model {
       return defaultAccessLevel;
     }
   }
+
+  // COMPACT
+  //
+  // Give back the room taken by removed values in every index that has had
+  // enough of them removed. Removing leaves tombstones behind so that it is
+  // cheap; this is the slow part and is run now and then, not on every
+  // remove. Must be called with the write lock held.
+  public void compact() {
+
+    compact(userById);
+    compact(conversationById);
+    compact(conversationPayloadById);
+    compact(messageById);
+    compact(messagesByConversation);
+    compact(messagesByAuthor);
+    compact(conversationByMessageId);
+    compact(interestsByUserId);
+    compact(accessLevelsByConvId);
+    compact(defaultAccessLevelsByConvId);
+    compact(coldConversations);
+
+    if (worthCompacting(search.removed(), messageById.size())) {
+      search.compact();
+    }
+  }
+
+  // The estimated heap the model takes up, in bytes. Interests and access
+  // levels are not counted.
+  public long footprint() {
+    return footprint;
+  }
+
+  // WARM
+  //
+  // Make sure the messages of a conversation are in memory, reading them back
+  // from their segment if the conversation has gone cold, and note that the
+  // conversation was used. Call this before reading a conversation's
+  // messages. It can be called with or without the write lock, but not from
+  // inside a read.
+  public void warm(Uuid conversation) {
+    final Collection<Uuid> conversations = Collections.singleton(conversation);
+    warm(conversations, conversations);
+  }
+
+  // Warm the conversations the messages are in.
+  public void warmMessages(Collection<Uuid> messages) {
+    if (segments != null) {
+      final Collection<Uuid> conversations = new HashSet<>();
+      for (final Uuid message : messages) {
+        conversations.add(conversationOf(message));
+      }
+      warm(conversations, conversations);
+    }
+  }
+
+  // Warm every conversation a user has written in.
+  public void warmAuthor(Uuid author) {
+    if (segments != null) {
+      final Collection<Uuid> conversations = new ArrayList<>();
+      for (final Cold cold : coldConversations.all()) {
+        if (cold.newestByAuthor.containsKey(author)) {
+          conversations.add(cold.conversation);
+        }
+      }
+      // Only look for the warm ones, which must stay, if any were cold.
+      warm(conversations,
+           conversations.isEmpty() ? conversations : conversationsWrittenIn(author, Time.fromMs(0)));
+    }
+  }
+
+  // All of the conversations are brought back before any others are moved
+  // out, and those in "keep" are not moved out, so that they cannot push
+  // each other out again. Null conversations are ignored.
+  private void warm(Collection<Uuid> conversations, Collection<Uuid> keep) {
+
+    if (segments == null) {
+      return;
+    }
+
+    boolean cold = false;
+    for (final Uuid conversation : conversations) {
+      if (conversation != null) {
+        touch(conversation);
+        cold = cold || coldConversations.first(conversation) != null;
+      }
+    }
+
+    if (cold) {
+      final Lock lock = writeLock();
+      lock.lock();
+      try {
+        for (final Uuid conversation : conversations) {
+          if (conversation != null) {
+            load(conversation);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+      spillLater(keep);
+    }
+  }
+
+  // SPILL LATER
+  //
+  // Ask for keepWithinBudget to be run by the spiller, keeping the
+  // conversations in "keep" as well as those kept by every other call made
+  // before the spill starts. Null conversations are ignored.
+  public void spillLater(Collection<Uuid> keep) {
+
+    if (segments == null || footprint <= memoryBudget) {
+      return;
+    }
+
+    for (final Uuid conversation : keep) {
+      if (conversation != null) {
+        spillKeep.add(conversation);
+      }
+    }
+
+    if (spillQueued.compareAndSet(false, true)) {
+      spiller.execute(new Runnable() {
+        @Override
+        public void run() {
+          // Let the next call queue another spill before taking the
+          // conversations to keep, so that none of them are missed.
+          spillQueued.set(false);
+          final Collection<Uuid> kept = new HashSet<>(spillKeep);
+          spillKeep.removeAll(kept);
+          keepWithinBudget(kept);
+        }
+      });
+    }
+  }
+
+  // KEEP WITHIN BUDGET
+  //
+  // If the model is over its memory budget, move conversations out to
+  // segments, the one used longest ago first, until it is back under. The
+  // conversations in "keep" are left alone as they are the ones being used.
+  //
+  // The write lock is only taken to choose the conversations and to take
+  // each one out once its segment is written, so writers are not held up by
+  // the disk (unless the caller already holds the lock).
+  public void keepWithinBudget(Collection<Uuid> keep) {
+
+    if (segments == null || footprint <= memoryBudget) {
+      return;
+    }
+
+    final List<Uuid> candidates = new ArrayList<>();
+
+    final Lock lock = writeLock();
+    lock.lock();
+    try {
+
+      final Map<Uuid, Long> used = new HashMap<>();
+
+      for (final ConversationHeader conversation : conversationById.all()) {
+        final TimeOrderedMessages messages = messagesByConversation.first(conversation.id);
+        if (messages != null && messages.size() > 0 && !keep.contains(conversation.id)) {
+          final AtomicLong last = lastUsed.get(conversation.id);
+          candidates.add(conversation.id);
+          used.put(conversation.id, last == null ? Long.MIN_VALUE : last.get());
+        }
+      }
+
+      Collections.sort(candidates, new Comparator<Uuid>() {
+        @Override
+        public int compare(Uuid a, Uuid b) {
+          return Long.compare(used.get(a), used.get(b));
+        }
+      });
+
+    } finally {
+      lock.unlock();
+    }
+
+    final long target = (long) (memoryBudget * LOW_WATER);
+    int moved = 0;
+
+    for (final Uuid conversation : candidates) {
+      if (footprint <= target) {
+        break;
+      }
+      if (spill(conversation)) {
+        moved++;
+      }
+    }
+
+    LOG.info("Moved %d conversations out of memory. The model is now about %d bytes.", moved, footprint);
+  }
+
+  // SPILL
+  //
+  // Write a conversation's messages to a segment and then, with the write
+  // lock held, take them out of memory. If the conversation changed while its
+  // segment was being written, the segment is thrown away and the
+  // conversation stays. Returns false if nothing was moved.
+  private boolean spill(Uuid conversation) {
+
+    final TimeOrderedMessages inConversation = messagesByConversation.first(conversation);
+
+    if (inConversation == null || inConversation.size() == 0) {
+      return false;
+    }
+
+    // The array under a run of messages is never changed below the size a
+    // reader saw, so this is a whole copy without a lock.
+    final List<Message> messages = new ArrayList<>();
+    for (final Message message : inConversation.all()) {
+      messages.add(message);
+    }
+
+    final File segment;
+    try {
+      segment = segments.write(messages);
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to move conversation %s out of memory.", conversation);
+      return false;
+    }
+
+    final Lock lock = writeLock();
+    lock.lock();
+    try {
+      if (unchanged(conversation, messages)) {
+        evict(conversation, messages, segment);
+        return true;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    segments.delete(segment);
+    return false;
+  }
+
+  // Whether the conversation still has exactly these messages, in memory.
+  private boolean unchanged(Uuid conversation, List<Message> messages) {
+
+    final TimeOrderedMessages inConversation = messagesByConversation.first(conversation);
+
+    if (inConversation == null || inConversation.size() != messages.size()) {
+      return false;
+    }
+
+    int i = 0;
+    for (final Message message : inConversation.all()) {
+      if (message != messages.get(i++)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // EVICT
+  //
+  // Take a conversation's messages, which have been written to "segment", out
+  // of every message index, leaving a cold record behind. Must be called with
+  // the write lock held.
+  private void evict(Uuid conversation, List<Message> messages, File segment) {
+
+    final long[] times = new long[messages.size()];
+    final long[] bodies = arena == null ? null : new long[times.length];
+    final int[] lengths = arena == null ? null : new int[times.length];
+    final Map<Uuid, Long> newestByAuthor = new HashMap<>();
+    final Map<Uuid, Set<Uuid>> idsByAuthor = new HashMap<>();
+    long bytes = 0;
+
+    for (int i = 0; i < times.length; i++) {
+
+      final Message message = messages.get(i);
+
+      // Oldest first, so the last time kept for an author is the newest.
+      times[i] = message.creation.inMs();
+      newestByAuthor.put(message.author, times[i]);
+
+      if (arena != null) {
+        bodies[i] = message.bodyPosition();
+        lengths[i] = message.bodyLength();
+      }
+
+      Set<Uuid> ids = idsByAuthor.get(message.author);
+      if (ids == null) {
+        ids = new HashSet<>();
+        idsByAuthor.put(message.author, ids);
+      }
+      ids.add(message.id);
+
+      messageById.remove(message.id);
+      messageByTime.remove(message.creation, message);
+      bytes += messageBytes(message);
+    }
+
+    for (final Map.Entry<Uuid, Set<Uuid>> entry : idsByAuthor.entrySet()) {
+      final TimeOrderedMessages byAuthor = messagesByAuthor.first(entry.getKey());
+      if (byAuthor != null) {
+        byAuthor.removeAll(entry.getValue());
+      }
+    }
+
+    search.evict(conversation);
+    messagesByConversation.remove(conversation);
+    coldConversations.insert(conversation,
+                             new Cold(conversation, segment, times, newestByAuthor, bytes, bodies, lengths));
+
+    footprint = footprint - bytes + (long) COLD_MESSAGE_BYTES * times.length;
+  }
+
+  // LOAD
+  //
+  // Read a cold conversation's messages back from its segment and put them
+  // back in every message index. Does nothing if the conversation is not
+  // cold. Must be called with the write lock held. Bodies kept in an arena
+  // are still where they were before the conversation went cold, and the
+  // messages are pointed back at them.
+  private void load(Uuid conversation) {
+
+    final Cold cold = segments == null ? null : coldConversations.first(conversation);
+
+    if (cold == null) {
+      return;
+    }
+
+    final Collection<Message> stored;
+    try {
+      stored = segments.read(cold.segment);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Failed to read conversation " + conversation + " back", ex);
+    }
+
+    final List<Message> messages = new ArrayList<>(stored.size());
+    final Map<Uuid, Message> messagesById = new HashMap<>();
+    final Map<Uuid, List<Message>> messagesByAuthorId = new HashMap<>();
+
+    int i = 0;
+    for (final Message read : stored) {
+
+      final Message message = arena == null ? read : read.withBodyAt(arena, cold.bodies[i], cold.lengths[i]);
+      i++;
+
+      messages.add(message);
+      messagesById.put(message.id, message);
+      messageById.insert(message.id, message);
+      messageByTime.insert(message.creation, message);
+
+      List<Message> byAuthor = messagesByAuthorId.get(message.author);
+      if (byAuthor == null) {
+        byAuthor = new ArrayList<>();
+        messagesByAuthorId.put(message.author, byAuthor);
+      }
+      byAuthor.add(message);
+    }
+
+    timeOrdered(messagesByConversation, conversation).addAll(messages);
+    for (final Map.Entry<Uuid, List<Message>> entry : messagesByAuthorId.entrySet()) {
+      timeOrdered(messagesByAuthor, entry.getKey()).addAll(entry.getValue());
+    }
+    search.restore(conversation, messagesById);
+
+    coldConversations.remove(conversation);
+    segments.delete(cold.segment);
+
+    footprint = footprint + cold.bytes - (long) COLD_MESSAGE_BYTES * messages.size();
+  }
+
+  private void touch(Uuid conversation) {
+    AtomicLong last = lastUsed.get(conversation);
+    if (last == null) {
+      final AtomicLong created = new AtomicLong();
+      last = lastUsed.putIfAbsent(conversation, created);
+      if (last == null) {
+        last = created;
+      }
+    }
+    last.set(System.nanoTime());
+  }
+
+  private long messageBytes(Message message) {
+    return MESSAGE_BYTES + (arena == null ? textBytes(message.content()) : 0);
+  }
+
+  // A string is an object and an array of two-byte characters.
+  private static long textBytes(String text) {
+    return 40 + 2L * text.length();
+  }
+
+  private static void compact(UuidIndex<?> index) {
+    if (worthCompacting(index.removed(), index.size())) {
+      index.compact();
+    }
+  }
+
+  private static boolean worthCompacting(int removed, int live) {
+    return removed > 0 && removed * COMPACT_RATIO >= live;
+  }
+
+  // The cursor's own time is used when it is still here. Once it has been
+  // deleted only the time the client sent along with it is left.
+  private Collection<Message> page(TimeOrderedMessages messages, Uuid from, Time at, boolean forward, int limit) {
+    final Message cursor = messageById.first(from);
+    return messages == null ?
+        Collections.<Message>emptyList() :
+        messages.page(from, cursor == null ? at : cursor.creation, forward, limit);
+  }
+
+  private static TimeOrderedMessages timeOrdered(UuidIndex<TimeOrderedMessages> index, Uuid key) {
+    TimeOrderedMessages messages = index.first(key);
+    if (messages == null) {
+      messages = new TimeOrderedMessages();
+      index.insert(key, messages);
+    }
+    return messages;
+  }
+
+  private Message inArena(Message message) {
+
+    final byte[] bytes = message.content().getBytes();
+
+    try {
+      return new Message(message.id,
+                         message.next,
+                         message.previous,
+                         message.creation,
+                         message.author,
+                         arena,
+                         arena.append(bytes),
+                         bytes.length);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Failed to store message body", ex);
+    }
+  }
+
+  // VERSION LOCK
+  //
+  // The write lock. Taking it takes the stamped write lock, which makes the
+  // stamps of reads in progress invalid, and makes the version odd; giving
+  // it up does the reverse. It is re-entrant, and only the outermost lock and
+  // unlock touch the stamped lock and the version, so a write made of other
+  // writes is still one write to readers.
+  private final class VersionLock implements Lock {
+
+    @Override
+    public void lock() {
+      writers.lock();
+      begin();
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+      writers.lockInterruptibly();
+      begin();
+    }
+
+    @Override
+    public boolean tryLock() {
+      if (writers.tryLock()) {
+        begin();
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+      if (writers.tryLock(time, unit)) {
+        begin();
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void unlock() {
+      if (writers.isHeldByCurrentThread() && writers.getHoldCount() == 1) {
+        version = version + 1;
+        stamps.unlockWrite(writeStamp);
+      }
+      writers.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+      throw new UnsupportedOperationException("The model's write lock has no conditions");
+    }
+
+    // Only one thread at a time holds "writers", so the stamped write lock is
+    // always free here.
+    private void begin() {
+      if (writers.getHoldCount() == 1) {
+        writeStamp = stamps.writeLock();
+        version = version + 1;
+      }
+    }
+  }
 }
@@ -0,0 +1,496 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Uuid;
+
+// SEARCH INDEX
+//
+// An inverted index from the words in message bodies to the messages that
+// use them. Every message is given a number in the order it was added and
+// each word keeps the numbers of its messages in a postings list. Numbers
+// only go up, so a list stores the gap from the last number as a varint,
+// which is a byte for most gaps.
+//
+// The words are kept in a skip list so that every word starting with a
+// prefix can be found without looking at the others. The conversation a
+// message is in is indexed as one more word, which cannot clash with a real
+// word as it starts with a character that words never contain.
+//
+// A search looks only at the postings of the words it asks for. There can be
+// one writer at a time and any number of searches at the same time as the
+// writer.
+//
+// Removing a message only forgets the message for its number, leaving the
+// number in the postings of its words. Searches skip numbers that have no
+// message. "compact" numbers the messages that are left again from zero,
+// keeping their order, and rewrites the postings with the new numbers, so
+// both the postings and the table of messages shrink. A search that runs at
+// the same time as "compact" can mix old numbers with new ones and find the
+// wrong messages or fail. The model only compacts with its write lock held
+// and validates every search, so such a search is run again.
+//
+// The messages of a conversation that has gone cold are out of memory, so
+// their numbers keep only the message id. A search that matches one of them
+// says so, and the caller brings the conversation back and searches again.
+final class SearchIndex {
+
+  static final int MAX_TERM_LENGTH = 64;
+
+  // A prefix that matches more words than this only uses the first ones.
+  static final int MAX_PREFIX_TERMS = 1024;
+
+  static final int MAX_RESULTS = 1000;
+
+  private static final char CONVERSATION_MARK = '\u0000';
+
+  // POSTINGS
+  //
+  // The numbers of the messages that use a word, as varint gaps. The bytes
+  // are appended before the length is made to cover them, so a reader that
+  // reads the length first only decodes whole entries.
+  private static final class Postings {
+
+    private volatile byte[] bytes = new byte[4];
+    private volatile int length = 0;
+    private volatile int count = 0;
+
+    // Only used by the writer.
+    private int last = -1;
+
+    synchronized void add(int doc) {
+
+      if (doc == last) {
+        return;  // The word is in the message more than once.
+      }
+
+      byte[] current = bytes;
+      if (length + 5 > current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+        bytes = current;
+      }
+
+      int at = length;
+      int gap = doc - last;
+      while ((gap & ~0x7F) != 0) {
+        current[at++] = (byte) ((gap & 0x7F) | 0x80);
+        gap >>>= 7;
+      }
+      current[at++] = (byte) gap;
+
+      last = doc;
+      count = count + 1;
+      length = at;
+    }
+
+    int[] docs() {
+
+      final int end = length;
+      final byte[] current = bytes;
+      final int[] docs = new int[count];
+
+      int doc = -1;
+      int found = 0;
+      int at = 0;
+
+      while (at < end && found < docs.length) {
+        int gap = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = current[at++];
+          gap |= (b & 0x7F) << shift;
+          shift += 7;
+        } while ((b & 0x80) != 0);
+        doc += gap;
+        docs[found++] = doc;
+      }
+
+      return found == docs.length ? docs : Arrays.copyOf(docs, found);
+    }
+  }
+
+  private final ConcurrentNavigableMap<String, Postings> terms = new ConcurrentSkipListMap<>();
+
+  private static final int MIN_DOCS = 1024;
+
+  // Messages by their number, or the id of the message while it is cold.
+  // Grown by copying so readers can use whatever array they see.
+  private volatile Object[] docs = new Object[MIN_DOCS];
+  private int size = 0;
+
+  // The numbers of removed messages that are still in postings.
+  private int removed = 0;
+
+  // ADD
+  //
+  // Index a message under every word of its body and under its conversation.
+  synchronized void add(Uuid conversation, Message message, String content) {
+
+    final int doc = size;
+
+    if (doc == docs.length) {
+      docs = Arrays.copyOf(docs, doc * 2);
+    }
+    docs[doc] = message;
+    size = doc + 1;
+
+    postings(conversationTerm(conversation)).add(doc);
+
+    for (final String term : tokens(content)) {
+      postings(term).add(doc);
+    }
+  }
+
+  // REMOVE
+  //
+  // Forget a message. Only the messages in its conversation are looked at to
+  // find it. Returns false if it was not in the index.
+  synchronized boolean remove(Uuid conversation, Message message) {
+
+    final Object[] messages = docs;
+    final int[] inConversation = docs(conversationTerm(conversation));
+
+    // Newer messages are the more likely to be removed, so look from the end.
+    for (int i = inConversation.length - 1; i >= 0; i--) {
+      final Object found = messages[inConversation[i]];
+      if (found != null && Uuid.equals(idOf(found), message.id)) {
+        messages[inConversation[i]] = null;
+        removed++;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // REMOVE CONVERSATION
+  //
+  // Forget every message in a conversation.
+  synchronized void removeConversation(Uuid conversation) {
+
+    final Object[] messages = docs;
+
+    for (final int doc : docs(conversationTerm(conversation))) {
+      if (messages[doc] != null) {
+        messages[doc] = null;
+        removed++;
+      }
+    }
+  }
+
+  // EVICT
+  //
+  // Let go of the messages of a conversation that is going cold, keeping
+  // only their ids.
+  synchronized void evict(Uuid conversation) {
+
+    final Object[] messages = docs;
+
+    for (final int doc : docs(conversationTerm(conversation))) {
+      if (messages[doc] instanceof Message) {
+        messages[doc] = ((Message) messages[doc]).id;
+      }
+    }
+  }
+
+  // RESTORE
+  //
+  // Take back the messages of a conversation that was cold, by their ids.
+  synchronized void restore(Uuid conversation, Map<Uuid, Message> messagesById) {
+
+    final Object[] messages = docs;
+
+    for (final int doc : docs(conversationTerm(conversation))) {
+      if (messages[doc] instanceof Uuid) {
+        final Message message = messagesById.get(messages[doc]);
+        if (message != null) {
+          messages[doc] = message;
+        }
+      }
+    }
+  }
+
+  // The number of removed messages still taking up room in postings, which
+  // "compact" would give back.
+  synchronized int removed() {
+    return removed;
+  }
+
+  // The number of message numbers in use, removed ones included.
+  synchronized int size() {
+    return size;
+  }
+
+  // COMPACT
+  //
+  // Number the messages that are left again, without gaps, and rewrite every
+  // postings list with the new numbers, dropping the words that no longer
+  // have any messages. This reads every list so it is meant to be run once
+  // enough messages have been removed.
+  synchronized void compact() {
+
+    if (removed == 0) {
+      return;
+    }
+
+    final Object[] messages = docs;
+    final int count = size;
+
+    // The new number of each message, or -1 for removed ones. Messages keep
+    // their order, so every list stays sorted.
+    final int[] moved = new int[count];
+    final Object[] packed = new Object[Math.max(MIN_DOCS, count - removed)];
+    int at = 0;
+    for (int doc = 0; doc < count; doc++) {
+      if (messages[doc] == null) {
+        moved[doc] = -1;
+      } else {
+        moved[doc] = at;
+        packed[at++] = messages[doc];
+      }
+    }
+
+    for (final String term : terms.keySet()) {
+
+      final Postings live = new Postings();
+      for (final int doc : docs(term)) {
+        if (moved[doc] >= 0) {
+          live.add(moved[doc]);
+        }
+      }
+
+      if (live.count == 0) {
+        terms.remove(term);
+      } else {
+        terms.put(term, live);
+      }
+    }
+
+    docs = packed;
+    size = at;
+    removed = 0;
+  }
+
+  // SEARCH
+  //
+  // Find the messages that have every word in the query. A word that ends
+  // with "*" matches any word that starts with it. If the conversation is not
+  // null only messages in that conversation are found. At most "limit" of
+  // the newest matches are returned, oldest first.
+  Collection<Message> search(Uuid conversation, String query, int limit) {
+    return search(conversation, query, limit, null);
+  }
+
+  // The same as "search", but the ids of matches that are cold are added to
+  // "cold" rather than the results. If "cold" is null they are left out.
+  Collection<Message> search(Uuid conversation, String query, int limit, Collection<Uuid> cold) {
+
+    final List<int[]> lists = new ArrayList<>();
+
+    if (conversation != null) {
+      lists.add(docs(conversationTerm(conversation)));
+    }
+
+    for (final String word : query.trim().split("\\s+")) {
+
+      final List<String> tokens = tokens(word);
+      final boolean prefix = word.endsWith("*");
+
+      for (int i = 0; i < tokens.size(); i++) {
+        final boolean last = i == tokens.size() - 1;
+        lists.add(prefix && last ? prefixDocs(tokens.get(i)) : docs(tokens.get(i)));
+      }
+    }
+
+    if (lists.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    final int[] found = intersect(lists);
+
+    final Object[] messages = docs;
+    final int count = Math.min(found.length, Math.max(0, Math.min(limit, MAX_RESULTS)));
+
+    // Walk back from the newest match, skipping removed messages, until there
+    // are enough.
+    int first = found.length;
+    int kept = 0;
+    while (first > 0 && kept < count) {
+      first--;
+      if (messages[found[first]] != null) {
+        kept++;
+      }
+    }
+
+    final Collection<Message> results = new ArrayList<>(kept);
+
+    for (int i = first; i < found.length; i++) {
+      final Object message = messages[found[i]];
+      if (message instanceof Message) {
+        results.add((Message) message);
+      } else if (message != null && cold != null) {
+        cold.add((Uuid) message);
+      }
+    }
+
+    return results;
+  }
+
+  // TOKENS
+  //
+  // Split text into lower case words of letters and digits. Anything else
+  // separates words. Very long words are cut short.
+  static List<String> tokens(String text) {
+
+    final List<String> tokens = new ArrayList<>();
+    final StringBuilder word = new StringBuilder();
+
+    for (int i = 0; i < text.length(); ) {
+
+      final int c = text.codePointAt(i);
+      i += Character.charCount(c);
+
+      if (Character.isLetterOrDigit(c)) {
+        if (word.length() < MAX_TERM_LENGTH) {
+          word.appendCodePoint(Character.toLowerCase(c));
+        }
+      } else if (word.length() > 0) {
+        tokens.add(word.toString());
+        word.setLength(0);
+      }
+    }
+
+    if (word.length() > 0) {
+      tokens.add(word.toString());
+    }
+
+    return tokens;
+  }
+
+  private Postings postings(String term) {
+
+    Postings postings = terms.get(term);
+
+    if (postings == null) {
+      postings = new Postings();
+      terms.put(term, postings);
+    }
+
+    return postings;
+  }
+
+  private int[] docs(String term) {
+    final Postings postings = terms.get(term);
+    return postings == null ? new int[0] : postings.docs();
+  }
+
+  private int[] prefixDocs(String prefix) {
+
+    final Collection<Postings> matches =
+        terms.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values();
+
+    final List<int[]> lists = new ArrayList<>();
+    int total = 0;
+
+    for (final Postings postings : matches) {
+      if (lists.size() == MAX_PREFIX_TERMS) {
+        break;
+      }
+      final int[] docs = postings.docs();
+      lists.add(docs);
+      total += docs.length;
+    }
+
+    if (lists.size() == 1) {
+      return lists.get(0);
+    }
+
+    // A message can use more than one of the words, so sort them together and
+    // drop the repeats.
+    final int[] all = new int[total];
+    int at = 0;
+    for (final int[] docs : lists) {
+      System.arraycopy(docs, 0, all, at, docs.length);
+      at += docs.length;
+    }
+    Arrays.sort(all);
+
+    int unique = 0;
+    for (int i = 0; i < all.length; i++) {
+      if (unique == 0 || all[unique - 1] != all[i]) {
+        all[unique++] = all[i];
+      }
+    }
+
+    return Arrays.copyOf(all, unique);
+  }
+
+  // Intersect sorted lists of message numbers, smallest list first so that
+  // the work shrinks as quickly as possible.
+  private static int[] intersect(List<int[]> lists) {
+
+    Collections.sort(lists, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] a, int[] b) {
+        return Integer.compare(a.length, b.length);
+      }
+    });
+
+    int[] result = lists.get(0);
+
+    for (int i = 1; i < lists.size() && result.length > 0; i++) {
+
+      final int[] other = lists.get(i);
+      final int[] both = new int[result.length];
+      int count = 0;
+
+      for (int a = 0, b = 0; a < result.length && b < other.length; ) {
+        if (result[a] < other[b]) {
+          a++;
+        } else if (result[a] > other[b]) {
+          b++;
+        } else {
+          both[count++] = result[a];
+          a++;
+          b++;
+        }
+      }
+
+      result = Arrays.copyOf(both, count);
+    }
+
+    return result;
+  }
+
+  private static Uuid idOf(Object doc) {
+    return doc instanceof Message ? ((Message) doc).id : (Uuid) doc;
+  }
+
+  private static String conversationTerm(Uuid conversation) {
+    return CONVERSATION_MARK + conversation.toString();
+  }
+}
@@ -0,0 +1,465 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Frame;
+
+// SELECTOR FRONT END
+//
+// A non-blocking network front end for the server. All sockets are watched by
+// a single selector thread, so an idle or slow client costs a small buffer
+// rather than a thread. Bytes are collected until a full frame has arrived and
+// only then is the frame handed to the server, which means that a client that
+// stops half way through a request never holds up the server's timeline.
+//
+// Sessions are handled entirely by the selector. Connections that start with
+// any other network code are one-shot requests from older clients. Those have
+// nothing in front of them to say how long they are, so the selector cannot
+// tell when one has all arrived. They are switched back to blocking mode and
+// given to the server to be read and run on a thread of their own, so a slow
+// one-shot client only ever holds up that thread, never the timeline or a
+// worker.
+//
+// At most MAX_OUTGOING_BYTES of responses are kept waiting for a peer. A peer
+// that keeps sending requests without reading the responses is dropped.
+//
+// Incoming buffers only grow as bytes actually arrive, doubling up to the
+// length the frame header gave, so a peer that sends a header for a large
+// frame and then goes quiet still only holds a small buffer. No peer's buffer
+// is ever bigger than the largest frame, and all of the peers' buffers
+// together are kept under a limit; a peer whose buffer would take them over
+// it is dropped.
+public final class SelectorFrontEnd implements Closeable {
+
+  private final static Logger.Log LOG = Logger.newLog(SelectorFrontEnd.class);
+
+  // Every connection starts with a buffer just big enough for the handshake
+  // or a frame header. It only grows while a large frame is arriving.
+  private static final int INITIAL_BUFFER_BYTES = 64;
+
+  // Frame header: request id followed by the body length.
+  private static final int HEADER_BYTES = 8;
+
+  // Enough for two of the largest frames. One response is always taken, however
+  // big it is.
+  private static final long MAX_OUTGOING_BYTES = 2L * (HEADER_BYTES + Frame.MAX_BODY_BYTES);
+
+  // The most a peer's incoming buffer can hold: one whole frame of the largest
+  // size. Frames that say they are bigger are turned away.
+  private static final int MAX_INCOMING_BYTES = HEADER_BYTES + Frame.MAX_BODY_BYTES;
+
+  // The most that all incoming buffers together can grow past their first
+  // INITIAL_BUFFER_BYTES, by default.
+  static final long DEFAULT_MAX_BUFFERED_BYTES = 256L * 1024 * 1024;
+
+  // PEER
+  //
+  // The state kept for each open socket.
+  private final class Peer implements Server.Responder {
+
+    public final SocketChannel channel;
+    public final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+
+    // The bytes in "outgoing", and whether a response was turned away because
+    // there were too many.
+    public final AtomicLong queued = new AtomicLong();
+    public volatile boolean overflowed = false;
+
+    public ByteBuffer incoming = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    public boolean inSession = false;
+    public SelectionKey key;
+
+    public Peer(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void respond(Frame response) {
+
+      final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + response.body.length);
+      buffer.putInt(response.id);
+      buffer.putInt(response.body.length);
+      buffer.put(response.body);
+      buffer.flip();
+
+      send(this, buffer);
+    }
+  }
+
+  private final Server server;
+  private final Selector selector;
+  private final ServerSocketChannel acceptor;
+
+  // How far all incoming buffers together have grown past their first
+  // INITIAL_BUFFER_BYTES, and how far they may. Only the selector thread
+  // changes "buffered".
+  private final long maxBufferedBytes;
+  private volatile long buffered = 0;
+
+  // Peers that have new outgoing data. Responses are produced off the selector
+  // thread so they are queued here and picked up on the next loop.
+  private final Queue<Peer> writable = new ConcurrentLinkedQueue<>();
+
+  // Peers found to be one-shot clients while going through the selected keys.
+  // They can only be taken off the selector once that is done.
+  private final List<Peer> handOffs = new ArrayList<>();
+
+  public SelectorFrontEnd(Server server, int port) throws IOException {
+    this(server, port, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  SelectorFrontEnd(Server server, int port, long maxBufferedBytes) throws IOException {
+    this.server = server;
+    this.maxBufferedBytes = maxBufferedBytes;
+    this.selector = Selector.open();
+    this.acceptor = ServerSocketChannel.open();
+    this.acceptor.socket().bind(new InetSocketAddress(port));
+    this.acceptor.configureBlocking(false);
+    this.acceptor.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  // RUN
+  //
+  // Run the selector loop on the calling thread. This only returns if the
+  // front end is closed.
+  public void run() {
+
+    LOG.info("Selector front end running.");
+
+    while (selector.isOpen()) {
+      try {
+
+        selector.select();
+
+        for (Peer peer = writable.poll(); peer != null; peer = writable.poll()) {
+          if (peer.overflowed) {
+            LOG.info("Peer dropped with %d bytes of responses it has not read", peer.queued.get());
+            drop(peer);
+          } else {
+            flush(peer);
+          }
+        }
+
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+
+          if (!key.isValid()) {
+            continue;
+          }
+
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            final Peer peer = (Peer) key.attachment();
+            if (key.isReadable()) {
+              read(peer);
+            }
+            if (key.isValid() && key.isWritable()) {
+              flush(peer);
+            }
+          }
+        }
+
+        for (final Peer peer : handOffs) {
+          handOff(peer);
+        }
+        handOffs.clear();
+
+      } catch (Exception ex) {
+        LOG.error(ex, "Exception in selector loop.");
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    acceptor.close();
+    selector.close();
+  }
+
+  // The port being listened on, which is picked by the system if the front
+  // end was made with port 0.
+  int port() {
+    return acceptor.socket().getLocalPort();
+  }
+
+  // How far all incoming buffers together have grown past their first size.
+  long buffered() {
+    return buffered;
+  }
+
+  private void accept() throws IOException {
+
+    final SocketChannel channel = acceptor.accept();
+
+    if (channel == null) {
+      return;
+    }
+
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+
+    final Peer peer = new Peer(channel);
+    peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+  }
+
+  private void read(Peer peer) {
+
+    try {
+
+      if (peer.channel.read(peer.incoming) < 0) {
+        drop(peer);
+        return;
+      }
+
+      peer.incoming.flip();
+
+      if (!peer.inSession) {
+        if (peer.incoming.remaining() < 4) {
+          peer.incoming.compact();
+          return;
+        }
+        if (peer.incoming.getInt(peer.incoming.position()) != NetworkCode.SESSION_REQUEST) {
+          peer.key.interestOps(0);
+          handOffs.add(peer);
+          return;
+        }
+        peer.incoming.getInt();
+        peer.inSession = true;
+
+        final ByteBuffer accepted = ByteBuffer.allocate(4);
+        accepted.putInt(NetworkCode.SESSION_RESPONSE);
+        accepted.flip();
+        queue(peer, accepted);
+        flush(peer);
+      }
+
+      decode(peer);
+
+    } catch (IOException ex) {
+      LOG.info("Peer closed (%s)", ex.toString());
+      drop(peer);
+    }
+  }
+
+  // DECODE
+  //
+  // Take every complete frame out of the peer's buffer and hand it to the
+  // server. The buffer is left in write mode, ready for the next read.
+  private void decode(Peer peer) throws IOException {
+
+    final ByteBuffer buffer = peer.incoming;
+
+    while (buffer.remaining() >= HEADER_BYTES) {
+
+      final int length = buffer.getInt(buffer.position() + 4);
+
+      if (length < 0 || HEADER_BYTES + (long) length > MAX_INCOMING_BYTES) {
+        throw new IOException(String.format("Frame of %d bytes rejected", length));
+      }
+
+      if (buffer.remaining() < HEADER_BYTES + length) {
+        break;
+      }
+
+      final int id = buffer.getInt();
+      buffer.getInt();
+      final byte[] body = new byte[length];
+      buffer.get(body);
+
+      server.handleFrame(new Frame(id, body), peer);
+    }
+
+    if (buffer.remaining() == buffer.capacity() && buffer.remaining() >= HEADER_BYTES) {
+      // A partial frame fills the whole buffer, so there is no room to read
+      // the rest of it into. Make room for as much again as has arrived, but
+      // no more than the frame needs.
+      final int needed = HEADER_BYTES + buffer.getInt(buffer.position() + 4);
+      final ByteBuffer bigger = resize(peer, (int) Math.min(needed, 2L * buffer.capacity()));
+      bigger.put(buffer);
+      peer.incoming = bigger;
+      return;
+    }
+
+    if (!buffer.hasRemaining() && buffer.capacity() > INITIAL_BUFFER_BYTES) {
+      // Nothing left over from a large frame, so give the large buffer back
+      // rather than keeping it for an idle connection.
+      peer.incoming = resize(peer, INITIAL_BUFFER_BYTES);
+      return;
+    }
+
+    buffer.compact();
+  }
+
+  // RESIZE
+  //
+  // A new incoming buffer for the peer, counting the change in size against
+  // the limit for all peers. Fails if the limit would be passed, which drops
+  // the peer.
+  private ByteBuffer resize(Peer peer, int capacity) throws IOException {
+
+    final long grown = buffered + capacity - peer.incoming.capacity();
+
+    if (capacity > peer.incoming.capacity() && grown > maxBufferedBytes) {
+      throw new IOException(String.format(
+          "Buffer of %d bytes would take all peers to %d bytes", capacity, grown));
+    }
+
+    buffered = grown;
+    return ByteBuffer.allocate(capacity);
+  }
+
+  private void send(Peer peer, ByteBuffer buffer) {
+    queue(peer, buffer);
+    writable.add(peer);
+    selector.wakeup();
+  }
+
+  // Add to the peer's outgoing data unless there is too much of it already,
+  // in which case the peer is marked to be dropped.
+  private void queue(Peer peer, ByteBuffer buffer) {
+    if (peer.queued.addAndGet(buffer.remaining()) > MAX_OUTGOING_BYTES && !peer.outgoing.isEmpty()) {
+      peer.queued.addAndGet(-buffer.remaining());
+      peer.overflowed = true;
+    } else {
+      peer.outgoing.add(buffer);
+    }
+  }
+
+  // FLUSH
+  //
+  // Write as much of the peer's outgoing data as the socket will take. Only
+  // ask to be told about the socket being writable while data is left over.
+  private void flush(Peer peer) {
+
+    try {
+
+      for (ByteBuffer next = peer.outgoing.peek(); next != null; next = peer.outgoing.peek()) {
+        peer.channel.write(next);
+        if (next.hasRemaining()) {
+          break;
+        }
+        peer.outgoing.poll();
+        peer.queued.addAndGet(-next.limit());
+      }
+
+      if (peer.key.isValid()) {
+        peer.key.interestOps(peer.outgoing.isEmpty() ?
+                             SelectionKey.OP_READ :
+                             SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+
+    } catch (IOException ex) {
+      LOG.info("Peer closed while writing (%s)", ex.toString());
+      drop(peer);
+    }
+  }
+
+  // HAND OFF
+  //
+  // The peer is an older one-shot client. Take it off the selector, switch it
+  // back to blocking mode and let the server read and run its request on a
+  // thread of its own. The bytes that were already read are replayed in front
+  // of the socket.
+  private void handOff(Peer peer) {
+
+    try {
+      peer.key.cancel();
+      selector.selectNow();  // the channel is only deregistered after a select
+      peer.channel.configureBlocking(true);
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to hand off one-shot connection.");
+      drop(peer);
+      return;
+    }
+
+    final byte[] early = new byte[peer.incoming.remaining()];
+    peer.incoming.get(early);
+    release(peer);
+
+    // Buffered the same way as any other blocking connection, so a response
+    // goes out in one write when the connection is closed.
+    final SocketChannel channel = peer.channel;
+    final InputStream in = new SequenceInputStream(
+        new ByteArrayInputStream(early),
+        new BufferedInputStream(Channels.newInputStream(channel)));
+    final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+
+    server.handleOneShotConnection(new Connection() {
+
+      @Override
+      public InputStream in() throws IOException {
+        out.flush();
+        return in;
+      }
+
+      @Override
+      public OutputStream out() { return out; }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          out.flush();
+        } finally {
+          channel.close();
+        }
+      }
+    });
+  }
+
+  // Stop counting the peer's incoming buffer against the limit for all peers.
+  // The peer is left with an empty buffer, so doing this twice is harmless.
+  private void release(Peer peer) {
+    buffered = buffered - Math.max(0, peer.incoming.capacity() - INITIAL_BUFFER_BYTES);
+    peer.incoming = ByteBuffer.allocate(0);
+  }
+
+  private void drop(Peer peer) {
+    release(peer);
+    peer.key.cancel();
+    try {
+      peer.channel.close();
+    } catch (IOException ex) {
+      // The peer is gone either way.
+    }
+  }
+}
@@ -18,16 +18,29 @@ package codeu.chat.server;
 import codeu.chat.common.*;
 import codeu.chat.util.*;
 import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Frame;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public final class Server {
 
@@ -35,9 +48,46 @@ public final class Server {
         void onMessage(InputStream in, OutputStream out) throws IOException;
     }
 
+    // CHANGE
+    //
+    // A change to the model and the log record that makes it again (see
+    // "change").
+    private static abstract class Change<T> {
+
+        private final byte type;
+
+        Change(byte type) {
+            this.type = type;
+        }
+
+        // Make the change through the controller and return what was made, or
+        // null if nothing was changed.
+        abstract T make();
+
+        // The payload of the record for what was made.
+        abstract ByteBuffer record(T made);
+    }
+
     private static final Logger.Log LOG = Logger.newLog(Server.class);
 
     private static final int RELAY_REFRESH_MS = 5000;  // 5 seconds
+    private static final int COMPACT_MS = 30000;  // 30 seconds
+
+    // Where the write ahead log is kept when the config does not say, the
+    // single file it was kept in before it was split into segments, and the
+    // text log that servers kept before that.
+    private static final String LOG_DIRECTORY = "log";
+    private static final String SINGLE_LOG_FILE = "transaction_log.wal";
+    private static final String LEGACY_LOG_FILE = "transaction_log.txt";
+
+    // Responses up to this size are encoded into a buffer that each thread
+    // keeps and reuses. Bigger ones get a buffer of their own.
+    private static final int MAX_REUSED_BUFFER_BYTES = 256 * 1024;
+
+    private static final BufferSerializer<Collection<Message>> MESSAGES =
+            BufferSerializers.collection(Message.BUFFER_SERIALIZER);
+
+    private final ThreadLocal<ByteBuffer> responseBuffers = new ThreadLocal<>();
 
     private final Timeline timeline = new Timeline();
 
@@ -46,25 +96,71 @@ public final class Server {
     private final Uuid id;
     private final Secret secret;
 
-    private final Model model = new Model();
-    private final View view = new View(model);
+    private final Model model;
+    private final View view;
     private final Controller controller;
 
     private final Relay relay;
     private Uuid lastSeen = Uuid.NULL;
 
-    private LogQueue logQueue;
+    // Every change is appended here so it can be made again on restart. This
+    // is null if the log could not be opened.
+    private final WriteAheadLog log;
+
+    // Point in time copies of the model, so that only the log written after
+    // the newest one is replayed on restart. This is null if the log is.
+    private final Snapshots snapshots;
+    private final long snapshotEveryMs;
+
+    // How many threads read the snapshot and the log on startup, or zero to
+    // replay them one record at a time.
+    private final int replayThreads;
+
+    // Where received requests are run. This is either the timeline or a pool
+    // of worker threads depending on the server config.
+    private final Executor requests;
+
+    // The number of requests that have been admitted and have not finished.
+    // Requests past the high-water mark are turned away with BUSY.
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final int highWater;
+    private final int retryAfterMs;
+
+    // Makes the threads that read from open sessions, the threads that run
+    // one-shot connections from the selector front end and, when running a
+    // thread per connection, the threads that run each request. These are
+    // virtual threads on a JDK that has them.
+    private final ThreadFactory connectionThreads;
+
+    // Request counts and timings, sent to clients that ask for them.
+    private final Metrics metrics = new Metrics();
 
     //creates instance of server's information
     private static final ServerInfo info = new ServerInfo();
 
     public Server(final Uuid id, final Secret secret, final Relay relay) {
+        this(id, secret, relay, new ServerConfig());
+    }
+
+    public Server(final Uuid id, final Secret secret, final Relay relay, final ServerConfig config) {
 
         this.id = id;
         this.secret = secret;
+        this.model = createModel(config);
+        this.view = new View(model);
         this.controller = new Controller(id, model);
         this.relay = relay;
-        this.logQueue = new LogQueue();
+        final File logDirectory = new File(config.logPath == null ? LOG_DIRECTORY : config.logPath);
+        this.log = openLog(logDirectory, config.durability);
+        this.snapshots = log == null ? null : openSnapshots(logDirectory);
+        this.snapshotEveryMs = config.snapshotEveryMs;
+        this.replayThreads = config.replayThreads;
+        this.connectionThreads = config.execution == ServerConfig.Execution.THREAD_PER_CONNECTION ?
+                                 connectionThreadFactory() :
+                                 daemonThreadFactory("session-");
+        this.requests = createExecutor(config);
+        this.highWater = config.highWater;
+        this.retryAfterMs = config.retryAfterMs;
 
         // New Message - A client wants to add a new message to the back end.
         this.commands.put(NetworkCode.NEW_MESSAGE_REQUEST, new Command() {
@@ -75,16 +171,27 @@ public final class Server {
                 final Uuid conversation = Uuid.SERIALIZER.read(in);
                 final String content = Serializers.STRING.read(in);
 
-                final Message message = controller.newMessage(author, conversation, content);
+                final Message message = change(new Change<Message>(LogRecords.ADD_MESSAGE) {
+                    @Override
+                    Message make() {
+                        return controller.newMessage(author, conversation, content);
+                    }
+
+                    @Override
+                    ByteBuffer record(Message made) {
+                        return LogRecords.addMessage(conversation, made);
+                    }
+                });
 
                 Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
                 Serializers.nullable(Message.SERIALIZER).write(out, message);
-                logQueue.getTransactions().add("ADD-MESSAGE " + message.id.toString() + " " + author.toString() + " " + conversation.toString()
-                        + " " + "\"" + content + "\"" + " " + message.creation.inMs());
-                timeline.scheduleNow(createSendToRelayEvent(
-                        author,
-                        conversation,
-                        message.id));
+
+                if (message != null) {
+                    timeline.scheduleNow(createSendToRelayEvent(
+                            author,
+                            conversation,
+                            message.id));
+                }
             }
         });
 
@@ -94,12 +201,20 @@ public final class Server {
             public void onMessage(InputStream in, OutputStream out) throws IOException {
 
                 final String name = Serializers.STRING.read(in);
-                final User user = controller.newUser(name);
+                final User user = change(new Change<User>(LogRecords.ADD_USER) {
+                    @Override
+                    User make() {
+                        return controller.newUser(name);
+                    }
 
+                    @Override
+                    ByteBuffer record(User made) {
+                        return LogRecords.addUser(made);
+                    }
+                });
 
         Serializers.INTEGER.write(out, NetworkCode.NEW_USER_RESPONSE);
         Serializers.nullable(User.SERIALIZER).write(out, user);
-        logQueue.getTransactions().add("ADD-USER " + user.id.toString() + " " + "\""+ user.name + "\"" + " "+ user.creation.inMs());
       }
     });
 
@@ -110,14 +225,21 @@ public final class Server {
 
                 final String title = Serializers.STRING.read(in);
                 final Uuid owner = Uuid.SERIALIZER.read(in);
-                final ConversationHeader conversation = controller.newConversation(title, owner);
+                final ConversationHeader conversation =
+                        change(new Change<ConversationHeader>(LogRecords.ADD_CONVERSATION) {
+                    @Override
+                    ConversationHeader make() {
+                        return controller.newConversation(title, owner);
+                    }
+
+                    @Override
+                    ByteBuffer record(ConversationHeader made) {
+                        return LogRecords.addConversation(made);
+                    }
+                });
 
                 Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_RESPONSE);
                 Serializers.nullable(ConversationHeader.SERIALIZER).write(out, conversation);
-
-                logQueue.getTransactions().add("ADD-CONVERSATION " + conversation.id.toString() + " " + owner.toString() + " " + "\""+
-                        title + "\""+ " " + conversation.creation.inMs());
-
             }
         });
 
@@ -128,12 +250,20 @@ public final class Server {
 
         final Uuid userid = (Uuid.SERIALIZER).read(in);
         final Uuid interest = (Uuid.SERIALIZER).read(in);
-        final Interests interests = controller.newInterest(userid, interest);
+        final Interests interests = change(new Change<Interests>(LogRecords.ADD_INTEREST) {
+          @Override
+          Interests make() {
+            return controller.newInterest(userid, interest);
+          }
+
+          @Override
+          ByteBuffer record(Interests made) {
+            return LogRecords.addInterest(userid, interest, made.creation);
+          }
+        });
 
         Serializers.INTEGER.write(out, NetworkCode.NEW_INTERESTS_RESPONSE);
         Serializers.nullable(Interests.SERIALIZER).write(out, interests);
-
-        logQueue.getTransactions().add("ADD-INTEREST " + userid.toString() + " " + interest.toString() + " " + interests.creation.inMs());
       }
     });
 
@@ -195,10 +325,25 @@ public final class Server {
             public void onMessage(InputStream in, OutputStream out) throws IOException {
 
                 final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(in);
-                final Collection<Message> messages = view.getMessages(ids);
 
-                Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
-                Serializers.collection(Message.SERIALIZER).write(out, messages);
+                model.warmMessages(ids);
+
+                // The messages are measured and encoded from one version of the model
+                // so that the buffer is sure to be big enough. The whole response
+                // then goes out in one write straight from the buffer's array. They
+                // were warmed above, as nothing may be warmed inside a read.
+                final ByteBuffer buffer = model.read(new Model.Reader<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer read() {
+                        final Collection<Message> messages = view.findMessages(ids);
+                        final ByteBuffer buffer = responseBuffer(BufferSerializers.INTEGER_BYTES + MESSAGES.size(messages));
+                        buffer.putInt(NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
+                        MESSAGES.write(buffer, messages);
+                        return buffer;
+                    }
+                });
+
+                out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
             }
         });
 
@@ -221,6 +366,68 @@ public final class Server {
             }
         });
 
+        // Metrics - A client wants to know how many requests the server has run
+        // and how long they took.
+        this.commands.put(NetworkCode.METRICS_REQUEST, new Command() {
+            @Override
+            public void onMessage(InputStream in, OutputStream out) throws IOException {
+                Serializers.INTEGER.write(out, NetworkCode.METRICS_RESPONSE);
+                ServerMetrics.SERIALIZER.write(out, metrics.snapshot(info.startTime));
+            }
+        });
+
+        // Get Messages Page - A client wants a run of messages from a conversation.
+        this.commands.put(NetworkCode.GET_MESSAGES_PAGE_REQUEST, new Command() {
+            @Override
+            public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+                final Uuid conversation = Uuid.SERIALIZER.read(in);
+                final Uuid from = Uuid.SERIALIZER.read(in);
+                final Time at = Serializers.nullable(Time.SERIALIZER).read(in);
+                final boolean forward = Serializers.BOOLEAN.read(in);
+                final int limit = Serializers.INTEGER.read(in);
+
+                final Collection<Message> page = view.getMessagePage(conversation, from, at, forward, limit);
+
+                Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_PAGE_RESPONSE);
+                Serializers.collection(Message.SERIALIZER).write(out, page);
+            }
+        });
+
+        // Get Messages By Author - A client wants a run of messages a user wrote.
+        this.commands.put(NetworkCode.GET_MESSAGES_BY_AUTHOR_REQUEST, new Command() {
+            @Override
+            public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+                final Uuid author = Uuid.SERIALIZER.read(in);
+                final Uuid from = Uuid.SERIALIZER.read(in);
+                final Time at = Serializers.nullable(Time.SERIALIZER).read(in);
+                final boolean forward = Serializers.BOOLEAN.read(in);
+                final int limit = Serializers.INTEGER.read(in);
+
+                final Collection<Message> page = view.getMessagesByAuthor(author, from, at, forward, limit);
+
+                Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_AUTHOR_RESPONSE);
+                Serializers.collection(Message.SERIALIZER).write(out, page);
+            }
+        });
+
+        // Search Messages - A client wants the messages that use some words.
+        this.commands.put(NetworkCode.SEARCH_MESSAGES_REQUEST, new Command() {
+            @Override
+            public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+                final Uuid conversation = Uuid.SERIALIZER.read(in);
+                final String query = Serializers.STRING.read(in);
+                final int limit = Serializers.INTEGER.read(in);
+
+                final Collection<Message> found = view.searchMessages(conversation, query, limit);
+
+                Serializers.INTEGER.write(out, NetworkCode.SEARCH_MESSAGES_RESPONSE);
+                Serializers.collection(Message.SERIALIZER).write(out, found);
+            }
+        });
+
         //User Access Level- A client wants to get the user's access level for a conversation
         this.commands.put(NetworkCode.NEW_ACCESS_LEVEL_REQUEST, new Command() {
           @Override
@@ -228,12 +435,20 @@ public final class Server {
             final Uuid conversationId = (Uuid.SERIALIZER).read(in);
             final Uuid userId = (Uuid.SERIALIZER).read(in);
             final AccessLevel accessLevel = AccessLevel.valueOf(Serializers.STRING.read(in));
+            final UserAccessLevel userAccess = change(new Change<UserAccessLevel>(LogRecords.NEW_ACCESS_LEVEL) {
+              @Override
+              UserAccessLevel make() {
+                return controller.newUserAccessLevel(conversationId, userId, accessLevel);
+              }
+
+              @Override
+              ByteBuffer record(UserAccessLevel made) {
+                return LogRecords.newAccessLevel(conversationId, userId, accessLevel);
+              }
+            });
+
             Serializers.INTEGER.write(out, NetworkCode.NEW_ACCESS_LEVEL_RESPONSE);
-            final UserAccessLevel userAccess = controller.newUserAccessLevel(conversationId, userId, accessLevel);
             Serializers.nullable(UserAccessLevel.SERIALIZER).write(out, userAccess);
-
-//fix
-            logQueue.getTransactions().add("User Access Level: " + userId.toString() + " " + accessLevel.toString() + " " );
           }
         });
 
@@ -263,12 +478,21 @@ public final class Server {
             public void onMessage(InputStream in, OutputStream out) throws IOException {
                 final Uuid conversationId = Uuid.SERIALIZER.read(in);
                 final AccessLevel defaultAccessLevel = AccessLevel.valueOf(Serializers.STRING.read(in));
-                final AccessLevel returnedAccessLevel = controller.setDefaultAccessLevel(conversationId, defaultAccessLevel);
+                final AccessLevel returnedAccessLevel =
+                        change(new Change<AccessLevel>(LogRecords.SET_DEFAULT_ACCESS_LEVEL) {
+                    @Override
+                    AccessLevel make() {
+                        return controller.setDefaultAccessLevel(conversationId, defaultAccessLevel);
+                    }
+
+                    @Override
+                    ByteBuffer record(AccessLevel made) {
+                        return LogRecords.setDefaultAccessLevel(conversationId, defaultAccessLevel);
+                    }
+                });
 
                 Serializers.INTEGER.write(out, NetworkCode.SET_DEFAULT_ACCESS_LEVEL_RESPONSE);
                 Serializers.STRING.write(out, returnedAccessLevel.toString());
-
-                logQueue.getTransactions().add("SET-DEFAULT " + conversationId.toString() + " " + defaultAccessLevel.toString() + " ");
             }
         });
 
@@ -289,12 +513,99 @@ public final class Server {
 
                 final Uuid userid = (Uuid.SERIALIZER).read(in);
                 final Uuid interest = (Uuid.SERIALIZER).read(in);
-                final Interests interests = controller.removeInterest(userid, interest);
+                final Interests interests = change(new Change<Interests>(LogRecords.REMOVE_INTEREST) {
+                    @Override
+                    Interests make() {
+                        return controller.removeInterest(userid, interest);
+                    }
+
+                    @Override
+                    ByteBuffer record(Interests made) {
+                        return LogRecords.removeInterest(userid, interest);
+                    }
+                });
 
                 Serializers.INTEGER.write(out, NetworkCode.REMOVE_INTERESTS_RESPONSE);
                 Serializers.nullable(Interests.SERIALIZER).write(out, interests);
+            }
+        });
+
+        // Delete Message - A user wants to remove a message from its conversation.
+        this.commands.put(NetworkCode.DELETE_MESSAGE_REQUEST, new Command() {
+            @Override
+            public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+                final Uuid user = Uuid.SERIALIZER.read(in);
+                final Uuid message = Uuid.SERIALIZER.read(in);
+                final boolean deleted = change(new Change<Uuid>(LogRecords.DELETE_MESSAGE) {
+                    @Override
+                    Uuid make() {
+                        return controller.deleteMessage(user, message) ? message : null;
+                    }
+
+                    @Override
+                    ByteBuffer record(Uuid made) {
+                        return LogRecords.deleteMessage(made);
+                    }
+                }) != null;
 
-                logQueue.getTransactions().add("REMOVE-INTEREST " + userid.toString() + " " + interest.toString());
+                Serializers.INTEGER.write(out, NetworkCode.DELETE_MESSAGE_RESPONSE);
+                Serializers.BOOLEAN.write(out, deleted);
+            }
+        });
+
+        // Delete Conversation - A user wants to remove a conversation and its messages.
+        this.commands.put(NetworkCode.DELETE_CONVERSATION_REQUEST, new Command() {
+            @Override
+            public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+                final Uuid user = Uuid.SERIALIZER.read(in);
+                final Uuid conversation = Uuid.SERIALIZER.read(in);
+                final boolean deleted = change(new Change<Uuid>(LogRecords.DELETE_CONVERSATION) {
+                    @Override
+                    Uuid make() {
+                        return controller.deleteConversation(user, conversation) ? conversation : null;
+                    }
+
+                    @Override
+                    ByteBuffer record(Uuid made) {
+                        return LogRecords.deleteConversation(made);
+                    }
+                }) != null;
+
+                Serializers.INTEGER.write(out, NetworkCode.DELETE_CONVERSATION_RESPONSE);
+                Serializers.BOOLEAN.write(out, deleted);
+            }
+        });
+
+        // Batch - A client wants several requests answered in one round trip.
+        // Each request is exactly what would have been sent on its own. They are
+        // run one after another in the order they were sent and each response
+        // is sent back in the same position.
+        this.commands.put(NetworkCode.BATCH_REQUEST, new Command() {
+            @Override
+            public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+                final Collection<byte[]> requests = Serializers.collection(Serializers.BYTES).read(in);
+                final Collection<byte[]> responses = new ArrayList<>(requests.size());
+
+                for (final byte[] request : requests) {
+                    final InputStream requestIn = new ByteArrayInputStream(request);
+                    ByteArrayOutputStream responseOut = new ByteArrayOutputStream();
+                    try {
+                        dispatch(Serializers.INTEGER.read(requestIn), requestIn, responseOut);
+                    } catch (Exception ex) {
+                        // Only this request failed. The others still get their
+                        // responses and this one is answered with a dummy message.
+                        LOG.error(ex, "Exception while handling batched request.");
+                        responseOut = new ByteArrayOutputStream();
+                        Serializers.INTEGER.write(responseOut, NetworkCode.NO_MESSAGE);
+                    }
+                    responses.add(responseOut.toByteArray());
+                }
+
+                Serializers.INTEGER.write(out, NetworkCode.BATCH_RESPONSE);
+                Serializers.collection(Serializers.BYTES).write(out, responses);
             }
         });
 
@@ -312,45 +623,71 @@ public final class Server {
         final HashMap<Uuid, Integer> interestedConversations = new HashMap<Uuid, Integer>();
 
         final Interests interests = view.findInterests(userid);
-        final Collection<Uuid> uuids = interests.interests;
-        final Time lastUpdate = interests.lastStatusUpdate;
-
-        final Collection<ConversationHeader> conversations = new HashSet<ConversationHeader>(view.getConversations());
-
-        for (ConversationHeader convo : conversations) {
-          Uuid owner = convo.owner;
-          if (convo.creation.compareTo(lastUpdate) >= 0 && uuids.contains(owner)) {
-            Collection<ConversationHeader> interestedConvo = interestedUsers.get(owner);
-            interestedConvo = interestedConvo == null ? new HashSet<ConversationHeader>() : interestedConvo;
-            interestedConvo.add(convo);
-            interestedUsers.put(owner, interestedConvo);
-          }
-          for (Message message = view.findMessage(view.getConversationPayload(convo.id).firstMessage);
-            message != null;
-            message = view.findMessage(message.next)) {
-            if (message.creation.compareTo(lastUpdate) >= 0) {
-              if (uuids.contains(message.author)) {
-                Collection<ConversationHeader> interestedConvo = interestedUsers.get(owner);
-                interestedConvo = interestedConvo == null ? new HashSet<ConversationHeader>() : interestedConvo;
-                interestedConvo.add(convo);
-                interestedUsers.put(message.author, interestedConvo);
+
+        // Everything is found through the model's indexes: conversations by
+        // creation time, messages by author and messages by conversation. It
+        // is all read from one version of the model, starting over if a write
+        // lands part way through.
+        model.read(new Model.Reader<Void>() {
+          @Override
+          public Void read() {
+            interestedUsers.clear();
+            interestedConversations.clear();
+
+            final Collection<Uuid> uuids = new HashSet<Uuid>(interests.interests);
+            final Time lastUpdate = interests.lastStatusUpdate;
+
+            // New conversations made by users of interest.
+            for (final ConversationHeader convo : model.conversationByTime().after(lastUpdate)) {
+              if (uuids.contains(convo.owner)) {
+                interestedConversationsOf(interestedUsers, convo.owner).add(convo);
+              }
+            }
+
+            for (final Uuid uuid : uuids) {
+
+              // Conversations that users of interest have written in.
+              for (final Uuid conversation : model.conversationsWrittenIn(uuid, lastUpdate)) {
+                final ConversationHeader convo = model.conversationById().first(conversation);
+                if (convo != null) {
+                  interestedConversationsOf(interestedUsers, uuid).add(convo);
+                }
               }
-              if (uuids.contains(convo.id)) {
-                Integer interestedMess = interestedConversations.get(convo.id);
-                interestedMess = interestedMess == null ? 1 : interestedMess + 1;
-                interestedConversations.put(convo.id, interestedMess);
+
+              // How many messages conversations of interest have had.
+              if (model.conversationById().first(uuid) != null) {
+                final int count = model.countMessages(uuid, lastUpdate);
+                if (count > 0) {
+                  interestedConversations.put(uuid, count);
+                }
               }
             }
+
+            return null;
           }
-        }
+        });
+
+        // The time is taken under the lock too, so updates are logged in the
+        // order of their times.
+        change(new Change<Time>(LogRecords.STATUS_UPDATE) {
+          @Override
+          Time make() {
+            final Time updated = Time.now();
+            controller.statusUpdate(userid, updated);
+            return updated;
+          }
+
+          @Override
+          ByteBuffer record(Time made) {
+            return LogRecords.statusUpdate(userid, made);
+          }
+        });
 
-        interests.lastStatusUpdate = Time.now();
         Serializers.INTEGER.write(out, NetworkCode.STATUS_UPDATE_RESPONSE);
         Serializers.collection(Uuid.SERIALIZER).write(out, interestedUsers.keySet());
         Serializers.collection(Serializers.collection(ConversationHeader.SERIALIZER)).write(out, interestedUsers.values());
         Serializers.collection(Uuid.SERIALIZER).write(out, interestedConversations.keySet());
         Serializers.collection(Serializers.INTEGER).write(out, interestedConversations.values());
-        logQueue.getTransactions().add("STATUS-UPDATE " + userid.toString() + " " + interests.lastStatusUpdate.inMs());
       }
     });this.timeline.scheduleNow(new Runnable() {
       @Override
@@ -373,10 +710,50 @@ public final class Server {
                 timeline.scheduleIn(RELAY_REFRESH_MS, this);
             }
         });
+
+        // Deletes leave tombstones in the model's indexes. Clear them out now
+        // and then, off the request path.
+        this.timeline.scheduleIn(COMPACT_MS, new Runnable() {
+            @Override
+            public void run() {
+                final Lock lock = model.writeLock();
+                lock.lock();
+                try {
+                    model.compact();
+                } catch (Exception ex) {
+                    LOG.error(ex, "Failed to compact the model.");
+                } finally {
+                    lock.unlock();
+                }
+
+                timeline.scheduleIn(COMPACT_MS, this);
+            }
+        });
+    }
+
+    public void handleConnection(Connection connection) {
+        handleConnection(connection, requests);
+    }
+
+    // HANDLE ONE-SHOT CONNECTION
+    //
+    // Handle a connection the way handleConnection does, but read and run its
+    // request on a thread of its own rather than where requests are normally
+    // run. A one-shot request has nothing in front of it to say how long it is,
+    // so the only way to know it has all arrived is to read it, and a client
+    // that stops part way through must only ever hold up its own thread. It
+    // still counts against the high-water mark.
+    public void handleOneShotConnection(Connection connection) {
+        handleConnection(connection, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                connectionThreads.newThread(runnable).start();
+            }
+        });
     }
 
-    public void handleConnection(final Connection connection) {
-        timeline.scheduleNow(new Runnable() {
+    private void handleConnection(final Connection connection, Executor executor) {
+        final boolean admitted = admit(executor, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -384,15 +761,21 @@ public final class Server {
                     LOG.info("Handling connection...");
 
                     final int type = Serializers.INTEGER.read(connection.in());
-                    final Command command = commands.get(type);
 
-                    if (command == null) {
-                        // The message type cannot be handled so return a dummy message.
-                        Serializers.INTEGER.write(connection.out(), NetworkCode.NO_MESSAGE);
-                        LOG.info("Connection rejected");
-                    } else {
-                        command.onMessage(connection.in(), connection.out());
+                    if (type == NetworkCode.SESSION_REQUEST) {
+                        // The connection stays open and is handed over to its own
+                        // reader so that it is not closed below.
+                        Serializers.INTEGER.write(connection.out(), NetworkCode.SESSION_RESPONSE);
+                        connection.out().flush();
+                        handleSession(connection);
+                        LOG.info("Session accepted");
+                        return;
+                    }
+
+                    if (dispatch(type, connection.in(), connection.out())) {
                         LOG.info("Connection accepted");
+                    } else {
+                        LOG.info("Connection rejected");
                     }
 
                 } catch (Exception ex) {
@@ -408,10 +791,396 @@ public final class Server {
                 }
             }
         });
+
+        if (!admitted) {
+            turnAway(connection);
+        }
+    }
+
+    // RESPONDER
+    //
+    // Where the response to a frame is sent. This lets the same frame handling
+    // be used by sessions on blocking connections and by the selector front end.
+    public interface Responder {
+        void respond(Frame response) throws IOException;
+    }
+
+    // HANDLE SESSION
+    //
+    // A session is a connection that stays open and carries many requests. Each
+    // request arrives as a frame and is run like any one-shot request. The
+    // response is sent back in a frame with the same id, so responses may go
+    // out in a different order than the requests came in.
+    private void handleSession(final Connection connection) {
+
+        // Several requests from the same session can finish at the same time so
+        // only one of them can write its frame at a time. This is a lock rather
+        // than a synchronized block so that a virtual thread blocked on the
+        // socket while holding it does not pin its carrier thread.
+        final Lock writing = new ReentrantLock();
+
+        final Responder responder = new Responder() {
+            @Override
+            public void respond(Frame response) throws IOException {
+                writing.lock();
+                try {
+                    Frame.SERIALIZER.write(connection.out(), response);
+                    connection.out().flush();
+                } finally {
+                    writing.unlock();
+                }
+            }
+        };
+
+        connectionThreads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Take the input stream once. Asking for it sends any buffered
+                    // output, which is the responder's job on a session.
+                    final InputStream in = connection.in();
+                    while (true) {
+                        handleFrame(Frame.SERIALIZER.read(in), responder);
+                    }
+                } catch (Exception ex) {
+                    LOG.info("Session closed (%s)", ex.toString());
+                }
+
+                try {
+                    connection.close();
+                } catch (Exception ex) {
+                    LOG.error(ex, "Exception while closing session.");
+                }
+            }
+        }).start();
+    }
+
+    // STOP
+    //
+    // Stop the timeline and close the log. The server runs until its process
+    // ends, so only tests stop one.
+    void stop() throws IOException {
+        timeline.stop();
+        timeline.join();
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    // HANDLE FRAME
+    //
+    // Run a fully received request frame and hand its response frame to the
+    // responder. The frame is run like any other request.
+    public void handleFrame(final Frame request, final Responder responder) {
+        final boolean admitted = admit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+
+                    final InputStream in = new ByteArrayInputStream(request.body);
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                    dispatch(Serializers.INTEGER.read(in), in, out);
+
+                    responder.respond(new Frame(request.id, out.toByteArray()));
+
+                } catch (Exception ex) {
+
+                    LOG.error(ex, "Exception while handling frame %d.", request.id);
+
+                }
+            }
+        });
+
+        if (!admitted) {
+            LOG.info("Frame %d turned away (%d requests in flight)", request.id, inflight.get());
+            try {
+                responder.respond(new Frame(request.id, busy()));
+            } catch (Exception ex) {
+                LOG.error(ex, "Exception while turning away frame %d.", request.id);
+            }
+        }
+    }
+
+    // ADMIT
+    //
+    // Hand the request over to be run if there is room for it. When as many
+    // requests as the high-water mark are already waiting or running, the
+    // request is not run and false is returned. The caller then answers with
+    // BUSY straight away, which costs far less than letting the queue and
+    // everyone's wait grow without bound.
+    private boolean admit(final Runnable request) {
+        return admit(requests, request);
+    }
+
+    private boolean admit(Executor executor, final Runnable request) {
+
+        if (inflight.incrementAndGet() > highWater) {
+            inflight.decrementAndGet();
+            metrics.turnedAway();
+            return false;
+        }
+
+        final long queued = System.nanoTime();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    metrics.queueWait(System.nanoTime() - queued);
+                    try {
+                        request.run();
+                    } finally {
+                        inflight.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            inflight.decrementAndGet();
+            throw ex;
+        }
+
+        return true;
+    }
+
+    // BUSY
+    //
+    // The response sent instead of running a request: the BUSY code and how
+    // long the client should wait before trying again.
+    private byte[] busy() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Serializers.INTEGER.write(out, NetworkCode.BUSY);
+        Serializers.INTEGER.write(out, retryAfterMs);
+        return out.toByteArray();
+    }
+
+    // TURN AWAY
+    //
+    // Answer a one-shot connection with BUSY without running it. The request
+    // has already been sent in full by the time a client waits for a
+    // response, so whatever has arrived is skipped before closing. Closing a
+    // socket with unread data can reset it before the client reads BUSY.
+    private void turnAway(Connection connection) {
+
+        LOG.info("Connection turned away (%d requests in flight)", inflight.get());
+
+        try {
+            connection.out().write(busy());
+            final InputStream in = connection.in();  // sends the response
+            while (in.available() > 0 && in.skip(in.available()) > 0) { }
+        } catch (Exception ex) {
+            LOG.error(ex, "Exception while turning away connection.");
+        }
+
+        try {
+            connection.close();
+        } catch (Exception ex) {
+            LOG.error(ex, "Exception while closing connection.");
+        }
+    }
+
+    // CREATE EXECUTOR
+    //
+    // With the timeline, every request runs on its one thread exactly as it
+    // always has. With workers, requests run on a fixed pool of threads. Reads
+    // then run side by side and writes take turns through the model's lock.
+    // With a thread per connection, every connection (and every frame of a
+    // session) gets a new thread of its own and simply blocks on the socket.
+    private Executor createExecutor(final ServerConfig config) {
+
+        if (config.execution == ServerConfig.Execution.WORKERS) {
+
+            LOG.info("Running requests on %d workers.", config.workers);
+
+            return Executors.newFixedThreadPool(config.workers, daemonThreadFactory("worker-"));
+        }
+
+        if (config.execution == ServerConfig.Execution.THREAD_PER_CONNECTION) {
+
+            return new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    connectionThreads.newThread(runnable).start();
+                }
+            };
+        }
+
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                timeline.scheduleNow(runnable);
+            }
+        };
+    }
+
+    private static Collection<ConversationHeader> interestedConversationsOf(
+            Map<Uuid, Collection<ConversationHeader>> interested, Uuid user) {
+        Collection<ConversationHeader> conversations = interested.get(user);
+        if (conversations == null) {
+            conversations = new HashSet<ConversationHeader>();
+            interested.put(user, conversations);
+        }
+        return conversations;
+    }
+
+    // CREATE MODEL
+    //
+    // Make the model, with a memory budget and segments to move cold
+    // conversations to if the config asks for one. Conversations are moved
+    // out on a thread of their own. If the segment directory cannot be made,
+    // everything stays in memory.
+    private static Model createModel(ServerConfig config) {
+
+        final BodyArena arena = createArena(config);
+
+        if (config.memoryBudget <= 0 || config.spillPath == null) {
+            return new Model(arena);
+        }
+
+        try {
+            final ColdSegments segments = new ColdSegments(new File(config.spillPath));
+            LOG.info("Keeping the model under %d bytes. Cold conversations go to %s.",
+                     config.memoryBudget, config.spillPath);
+            return new Model(arena,
+                             segments,
+                             config.memoryBudget,
+                             Executors.newSingleThreadExecutor(daemonThreadFactory("spill-")));
+        } catch (IOException ex) {
+            LOG.error(ex, "Failed to make segments in %s. Keeping everything in memory.", config.spillPath);
+            return new Model(arena);
+        }
+    }
+
+    // CREATE ARENA
+    //
+    // Make the arena that message bodies are kept in, or return null to keep
+    // them on the heap. If the mapped files cannot be made, bodies go to
+    // direct buffers instead.
+    private static BodyArena createArena(ServerConfig config) {
+
+        if (config.bodies == ServerConfig.Bodies.MAPPED) {
+            try {
+                LOG.info("Keeping message bodies in files under %s.", config.arenaPath);
+                return BodyArena.mapped(new File(config.arenaPath), BodyArena.DEFAULT_SEGMENT_BYTES);
+            } catch (IOException ex) {
+                LOG.error(ex, "Failed to make arena in %s. Using direct buffers.", config.arenaPath);
+                return BodyArena.direct(BodyArena.DEFAULT_SEGMENT_BYTES);
+            }
+        }
+
+        if (config.bodies == ServerConfig.Bodies.DIRECT) {
+            LOG.info("Keeping message bodies in direct buffers.");
+            return BodyArena.direct(BodyArena.DEFAULT_SEGMENT_BYTES);
+        }
+
+        return null;
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // CONNECTION THREAD FACTORY
+    //
+    // Virtual threads only exist from Java 21 on, so they are looked up when
+    // the server starts rather than linked against. On an older JDK every
+    // connection gets a plain daemon thread instead, which works the same way
+    // but costs a full thread stack per open connection.
+    private static ThreadFactory connectionThreadFactory() {
+
+        try {
+
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory")
+                    .invoke(builder);
+
+            LOG.info("Running a virtual thread per connection.");
+            return factory;
+
+        } catch (ReflectiveOperationException ex) {
+
+            LOG.info("Virtual threads are not available. Running a thread per connection.");
+            return daemonThreadFactory("connection-");
+
+        }
+    }
+
+    // RESPONSE BUFFER
+    //
+    // Get an empty buffer that holds at least the given number of bytes. The
+    // buffer belongs to the calling thread and is only good until its next
+    // call. A thread's buffer grows to fit the largest response it has sent,
+    // up to a limit, so a thread that lives for one request only ever
+    // allocates what it needs.
+    private ByteBuffer responseBuffer(int bytes) {
+
+        if (bytes > MAX_REUSED_BUFFER_BYTES) {
+            return ByteBuffer.allocate(bytes);
+        }
+
+        ByteBuffer buffer = responseBuffers.get();
+
+        if (buffer == null || buffer.capacity() < bytes) {
+            final int grown = buffer == null ? bytes : Math.max(bytes, 2 * buffer.capacity());
+            buffer = ByteBuffer.allocate(Math.min(MAX_REUSED_BUFFER_BYTES, grown));
+            responseBuffers.set(buffer);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    // DISPATCH
+    //
+    // Run the command for the given network code. If there is no command for
+    // the code, a dummy message is written back and false is returned. How
+    // long the command took is recorded against its code.
+    private boolean dispatch(int type, InputStream in, OutputStream out) throws IOException {
+
+        final Command command = commands.get(type);
+
+        if (command == null) {
+            // The message type cannot be handled so return a dummy message.
+            Serializers.INTEGER.write(out, NetworkCode.NO_MESSAGE);
+            return false;
+        }
+
+        final long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            command.onMessage(in, out);
+            failed = false;
+        } finally {
+            metrics.command(type, System.nanoTime() - start, failed);
+        }
+
+        return true;
     }
 
     private void onBundle(Relay.Bundle bundle) {
 
+        final Lock lock = model.writeLock();
+        lock.lock();
+        try {
+            addBundle(bundle);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addBundle(Relay.Bundle bundle) {
+
         final Relay.Bundle.Component relayUser = bundle.user();
         final Relay.Bundle.Component relayConversation = bundle.conversation();
         final Relay.Bundle.Component relayMessage = bundle.user();
@@ -446,6 +1215,165 @@ public final class Server {
         }
     }
 
+    private WriteAheadLog openLog(File directory, ServerConfig.Durability durability) {
+        try {
+            moveSingleLog(directory);
+            return new WriteAheadLog(directory, durability, metrics);
+        } catch (IOException ex) {
+            LOG.error(ex, "Failed to open the log in %s. Changes will not be logged.", directory);
+            return null;
+        }
+    }
+
+    // A log kept in one file by an older server becomes the first segment of
+    // the log, unless the log already has segments of its own.
+    private static void moveSingleLog(File directory) throws IOException {
+
+        final File single = new File(SINGLE_LOG_FILE);
+        final File first = new File(directory, "log-0.wal");
+
+        if (!single.exists() || first.exists()) {
+            return;
+        }
+
+        final String[] names = directory.list();
+        if (names != null && names.length > 0) {
+            return;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+
+        Files.move(single.toPath(), first.toPath());
+        LOG.info("Moved %s to %s", single, first);
+    }
+
+    private static Snapshots openSnapshots(File directory) {
+        try {
+            return new Snapshots(directory);
+        } catch (IOException ex) {
+            LOG.error(ex, "Failed to open snapshots in %s. The whole log will be kept.", directory);
+            return null;
+        }
+    }
+
+    // SNAPSHOT
+    //
+    // Write the model out to a snapshot and delete the log it makes
+    // unnecessary. The log is rolled and the model gathered up with the write
+    // lock held. Every change is put in the log under the same lock (see
+    // "change"), so the snapshot holds exactly the changes in the segments
+    // before the new one. The snapshot itself is written after the lock is
+    // let go.
+    void snapshot() throws IOException {
+
+        if (log == null || snapshots == null) {
+            return;
+        }
+
+        final long segment;
+        final Snapshots.Capture capture;
+
+        final Lock lock = model.writeLock();
+        lock.lock();
+        try {
+            segment = log.roll();
+            capture = Snapshots.capture(model);
+        } finally {
+            lock.unlock();
+        }
+
+        snapshots.write(segment, capture);
+        log.deleteBefore(snapshots.oldest());
+
+        // Everything in a text log left by an older server is in the snapshot.
+        final File legacy = new File(LEGACY_LOG_FILE);
+        if (legacy.exists() && !legacy.delete()) {
+            LOG.warning("Failed to delete %s", legacy);
+        }
+    }
+
+    // Take a snapshot every so often, on a thread of its own as writing one
+    // out can take a while. Nothing is written if nothing has changed.
+    private void startSnapshots() {
+
+        if (log == null || snapshots == null || snapshotEveryMs <= 0) {
+            return;
+        }
+
+        daemonThreadFactory("snapshot-").newThread(new Runnable() {
+            @Override
+            public void run() {
+
+                long appended = log.appended();
+
+                while (true) {
+
+                    try {
+                        Thread.sleep(snapshotEveryMs);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+
+                    final long now = log.appended();
+                    if (now == appended) {
+                        continue;
+                    }
+
+                    try {
+                        snapshot();
+                        appended = now;
+                    } catch (Exception ex) {
+                        LOG.error(ex, "Failed to write a snapshot.");
+                    }
+                }
+            }
+        }).start();
+    }
+
+    // CHANGE
+    //
+    // Make a change and append it to the write ahead log. The record is
+    // published while the model's write lock is still held, so the log has the
+    // changes in the order the model made them, which is the order replay makes
+    // them in again, and a roll of the log for a snapshot falls between the
+    // same changes in both. Unless the log is ASYNC this then waits for the
+    // record to be committed, once the lock has been let go so that other
+    // changes are not held up by the disk. It must be called before the
+    // response is written.
+    //
+    // If the log has failed the request fails before anything is changed,
+    // rather than answering for a change that would be lost. A commit that
+    // fails once the change has been made fails the request too, but the
+    // change is not taken back out of the model.
+    private <T> T change(Change<T> change) throws IOException {
+
+        if (log == null) {
+            return change.make();
+        }
+
+        log.check();
+
+        final T made;
+        final long ticket;
+
+        final Lock lock = model.writeLock();
+        lock.lock();
+        try {
+            made = change.make();
+            if (made == null) {
+                return null;
+            }
+            ticket = log.publish(change.type, change.record(made));
+        } finally {
+            lock.unlock();
+        }
+
+        log.awaitDurable(ticket);
+        return made;
+    }
+
     private Runnable createSendToRelayEvent(final Uuid userId,
                                             final Uuid conversationId,
                                             final Uuid messageId) {
@@ -459,18 +1387,74 @@ public final class Server {
                         secret,
                         relay.pack(user.id, user.name, user.creation),
                         relay.pack(conversation.id, conversation.title, conversation.creation),
-                        relay.pack(message.id, message.content, message.creation));
+                        relay.pack(message.id, message.content(), message.creation));
             }
         };
     }
 
+    // READ TRANSACTION LOG
+    //
+    // Load the newest snapshot and make every change in the log after it
+    // again, then start taking snapshots. A text log left by an older server
+    // is older than anything in the write ahead log, so it goes first, but
+    // once there is a snapshot everything in it is in the snapshot.
     public void readTransactionLog() {
 
-        try {
-            File transactionLog = new File("transaction_log.txt");
-            if (!transactionLog.exists()) {
-                transactionLog.createNewFile();
+        if (replayThreads > 0) {
+            final ExecutorService pool = Executors.newFixedThreadPool(replayThreads, daemonThreadFactory("replay-"));
+            try {
+                final BulkReplay replay = new BulkReplay(model, controller);
+                readTransactionLog(replay, replay, pool);
+                replay.finish();
+            } finally {
+                pool.shutdownNow();
             }
+        } else {
+            readTransactionLog(new WriteAheadLog.Decoder<Void>() {
+                @Override
+                public Void decode(byte type, ByteBuffer payload) {
+                    try {
+                        LogRecords.apply(type, payload, controller);
+                    } catch (RuntimeException ex) {
+                        LOG.error(ex, "Failed to replay log record of type %d", type);
+                    }
+                    return null;
+                }
+            }, new WriteAheadLog.Handler<Void>() {
+                @Override
+                public void handle(Void record) { }
+            }, null);
+        }
+
+        startSnapshots();
+    }
+
+    private <T> void readTransactionLog(WriteAheadLog.Decoder<T> decoder,
+                                        WriteAheadLog.Handler<T> handler,
+                                        ExecutorService pool) {
+
+        final long from = snapshots == null ? 0 : snapshots.load(decoder, handler, pool);
+
+        final File legacy = new File(LEGACY_LOG_FILE);
+        if (from == 0 && legacy.exists()) {
+            readLegacyLog(legacy);
+        }
+
+        if (log == null) {
+            return;
+        }
+
+        try {
+            final int records = log.replay(from, decoder, handler, pool);
+            LOG.info("Replayed %d records from log segment %d on", records, from);
+        } catch (IOException ex) {
+            LOG.error(ex, "Failed to read the log");
+        }
+    }
+
+    private void readLegacyLog(File transactionLog) {
+
+        try {
             Scanner scan = new Scanner(transactionLog);   //read transaction log if it already exists
             while (scan.hasNextLine()) {
                 String item = scan.nextLine().trim(); //item in transaction log
@@ -508,7 +1492,11 @@ public final class Server {
                     Uuid userId = Uuid.parse(tokenizer.next());
                     long timeInMs = Long.parseLong(tokenizer.next());
                     Time timeCreated = Time.fromMs(timeInMs);
-                    view.findInterests(userId).lastStatusUpdate = timeCreated;
+                    controller.statusUpdate(userId, timeCreated);
+                } else if (action.equals("DELETE-MESSAGE")) {
+                    controller.deleteMessage(Uuid.parse(tokenizer.next()));
+                } else if (action.equals("DELETE-CONVERSATION")) {
+                    controller.deleteConversation(Uuid.parse(tokenizer.next()));
                 } else if(action.equals("SET-DEFAULT-ACCESS-LEVEL")) {
                    Uuid conversation = Uuid.parse(tokenizer.next());
                    AccessLevel defaultAccessLevel = AccessLevel.valueOf(tokenizer.next());
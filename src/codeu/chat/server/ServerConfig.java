@@ -0,0 +1,188 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.Map;
+
+// SERVER CONFIG
+//
+// Settings that change how the server runs. The settings for how requests
+// are received and run and how the model is kept in memory default to the
+// original single threaded server. Recovery does not: by default the model
+// is written to a snapshot every ten minutes and the log is replayed in bulk
+// on one thread per processor. Set "snapshot-every-ms" to zero to only keep
+// the log, and "replay-threads" to zero to replay it one change at a time.
+public final class ServerConfig {
+
+  // EXECUTION
+  //
+  // Where requests are run once they have been received.
+  //
+  //   TIMELINE : Every request runs on the timeline's single thread.
+  //   WORKERS  : Requests run on a pool of worker threads. Reads run side by
+  //              side while writes to the model take turns.
+  //   THREAD_PER_CONNECTION :
+  //              Every connection runs on its own thread using plain blocking
+  //              reads and writes. The threads are virtual when the JDK has
+  //              them. Writes to the model take turns as with WORKERS.
+  public enum Execution { TIMELINE, WORKERS, THREAD_PER_CONNECTION }
+
+  public Execution execution = Execution.TIMELINE;
+
+  // The number of threads used when running with WORKERS.
+  public int workers = Runtime.getRuntime().availableProcessors();
+
+  // Use the selector front end rather than accepting blocking sockets.
+  public boolean selectorFrontEnd = false;
+
+  // The most requests that may be waiting or running at once. Past this the
+  // server answers new requests with BUSY rather than queueing them.
+  public int highWater = Integer.MAX_VALUE;
+
+  // How long a client that was sent BUSY is asked to wait before trying again.
+  public int retryAfterMs = 100;
+
+  // BODIES
+  //
+  // Where message bodies are kept.
+  //
+  //   HEAP   : As strings on the heap.
+  //   DIRECT : Appended to large direct buffers outside of the heap.
+  //   MAPPED : Appended to memory-mapped files under "arenaPath", which lets
+  //            the operating system page out bodies that are not being read.
+  //
+  // Wherever bodies are kept, their words are indexed for search on the heap.
+  public enum Bodies { HEAP, DIRECT, MAPPED }
+
+  public Bodies bodies = Bodies.HEAP;
+
+  public String arenaPath = "arena";
+
+  // MEMORY BUDGET
+  //
+  // Roughly how many bytes of heap the model may take up. Past this, the
+  // messages of the conversations used longest ago are moved out to segment
+  // files under "spillPath" and read back when they are next used. Zero
+  // keeps everything in memory.
+  public long memoryBudget = 0;
+
+  // ServerMain puts this under the persistent directory it is given unless
+  // the option is set.
+  public String spillPath = null;
+
+  // DURABILITY
+  //
+  // When a change counts as saved, and so when its response can be sent.
+  //
+  //   ASYNC : Changes are written to the log in the background about every
+  //           100ms and requests are answered straight away. A crash can
+  //           lose changes that were already answered.
+  //   FLUSH : A request is answered once its change has been written to the
+  //           log file. The change survives the server crashing but not the
+  //           machine.
+  //   FSYNC : A request is answered once its change has been forced to disk.
+  //
+  // With FLUSH and FSYNC, changes made while the log is busy are committed
+  // together in the next batch, so many requests share one write and force.
+  public enum Durability { ASYNC, FLUSH, FSYNC }
+
+  public Durability durability = Durability.ASYNC;
+
+  // The directory the write ahead log's segments and the model's snapshots
+  // are kept in. ServerMain puts this under the persistent directory it is
+  // given unless the option is set.
+  public String logPath = null;
+
+  // SNAPSHOT EVERY MS
+  //
+  // How often the model is written out to a snapshot, if anything has
+  // changed since the last one. On restart the newest snapshot is loaded and
+  // only the log written after it is replayed, and the log before the
+  // snapshots that are kept is deleted. Zero never takes a snapshot.
+  public long snapshotEveryMs = 10 * 60 * 1000;
+
+  // REPLAY THREADS
+  //
+  // How many threads check and decode the snapshot and the log on startup.
+  // Messages are kept aside and added to the model together once every
+  // record has been read (see BulkReplay). Zero makes every change one at a
+  // time through the controller, as it was first made.
+  public int replayThreads = Runtime.getRuntime().availableProcessors();
+
+  // FROM OPTIONS
+  //
+  // Build a config from "--name=value" command line options. Options that are
+  // not given keep their default value.
+  public static ServerConfig fromOptions(Map<String, String> options) {
+
+    final ServerConfig config = new ServerConfig();
+
+    if (options.containsKey("execution")) {
+      config.execution = Execution.valueOf(options.get("execution").toUpperCase().replace('-', '_'));
+    }
+    if (options.containsKey("workers")) {
+      config.workers = Integer.parseInt(options.get("workers"));
+    }
+    if (options.containsKey("front-end")) {
+      config.selectorFrontEnd = "selector".equals(options.get("front-end"));
+    }
+    if (options.containsKey("high-water")) {
+      config.highWater = Integer.parseInt(options.get("high-water"));
+    }
+    if (options.containsKey("retry-after-ms")) {
+      config.retryAfterMs = Integer.parseInt(options.get("retry-after-ms"));
+    }
+    if (options.containsKey("bodies")) {
+      config.bodies = Bodies.valueOf(options.get("bodies").toUpperCase());
+    }
+    if (options.containsKey("arena-path")) {
+      config.arenaPath = options.get("arena-path");
+    }
+    if (options.containsKey("memory-budget")) {
+      config.memoryBudget = parseBytes(options.get("memory-budget"));
+    }
+    if (options.containsKey("spill-path")) {
+      config.spillPath = options.get("spill-path");
+    }
+    if (options.containsKey("durability")) {
+      config.durability = Durability.valueOf(options.get("durability").toUpperCase());
+    }
+    if (options.containsKey("log-path")) {
+      config.logPath = options.get("log-path");
+    }
+    if (options.containsKey("snapshot-every-ms")) {
+      config.snapshotEveryMs = Long.parseLong(options.get("snapshot-every-ms"));
+    }
+    if (options.containsKey("replay-threads")) {
+      config.replayThreads = Integer.parseInt(options.get("replay-threads"));
+    }
+
+    return config;
+  }
+
+  // A number of bytes with an optional "k", "m" or "g" after it.
+  private static long parseBytes(String value) {
+
+    final String number = value.trim().toLowerCase();
+    final char unit = number.isEmpty() ? ' ' : number.charAt(number.length() - 1);
+
+    switch (unit) {
+      case 'k': return Long.parseLong(number.substring(0, number.length() - 1)) << 10;
+      case 'm': return Long.parseLong(number.substring(0, number.length() - 1)) << 20;
+      case 'g': return Long.parseLong(number.substring(0, number.length() - 1)) << 30;
+      default:  return Long.parseLong(number);
+    }
+  }
+}
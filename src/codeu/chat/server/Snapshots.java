@@ -0,0 +1,329 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Interests;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.common.UserAccessLevel;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Uuid;
+
+// SNAPSHOTS
+//
+// Point in time copies of the model, so that a restart reads one snapshot
+// and the log written after it instead of every change ever made.
+//
+// A snapshot is written in the same framed records as the write ahead log
+// (see LogRecords), enough of them to build the model again: the users, the
+// conversations with who can see them, every message, and every user's
+// interests. It ends with a SNAPSHOT_END record so a snapshot that was cut
+// short is never mistaken for a whole one.
+//
+// Each snapshot is named for the log segment it was taken at, and holds
+// every change in the segments before that one and none of the changes
+// after. The log is rolled and the model captured with the model's write lock
+// held, and every change is put in the log while it is held too (see
+// Server.change), so a change cannot be on one side of the roll in the log
+// and on the other in the model. The log from that segment on is replayed
+// after it.
+//
+// Messages are written in the order of their links rather than the order
+// they were sent, so that loading them links them up the same way again.
+//
+// The newest KEEP snapshots are kept so that if the newest cannot be read
+// the one before it can be used instead.
+final class Snapshots {
+
+  private final static Logger.Log LOG = Logger.newLog(Snapshots.class);
+
+  static final int KEEP = 2;
+
+  private static final String PREFIX = "snapshot-";
+  private static final String SUFFIX = ".snap";
+  private static final String TEMPORARY = ".tmp";
+
+  // The SNAPSHOT_END record, which has no payload.
+  private static final int LAST_RECORD_BYTES = WriteAheadLog.HEADER_BYTES + 1;
+
+  // CAPTURE
+  //
+  // What goes in a snapshot, gathered while the model's write lock is held.
+  // Everything here is either never changed or replaced rather than changed,
+  // and each conversation's messages are a list taken while the lock was
+  // held, so it can be written out after the lock is let go.
+  static final class Capture {
+
+    private final List<User> users = new ArrayList<>();
+    private final List<ConversationHeader> conversations = new ArrayList<>();
+    private final Map<Uuid, UserAccessLevel> defaultAccessLevels = new LinkedHashMap<>();
+    private final Map<Uuid, Collection<UserAccessLevel>> accessLevels = new LinkedHashMap<>();
+    private final Map<Uuid, List<Message>> messages = new LinkedHashMap<>();
+    private final List<Interests> interests = new ArrayList<>();
+
+  }
+
+  private final File directory;
+
+  Snapshots(File directory) throws IOException {
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create snapshot directory " + directory);
+    }
+
+    this.directory = directory;
+  }
+
+  // CAPTURE
+  //
+  // Gather up everything in the model. Must be called with the write lock
+  // held. The messages of cold conversations are read from their segments.
+  static Capture capture(Model model) throws IOException {
+
+    final Capture capture = new Capture();
+
+    for (final User user : model.userById().all()) {
+      capture.users.add(user);
+    }
+
+    for (final ConversationHeader conversation : model.conversationById().all()) {
+
+      capture.conversations.add(conversation);
+
+      final UserAccessLevel defaultAccessLevel = model.defaultAccessLevelsByConvId().first(conversation.id);
+      if (defaultAccessLevel != null) {
+        capture.defaultAccessLevels.put(conversation.id, defaultAccessLevel);
+      }
+
+      final Collection<UserAccessLevel> accessLevels = model.accessLevelsByConvId().first(conversation.id);
+      if (accessLevels != null) {
+        capture.accessLevels.put(conversation.id, accessLevels);
+      }
+
+      capture.messages.put(conversation.id, model.allMessages(conversation.id));
+    }
+
+    for (final Interests interests : model.interestsByUserId().all()) {
+      capture.interests.add(interests);
+    }
+
+    return capture;
+  }
+
+  // WRITE
+  //
+  // Write a snapshot taken at the given log segment. It is written to a
+  // temporary file which is forced to disk and then renamed, so a snapshot
+  // with its real name is always whole. Snapshots older than the newest KEEP
+  // are deleted.
+  void write(long segment, Capture capture) throws IOException {
+
+    final File written = snapshot(segment);
+    final File temporary = new File(directory, written.getName() + TEMPORARY);
+
+    try (final FileOutputStream file = new FileOutputStream(temporary)) {
+
+      final OutputStream out = new BufferedOutputStream(file);
+
+      for (final User user : capture.users) {
+        write(out, LogRecords.ADD_USER, LogRecords.addUser(user));
+      }
+
+      for (final ConversationHeader conversation : capture.conversations) {
+
+        write(out, LogRecords.ADD_CONVERSATION, LogRecords.addConversation(conversation));
+
+        final UserAccessLevel defaultAccessLevel = capture.defaultAccessLevels.get(conversation.id);
+        if (defaultAccessLevel != null) {
+          write(out, LogRecords.SET_DEFAULT_ACCESS_LEVEL,
+                LogRecords.setDefaultAccessLevel(conversation.id, defaultAccessLevel.getAccessLevel()));
+        }
+
+        final Collection<UserAccessLevel> accessLevels = capture.accessLevels.get(conversation.id);
+        if (accessLevels != null) {
+          for (final UserAccessLevel access : accessLevels) {
+            write(out, LogRecords.NEW_ACCESS_LEVEL,
+                  LogRecords.newAccessLevel(conversation.id, access.getUser(), access.getAccessLevel()));
+          }
+        }
+
+        for (final Message message : capture.messages.get(conversation.id)) {
+          write(out, LogRecords.ADD_MESSAGE, LogRecords.addMessage(conversation.id, message));
+        }
+      }
+
+      for (final Interests interests : capture.interests) {
+
+        for (final Uuid interest : interests.interests) {
+          write(out, LogRecords.ADD_INTEREST, LogRecords.addInterest(interests.id, interest, interests.creation));
+        }
+
+        // A user whose interests have all been removed still has a record of
+        // them, made by adding an interest and taking it away again.
+        if (interests.interests.isEmpty()) {
+          write(out, LogRecords.ADD_INTEREST, LogRecords.addInterest(interests.id, Uuid.NULL, interests.creation));
+          write(out, LogRecords.REMOVE_INTEREST, LogRecords.removeInterest(interests.id, Uuid.NULL));
+        }
+
+        write(out, LogRecords.STATUS_UPDATE, LogRecords.statusUpdate(interests.id, interests.lastStatusUpdate));
+      }
+
+      write(out, LogRecords.SNAPSHOT_END, LogRecords.snapshotEnd());
+
+      out.flush();
+      file.getFD().sync();
+    } catch (IOException ex) {
+      temporary.delete();
+      throw ex;
+    }
+
+    Files.move(temporary.toPath(), written.toPath(),
+               StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+    LOG.info("Wrote snapshot %s", written);
+
+    final List<Long> kept = snapshots();
+    for (int i = 0; i < kept.size() - KEEP; i++) {
+      final File old = snapshot(kept.get(i));
+      if (!old.delete()) {
+        LOG.warning("Failed to delete snapshot %s", old);
+      }
+    }
+  }
+
+  // LOAD
+  //
+  // Make the changes in the newest snapshot that can be read through the
+  // controller, which should have nothing in it yet. Returns the log segment
+  // to replay from, or 0 if there is no snapshot that can be read.
+  long load(final Controller controller) {
+    return load(new WriteAheadLog.Decoder<Void>() {
+      @Override
+      public Void decode(byte type, ByteBuffer payload) {
+        LogRecords.apply(type, payload, controller);
+        return null;
+      }
+    }, new WriteAheadLog.Handler<Void>() {
+      @Override
+      public void handle(Void record) { }
+    }, null);
+  }
+
+  // Give the records in the newest snapshot that can be read, but not its
+  // SNAPSHOT_END, to the decoder and handler the way the log gives them (see
+  // WriteAheadLog.read).
+  <T> long load(WriteAheadLog.Decoder<T> decoder,
+                WriteAheadLog.Handler<T> handler,
+                ExecutorService pool) {
+
+    final List<Long> numbers = snapshots();
+    Collections.reverse(numbers);
+
+    for (final long number : numbers) {
+
+      final File file = snapshot(number);
+
+      try (final FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+
+        // Check every record before giving any on, so a bad snapshot is
+        // passed over without leaving half of it behind.
+        final boolean[] ended = { false };
+        final long end = WriteAheadLog.read(in, new WriteAheadLog.Visitor() {
+          @Override
+          public void visit(byte type, ByteBuffer payload) {
+            ended[0] = type == LogRecords.SNAPSHOT_END;
+          }
+        });
+
+        if (!ended[0] || end != in.size()) {
+          LOG.warning("Snapshot %s is damaged. Trying an older one.", file);
+          continue;
+        }
+
+        final long records = end - LAST_RECORD_BYTES;
+        if (WriteAheadLog.read(in, records, decoder, handler, pool) != records) {
+          throw new IOException("Snapshot " + file + " changed while it was being read");
+        }
+
+        LOG.info("Loaded snapshot %s", file);
+        return number;
+
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to read snapshot %s. Trying an older one.", file);
+      }
+    }
+
+    return 0;
+  }
+
+  // OLDEST
+  //
+  // The log segment the oldest snapshot kept was taken at. The log before it
+  // is not needed by any snapshot. Returns 0 if there are no snapshots.
+  long oldest() {
+    final List<Long> numbers = snapshots();
+    return numbers.isEmpty() ? 0 : numbers.get(0);
+  }
+
+  private static void write(OutputStream out, byte type, ByteBuffer payload) throws IOException {
+    final ByteBuffer record = WriteAheadLog.frame(type, payload);
+    out.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+  }
+
+  private File snapshot(long segment) {
+    return new File(directory, PREFIX + segment + SUFFIX);
+  }
+
+  // The segments the snapshots in the directory were taken at, oldest first.
+  private List<Long> snapshots() {
+
+    final List<Long> numbers = new ArrayList<>();
+    final String[] names = directory.list();
+
+    if (names != null) {
+      for (final String name : names) {
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+          try {
+            numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+          } catch (NumberFormatException ex) {
+            LOG.warning("Ignoring %s in the snapshot directory", name);
+          }
+        }
+      }
+    }
+
+    Collections.sort(numbers);
+    return numbers;
+  }
+}
@@ -0,0 +1,317 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.store.StoreAccessor;
+
+// TIME ORDERED MESSAGES
+//
+// A run of messages (those in one conversation, or by one author) ordered
+// by the time they were sent, so that a page of them or the ones sent in a
+// span of time can be cut out with a binary search instead of a walk.
+// Messages that were sent at the same time stay in the order they were
+// added.
+//
+// Messages nearly always arrive newest last and are simply appended. One that
+// is older than the newest (a message replayed from another server, say) is
+// put in its place in a new copy of the array.
+//
+// There can be one writer at a time and any number of readers at the same
+// time as the writer.
+final class TimeOrderedMessages implements StoreAccessor<Time, Message> {
+
+  static final int MAX_PAGE = 1000;
+
+  private volatile Message[] messages = new Message[8];
+  private volatile int size = 0;
+
+  synchronized void add(Message message) {
+
+    final Message[] current = messages;
+
+    // Most messages are the newest yet, which the last one tells without a
+    // search.
+    final int at = size == 0 || current[size - 1].creation.compareTo(message.creation) <= 0 ?
+        size :
+        after(current, size, message.creation);
+
+    if (at == size && size < current.length) {
+      // Fill the slot before counting it so readers never see an empty one.
+      current[size] = message;
+      size = size + 1;
+      return;
+    }
+
+    final Message[] grown = new Message[size == current.length ? Math.max(8, current.length * 2) : current.length];
+    System.arraycopy(current, 0, grown, 0, at);
+    grown[at] = message;
+    System.arraycopy(current, at, grown, at + 1, size - at);
+
+    messages = grown;
+    size = size + 1;
+  }
+
+  // REMOVE
+  //
+  // Take the message out. The messages after it are copied down into a new
+  // array that is exactly as long as the messages left, so a reader that
+  // still has the old size never reads past the messages it should see.
+  // Returns false if the message was not here.
+  synchronized boolean remove(Message message) {
+
+    final Message[] current = messages;
+    final int count = size;
+    final int at = indexOf(current, count, message.id, message.creation);
+
+    if (at < 0) {
+      return false;
+    }
+
+    final Message[] smaller = new Message[count - 1];
+    System.arraycopy(current, 0, smaller, 0, at);
+    System.arraycopy(current, at + 1, smaller, at, count - at - 1);
+
+    messages = smaller;
+    size = count - 1;
+
+    return true;
+  }
+
+  // ADD ALL
+  //
+  // Add many messages at once, merging them in with one copy where adding
+  // them one at a time could copy once for each. The messages must be in the
+  // order they were sent.
+  synchronized void addAll(Collection<Message> added) {
+
+    final Message[] current = messages;
+    final int count = size;
+    final Message[] merged = new Message[Math.max(8, count + added.size())];
+
+    int at = 0;
+    int kept = 0;
+    for (final Message message : added) {
+      // Messages already here that were sent at the same time go first.
+      while (kept < count && current[kept].creation.compareTo(message.creation) <= 0) {
+        merged[at++] = current[kept++];
+      }
+      merged[at++] = message;
+    }
+    System.arraycopy(current, kept, merged, at, count - kept);
+
+    messages = merged;
+    size = count + added.size();
+  }
+
+  // REMOVE ALL
+  //
+  // Take out every message with one of the ids, copying once.
+  synchronized void removeAll(Set<Uuid> ids) {
+
+    final Message[] current = messages;
+    final int count = size;
+    final Message[] kept = new Message[count];
+
+    int at = 0;
+    for (int i = 0; i < count; i++) {
+      if (!ids.contains(current[i].id)) {
+        kept[at++] = current[i];
+      }
+    }
+
+    // As with remove, the new array is exactly as long as the messages left.
+    messages = Arrays.copyOf(kept, at);
+    size = at;
+  }
+
+  int size() {
+    return size;
+  }
+
+  @Override
+  public Message first(Time time) {
+    final int count = size;
+    final Message[] current = messages;
+    final int end = Math.min(count, current.length);
+    final int at = before(current, end, time);
+    return at < end && current[at].creation.compareTo(time) == 0 ? current[at] : null;
+  }
+
+  @Override
+  public Iterable<Message> all() {
+    final int count = size;
+    final Message[] current = messages;
+    return slice(current, 0, Math.min(count, current.length));
+  }
+
+  @Override
+  public Iterable<Message> at(Time time) {
+    final int count = size;
+    final Message[] current = messages;
+    final int end = Math.min(count, current.length);
+    return slice(current, before(current, end, time), after(current, end, time));
+  }
+
+  @Override
+  public Iterable<Message> after(Time start) {
+    final int count = size;
+    final Message[] current = messages;
+    final int end = Math.min(count, current.length);
+    return slice(current, before(current, end, start), end);
+  }
+
+  @Override
+  public Iterable<Message> before(Time stop) {
+    final int count = size;
+    final Message[] current = messages;
+    final int end = Math.min(count, current.length);
+    return slice(current, 0, after(current, end, stop));
+  }
+
+  @Override
+  public Iterable<Message> range(Time start, Time stop) {
+    final int count = size;
+    final Message[] current = messages;
+    final int end = Math.min(count, current.length);
+    return slice(current, before(current, end, start), after(current, end, stop));
+  }
+
+  // The number of messages sent at or after the time.
+  int countAfter(Time start) {
+    final int count = size;
+    final Message[] current = messages;
+    final int end = Math.min(count, current.length);
+    return end - before(current, end, start);
+  }
+
+  // PAGE
+  //
+  // Up to "limit" messages next to a cursor, oldest first. Going forward the
+  // page holds the messages after the cursor and going backward the messages
+  // before it.
+  //
+  // The cursor is the message with the id "from" sent at the time "at" when
+  // it is here, and the message itself is not in the page. When "from" is
+  // given but the message is gone (it was deleted after the last page was
+  // read) the cursor is still its time, and the page holds only messages
+  // sent strictly after (or before) it. When "from" is null or Uuid.NULL the
+  // cursor is the time "at", and messages sent at that time are in the page.
+  // With neither, a forward page starts at the oldest message and a backward
+  // page ends at the newest.
+  Collection<Message> page(Uuid from, Time at, boolean forward, int limit) {
+
+    final int count = size;
+    final Message[] current = messages;
+    final int end = Math.min(count, current.length);
+
+    final int wanted = Math.max(0, Math.min(limit, MAX_PAGE));
+
+    // The page is [start, stop) of the array.
+    int start;
+    int stop;
+
+    final boolean given = from != null && !Uuid.equals(from, Uuid.NULL);
+    final int cursor = given && at != null ? indexOf(current, end, from, at) : -1;
+
+    if (forward) {
+      if (cursor >= 0) {
+        start = cursor + 1;
+      } else if (at != null) {
+        start = given ? after(current, end, at) : before(current, end, at);
+      } else {
+        start = 0;
+      }
+      stop = Math.min(end, start + wanted);
+    } else {
+      if (cursor >= 0) {
+        stop = cursor;
+      } else if (at != null) {
+        stop = given ? before(current, end, at) : after(current, end, at);
+      } else {
+        stop = end;
+      }
+      start = Math.max(0, stop - wanted);
+    }
+
+    final Collection<Message> page = new ArrayList<>(Math.max(0, stop - start));
+    for (int i = start; i < stop; i++) {
+      page.add(current[i]);
+    }
+
+    return page;
+  }
+
+  // The messages in [start, stop) of the array, or none if stop is not after
+  // start. The array is never changed below the size it had, so the slice
+  // stays the same however many messages are added after it is made.
+  private static Iterable<Message> slice(Message[] messages, int start, int stop) {
+    return start >= stop ?
+        Collections.<Message>emptyList() :
+        Collections.unmodifiableList(Arrays.asList(messages).subList(start, stop));
+  }
+
+  // The position of a message, or -1 if it is not here.
+  private static int indexOf(Message[] messages, int size, Uuid id, Time creation) {
+
+    for (int i = before(messages, size, creation);
+         i < size && messages[i].creation.compareTo(creation) == 0;
+         i++) {
+      if (Uuid.equals(messages[i].id, id)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  // The first position whose message was sent at or after the time.
+  private static int before(Message[] messages, int size, Time time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (messages[mid].creation.compareTo(time) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  // The first position whose message was sent after the time.
+  private static int after(Message[] messages, int size, Time time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (messages[mid].creation.compareTo(time) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
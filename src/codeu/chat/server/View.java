@@ -31,7 +31,7 @@ import codeu.chat.common.*;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
-import codeu.chat.util.store.StoreAccessor;
+import codeu.chat.util.store.UuidIndex;
 
 public final class View implements BasicView, SinglesView {
 
@@ -43,15 +43,37 @@ public final class View implements BasicView, SinglesView {
     this.model = model;
   }
 
+  // A search that matches messages in cold conversations brings them back and
+  // searches again, at most this many times.
+  private static final int WARM_SEARCHES = 3;
+
+  // No call locks the model. A call that looks up one record by its id reads
+  // it straight from the index, as records are never changed once they are
+  // in the model. A call that reads more than one thing runs as a model read
+  // so that everything it returns comes from the same version of the model,
+  // even while a writer is changing it.
+  //
+  // Calls that read messages first warm the conversations they are in, in
+  // case they have been moved out of memory.
 
   @Override
   public Collection<User> getUsers() {
-    return all(model.userById());
+    return model.read(new Model.Reader<Collection<User>>() {
+      @Override
+      public Collection<User> read() {
+        return all(model.userById().all());
+      }
+    });
   }
 
   @Override
   public Collection<ConversationHeader> getConversations() {
-    return all(model.conversationById());
+    return model.read(new Model.Reader<Collection<ConversationHeader>>() {
+      @Override
+      public Collection<ConversationHeader> read() {
+        return all(model.conversationById().all());
+      }
+    });
   }
 
   public ConversationPayload getConversationPayload(Uuid id) {
@@ -59,18 +81,97 @@ public final class View implements BasicView, SinglesView {
   }
 
   @Override
-  public Collection<ConversationPayload> getConversationPayloads(Collection<Uuid> ids) {
-    return intersect(model.conversationPayloadById(), ids);
+  public Collection<ConversationPayload> getConversationPayloads(final Collection<Uuid> ids) {
+    return model.read(new Model.Reader<Collection<ConversationPayload>>() {
+      @Override
+      public Collection<ConversationPayload> read() {
+        return intersect(model.conversationPayloadById(), ids);
+      }
+    });
   }
 
   @Override
-  public Collection<Message> getMessages(Collection<Uuid> ids) {
+  public Collection<Message> getMessages(final Collection<Uuid> ids) {
+    model.warmMessages(ids);
+    return model.read(new Model.Reader<Collection<Message>>() {
+      @Override
+      public Collection<Message> read() {
+        return findMessages(ids);
+      }
+    });
+  }
+
+  // The messages with the given ids that are in memory. Unlike getMessages
+  // this neither warms their conversations nor reads through Model.read, so
+  // it can be used inside a read, once the caller has warmed them.
+  Collection<Message> findMessages(Collection<Uuid> ids) {
     return intersect(model.messageById(), ids);
   }
 
+  @Override
+  public Collection<Message> getMessagePage(final Uuid conversation,
+                                            final Uuid from,
+                                            final Time at,
+                                            final boolean forward,
+                                            final int limit) {
+    model.warm(conversation);
+    return model.read(new Model.Reader<Collection<Message>>() {
+      @Override
+      public Collection<Message> read() {
+        return model.messagePage(conversation, from, at, forward, limit);
+      }
+    });
+  }
+
+  @Override
+  public Collection<Message> getMessagesByAuthor(final Uuid author,
+                                                 final Uuid from,
+                                                 final Time at,
+                                                 final boolean forward,
+                                                 final int limit) {
+    model.warmAuthor(author);
+    return model.read(new Model.Reader<Collection<Message>>() {
+      @Override
+      public Collection<Message> read() {
+        return model.authorPage(author, from, at, forward, limit);
+      }
+    });
+  }
+
+  @Override
+  public Collection<Message> searchMessages(Uuid conversation, final String query, final int limit) {
+
+    final Uuid in = Uuid.equals(conversation, Uuid.NULL) ? null : conversation;
+    final Collection<Uuid> cold = new ArrayList<>();
+
+    model.warm(in);
+
+    for (int search = 1; ; search++) {
+
+      final Collection<Message> found = model.read(new Model.Reader<Collection<Message>>() {
+        @Override
+        public Collection<Message> read() {
+          cold.clear();
+          return model.searchMessages(in, query, limit, cold);
+        }
+      });
+
+      if (cold.isEmpty() || search == WARM_SEARCHES) {
+        return found;
+      }
+
+      model.warmMessages(cold);
+    }
+  }
+
   @Override
   public Collection<Interests> getInterests() {
-    return all(model.interestsByUserId());
+    return model.read(new Model.Reader<Collection<Interests>>() {
+      @Override
+      public Collection<Interests> read() {
+        return all(model.interestsByUserId().all());
+      }
+    });
   }
 
   @Override
@@ -81,16 +182,25 @@ public final class View implements BasicView, SinglesView {
   }
 
   @Override
-  public User findUser(Uuid id) { return model.userById().first(id); }
+  public User findUser(Uuid id) {
+    return model.userById().first(id);
+  }
 
   @Override
-  public ConversationHeader findConversation(Uuid id) { return model.conversationById().first(id); }
+  public ConversationHeader findConversation(Uuid id) {
+    return model.conversationById().first(id);
+  }
 
   @Override
-  public Message findMessage(Uuid id) { return model.messageById().first(id); }
+  public Message findMessage(Uuid id) {
+    model.warm(model.conversationOf(id));
+    return model.messageById().first(id);
+  }
 
   @Override
-  public Interests findInterests(Uuid userid) { return model.interestsByUserId().first(userid); }
+  public Interests findInterests(Uuid userid) {
+    return model.interestsByUserId().first(userid);
+  }
 
   @Override
   public UserAccessLevel findUserAccessLevel(Uuid conversation, Uuid user) {
@@ -108,24 +218,22 @@ public final class View implements BasicView, SinglesView {
 
   @Override
   public AccessLevel getDefaultAccessLevel(Uuid conversationId) {
-    if (model.defaultAccessLevelsByConvId().first(conversationId) != null) {
-      return model.defaultAccessLevelsByConvId().first(conversationId).getAccessLevel();
-    }
-    return null;
+    final UserAccessLevel defaultAccess = model.defaultAccessLevelsByConvId().first(conversationId);
+    return defaultAccess == null ? null : defaultAccess.getAccessLevel();
   }
 
-  private static <S,T> Collection<T> all(StoreAccessor<S,T> store) {
+  private static <T> Collection<T> all(Iterable<T> values) {
 
     final Collection<T> all = new ArrayList<>();
 
-    for (final T value : store.all()) {
+    for (final T value : values) {
         all.add(value);
     }
 
     return all;
   }
 
-  private static <T> Collection<T> intersect(StoreAccessor<Uuid, T> store, Collection<Uuid> ids) {
+  private static <T> Collection<T> intersect(UuidIndex<T> store, Collection<Uuid> ids) {
 
     // Use a set to hold the found users as this will prevent duplicate ids from
     // yielding duplicates in the result.
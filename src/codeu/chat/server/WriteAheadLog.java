@@ -0,0 +1,882 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import codeu.chat.util.Crc32c;
+import codeu.chat.util.Logger;
+
+// WRITE AHEAD LOG
+//
+// Every change the server makes is appended to this log so that it can be
+// made again when the server starts. Each record is framed as
+//
+//   [int length][int crc][byte type][payload]
+//
+// where the length counts the type and the payload and the CRC-32C is of
+// the same bytes. The payload is written with the buffer serializers (see
+// LogRecords), so nothing in it has to be quoted or escaped.
+//
+// The log is a run of numbered segment files in one directory. Records are
+// always appended to the newest segment, and "roll" starts a new one so that
+// the segments before it can be deleted once a snapshot covers them.
+//
+// Appending takes no lock. Records go in a ring of slots made when the log
+// is opened. An appender claims the next sequence number with one atomic
+// add, frames its record straight into that slot and publishes it by
+// storing the sequence number in "published". The committer thread takes
+// the published slots in order, copies them into one direct buffer that it
+// reuses, writes that and, with FSYNC, forces it once. A slot can be claimed
+// again once the committer has copied it out, and an appender that finds
+// the ring full waits for that.
+//
+// How long an append waits depends on the durability (see
+// ServerConfig.Durability). With ASYNC it returns once the record is
+// published and the committer wakes every FLUSH_MS. Otherwise it wakes the
+// committer and waits for the batch its record went out in, so appends that
+// arrive while a batch is being written share the next one.
+//
+// A crash can leave the last record half written. Replay stops at the first
+// record that is short or whose CRC does not match and cuts the log off
+// there, so that new records are never appended after a torn one.
+//
+// Files are read a block of whole records at a time. Given a pool, replay
+// checks and decodes several blocks at once on its threads and hands what
+// they hold on in order on the thread that called it.
+final class WriteAheadLog implements Closeable {
+
+  private final static Logger.Log LOG = Logger.newLog(WriteAheadLog.class);
+
+  static final int HEADER_BYTES = 8;
+
+  // A length bigger than this can only be a torn or corrupt header.
+  static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+  private static final String PREFIX = "log-";
+  private static final String SUFFIX = ".wal";
+
+  private static final int FLUSH_MS = 100;
+
+  // The number of slots in the ring, which must be a power of two, and how
+  // big each one's buffer starts out. A slot's buffer grows to fit a bigger
+  // record, and goes back to SLOT_BYTES once it is written if it grew past
+  // MAX_SLOT_BYTES.
+  static final int RING_SLOTS = 4096;
+  private static final int SLOT_BYTES = 256;
+  private static final int MAX_SLOT_BYTES = 64 * 1024;
+
+  // Batches are copied into a direct buffer this big and written from it. A
+  // record that does not fit is written on its own.
+  private static final int WRITE_BYTES = 1024 * 1024;
+
+  // Files are read this much at a time, or more for a record that does not
+  // fit, and at most BLOCKS_AHEAD blocks are decoded ahead of the one being
+  // handed on.
+  private static final int BLOCK_BYTES = 1024 * 1024;
+  private static final int BLOCKS_AHEAD = 16;
+
+  // VISITOR
+  //
+  // Given each whole record in the log, in order. The payload starts at the
+  // buffer's position and ends at its limit.
+  interface Visitor {
+    void visit(byte type, ByteBuffer payload);
+  }
+
+  // DECODER
+  //
+  // Makes something of each whole record. With a pool, decoders run on many
+  // threads at once and out of order, so one must not change anything that
+  // is shared. The payload is only good until the decoder returns unless it
+  // is kept whole; it is a view of the block it was read in.
+  interface Decoder<T> {
+    T decode(byte type, ByteBuffer payload);
+  }
+
+  // HANDLER
+  //
+  // Given what the decoder made of each record, in the order of the log and
+  // always on the thread that is reading.
+  interface Handler<T> {
+    void handle(T record);
+  }
+
+  private final File directory;
+  private final ServerConfig.Durability durability;
+  private final Metrics metrics;
+
+  // The segment being written and its number. Only the committer writes to
+  // it, and only the committer and replay move it to another segment.
+  private FileChannel channel;
+  private volatile long writing;
+
+  // The ring. Slots are claimed in the order of their sequence numbers, and
+  // "published" holds the sequence number of what is in each slot once it
+  // is ready to be written. Every slot before "consumed" has been copied out
+  // by the committer.
+  private final Slot[] slots = new Slot[RING_SLOTS];
+  private final AtomicLongArray published = new AtomicLongArray(RING_SLOTS);
+  private final AtomicLong claimed = new AtomicLong();
+  private volatile long consumed = 0;
+
+  // Every slot before this one has been committed.
+  private volatile long durable = 0;
+
+  // The number of slots that were rolls rather than records.
+  private volatile long rolls = 0;
+
+  // Only the committer uses this.
+  private final ByteBuffer batch = ByteBuffer.allocateDirect(WRITE_BYTES);
+
+  // Appenders that wait for a commit wait on this. It is never taken to
+  // append. This is a lock rather than a synchronized block so that virtual
+  // threads waiting for a commit do not pin their carriers.
+  private final Lock lock = new ReentrantLock();
+  private final Condition committed = lock.newCondition();
+
+  // The newest segment, guarded by "rolling". Records appended now go in it
+  // once the committer gets to them.
+  private final Lock rolling = new ReentrantLock();
+  private long newest;
+
+  // Set once a commit fails. Nothing can be committed after it.
+  private volatile IOException failure = null;
+  private volatile boolean closed = false;
+
+  private final Thread committer;
+
+  WriteAheadLog(File directory, ServerConfig.Durability durability, Metrics metrics) throws IOException {
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create log directory " + directory);
+    }
+
+    this.directory = directory;
+    this.durability = durability;
+    this.metrics = metrics;
+
+    final List<Long> segments = segments(directory);
+    this.newest = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+    this.writing = newest;
+    this.channel = open(newest);
+
+    for (int i = 0; i < RING_SLOTS; i++) {
+      slots[i] = new Slot();
+      published.set(i, -1);
+    }
+
+    this.committer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        commitUntilClosed();
+      }
+    }, "write-ahead-log");
+    this.committer.setDaemon(true);
+    this.committer.start();
+  }
+
+  // APPEND
+  //
+  // Publish a record and, unless the log is ASYNC, wait until it has been
+  // committed. Throws if the record can never be committed.
+  void append(byte type, ByteBuffer payload) throws IOException {
+    awaitDurable(publish(type, payload));
+  }
+
+  // PUBLISH
+  //
+  // Put a record in the ring without waiting for it to be committed, and
+  // return what to give "awaitDurable" to wait for it. Records are written
+  // in the order they are published, so a caller whose records must be in
+  // the same order as its changes publishes while it holds whatever orders
+  // the changes and waits once it has let go. The payload is read from its
+  // position to its limit and is copied, so it can be changed once this
+  // returns.
+  long publish(byte type, ByteBuffer payload) throws IOException {
+
+    check();
+
+    final long sequence = claim();
+    final Slot slot = slots[slot(sequence)];
+
+    final int size = HEADER_BYTES + 1 + payload.remaining();
+    if (slot.record.capacity() < size) {
+      slot.record = ByteBuffer.allocate(size);
+    }
+    frame(type, payload, slot.record);
+    slot.roll = false;
+
+    release(sequence);
+
+    if (durability != ServerConfig.Durability.ASYNC) {
+      LockSupport.unpark(committer);
+    }
+
+    return sequence + 1;
+  }
+
+  // AWAIT DURABLE
+  //
+  // Unless the log is ASYNC, wait until the record that "publish" returned
+  // the ticket for has been committed. Throws if it never can be.
+  void awaitDurable(long ticket) throws IOException {
+    if (durability != ServerConfig.Durability.ASYNC) {
+      awaitCommitted(ticket);
+    }
+  }
+
+  // FLUSH
+  //
+  // Wait until every record appended so far has been committed.
+  void flush() throws IOException {
+    final long sequence = claimed.get();
+    LockSupport.unpark(committer);
+    awaitCommitted(sequence);
+  }
+
+  // The number of records appended since the log was opened.
+  long appended() {
+    return claimed.get() - rolls;
+  }
+
+  // ROLL
+  //
+  // Start a new segment and return its number. Every record appended before
+  // this goes in an earlier segment and every record appended after goes in
+  // this one or a later one. The file is made straight away so that it is
+  // the newest segment on restart even if nothing was written to it.
+  long roll() throws IOException {
+    rolling.lock();
+    try {
+      check();
+      final File next = segment(newest + 1);
+      if (!next.exists() && !next.createNewFile()) {
+        throw new IOException("Cannot create log segment " + next);
+      }
+      newest = newest + 1;
+
+      // The slot tells the committer to move on to the next segment.
+      final long sequence = claim();
+      slots[slot(sequence)].roll = true;
+      rolls++;
+      release(sequence);
+      LockSupport.unpark(committer);
+
+      return newest;
+    } finally {
+      rolling.unlock();
+    }
+  }
+
+  // DELETE BEFORE
+  //
+  // Delete the segments numbered below "segment". The segment still being
+  // written is kept, and goes on a later call.
+  void deleteBefore(long segment) {
+    for (final long number : segments(directory)) {
+      if (number < segment && number < writing) {
+        final File file = segment(number);
+        if (file.delete()) {
+          LOG.info("Deleted log segment %s", file);
+        } else {
+          LOG.warning("Failed to delete log segment %s", file);
+        }
+      }
+    }
+  }
+
+  // REPLAY
+  //
+  // Give every whole record in the segments numbered "from" and up to the
+  // visitor, stopping at the first torn one. The log is cut off there: the
+  // torn segment is truncated, any after it are deleted and new records are
+  // appended to it. Returns the number of records. This must be run before
+  // anything is appended.
+  int replay(long from, Visitor visitor) throws IOException {
+    final Visiting visiting = new Visiting(visitor);
+    return replay(from, visiting, visiting, null);
+  }
+
+  // Replay decoding records on the pool's threads, or on this one if the
+  // pool is null, and handing them on here.
+  <T> int replay(long from, Decoder<T> decoder, Handler<T> handler, ExecutorService pool) throws IOException {
+
+    final Counter<T> counter = new Counter<>(handler);
+    boolean torn = false;
+
+    for (final long number : segments(directory)) {
+
+      if (number < from) {
+        continue;
+      }
+
+      final File file = segment(number);
+
+      if (torn) {
+        LOG.warning("Deleting log segment %s, which comes after a torn record.", file);
+        if (!file.delete()) {
+          throw new IOException("Cannot delete log segment " + file);
+        }
+        continue;
+      }
+
+      try (final FileChannel in = new RandomAccessFile(file, "rw").getChannel()) {
+
+        final long size = in.size();
+        final long end = read(in, size, decoder, counter, pool);
+
+        if (end < size) {
+          LOG.warning("Torn record at byte %d of %s. Dropping the last %d bytes.",
+                      end, file, size - end);
+          in.truncate(end);
+          torn = true;
+        }
+      }
+
+      if (torn && number == writing) {
+        channel.position(channel.size());
+      } else if (torn) {
+        useSegment(number);
+        rolling.lock();
+        try {
+          newest = number;
+        } finally {
+          rolling.unlock();
+        }
+      }
+    }
+
+    return counter.records;
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    closed = true;
+    LockSupport.unpark(committer);
+
+    try {
+      committer.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    channel.close();
+  }
+
+  // FRAME
+  //
+  // The record as it goes in the file, ready to be written.
+  static ByteBuffer frame(byte type, ByteBuffer payload) {
+    final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + 1 + payload.remaining());
+    frame(type, payload, record);
+    return record;
+  }
+
+  // Frame the record at the start of a buffer that is big enough for it,
+  // leaving the buffer ready to be written.
+  private static void frame(byte type, ByteBuffer payload, ByteBuffer record) {
+
+    final int length = 1 + payload.remaining();
+
+    record.clear();
+    record.limit(HEADER_BYTES + length);
+    record.position(HEADER_BYTES);
+    record.put(type);
+    record.put(payload.duplicate());
+
+    final Crc32c crc = new Crc32c();
+    record.position(HEADER_BYTES);
+    crc.update(record);
+
+    record.putInt(0, length);
+    record.putInt(4, (int) crc.getValue());
+    record.flip();
+  }
+
+  // READ
+  //
+  // Give every whole record in a file of framed records to the visitor, from
+  // the start until the end of the file or the first torn record. Returns
+  // where the last whole record ends.
+  static long read(FileChannel in, Visitor visitor) throws IOException {
+    final Visiting visiting = new Visiting(visitor);
+    return read(in, in.size(), visiting, visiting, null);
+  }
+
+  // Read the records in the first "size" bytes of the file, decoding them on
+  // the pool's threads, or on this one if the pool is null, and handing them
+  // on here.
+  //
+  // Only the lengths in the headers are read here, to find where each block
+  // of whole records ends. The CRCs are checked where the block is decoded,
+  // and a block with a bad one stops at it and ends the read.
+  static <T> long read(FileChannel in,
+                       long size,
+                       final Decoder<T> decoder,
+                       Handler<T> handler,
+                       ExecutorService pool) throws IOException {
+
+    final Deque<FutureTask<Block<T>>> decoding = new ArrayDeque<>();
+
+    long position = 0;
+    long end = 0;
+    int need = BLOCK_BYTES;
+
+    try {
+      while (position < size) {
+
+        final ByteBuffer block = ByteBuffer.allocate((int) Math.min(need, size - position));
+        if (!readFully(in, block, position)) {
+          break;
+        }
+        block.flip();
+
+        // Find where the last whole record in the block ends.
+        int whole = 0;
+        boolean bad = false;
+        boolean grow = false;
+        while (whole + HEADER_BYTES <= block.limit()) {
+          final int length = block.getInt(whole);
+          if (length < 1 || length > MAX_RECORD_BYTES) {
+            bad = true;
+            break;
+          }
+          if (whole + HEADER_BYTES + length > block.limit()) {
+            if (whole == 0 && position + HEADER_BYTES + length <= size) {
+              // Not even one record fits. Read again with room for it.
+              need = HEADER_BYTES + length;
+              grow = true;
+            }
+            break;
+          }
+          whole += HEADER_BYTES + length;
+        }
+
+        if (whole == 0 && grow) {
+          continue;
+        }
+        if (whole == 0) {
+          break;
+        }
+
+        block.limit(whole);
+        need = BLOCK_BYTES;
+
+        final long at = position;
+        final FutureTask<Block<T>> task = new FutureTask<>(new Callable<Block<T>>() {
+          @Override
+          public Block<T> call() {
+            return decode(block, at, decoder);
+          }
+        });
+
+        if (pool == null) {
+          task.run();
+        } else {
+          pool.execute(task);
+        }
+        decoding.add(task);
+
+        while (decoding.size() > (pool == null ? 0 : BLOCKS_AHEAD)) {
+          final Block<T> decoded = take(decoding.remove());
+          end = hand(decoded, handler);
+          if (!decoded.whole) {
+            return end;
+          }
+        }
+
+        position += whole;
+
+        if (bad) {
+          break;
+        }
+      }
+
+      while (!decoding.isEmpty()) {
+        final Block<T> decoded = take(decoding.remove());
+        end = hand(decoded, handler);
+        if (!decoded.whole) {
+          return end;
+        }
+      }
+
+      return end;
+
+    } finally {
+      for (final FutureTask<Block<T>> task : decoding) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  // COMMIT UNTIL CLOSED
+  //
+  // The committer thread. Copy out every slot that has been published, in
+  // order, write them, force them if need be, and let the appenders that
+  // were waiting for them go. Once closed, whatever is still in the ring is
+  // committed before the thread ends.
+  private void commitUntilClosed() {
+
+    while (true) {
+
+      // ASYNC appends do not wake the committer, so it gathers whatever
+      // comes in over FLUSH_MS. Flushing, rolling or closing cuts the wait
+      // short.
+      if (durability == ServerConfig.Durability.ASYNC && !closed) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_MS));
+      }
+
+      long next = consumed;
+      while (!isPublished(next)) {
+        if (closed && claimed.get() == next) {
+          return;
+        }
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_MS));
+      }
+
+      final long start = System.nanoTime();
+      final long last = next + RING_SLOTS;
+      int records = 0;
+      IOException failed = null;
+
+      try {
+        batch.clear();
+
+        while (next < last && isPublished(next)) {
+
+          final Slot slot = slots[slot(next)];
+
+          // A roll splits the batch. What comes before it goes in the old
+          // segment and what comes after in the new one.
+          if (slot.roll) {
+            writeBatch();
+            useSegment(writing + 1);
+          } else {
+            if (slot.record.remaining() > batch.remaining()) {
+              writeBatch();
+            }
+            if (slot.record.remaining() > batch.remaining()) {
+              writeFully(slot.record);
+            } else {
+              batch.put(slot.record);
+            }
+            if (slot.record.capacity() > MAX_SLOT_BYTES) {
+              slot.record = ByteBuffer.allocate(SLOT_BYTES);
+            }
+            records++;
+          }
+
+          next++;
+          consumed = next;
+        }
+
+        writeBatch();
+
+        if (durability == ServerConfig.Durability.FSYNC) {
+          channel.force(false);
+        }
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to commit records to %s", segment(writing));
+        failed = ex;
+      }
+
+      if (records > 0) {
+        metrics.logCommit(System.nanoTime() - start, records);
+      }
+
+      if (failed == null) {
+        durable = next;
+      } else {
+        failure = failed;
+      }
+
+      lock.lock();
+      try {
+        committed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+
+      if (failed != null) {
+        return;
+      }
+    }
+  }
+
+  // Write what has been copied into the batch and empty it.
+  private void writeBatch() throws IOException {
+    batch.flip();
+    writeFully(batch);
+    batch.clear();
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  // Close the segment being written, forcing it first unless the log is
+  // ASYNC, and append to the given one from now on.
+  private void useSegment(long number) throws IOException {
+
+    if (durability != ServerConfig.Durability.ASYNC) {
+      channel.force(false);
+    }
+    channel.close();
+
+    channel = open(number);
+    writing = number;
+  }
+
+  // Open a segment to append to it.
+  private FileChannel open(long number) throws IOException {
+    final FileChannel opened = new RandomAccessFile(segment(number), "rw").getChannel();
+    opened.position(opened.size());
+    return opened;
+  }
+
+  private File segment(long number) {
+    return new File(directory, PREFIX + number + SUFFIX);
+  }
+
+  // The numbers of the segments in the directory, lowest first.
+  private static List<Long> segments(File directory) {
+
+    final List<Long> numbers = new ArrayList<>();
+    final String[] names = directory.list();
+
+    if (names != null) {
+      for (final String name : names) {
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+          try {
+            numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+          } catch (NumberFormatException ex) {
+            LOG.warning("Ignoring %s in the log directory", name);
+          }
+        }
+      }
+    }
+
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  // CHECK
+  //
+  // Throws if nothing more can be committed.
+  void check() throws IOException {
+    if (failure != null) {
+      throw new IOException("Write ahead log in " + directory + " failed", failure);
+    }
+  }
+
+  // Claim the next slot in the ring, waiting while it still holds a record
+  // the committer has not copied out.
+  private long claim() throws IOException {
+
+    final long sequence = claimed.getAndIncrement();
+
+    while (sequence - consumed >= RING_SLOTS) {
+      // Nothing is committed after a failure, so the slot can be left empty.
+      check();
+      LockSupport.unpark(committer);
+      Thread.yield();
+    }
+
+    return sequence;
+  }
+
+  // Let the committer have a slot that has been filled.
+  private void release(long sequence) {
+    published.set(slot(sequence), sequence);
+  }
+
+  private boolean isPublished(long sequence) {
+    return published.get(slot(sequence)) == sequence;
+  }
+
+  // Wait until every slot before "sequence" has been committed.
+  private void awaitCommitted(long sequence) throws IOException {
+
+    if (durable >= sequence) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      while (durable < sequence) {
+        check();
+        committed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static int slot(long sequence) {
+    return (int) sequence & (RING_SLOTS - 1);
+  }
+
+  // Fill the buffer from the file, or return false if the file ends first.
+  private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      final int read = in.read(buffer, position);
+      if (read < 0) {
+        return false;
+      }
+      position += read;
+    }
+    return true;
+  }
+
+  // Check and decode the records in a block, stopping at the first whose
+  // CRC does not match. "from" is where the block starts in the file.
+  private static <T> Block<T> decode(ByteBuffer block, long from, Decoder<T> decoder) {
+
+    final Block<T> decoded = new Block<>();
+    final Crc32c crc = new Crc32c();
+
+    int at = 0;
+
+    while (at < block.limit()) {
+
+      final int length = block.getInt(at);
+      final int expected = block.getInt(at + 4);
+
+      final ByteBuffer body = block.duplicate();
+      body.limit(at + HEADER_BYTES + length);
+      body.position(at + HEADER_BYTES);
+
+      crc.reset();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != expected) {
+        decoded.whole = false;
+        break;
+      }
+
+      final byte type = body.get();
+      decoded.records.add(decoder.decode(type, body.slice()));
+
+      at += HEADER_BYTES + length;
+    }
+
+    decoded.end = from + at;
+    return decoded;
+  }
+
+  // Hand on what was decoded from a block and return where it ends.
+  private static <T> long hand(Block<T> decoded, Handler<T> handler) {
+    for (final T record : decoded.records) {
+      handler.handle(record);
+    }
+    return decoded.end;
+  }
+
+  // Wait for a block to be decoded. What the decoder throws is thrown here.
+  private static <T> Block<T> take(FutureTask<Block<T>> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading the log");
+    } catch (ExecutionException ex) {
+      final Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  // A slot in the ring: a framed record ready to be written, or a roll.
+  private static final class Slot {
+    ByteBuffer record = ByteBuffer.allocate(SLOT_BYTES);
+    boolean roll;
+  }
+
+  // What was decoded from a block of records, and where the last whole one
+  // ends. A block that is not whole stopped at a record whose CRC did not
+  // match.
+  private static final class Block<T> {
+    final List<T> records = new ArrayList<>();
+    long end;
+    boolean whole = true;
+  }
+
+  // Passes records on to another handler, counting them.
+  private static final class Counter<T> implements Handler<T> {
+
+    private final Handler<T> handler;
+    private int records = 0;
+
+    Counter(Handler<T> handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public void handle(T record) {
+      handler.handle(record);
+      records++;
+    }
+  }
+
+  // Gives each record to a visitor as it is decoded. Only ever read without
+  // a pool, so that the visitor sees the records in order.
+  private static final class Visiting implements Decoder<Void>, Handler<Void> {
+
+    private final Visitor visitor;
+
+    Visiting(Visitor visitor) {
+      this.visitor = visitor;
+    }
+
+    @Override
+    public Void decode(byte type, ByteBuffer payload) {
+      visitor.visit(type, payload);
+      return null;
+    }
+
+    @Override
+    public void handle(Void record) { }
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// BODY ARENA
+//
+// Keeps message bodies outside of the Java heap. Bodies are appended one
+// after another into large segments, either direct buffers or memory-mapped
+// files, and are found again by the position "append" gave back. The garbage
+// collector sees one buffer per segment instead of one String per message.
+//
+// The bytes kept are the ones Serializers.STRING would write for the body, so
+// a body can be sent to a client by copying it out of the arena without ever
+// turning it back into a String.
+//
+// Bodies are never removed. There can be one writer at a time and any number
+// of readers at the same time as the writer.
+public final class BodyArena {
+
+  private final static Logger.Log LOG = Logger.newLog(BodyArena.class);
+
+  public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  private final int segmentBytes;
+
+  // Where to keep mapped segment files, or null to use direct buffers.
+  private final File directory;
+
+  // Grown by copying so readers can use whatever array they see.
+  private volatile ByteBuffer[] segments = new ByteBuffer[0];
+
+  // The writer's view of the last segment.
+  private ByteBuffer current = null;
+
+  // The number of body bytes stored. It is written after every append and
+  // read before every read.
+  private volatile long used = 0;
+
+  private BodyArena(int segmentBytes, File directory) {
+    this.segmentBytes = segmentBytes;
+    this.directory = directory;
+  }
+
+  // DIRECT
+  //
+  // An arena made of direct buffers.
+  public static BodyArena direct(int segmentBytes) {
+    return new BodyArena(segmentBytes, null);
+  }
+
+  // MAPPED
+  //
+  // An arena made of memory-mapped files in the given directory. The operating
+  // system can page bodies that are not being read out to the files, so the
+  // arena can be larger than memory. The files only live as long as the
+  // server; they are not used to recover bodies after a restart.
+  public static BodyArena mapped(File directory, int segmentBytes) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create arena directory " + directory);
+    }
+    return new BodyArena(segmentBytes, directory);
+  }
+
+  // APPEND
+  //
+  // Store the bytes and return the position to find them by. A body larger
+  // than a segment gets a segment of its own.
+  public synchronized long append(byte[] bytes) throws IOException {
+
+    if (current == null || current.remaining() < bytes.length) {
+      current = newSegment(Math.max(segmentBytes, bytes.length));
+    }
+
+    final long position = ((long) (segments.length - 1) << 32) | current.position();
+
+    current.put(bytes);
+    used = used + bytes.length;
+
+    return position;
+  }
+
+  public String decode(long position, int length) {
+    return new String(read(position, length));
+  }
+
+  public byte[] read(long position, int length) {
+    final byte[] bytes = new byte[length];
+    view(position, length).get(bytes);
+    return bytes;
+  }
+
+  public void write(long position, int length, OutputStream out) throws IOException {
+    out.write(read(position, length));
+  }
+
+  // Copy the bytes straight into the buffer without making an array first.
+  public void write(long position, int length, ByteBuffer out) {
+    out.put(view(position, length));
+  }
+
+  public long bytes() {
+    return used;
+  }
+
+  private ByteBuffer view(long position, int length) {
+
+    // Besides catching a bad length, reading "used" here is what makes the
+    // bytes visible to a reader that was given the position without a lock.
+    if (used < length) {
+      throw new IllegalArgumentException("No body of " + length + " bytes at " + position);
+    }
+
+    final ByteBuffer view = segments[(int) (position >>> 32)].duplicate();
+    final int offset = (int) position;
+
+    view.clear();
+    view.position(offset);
+    view.limit(offset + length);
+
+    return view;
+  }
+
+  private ByteBuffer newSegment(int bytes) throws IOException {
+
+    final ByteBuffer segment = directory == null ?
+        ByteBuffer.allocateDirect(bytes) :
+        map(new File(directory, "bodies-" + segments.length + ".arena"), bytes);
+
+    final ByteBuffer[] grown = new ByteBuffer[segments.length + 1];
+    System.arraycopy(segments, 0, grown, 0, segments.length);
+    grown[segments.length] = segment;
+    segments = grown;
+
+    LOG.info("Arena segment %d (%d bytes) added.", segments.length - 1, bytes);
+
+    return segment.duplicate();
+  }
+
+  private static ByteBuffer map(File file, int bytes) throws IOException {
+
+    // Whatever was left from an earlier run is thrown away.
+    file.deleteOnExit();
+
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      // The mapping stays valid after the file is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.nio.ByteBuffer;
+
+// BUFFER SERIALIZER
+//
+// A serializer that works on a ByteBuffer (heap or direct) rather than on a
+// stream. The bytes are exactly the same as the stream Serializer for the
+// same type, so either one can read what the other wrote.
+//
+// The size of a value is known before it is written. This lets a caller make
+// one buffer big enough for a whole response and then write it all at once.
+// Writing to a buffer that is too small, or reading past the end of one,
+// throws the usual BufferOverflowException or BufferUnderflowException.
+public interface BufferSerializer<T> {
+
+  // The exact number of bytes that "write" will put in the buffer.
+  int size(T value);
+
+  void write(ByteBuffer out, T value);
+
+  T read(ByteBuffer in);
+
+}
@@ -0,0 +1,266 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+
+// BUFFER SERIALIZERS
+//
+// The ByteBuffer versions of the serializers in Serializers. Every one of them
+// writes the same bytes as its stream version.
+//
+// Plain ints and longs do not have a serializer of their own. Codecs call
+// ByteBuffer.putInt/getInt and putLong/getLong directly, which are big-endian
+// just like the stream versions and do not box. INTEGER and LONG are only
+// here for composing with collection() and nullable().
+public final class BufferSerializers {
+
+  public static final int INTEGER_BYTES = 4;
+  public static final int LONG_BYTES = 8;
+
+  // Strings are sent using the platform's default charset (see
+  // Serializers.STRING). When that is UTF-8 strings are measured and written
+  // a character at a time without encoding them into a temporary array.
+  private static final Charset CHARSET = Charset.defaultCharset();
+  private static final boolean UTF_8 = "UTF-8".equals(CHARSET.name());
+
+  public static final BufferSerializer<Integer> INTEGER = new BufferSerializer<Integer>() {
+
+    @Override
+    public int size(Integer value) {
+      return INTEGER_BYTES;
+    }
+
+    @Override
+    public void write(ByteBuffer out, Integer value) {
+      out.putInt(value);
+    }
+
+    @Override
+    public Integer read(ByteBuffer in) {
+      return in.getInt();
+    }
+  };
+
+  public static final BufferSerializer<Long> LONG = new BufferSerializer<Long>() {
+
+    @Override
+    public int size(Long value) {
+      return LONG_BYTES;
+    }
+
+    @Override
+    public void write(ByteBuffer out, Long value) {
+      out.putLong(value);
+    }
+
+    @Override
+    public Long read(ByteBuffer in) {
+      return in.getLong();
+    }
+  };
+
+  public static final BufferSerializer<byte[]> BYTES = new BufferSerializer<byte[]>() {
+
+    @Override
+    public int size(byte[] value) {
+      return INTEGER_BYTES + value.length;
+    }
+
+    @Override
+    public void write(ByteBuffer out, byte[] value) {
+      out.putInt(value.length);
+      out.put(value);
+    }
+
+    @Override
+    public byte[] read(ByteBuffer in) {
+      final byte[] value = new byte[checkLength(in)];
+      in.get(value);
+      return value;
+    }
+  };
+
+  public static final BufferSerializer<String> STRING = new BufferSerializer<String>() {
+
+    @Override
+    public int size(String value) {
+      return INTEGER_BYTES + (UTF_8 ? utf8Length(value) : value.getBytes().length);
+    }
+
+    @Override
+    public void write(ByteBuffer out, String value) {
+      if (UTF_8) {
+        out.putInt(utf8Length(value));
+        putUtf8(out, value);
+      } else {
+        BYTES.write(out, value.getBytes());
+      }
+    }
+
+    @Override
+    public String read(ByteBuffer in) {
+
+      final int length = checkLength(in);
+
+      if (in.hasArray()) {
+        // Decode straight out of the buffer's own array.
+        final String value = new String(in.array(), in.arrayOffset() + in.position(), length, CHARSET);
+        in.position(in.position() + length);
+        return value;
+      }
+
+      final byte[] bytes = new byte[length];
+      in.get(bytes);
+      return new String(bytes, CHARSET);
+    }
+  };
+
+  public static <T> BufferSerializer<Collection<T>> collection(final BufferSerializer<T> serializer) {
+
+    return new BufferSerializer<Collection<T>>() {
+
+      @Override
+      public int size(Collection<T> value) {
+        int size = INTEGER_BYTES;
+        for (final T x : value) {
+          size += serializer.size(x);
+        }
+        return size;
+      }
+
+      @Override
+      public void write(ByteBuffer out, Collection<T> value) {
+        out.putInt(value.size());
+        for (final T x : value) {
+          serializer.write(out, x);
+        }
+      }
+
+      @Override
+      public Collection<T> read(ByteBuffer in) {
+        final int size = in.getInt();
+        if (size < 0 || size > in.remaining()) {
+          // Every value takes at least a byte.
+          throw new IllegalArgumentException(String.format("Collection of %d values rejected", size));
+        }
+        final Collection<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(serializer.read(in));
+        }
+        return list;
+      }
+    };
+  }
+
+  public static <T> BufferSerializer<T> nullable(final BufferSerializer<T> serializer) {
+
+    final byte NO_VALUE = (byte) 0x00;
+    final byte YES_VALUE = (byte) 0xFF;
+
+    return new BufferSerializer<T>() {
+
+      @Override
+      public int size(T value) {
+        return value == null ? 1 : 1 + serializer.size(value);
+      }
+
+      @Override
+      public void write(ByteBuffer out, T value) {
+        if (value == null) {
+          out.put(NO_VALUE);
+        } else {
+          out.put(YES_VALUE);
+          serializer.write(out, value);
+        }
+      }
+
+      @Override
+      public T read(ByteBuffer in) {
+        return in.get() == NO_VALUE ? null : serializer.read(in);
+      }
+    };
+  }
+
+  private static int checkLength(ByteBuffer in) {
+
+    final int length = in.getInt();
+
+    if (length < 0 || length > Serializers.MAX_BYTES) {
+      throw new IllegalArgumentException(String.format("Byte array of %d bytes rejected", length));
+    }
+
+    return length;
+  }
+
+  // The number of bytes String.getBytes would give for UTF-8. A surrogate
+  // without its other half is replaced with a single '?' just as the encoder
+  // does.
+  private static int utf8Length(String value) {
+
+    int length = 0;
+
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < value.length() &&
+                 Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i += 1;
+      } else if (Character.isSurrogate(c)) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+
+    return length;
+  }
+
+  private static void putUtf8(ByteBuffer out, String value) {
+
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        out.put((byte) c);
+      } else if (c < 0x800) {
+        out.put((byte) (0xC0 | (c >> 6)));
+        out.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < value.length() &&
+                 Character.isLowSurrogate(value.charAt(i + 1))) {
+        final int point = Character.toCodePoint(c, value.charAt(i + 1));
+        out.put((byte) (0xF0 | (point >> 18)));
+        out.put((byte) (0x80 | ((point >> 12) & 0x3F)));
+        out.put((byte) (0x80 | ((point >> 6) & 0x3F)));
+        out.put((byte) (0x80 | (point & 0x3F)));
+        i += 1;
+      } else if (Character.isSurrogate(c)) {
+        out.put((byte) '?');
+      } else {
+        out.put((byte) (0xE0 | (c >> 12)));
+        out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        out.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+// CRC32C
+//
+// The CRC-32C (Castagnoli) checksum, which catches more of the errors that
+// disks make than the CRC-32 in java.util.zip. The JDK only has a CRC32C class
+// from Java 9, so this is the usual table-driven version, a byte at a time.
+public final class Crc32c implements Checksum {
+
+  // The Castagnoli polynomial, bit reversed.
+  private static final int POLYNOMIAL = 0x82F63B78;
+
+  private static final int[] TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < TABLE.length; i++) {
+      int crc = i;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+      }
+      TABLE[i] = crc;
+    }
+  }
+
+  private int crc = 0xFFFFFFFF;
+
+  @Override
+  public void update(int b) {
+    crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+  }
+
+  @Override
+  public void update(byte[] bytes, int offset, int length) {
+    int value = crc;
+    for (int i = offset; i < offset + length; i++) {
+      value = (value >>> 8) ^ TABLE[(value ^ bytes[i]) & 0xFF];
+    }
+    crc = value;
+  }
+
+  // Add the bytes between the buffer's position and its limit. The position
+  // ends up at the limit.
+  public void update(ByteBuffer bytes) {
+    if (bytes.hasArray()) {
+      update(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+      bytes.position(bytes.limit());
+      return;
+    }
+    int value = crc;
+    while (bytes.hasRemaining()) {
+      value = (value >>> 8) ^ TABLE[(value ^ bytes.get()) & 0xFF];
+    }
+    crc = value;
+  }
+
+  @Override
+  public long getValue() {
+    return ~crc & 0xFFFFFFFFL;
+  }
+
+  @Override
+  public void reset() {
+    crc = 0xFFFFFFFF;
+  }
+}
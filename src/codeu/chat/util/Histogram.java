@@ -0,0 +1,132 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// HISTOGRAM
+//
+// Counts values (e.g. latencies in microseconds) into buckets so that
+// percentiles can be read back without keeping every value. Buckets grow
+// with the value the way an HDR histogram's do: each power of two is split
+// into eight buckets, so any value is reported within 1/8 of what it was.
+//
+// Recording is a few atomic adds and never locks or allocates, so it is cheap
+// enough to leave on for every request. Reading while others record gives a
+// view that may be a few values behind, which is fine for metrics.
+public final class Histogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  // Values above this are counted as this. 2^36 microseconds is about 19 hours.
+  private static final int MAX_EXPONENT = 36;
+  public static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+  private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+
+    final long clamped = Math.max(0, Math.min(MAX_VALUE, value));
+
+    buckets.incrementAndGet(bucketOf(clamped));
+    count.incrementAndGet();
+    sum.addAndGet(clamped);
+
+    long seen = max.get();
+    while (clamped > seen && !max.compareAndSet(seen, clamped)) {
+      seen = max.get();
+    }
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long sum() {
+    return sum.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public long mean() {
+    final long count = count();
+    return count == 0 ? 0 : sum() / count;
+  }
+
+  // PERCENTILE
+  //
+  // The smallest value that at least the given fraction (0 to 1) of the
+  // recorded values are at or below, rounded up to the top of its bucket.
+  // Returns zero if nothing has been recorded.
+  public long percentile(double fraction) {
+
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += buckets.get(i);
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(max(), highestIn(i));
+      }
+    }
+
+    return max();
+  }
+
+  // Values below SUB_BUCKETS get a bucket each. Above that the top SUB_BITS
+  // bits under the highest set bit pick one of the power's buckets.
+  private static int bucketOf(long value) {
+
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long highestIn(int bucket) {
+
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    final long sub = bucket % SUB_BUCKETS;
+    final long lowest = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+
+    return lowest + (1L << (exponent - SUB_BITS)) - 1;
+  }
+}
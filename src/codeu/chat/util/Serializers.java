@@ -14,6 +14,7 @@
 
 package codeu.chat.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -22,6 +23,11 @@ import java.util.Collection;
 
 public final class Serializers {
 
+  // The largest byte array (or string) that will be read. A length beyond this
+  // is taken to be a broken or hostile peer and is rejected before anything
+  // is allocated for it.
+  public static final int MAX_BYTES = 16 * 1024 * 1024;
+
   public static final Serializer<Boolean> BOOLEAN = new Serializer<Boolean>() {
 
     @Override
@@ -40,10 +46,14 @@ public final class Serializers {
     @Override
     public void write(OutputStream out, Integer value) throws IOException {
 
-      for (int i = 24; i >= 0; i -= 8) {
-        out.write(0xFF & (value >>> i));
+      final byte[] bytes = new byte[4];
+
+      for (int i = 0; i < 4; i++) {
+        bytes[i] = (byte)(value >>> (24 - 8 * i));
       }
 
+      out.write(bytes);
+
     }
 
     @Override
@@ -52,7 +62,7 @@ public final class Serializers {
       int value = 0;
 
       for (int i = 0; i < 4; i++) {
-        value = (value << 8) | in.read();
+        value = (value << 8) | readByte(in);
       }
 
       return value;
@@ -65,10 +75,14 @@ public final class Serializers {
     @Override
     public void write(OutputStream out, Long value) throws IOException {
 
-      for (int i = 56; i >= 0; i -= 8) {
-        out.write((int)(0xFF & (value >>> i)));
+      final byte[] bytes = new byte[8];
+
+      for (int i = 0; i < 8; i++) {
+        bytes[i] = (byte)(value >>> (56 - 8 * i));
       }
 
+      out.write(bytes);
+
     }
 
     @Override
@@ -77,7 +91,7 @@ public final class Serializers {
       long value = 0;
 
       for (int i = 0; i < 8; i++) {
-        value = (value << 8) | in.read();
+        value = (value << 8) | readByte(in);
       }
 
       return value;
@@ -99,10 +113,19 @@ public final class Serializers {
     public byte[] read(InputStream input) throws IOException {
 
       final int length = INTEGER.read(input);
+
+      if (length < 0 || length > MAX_BYTES) {
+        throw new IOException(String.format("Byte array of %d bytes rejected", length));
+      }
+
       final byte[] array = new byte[length];
 
-      for (int i = 0; i < length; i++) {
-        array[i] = (byte)input.read();
+      for (int read = 0; read < length; ) {
+        final int count = input.read(array, read, length - read);
+        if (count < 0) {
+          throw new EOFException();
+        }
+        read += count;
       }
 
       return array;
@@ -142,7 +165,12 @@ public final class Serializers {
       @Override
       public Collection<T> read(InputStream in) throws IOException {
         final int size = INTEGER.read(in);
-        Collection<T> list = new ArrayList<>(size);
+        if (size < 0) {
+          throw new IOException(String.format("Collection of %d values rejected", size));
+        }
+        // Every value takes at least a byte so do not trust the size further
+        // than the amount of data that has actually arrived.
+        Collection<T> list = new ArrayList<>(Math.min(size, 1024));
         for (int i = 0; i < size; i++) {
           list.add(serializer.read(in));
         }
@@ -174,5 +202,14 @@ public final class Serializers {
       }
     };
   }
-}
 
+  // Read a single byte, failing if the stream has ended rather than letting
+  // the end of the stream be read as data.
+  private static int readByte(InputStream in) throws IOException {
+    final int value = in.read();
+    if (value < 0) {
+      throw new EOFException();
+    }
+    return value;
+  }
+}
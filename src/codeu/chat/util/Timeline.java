@@ -14,9 +14,15 @@
 
 package codeu.chat.util;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 // TIMELINE
 //
@@ -24,83 +30,112 @@ import java.util.concurrent.PriorityBlockingQueue;
 // when work needs to be ordered by time. The timeline manages its own threads
 // and there is no way to know outside of the code that is executed when the
 // code has been executed.
+//
+// Work that is due now skips the timer altogether and goes straight onto the
+// "todo" queue that the executor thread runs from. Work that is due later is
+// kept on a hashed timing wheel: a ring of buckets, one per tick, where a
+// timer goes in the bucket for the tick it is due on. A timer that is due
+// more than one turn of the wheel away waits in its bucket until the wheel
+// comes round to it on the right turn. Adding a timer costs the same no
+// matter how many there are.
+//
+// The wheel thread sleeps until the next timer is due. A new timer only wakes
+// it when the timer is due before then, so the thread is not woken for every
+// request the way an interrupt on every schedule call would.
 public final class Timeline {
 
   private final static Logger.Log LOG = Logger.newLog(Timeline.class);
 
-  private static final class Event implements Comparable<Event> {
+  private static final long DEFAULT_TICK_MS = 10;
+  private static final int DEFAULT_WHEEL_SIZE = 512;  // a turn is ~5 seconds
 
-    public final long time;
+  private static final class Event {
+
+    public final long tick;
     public final Runnable callback;
 
-    public Event(long time, Runnable callback) {
-      this.time = time;
+    public Event(long tick, Runnable callback) {
+      this.tick = tick;
       this.callback = callback;
     }
+  }
 
+  // Used to wake the executor when it is time to stop.
+  private static final Runnable NOTHING = new Runnable() {
     @Override
-    public int compareTo(Event other) {
-      return Long.compare(time, other.time);
-    }
-  }
+    public void run() { }
+  };
 
-  private final BlockingQueue<Event> backlog = new PriorityBlockingQueue<>();
+  private final long tickMs;
+  private final int mask;
+
+  // Only the wheel thread touches the buckets. Other threads hand new timers
+  // over through "incoming".
+  private final List<List<Event>> wheel = new ArrayList<>();
+  private final Queue<Event> incoming = new ConcurrentLinkedQueue<>();
   private final BlockingQueue<Runnable> todo = new LinkedBlockingQueue<>();
 
-  private boolean running = true;
+  private volatile boolean running = true;
+
+  // When the wheel thread will next wake up by itself. A new timer that is
+  // due before this has to wake it.
+  private volatile long wakeAt = 0;
 
-  // This thread is used to track the time of events and moves events from the
-  // "backlog" queue to the "todo" queue when it is time to execute. They are
-  // separated to allow this thread to be safely interrupted.
+  // This thread moves timers that are due from the wheel to the "todo" queue.
   private final Thread scheduler = new Thread() {
     @Override
     public void run() {
-      while (running) {
 
-        Event next;
+      long tick = tickOf(System.currentTimeMillis());
+      int timers = 0;
 
-        try {
-          next = backlog.take();
-        } catch (InterruptedException ex) {
-          // Rather than try to handle the exception here, set "next"
-          // to null and let the normal flow handle the case.
-          next = null;
+      while (running) {
+
+        for (Event event = incoming.poll(); event != null; event = incoming.poll()) {
+          if (event.tick <= tick) {
+            todo.add(event.callback);
+          } else {
+            bucket(event.tick).add(event);
+            timers += 1;
+          }
         }
 
-        long sleep = 0;
+        final long now = tickOf(System.currentTimeMillis());
 
-        if (next != null) {
+        if (now - tick >= wheel.size()) {
+          // Asleep for a full turn or more (e.g. the clock jumped). Every
+          // bucket has to be checked once, so check them all in one go.
+          for (final List<Event> bucket : wheel) {
+            timers -= fire(bucket, now);
+          }
+          tick = now;
+        } else {
+          while (tick < now) {
+            tick += 1;
+            timers -= fire(bucket(tick), tick);
+          }
+        }
 
-          final long now = System.currentTimeMillis();
+        // Say when this thread will wake up before looking at "incoming" one
+        // last time. A timer added after that look will see the new wake up
+        // time and unpark this thread if it is due sooner.
+        final long next = timers == 0 ? Long.MAX_VALUE : (nextTick(tick) * tickMs);
+        wakeAt = next;
 
-          // Check which queue the event should be added to. If it
-          // is time to execute, it should be added to the "todo"
-          // queue. If it is not time, it should be added back to the
-          // "backlog".
-          // If the item is added back to the backlog, we know how long
-          // it will be until it will be executed. That means we can sleep
-          // until then.
-          if (next.time <= now) {
-            forceAdd(todo, next.callback);
-            sleep = 0;
-          } else {
-            // Put it back (it's not time).
-            forceAdd(backlog, next);
-            sleep = next.time - now;
-          }
+        if (!incoming.isEmpty() || !running) {
+          continue;
         }
 
-        if (sleep > 0) {
-          try {
-            Thread.sleep(sleep);
-          } catch (InterruptedException ex) {
-            // There are two cases this will happen:
-            //  1. A new item was added and we are being woken to
-            //     check if we need to update the time.
-            //  2. It is time to exit and we need to wake-up so that
-            //     we can check that "running" is "false".
+        if (next == Long.MAX_VALUE) {
+          LockSupport.park(this);
+        } else {
+          final long sleep = next - System.currentTimeMillis();
+          if (sleep > 0) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleep));
           }
         }
+
+        wakeAt = 0;
       }
     }
   };
@@ -126,6 +161,23 @@ public final class Timeline {
   };
 
   public Timeline() {
+    this(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+  }
+
+  // The wheel size must be a power of two.
+  Timeline(long tickMs, int wheelSize) {
+
+    if (Integer.bitCount(wheelSize) != 1) {
+      throw new IllegalArgumentException("Wheel size must be a power of two");
+    }
+
+    this.tickMs = tickMs;
+    this.mask = wheelSize - 1;
+
+    for (int i = 0; i < wheelSize; i++) {
+      wheel.add(new ArrayList<Event>());
+    }
+
     scheduler.start();
     executor.start();
   }
@@ -134,7 +186,7 @@ public final class Timeline {
   //
   // Add an event to the timeline so that it will occur as soon as possible.
   public void scheduleNow(Runnable callback) {
-    scheduleAt(System.currentTimeMillis(), callback);
+    todo.add(callback);
   }
 
   // SCHEDULE IN
@@ -150,9 +202,20 @@ public final class Timeline {
   // Add an event to the timeline so that will occur approximately at a fixed
   // point in time.
   public void scheduleAt(long timeMs, Runnable callback) {
-    final Event event = new Event(timeMs, callback);
-    forceAdd(backlog, event);
-    scheduler.interrupt();  // wake it up
+
+    if (timeMs <= System.currentTimeMillis()) {
+      scheduleNow(callback);
+      return;
+    }
+
+    // Round up so that an event never runs before its time.
+    final long tick = (timeMs + tickMs - 1) / tickMs;
+
+    incoming.add(new Event(tick, callback));
+
+    if (tick * tickMs < wakeAt) {
+      LockSupport.unpark(scheduler);
+    }
   }
 
   // STOP
@@ -161,11 +224,10 @@ public final class Timeline {
   public void stop() {
     running = false;
 
-    // Interrupt does not force a thread to exit. It signals the
-    // thead that it is time to stop execution. As the threads may
-    // be sleeping, this will force them awake.
-    executor.interrupt();
-    scheduler.interrupt();
+    // Both threads may be waiting for work, so give each one a reason to
+    // wake up and see that it is time to stop.
+    LockSupport.unpark(scheduler);
+    todo.add(NOTHING);
   }
 
   // JOIN
@@ -187,9 +249,51 @@ public final class Timeline {
     }
   }
 
-  private static <T> void forceAdd(BlockingQueue<T> queue, T value) {
-    while (!queue.offer(value)) {
-      LOG.warning("Failed to add to queue, trying again...");
+  private long tickOf(long timeMs) {
+    return timeMs / tickMs;
+  }
+
+  private List<Event> bucket(long tick) {
+    return wheel.get((int) (tick & mask));
+  }
+
+  // FIRE
+  //
+  // Move every event in the bucket that is due by the given tick to the "todo"
+  // queue. Events due on a later turn of the wheel stay where they are.
+  // Returns how many events were moved.
+  private int fire(List<Event> bucket, long tick) {
+
+    int fired = 0;
+
+    final Iterator<Event> events = bucket.iterator();
+    while (events.hasNext()) {
+      final Event event = events.next();
+      if (event.tick <= tick) {
+        events.remove();
+        todo.add(event.callback);
+        fired += 1;
+      }
+    }
+
+    return fired;
+  }
+
+  // NEXT TICK
+  //
+  // Find the tick of the next timer after the given tick. Only one turn of
+  // the wheel is looked at. If nothing is due in that turn, the tick at the
+  // end of the turn is returned and the wheel thread looks again then.
+  private long nextTick(long tick) {
+
+    for (long next = tick + 1; next <= tick + wheel.size(); next++) {
+      for (final Event event : bucket(next)) {
+        if (event.tick == next) {
+          return next;
+        }
+      }
     }
+
+    return tick + wheel.size();
   }
 }
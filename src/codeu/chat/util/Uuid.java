@@ -15,10 +15,11 @@
 package codeu.chat.util;
 
 import java.lang.StringBuilder;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Objects;
+import java.nio.ByteBuffer;
 
 public final class Uuid {
 
@@ -29,10 +30,7 @@ public final class Uuid {
     @Override
     public void write(OutputStream out, Uuid value) throws IOException {
 
-      int length = 0;
-      for (Uuid current = value; current != null; current = current.root()) {
-        length += 1;
-      }
+      final int length = length(value);
 
       // To make things easy, limit the max length to be 255. It should be unlikely
       // that this limit will ever be reached as most chains should be less than
@@ -52,21 +50,57 @@ public final class Uuid {
     public Uuid read(InputStream in) throws IOException {
 
       // "input.read" can only return one by of data so there is no need
-      // to check that the bounds of 0 to 255 is respected.
+      // to check that the bounds of 0 to 255 is respected. It returns -1
+      // once the stream has ended, which must not be taken as a length.
       final int length = in.read();
+      if (length < 0) {
+        throw new EOFException();
+      }
       final int[] chain = new int[length];
 
       for (int i = 0; i < length; i++) {
         chain[i] = Serializers.INTEGER.read(in);
       }
 
-      Uuid head = null;
+      return fromChain(chain);
+    }
+  };
+
+  public static final BufferSerializer<Uuid> BUFFER_SERIALIZER = new BufferSerializer<Uuid>() {
+
+    @Override
+    public int size(Uuid value) {
+
+      return 1 + length(value) * BufferSerializers.INTEGER_BYTES;
+    }
+
+    @Override
+    public void write(ByteBuffer out, Uuid value) {
+
+      final int length = (size(value) - 1) / BufferSerializers.INTEGER_BYTES;
 
-      for (int i = length - 1; i >= 0; i--) {
-        head = new Uuid(head, chain[i]);
+      if (length > 255) {
+        throw new IllegalArgumentException("Max supported Uuid chain length is 255");
       }
 
-      return head;
+      out.put((byte) length);
+
+      for (Uuid current = value; current != null; current = current.root()) {
+        out.putInt(current.id());
+      }
+    }
+
+    @Override
+    public Uuid read(ByteBuffer in) {
+
+      final int length = in.get() & 0xFF;
+      final int[] chain = new int[length];
+
+      for (int i = 0; i < length; i++) {
+        chain[i] = in.getInt();
+      }
+
+      return fromChain(chain);
     }
   };
 
@@ -85,21 +119,63 @@ public final class Uuid {
     Uuid make();
   }
 
-  private final Uuid root;
+  // A Uuid is a chain of ids from a root down to this one. Almost every chain
+  // is one or two ids long (the server's id, then an id made under it), so
+  // the last two ids are kept in fields of this one object rather than in an
+  // object each. Only a chain longer than that keeps the rest of the chain
+  // as a Uuid of its own.
+  private static final byte NO_ROOT = 1;      // just "id"
+  private static final byte ID_ROOT = 2;      // "rootId" then "id"
+  private static final byte CHAIN_ROOT = 3;   // "root" then "id"
+
+  // One-id Uuids, such as a server's id, are made over and over when reading
+  // ids off the wire or asking for the root of a two-id chain. The most
+  // recent one for each slot is kept here and used again. Uuids never change
+  // so it does not matter which thread's copy ends up in a slot.
+  private static final int INTERNED = 256;
+  private static final Uuid[] interned = new Uuid[INTERNED];
+
+  private final byte kind;
   private final int id;
+  private final int rootId;
+  private final Uuid root;
+  private final int hash;
 
   public Uuid(Uuid root, int id) {
-    this.root = root;
+
     this.id = id;
+
+    if (root == null) {
+      this.kind = NO_ROOT;
+      this.rootId = 0;
+      this.root = null;
+      this.hash = id;
+    } else if (root.kind == NO_ROOT) {
+      this.kind = ID_ROOT;
+      this.rootId = root.id;
+      this.root = null;
+      this.hash = 31 * root.hash + id;
+    } else {
+      this.kind = CHAIN_ROOT;
+      this.rootId = 0;
+      this.root = root;
+      this.hash = 31 * root.hash + id;
+    }
   }
 
   public Uuid(int id) {
-    this.root = null;
-    this.id = id;
+    this(null, id);
   }
 
   public Uuid root() {
-    return root;
+    switch (kind) {
+      case ID_ROOT:
+        return single(rootId);
+      case CHAIN_ROOT:
+        return root;
+      default:
+        return null;
+    }
   }
 
   public int id() {
@@ -112,7 +188,7 @@ public final class Uuid {
   }
 
   @Override
-  public int hashCode() { return hash(this); }
+  public int hashCode() { return hash; }
 
   @Override
   public String toString() {
@@ -128,39 +204,62 @@ public final class Uuid {
   // means that all ids from the tail to the root have the same ids.
   public static boolean equals(Uuid a, Uuid b) {
 
-    // First check if 'a' and 'b' refer to the same instance. This also
-    // checks if both 'a' and 'b' are null which saves us from having to
-    // check 'a' == null && 'b' == null.
+    // Walk both chains together. The hash covers the whole chain so most
+    // Uuids that differ stop at the first check without walking anything.
+    while (a != b) {
 
-    if (a == b) {
-      return true;
-    }
+      if (a == null || b == null) {
+        return false;
+      }
+
+      if (a.hash != b.hash || a.id != b.id || a.kind != b.kind || a.rootId != b.rootId) {
+        return false;
+      }
 
-    if (a == null && b != null) {
-      return false;
+      // Only set for chains longer than two. Otherwise both are null.
+      a = a.root;
+      b = b.root;
     }
 
-    if (a != null && b == null) {
-      return false;
+    return true;
+  }
+
+  // The number of ids in the chain.
+  private static int length(Uuid id) {
+
+    int length = 0;
+
+    for (Uuid current = id; current != null; current = current.root) {
+      length += current.kind == ID_ROOT ? 2 : 1;
     }
 
-    // Check id before checking the root as the ids are more likely to differ
-    // and will short-circuit the logic preventing us from wasting time checking
-    // the full chain.
-    return a.id() == b.id() && equals(a.root(), b.root());
+    return length;
+  }
+
+  private static Uuid single(int id) {
+
+    final int slot = (id ^ (id >>> 8) ^ (id >>> 16) ^ (id >>> 24)) & (INTERNED - 1);
+    final Uuid cached = interned[slot];
 
+    if (cached != null && cached.id == id) {
+      return cached;
+    }
+
+    final Uuid created = new Uuid(null, id);
+    interned[slot] = created;
+    return created;
   }
 
-  // Compute a hash code for the Uuids by walking up the chain.
-  private static int hash(Uuid id) {
+  // Make a Uuid from its ids, root first.
+  private static Uuid fromChain(int[] chain) {
 
-    int hash = 0;
+    Uuid head = null;
 
-    for (Uuid current = id; current != null; current = current.root()) {
-      hash ^= Objects.hash(current.id());
+    for (int i = chain.length - 1; i >= 0; i--) {
+      head = head == null && i > 0 ? single(chain[i]) : new Uuid(head, chain[i]);
     }
 
-    return hash;
+    return head;
   }
 
   // Compute human-readable representation for Uuids
@@ -181,27 +280,55 @@ public final class Uuid {
 
   // Parse
   //
-  // Create a uuid from a sting.
+  // Create a uuid from a sting. The ids are read straight out of the string
+  // one character at a time.
   public static Uuid parse(String string) throws IOException {
-    return parse(null, string.split("\\."), 0);
-  }
 
-  private static Uuid parse(final Uuid root, String[] tokens, int index) throws IOException {
+    Uuid head = null;
+    int start = 0;
 
-    final long id = Long.parseLong(tokens[index]);
+    while (true) {
 
-    if ((id >> 32) != 0) {
-      throw new IOException(String.format(
-          "ID value '%s' is too large to be an unsigned 32 bit integer",
-          tokens[index]));
+      int end = string.indexOf('.', start);
+      if (end < 0) {
+        end = string.length();
+      }
+
+      final int id = parseId(string, start, end);
+      head = head == null && end < string.length() ? single(id) : new Uuid(head, id);
+
+      if (end == string.length()) {
+        return head;
+      }
+
+      start = end + 1;
     }
+  }
 
-    final Uuid link = new Uuid(root, (int)(id & 0xFFFFFFFF));
+  private static int parseId(String string, int start, int end) throws IOException {
+
+    if (start == end) {
+      throw new NumberFormatException("Empty id in '" + string + "'");
+    }
 
-    final int nextIndex = index + 1;
+    long id = 0;
+
+    for (int i = start; i < end; i++) {
+
+      final int digit = Character.digit(string.charAt(i), 10);
+      if (digit < 0) {
+        throw new NumberFormatException("For input string: \"" + string.substring(start, end) + "\"");
+      }
+
+      id = id * 10 + digit;
+
+      if ((id >> 32) != 0) {
+        throw new IOException(String.format(
+            "ID value '%s' is too large to be an unsigned 32 bit integer",
+            string.substring(start, end)));
+      }
+    }
 
-    return nextIndex < tokens.length ?
-        parse(link, tokens, nextIndex) :
-        link;
+    return (int) id;
   }
 }
@@ -0,0 +1,73 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+// SOCKET CONNECTION
+//
+// A connection over a socket with buffered streams. The serializers read and
+// write a few bytes at a time, which on the raw socket streams means a system
+// call for every few bytes. Here reads are served from a buffer, and writes
+// are collected until the other side needs to see them.
+//
+// Everything written so far is sent when the input stream is asked for, as
+// that is when the other side is expected to answer, and when the connection
+// is closed. Anything that needs its bytes sent at another time must flush
+// the output stream itself.
+final class SocketConnection implements Connection {
+
+  private static final int BUFFER_BYTES = 8 * 1024;
+
+  private final Socket socket;
+  private final InputStream in;
+  private final OutputStream out;
+
+  public SocketConnection(Socket socket) throws IOException {
+
+    this.socket = socket;
+    this.socket.setTcpNoDelay(true);  // writes are already batched by the buffer
+
+    this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES);
+    this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES);
+  }
+
+  @Override
+  public InputStream in() throws IOException {
+    out.flush();
+    return in;
+  }
+
+  @Override
+  public OutputStream out() {
+    return out;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (!socket.isClosed() && !socket.isOutputShutdown()) {
+        out.flush();
+      }
+    } finally {
+      socket.close();
+    }
+  }
+}
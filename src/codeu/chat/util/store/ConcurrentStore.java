@@ -0,0 +1,252 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// CONCURRENT STORE
+//
+// A store that reads the same way as Store but keeps each key once, in a
+// concurrent skip list, with all the values for that key in a bucket. Adding
+// a value is a skip list lookup no matter how many values already share its
+// key, where Store has to walk past every one of them.
+//
+// Reads never lock. Iterating while values are being added is safe and will
+// see some or all of the values added since the iteration started, the same
+// as iterating a Store's links while they are being added to.
+//
+// Removing a value copies its bucket without it, so an iteration that already
+// has the bucket still sees the value. A bucket that is left empty is taken
+// out of the skip list, so there is nothing to compact later.
+public final class ConcurrentStore<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
+
+  // BUCKET
+  //
+  // The values for one key in the order they were added. Values are appended
+  // in place. A reader reads the size before the array, and a writer fills a
+  // slot before making the size cover it, so a reader only ever sees slots
+  // that have been filled. A remove makes a new array that is exactly as
+  // long as the values left and publishes it before the smaller size, so a
+  // reader that never reads past the end of the array it has always sees
+  // either the old values or the new ones.
+  private static final class Bucket<VALUE> {
+
+    private volatile Object[] values;
+    private volatile int size;
+
+    // Set once the bucket has been emptied and is on its way out of the skip
+    // list. Nothing can be added to it after that.
+    private boolean dead = false;
+
+    Bucket(VALUE first) {
+      values = new Object[] { first };
+      size = 1;
+    }
+
+    synchronized boolean add(VALUE value) {
+
+      if (dead) {
+        return false;
+      }
+
+      Object[] current = values;
+
+      if (size == current.length) {
+        final Object[] grown = new Object[current.length * 2];
+        System.arraycopy(current, 0, grown, 0, size);
+        values = current = grown;
+      }
+
+      current[size] = value;
+      size = size + 1;
+
+      return true;
+    }
+
+    // Returns false if the value was not in the bucket.
+    synchronized boolean remove(VALUE value) {
+
+      final Object[] current = values;
+      final int count = size;
+
+      for (int i = 0; i < count; i++) {
+        if (value == null ? current[i] == null : value.equals(current[i])) {
+
+          final Object[] smaller = new Object[count - 1];
+          System.arraycopy(current, 0, smaller, 0, i);
+          System.arraycopy(current, i + 1, smaller, i, count - i - 1);
+
+          values = smaller;
+          size = count - 1;
+          dead = size == 0;
+
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    VALUE get(Object[] values, int index) {
+      return (VALUE) values[index];
+    }
+  }
+
+  private final ConcurrentNavigableMap<KEY, Bucket<VALUE>> index;
+
+  public ConcurrentStore(Comparator<KEY> comparator) {
+    this.index = new ConcurrentSkipListMap<>(comparator);
+  }
+
+  public void insert(KEY key, VALUE value) {
+
+    while (true) {
+
+      Bucket<VALUE> bucket = index.get(key);
+
+      if (bucket == null) {
+        final Bucket<VALUE> created = new Bucket<>(value);
+        bucket = index.putIfAbsent(key, created);
+        if (bucket == null) {
+          return;
+        }
+      }
+
+      if (bucket.add(value)) {
+        return;
+      }
+
+      // The bucket was emptied by a remove. Make sure it is gone and try
+      // again with a new one.
+      index.remove(key, bucket);
+    }
+  }
+
+  // REMOVE
+  //
+  // Remove one value stored under the key. Returns false if the value was not
+  // in the store.
+  public boolean remove(KEY key, VALUE value) {
+
+    final Bucket<VALUE> bucket = index.get(key);
+
+    if (bucket == null || !bucket.remove(value)) {
+      return false;
+    }
+
+    if (bucket.size == 0) {
+      index.remove(key, bucket);
+    }
+
+    return true;
+  }
+
+  @Override
+  public VALUE first(KEY key) {
+    final Bucket<VALUE> bucket = index.get(key);
+    if (bucket == null) {
+      return null;
+    }
+    final int count = bucket.size;
+    final Object[] values = bucket.values;
+    return Math.min(count, values.length) == 0 ? null : bucket.get(values, 0);
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return flatten(index.values());
+  }
+
+  @Override
+  public Iterable<VALUE> at(final KEY key) {
+    return flatten(index.subMap(key, true, key, true).values());
+  }
+
+  @Override
+  public Iterable<VALUE> after(KEY start) {
+    return flatten(index.tailMap(start, true).values());
+  }
+
+  @Override
+  public Iterable<VALUE> before(KEY end) {
+    return flatten(index.headMap(end, true).values());
+  }
+
+  @Override
+  public Iterable<VALUE> range(KEY start, KEY end) {
+    // A skip list will not make a view whose start is after its end, where
+    // Store would simply find nothing.
+    if (index.comparator().compare(start, end) > 0) {
+      return Collections.emptyList();
+    }
+    return flatten(index.subMap(start, true, end, true).values());
+  }
+
+  // FLATTEN
+  //
+  // Iterate every value of every bucket in a view of the index. The view is
+  // live, so keys added to it during iteration may be seen too.
+  private static <VALUE> Iterable<VALUE> flatten(final Collection<Bucket<VALUE>> buckets) {
+    return new Iterable<VALUE>() {
+      @Override
+      public Iterator<VALUE> iterator() {
+        return new Iterator<VALUE>() {
+
+          private final Iterator<Bucket<VALUE>> remaining = buckets.iterator();
+
+          private Bucket<VALUE> bucket = null;
+          private Object[] values = null;
+          private int at = 0;
+          private int size = 0;
+
+          @Override
+          public boolean hasNext() {
+            while (at == size) {
+              if (!remaining.hasNext()) {
+                return false;
+              }
+              bucket = remaining.next();
+              at = 0;
+              size = bucket.size;
+              values = bucket.values;
+              size = Math.min(size, values.length);
+            }
+            return true;
+          }
+
+          @Override
+          public VALUE next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return bucket.get(values, at++);
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+}
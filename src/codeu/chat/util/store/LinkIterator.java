@@ -32,11 +32,15 @@ final class LinkIterator<KEY, VALUE> implements Iterator<VALUE> {
 
   @Override
   public boolean hasNext() {
+    while (current != null && current.removed && comparator.compare(current.key, last.key) <= 0) {
+      current = current.next;
+    }
     return current != null && comparator.compare(current.key, last.key) <= 0;
   }
 
   @Override
   public VALUE next() {
+    hasNext();
     final VALUE value = current.value;
     current = current.next;
     return value;
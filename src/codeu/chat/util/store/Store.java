@@ -30,6 +30,8 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
   private final Comparator<KEY> comparator;
 
+  private int tombstones = 0;
+
   public Store(Comparator<KEY> comparator) {
     this.index = new TreeMap<>(comparator);
     this.comparator = comparator;
@@ -67,10 +69,68 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     }
   }
 
+  // REMOVE
+  //
+  // Remove one value stored under the key. The link that held it is only
+  // marked as removed (a tombstone) so that removing never has to find the
+  // link before it. Tombstones are skipped by every read and are unlinked by
+  // "compact". Returns false if the value was not in the store.
+  public boolean remove(KEY key, VALUE value) {
+
+    for (StoreLink<KEY, VALUE> link = index.get(key);
+         link != null && comparator.compare(link.key, key) == 0;
+         link = link.next) {
+      if (!link.removed && (value == null ? link.value == null : value.equals(link.value))) {
+        link.removed = true;
+        tombstones++;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // The number of removed links waiting to be compacted away.
+  public int tombstones() {
+    return tombstones;
+  }
+
+  // COMPACT
+  //
+  // Unlink every removed link from the chain and point the index at the
+  // first live link of each key, dropping keys that have none left. This
+  // walks the whole chain so it is meant to be run now and then, once enough
+  // tombstones have built up, rather than after every remove.
+  public void compact() {
+
+    if (tombstones == 0) {
+      return;
+    }
+
+    index.clear();
+
+    StoreLink<KEY, VALUE> previous = rootLink;
+    for (StoreLink<KEY, VALUE> link = rootLink.next; link != null; link = link.next) {
+      if (link.removed) {
+        previous.next = link.next;
+      } else {
+        if (previous == rootLink || comparator.compare(previous.key, link.key) != 0) {
+          index.put(link.key, link);
+        }
+        previous = link;
+      }
+    }
+
+    tombstones = 0;
+  }
+
   @Override
   public VALUE first(KEY key) {
-    final StoreLink<KEY, VALUE> link = index.get(key);
-    return link == null ? null : link.value;
+    StoreLink<KEY, VALUE> link = index.get(key);
+    while (link != null && link.removed && comparator.compare(link.key, key) == 0) {
+      link = link.next;
+    }
+    return link == null || link.removed || comparator.compare(link.key, key) != 0 ? null : link.value;
   }
 
   @Override
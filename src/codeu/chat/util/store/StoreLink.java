@@ -20,6 +20,10 @@ final class StoreLink<KEY, VALUE> {
   public final VALUE value;
   public StoreLink<KEY, VALUE> next;
 
+  // A removed link stays in the chain, skipped by every read, until the
+  // store is compacted.
+  public boolean removed = false;
+
   public StoreLink(KEY key, VALUE value, StoreLink<KEY, VALUE> next) {
     this.key = key;
     this.value = value;
@@ -0,0 +1,352 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import codeu.chat.util.Uuid;
+
+// UUID INDEX
+//
+// A hash index from Uuid to value for point lookups. A Store keyed by Uuid
+// finds a value by walking a tree, comparing whole Uuid chains at every step.
+// This hashes the Uuid once and usually finds the value in the first slot it
+// looks at.
+//
+// The table uses open addressing: every entry sits in one array and a key
+// that collides takes the next free slot. As with Store.first, the first
+// value given for a key is the one that is kept.
+//
+// Removing a key leaves a tombstone in its slot so that lookups for keys that
+// collided with it still walk past it. Tombstones are dropped whenever the
+// table is rebuilt, either because it filled up or by "compact".
+//
+// There can be one writer at a time, and any number of readers at the same
+// time as the writer. Readers read the slots of the arrays without any
+// barrier of their own, which is only enough for a single lookup:
+//
+//   - Every field of an entry is final, so a reader that sees an entry at all
+//     sees it whole, however it came to see it.
+//
+//   - A table that has been replaced is never written to again, and a table
+//     is never more than two thirds full, so a lookup always reaches an empty
+//     slot and stops.
+//
+// Nothing orders one slot against another. A reader may see an entry that
+// was added after one it does not see yet, and "replace" writes no volatile
+// field at all, so its new value may show up early or late. A caller that
+// needs several lookups (or several indexes) to agree with each other, like
+// the server's model, must make them inside a read it validates against its
+// writers itself.
+public final class UuidIndex<VALUE> {
+
+  private static final int MIN_CAPACITY = 16;
+
+  private static final class Entry<VALUE> {
+
+    final Uuid key;
+    final int hash;
+    final VALUE value;
+
+    // Where the value is in "ordered".
+    final int position;
+
+    Entry(Uuid key, int hash, VALUE value, int position) {
+      this.key = key;
+      this.hash = hash;
+      this.value = value;
+      this.position = position;
+    }
+  }
+
+  // Marks the slot of a removed key. It never matches a key.
+  private static final Entry<?> TOMBSTONE = new Entry<>(null, 0, null, -1);
+
+  // The slots. The length is always a power of two and at most two thirds of
+  // the slots are in use, so a lookup stops at an empty slot quickly.
+  private volatile Entry<VALUE>[] table = newTable(MIN_CAPACITY);
+
+  // The values in the order they were added, so that "all" lists them in a
+  // stable order. Only the first "used" are in use and removed values leave
+  // a null behind until the index is compacted.
+  private volatile Object[] ordered = new Object[MIN_CAPACITY];
+  private volatile int used = 0;
+
+  private volatile int size = 0;
+  private int tombstones = 0;
+
+  public synchronized boolean insert(Uuid key, VALUE value) {
+
+    if (key == null) {
+      throw new NullPointerException("Uuid index keys cannot be null");
+    }
+
+    if ((size + tombstones + 1) * 3 > table.length * 2) {
+      table = rebuild(table, size + 1);
+      tombstones = 0;
+    }
+
+    final Entry<VALUE>[] slots = table;
+    final int hash = hash(key);
+    final int mask = slots.length - 1;
+
+    int slot = hash & mask;
+    for (Entry<VALUE> entry = slots[slot]; entry != null; entry = slots[slot]) {
+      if (entry != TOMBSTONE && entry.hash == hash && Uuid.equals(entry.key, key)) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    Object[] values = ordered;
+    if (used == values.length) {
+      final Object[] grown = new Object[values.length * 2];
+      System.arraycopy(values, 0, grown, 0, used);
+      ordered = values = grown;
+    }
+
+    // Fill the slots before counting them so readers never see an empty one.
+    values[used] = value;
+    slots[slot] = new Entry<>(key, hash, value, used);
+    used = used + 1;
+    size = size + 1;
+
+    return true;
+  }
+
+  // REMOVE
+  //
+  // Remove the key and its value. Returns false if the key was not there.
+  @SuppressWarnings("unchecked")
+  public synchronized boolean remove(Uuid key) {
+
+    if (key == null) {
+      return false;
+    }
+
+    final Entry<VALUE>[] slots = table;
+    final int hash = hash(key);
+    final int mask = slots.length - 1;
+
+    int slot = hash & mask;
+    for (Entry<VALUE> entry = slots[slot]; entry != null; entry = slots[slot]) {
+      if (entry != TOMBSTONE && entry.hash == hash && Uuid.equals(entry.key, key)) {
+        slots[slot] = (Entry<VALUE>) TOMBSTONE;
+        ordered[entry.position] = null;
+        tombstones++;
+        size = size - 1;
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return false;
+  }
+
+  // REPLACE
+  //
+  // Give a key that is already in the index a new value, keeping its place in
+  // the order values were added. Returns false if the key was not there. A
+  // reader sees either the old value or the new one.
+  public synchronized boolean replace(Uuid key, VALUE value) {
+
+    if (key == null) {
+      return false;
+    }
+
+    final Entry<VALUE>[] slots = table;
+    final int hash = hash(key);
+    final int mask = slots.length - 1;
+
+    int slot = hash & mask;
+    for (Entry<VALUE> entry = slots[slot]; entry != null; entry = slots[slot]) {
+      if (entry != TOMBSTONE && entry.hash == hash && Uuid.equals(entry.key, key)) {
+        ordered[entry.position] = value;
+        slots[slot] = new Entry<>(key, hash, value, entry.position);
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return false;
+  }
+
+  // The number of removed values still taking up room, which "compact" would
+  // give back.
+  public int removed() {
+    return used - size;
+  }
+
+  // COMPACT
+  //
+  // Rebuild the table without tombstones, shrinking it if it is mostly empty,
+  // and close the gaps removed values left in the insertion order. This
+  // touches every entry so it is meant to be run once enough values have
+  // been removed, not after every remove.
+  public synchronized void compact() {
+
+    if (used == size) {
+      return;
+    }
+
+    final Object[] values = ordered;
+    final Object[] packed = new Object[Math.max(MIN_CAPACITY, size)];
+    final Entry<VALUE>[] slots = newTable(capacityFor(size));
+    final int mask = slots.length - 1;
+
+    // Where each value moves to. Entries are made again to hold the new
+    // positions.
+    final int[] moved = new int[used];
+    int at = 0;
+    for (int i = 0; i < used; i++) {
+      if (values[i] != null) {
+        moved[i] = at;
+        packed[at] = values[i];
+        at++;
+      }
+    }
+
+    for (final Entry<VALUE> entry : table) {
+      if (entry != null && entry != TOMBSTONE) {
+        int slot = entry.hash & mask;
+        while (slots[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = new Entry<>(entry.key, entry.hash, entry.value, moved[entry.position]);
+      }
+    }
+
+    // Readers read "used" before "ordered", so the new order is published
+    // first. A reader that still has the old count stops at the nulls past
+    // the end of the packed values.
+    ordered = packed;
+    used = at;
+    table = slots;
+    tombstones = 0;
+  }
+
+  public VALUE first(Uuid key) {
+
+    if (key == null) {
+      return null;
+    }
+
+    final Entry<VALUE>[] slots = table;
+    final int hash = hash(key);
+    final int mask = slots.length - 1;
+
+    int slot = hash & mask;
+    for (Entry<VALUE> entry = slots[slot]; entry != null; entry = slots[slot]) {
+      if (entry != TOMBSTONE && entry.hash == hash && Uuid.equals(entry.key, key)) {
+        return entry.value;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return null;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // ALL
+  //
+  // Every value in the order it was added. Values added or removed while
+  // iterating may or may not be seen.
+  public Iterable<VALUE> all() {
+    return new Iterable<VALUE>() {
+      @Override
+      public Iterator<VALUE> iterator() {
+        return new Iterator<VALUE>() {
+
+          private final int count = used;
+          private final Object[] values = ordered;
+          private final int end = Math.min(count, values.length);
+          private int at = 0;
+
+          @Override
+          public boolean hasNext() {
+            while (at < end && values[at] == null) {
+              at++;
+            }
+            return at < end;
+          }
+
+          @Override
+          @SuppressWarnings("unchecked")
+          public VALUE next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return (VALUE) values[at++];
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  // Uuid hash codes of neighbouring ids are close together, which makes long
+  // runs of full slots. Mixing the bits spreads them over the table.
+  private static int hash(Uuid key) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  // A table big enough for the given number of entries, without the
+  // tombstones of the old one.
+  private static <VALUE> Entry<VALUE>[] rebuild(Entry<VALUE>[] slots, int entries) {
+
+    final Entry<VALUE>[] rebuilt = newTable(Math.max(slots.length, capacityFor(entries)));
+    final int mask = rebuilt.length - 1;
+
+    for (final Entry<VALUE> entry : slots) {
+      if (entry != null && entry != TOMBSTONE) {
+        int slot = entry.hash & mask;
+        while (rebuilt[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        rebuilt[slot] = entry;
+      }
+    }
+
+    return rebuilt;
+  }
+
+  // The smallest table that keeps the entries at most two thirds full.
+  private static int capacityFor(int entries) {
+    int capacity = MIN_CAPACITY;
+    while (entries * 3 > capacity * 2) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <VALUE> Entry<VALUE>[] newTable(int capacity) {
+    return (Entry<VALUE>[]) new Entry<?>[capacity];
+  }
+}
@@ -22,13 +22,32 @@ public final class TestRunner {
   public static void main(String[] args) {
      final Result result =
          JUnitCore.runClasses(
+             codeu.chat.client.core.BackoffConnectionSourceTest.class,
+             codeu.chat.client.core.BatchTest.class,
+             codeu.chat.client.core.SessionConnectionSourceTest.class,
+             codeu.chat.common.BufferSerializerTest.class,
              codeu.chat.common.SecretTest.class,
              codeu.chat.relay.ServerTest.class,
              codeu.chat.server.BasicControllerTest.class,
+             codeu.chat.server.BulkReplayTest.class,
+             codeu.chat.server.ConcurrentAccessTest.class,
+             codeu.chat.server.MemoryBudgetTest.class,
              codeu.chat.server.RawControllerTest.class,
+             codeu.chat.server.SearchIndexTest.class,
+             codeu.chat.server.SelectorFrontEndTest.class,
+             codeu.chat.server.SnapshotsTest.class,
+             codeu.chat.server.TimeOrderedMessagesTest.class,
+             codeu.chat.server.WriteAheadLogTest.class,
+             codeu.chat.util.BodyArenaTest.class,
+             codeu.chat.util.Crc32cTest.class,
+             codeu.chat.util.HistogramTest.class,
+             codeu.chat.util.SerializersTest.class,
              codeu.chat.util.TimeTest.class,
+             codeu.chat.util.TimelineTest.class,
              codeu.chat.util.UuidTest.class,
+             codeu.chat.util.store.ConcurrentStoreTest.class,
              codeu.chat.util.store.StoreTest.class,
+             codeu.chat.util.store.UuidIndexTest.class,
              codeu.chat.util.TokenizerTest.class
          );
       for (final Failure failure : result.getFailures()) {
@@ -0,0 +1,119 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.ClientConnectionSource;
+import codeu.chat.util.connections.Connection;
+
+public final class BackoffConnectionSourceTest {
+
+  private ServerSocket server;
+  private BackoffConnectionSource source;
+
+  @Before
+  public void doBefore() throws IOException {
+    server = new ServerSocket(0);
+    source = new BackoffConnectionSource(
+        new ClientConnectionSource("localhost", server.getLocalPort()));
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    source.close();
+    server.close();
+  }
+
+  @Test
+  public void testRetryAfterBusy() throws Exception {
+
+    final AtomicInteger requests = new AtomicInteger();
+
+    // Turn the first two attempts away and answer the third.
+    final Thread fake = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 3; i++) {
+            try (final Socket socket = server.accept()) {
+              final int value = Serializers.INTEGER.read(socket.getInputStream());
+              requests.incrementAndGet();
+              if (i < 2) {
+                Serializers.INTEGER.write(socket.getOutputStream(), NetworkCode.BUSY);
+                Serializers.INTEGER.write(socket.getOutputStream(), 10);
+              } else {
+                Serializers.INTEGER.write(socket.getOutputStream(), value + 1);
+              }
+              // Wait for the client to hang up.
+              socket.getInputStream().read();
+            }
+          }
+        } catch (IOException ex) {
+          // The test will fail on the client side.
+        }
+      }
+    };
+    fake.start();
+
+    try (final Connection connection = source.connect()) {
+      Serializers.INTEGER.write(connection.out(), 41);
+      assertEquals(42, (int) Serializers.INTEGER.read(connection.in()));
+    }
+
+    fake.join(5000);
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testGiveUpWhenAlwaysBusy() throws Exception {
+
+    final Thread fake = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            try (final Socket socket = server.accept()) {
+              Serializers.INTEGER.read(socket.getInputStream());
+              Serializers.INTEGER.write(socket.getOutputStream(), NetworkCode.BUSY);
+              Serializers.INTEGER.write(socket.getOutputStream(), 1);
+              socket.getInputStream().read();
+            }
+          }
+        } catch (IOException ex) {
+          // The server socket was closed at the end of the test.
+        }
+      }
+    };
+    fake.start();
+
+    // The last BUSY is handed back so the caller sees an unexpected response.
+    try (final Connection connection = source.connect()) {
+      Serializers.INTEGER.write(connection.out(), 41);
+      assertEquals(NetworkCode.BUSY, (int) Serializers.INTEGER.read(connection.in()));
+      assertEquals(1, (int) Serializers.INTEGER.read(connection.in()));
+    }
+  }
+}
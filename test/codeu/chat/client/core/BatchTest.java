@@ -0,0 +1,140 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import codeu.chat.common.AccessLevel;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.UserAccessLevel;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+public final class BatchTest {
+
+  private static final Uuid CONVERSATION = new Uuid(1);
+  private static final Uuid USER = new Uuid(2);
+
+  // A connection source that records the one request it is sent and answers
+  // it with a canned response.
+  private static final class FakeSource implements ConnectionSource {
+
+    public final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    public final byte[] response;
+    public int connections = 0;
+
+    public FakeSource(byte[] response) {
+      this.response = response;
+    }
+
+    @Override
+    public Connection connect() {
+      connections += 1;
+      final InputStream in = new ByteArrayInputStream(response);
+      return new Connection() {
+        @Override
+        public InputStream in() { return in; }
+
+        @Override
+        public OutputStream out() { return request; }
+
+        @Override
+        public void close() { }
+      };
+    }
+
+    @Override
+    public void close() { }
+  }
+
+  @Test
+  public void testRequestsShareOneRoundTrip() throws IOException {
+
+    final List<byte[]> responses = new ArrayList<>();
+
+    final ByteArrayOutputStream access = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(access, NetworkCode.GET_ACCESS_LEVEL_RESPONSE);
+    Serializers.nullable(UserAccessLevel.SERIALIZER).write(access, null);
+    responses.add(access.toByteArray());
+
+    final ByteArrayOutputStream defaultAccess = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(defaultAccess, NetworkCode.GET_DEFAULT_ACCESS_LEVEL_RESPONSE);
+    Serializers.STRING.write(defaultAccess, AccessLevel.MEMBER.toString());
+    responses.add(defaultAccess.toByteArray());
+
+    final ByteArrayOutputStream response = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(response, NetworkCode.BATCH_RESPONSE);
+    Serializers.collection(Serializers.BYTES).write(response, responses);
+
+    final FakeSource source = new FakeSource(response.toByteArray());
+    final View view = new View(source);
+    final Controller controller = new Controller(source);
+
+    final Batch batch = view.newBatch();
+    final Batch.Result<UserAccessLevel> first = controller.getUserAccessLevel(batch, CONVERSATION, USER);
+    final Batch.Result<AccessLevel> second = view.getDefaultAccessLevel(batch, CONVERSATION);
+
+    assertTrue(batch.send());
+    assertEquals(1, source.connections);
+    assertNull(first.get());
+    assertEquals(AccessLevel.MEMBER, second.get());
+
+    // The requests must have gone out in the order they were added.
+    final InputStream sent = new ByteArrayInputStream(source.request.toByteArray());
+    assertEquals(NetworkCode.BATCH_REQUEST, (int) Serializers.INTEGER.read(sent));
+    final Iterator<byte[]> requests = Serializers.collection(Serializers.BYTES).read(sent).iterator();
+    assertEquals(NetworkCode.GET_ACCESS_LEVEL_REQUEST,
+                 (int) Serializers.INTEGER.read(new ByteArrayInputStream(requests.next())));
+    assertEquals(NetworkCode.GET_DEFAULT_ACCESS_LEVEL_REQUEST,
+                 (int) Serializers.INTEGER.read(new ByteArrayInputStream(requests.next())));
+    assertFalse(requests.hasNext());
+  }
+
+  @Test
+  public void testUnansweredBatch() throws IOException {
+
+    // An older server does not know about batches.
+    final ByteArrayOutputStream response = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(response, NetworkCode.NO_MESSAGE);
+
+    final FakeSource source = new FakeSource(response.toByteArray());
+    final View view = new View(source);
+
+    final Batch batch = view.newBatch();
+    final Batch.Result<AccessLevel> result = view.getDefaultAccessLevel(batch, CONVERSATION);
+
+    assertFalse(batch.send());
+    assertNull(result.get());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testResultBeforeSend() {
+
+    final View view = new View(new FakeSource(new byte[0]));
+    view.getDefaultAccessLevel(view.newBatch(), CONVERSATION).get();
+  }
+}
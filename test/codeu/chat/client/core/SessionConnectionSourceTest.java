@@ -0,0 +1,146 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.ClientConnectionSource;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Frame;
+
+public final class SessionConnectionSourceTest {
+
+  private ServerSocket server;
+  private SessionConnectionSource source;
+
+  @Before
+  public void doBefore() throws IOException {
+    server = new ServerSocket(0);
+    source = new SessionConnectionSource(
+        new ClientConnectionSource("localhost", server.getLocalPort()));
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    source.close();
+    server.close();
+  }
+
+  @Test
+  public void testOutOfOrderResponses() throws Exception {
+
+    // Accept one session, wait for two requests and answer them in reverse
+    // order. Each response echoes the request's value plus one.
+    final Thread fake = new Thread() {
+      @Override
+      public void run() {
+        try (final Socket socket = server.accept()) {
+          assertEquals(NetworkCode.SESSION_REQUEST,
+                       (int) Serializers.INTEGER.read(socket.getInputStream()));
+          Serializers.INTEGER.write(socket.getOutputStream(), NetworkCode.SESSION_RESPONSE);
+
+          final Frame first = Frame.SERIALIZER.read(socket.getInputStream());
+          final Frame second = Frame.SERIALIZER.read(socket.getInputStream());
+
+          Frame.SERIALIZER.write(socket.getOutputStream(), answer(second));
+          Frame.SERIALIZER.write(socket.getOutputStream(), answer(first));
+
+          // Hold the session open until the client hangs up.
+          socket.getInputStream().read();
+        } catch (IOException ex) {
+          // The test will fail on the client side.
+        }
+      }
+    };
+    fake.start();
+
+    final AtomicReference<Integer> a = new AtomicReference<>();
+    final AtomicReference<Integer> b = new AtomicReference<>();
+
+    final Thread clientA = request(10, a);
+    final Thread clientB = request(20, b);
+
+    clientA.join(5000);
+    clientB.join(5000);
+
+    assertEquals(Integer.valueOf(11), a.get());
+    assertEquals(Integer.valueOf(21), b.get());
+  }
+
+  @Test
+  public void testFallbackToOneShot() throws Exception {
+
+    // Act like an old server: reject the session and then answer a single
+    // one-shot request.
+    final Thread fake = new Thread() {
+      @Override
+      public void run() {
+        try {
+          try (final Socket socket = server.accept()) {
+            Serializers.INTEGER.read(socket.getInputStream());
+            Serializers.INTEGER.write(socket.getOutputStream(), NetworkCode.NO_MESSAGE);
+          }
+          try (final Socket socket = server.accept()) {
+            final int value = Serializers.INTEGER.read(socket.getInputStream());
+            Serializers.INTEGER.write(socket.getOutputStream(), value + 1);
+          }
+        } catch (IOException ex) {
+          // The test will fail on the client side.
+        }
+      }
+    };
+    fake.start();
+
+    try (final Connection connection = source.connect()) {
+      Serializers.INTEGER.write(connection.out(), 41);
+      assertEquals(42, (int) Serializers.INTEGER.read(connection.in()));
+    }
+  }
+
+  private Thread request(final int value, final AtomicReference<Integer> result) {
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try (final Connection connection = source.connect()) {
+          Serializers.INTEGER.write(connection.out(), value);
+          result.set(Serializers.INTEGER.read(connection.in()));
+        } catch (IOException ex) {
+          result.set(null);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private static Frame answer(Frame request) throws IOException {
+    final int value = Serializers.INTEGER.read(new ByteArrayInputStream(request.body));
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, value + 1);
+    return new Frame(request.id, out.toByteArray());
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+
+import codeu.chat.util.BodyArena;
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class BufferSerializerTest {
+
+  private static final Uuid ID = new Uuid(new Uuid(new Uuid(7), 8), 9);
+  private static final Uuid AUTHOR = new Uuid(new Uuid(3), 4);
+  private static final Time TIME = Time.fromMs(1500000000123L);
+
+  @Test
+  public void testUuid() throws IOException {
+    check(Uuid.SERIALIZER, Uuid.BUFFER_SERIALIZER, ID);
+    check(Uuid.SERIALIZER, Uuid.BUFFER_SERIALIZER, Uuid.NULL);
+  }
+
+  @Test
+  public void testTime() throws IOException {
+    check(Time.SERIALIZER, Time.BUFFER_SERIALIZER, TIME);
+  }
+
+  @Test
+  public void testStrings() throws IOException {
+    // Plain, multi-byte, a surrogate pair and a lone surrogate.
+    for (final String value : Arrays.asList("", "hello", "caf\u00e9 \u20ac", "\ud83d\ude00", "a\ud800b")) {
+      check(Serializers.STRING, BufferSerializers.STRING, value);
+    }
+  }
+
+  @Test
+  public void testMessage() throws IOException {
+    final Message message = new Message(ID, Uuid.NULL, AUTHOR, TIME, AUTHOR, "hello there");
+    final Message result = check(Message.SERIALIZER, Message.BUFFER_SERIALIZER, message);
+    assertEquals(message.content(), result.content());
+  }
+
+  @Test
+  public void testArenaMessage() throws IOException {
+
+    final BodyArena arena = BodyArena.direct(1024);
+    final byte[] body = "kept off the heap".getBytes();
+    final Message message = new Message(ID, Uuid.NULL, AUTHOR, TIME, AUTHOR,
+                                        arena, arena.append(body), body.length);
+
+    // The same bytes as a message that holds its body as a string.
+    final ByteArrayOutputStream heap = new ByteArrayOutputStream();
+    Message.SERIALIZER.write(heap, new Message(ID, Uuid.NULL, AUTHOR, TIME, AUTHOR, "kept off the heap"));
+    final ByteArrayOutputStream offHeap = new ByteArrayOutputStream();
+    Message.SERIALIZER.write(offHeap, message);
+    assertArrayEquals(heap.toByteArray(), offHeap.toByteArray());
+
+    final Message result = check(Message.SERIALIZER, Message.BUFFER_SERIALIZER, message);
+    assertEquals("kept off the heap", result.content());
+    assertEquals("kept off the heap", message.content());
+  }
+
+  @Test
+  public void testUser() throws IOException {
+    final User result = check(User.SERIALIZER, User.BUFFER_SERIALIZER, new User(ID, "name", TIME));
+    assertEquals("name", result.name);
+  }
+
+  @Test
+  public void testConversationHeader() throws IOException {
+    check(ConversationHeader.SERIALIZER,
+          ConversationHeader.BUFFER_SERIALIZER,
+          new ConversationHeader(ID, AUTHOR, TIME, "title"));
+  }
+
+  @Test
+  public void testConversationPayload() throws IOException {
+    check(ConversationPayload.SERIALIZER,
+          ConversationPayload.BUFFER_SERIALIZER,
+          new ConversationPayload(ID, AUTHOR, AUTHOR));
+  }
+
+  @Test
+  public void testInterests() throws IOException {
+    final Collection<Uuid> interests = Arrays.asList(ID, AUTHOR);
+    final Interests result = check(Interests.SERIALIZER,
+                                   Interests.BUFFER_SERIALIZER,
+                                   new Interests(interests, AUTHOR, TIME, TIME));
+    assertEquals(AUTHOR, result.id);
+    assertEquals(2, result.interests.size());
+  }
+
+  @Test
+  public void testUserAccessLevel() throws IOException {
+    final UserAccessLevel result = check(UserAccessLevel.SERIALIZER,
+                                         UserAccessLevel.BUFFER_SERIALIZER,
+                                         new UserAccessLevel(AUTHOR, AccessLevel.MEMBER));
+    assertEquals(AccessLevel.MEMBER, result.getAccessLevel());
+  }
+
+  @Test
+  public void testNullableCollection() throws IOException {
+    check(Serializers.collection(Serializers.nullable(User.SERIALIZER)),
+          BufferSerializers.collection(BufferSerializers.nullable(User.BUFFER_SERIALIZER)),
+          Arrays.asList(new User(ID, "a", TIME), null));
+  }
+
+  // Write the value both ways, check that the bytes and the size agree, and
+  // read it back from a heap buffer and from a direct buffer.
+  private static <T> T check(Serializer<T> stream, BufferSerializer<T> buffer, T value)
+      throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    stream.write(out, value);
+    final byte[] expected = out.toByteArray();
+
+    assertEquals(expected.length, buffer.size(value));
+
+    final ByteBuffer heap = ByteBuffer.allocate(expected.length);
+    buffer.write(heap, value);
+    assertFalse(heap.hasRemaining());
+    assertArrayEquals(expected, heap.array());
+
+    final ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+    buffer.write(direct, value);
+    direct.flip();
+
+    final T fromDirect = buffer.read(direct);
+    assertFalse(direct.hasRemaining());
+
+    heap.flip();
+    final T fromHeap = buffer.read(heap);
+    assertFalse(heap.hasRemaining());
+
+    // What the buffer serializer reads must write out the same bytes again.
+    final ByteArrayOutputStream again = new ByteArrayOutputStream();
+    stream.write(again, fromDirect);
+    assertArrayEquals(expected, again.toByteArray());
+
+    stream.read(new ByteArrayInputStream(expected));
+
+    return fromHeap;
+  }
+}
@@ -14,10 +14,13 @@
 
 package codeu.chat.server;
 
+import java.util.Iterator;
+
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.junit.Before;
 
+import codeu.chat.common.AccessLevel;
 import codeu.chat.common.BasicController;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.Message;
@@ -89,4 +92,134 @@ public final class BasicControllerTest {
         "Check that the message has a valid reference",
         message == null);
   }
+
+  @Test
+  public void testMessagesByAuthor() {
+
+    final User alice = controller.newUser("alice");
+    final User bob = controller.newUser("bob");
+
+    final ConversationHeader first = controller.newConversation("first", alice.id);
+    final ConversationHeader second = controller.newConversation("second", bob.id);
+
+    final Message a1 = controller.newMessage(alice.id, first.id, "a1");
+    controller.newMessage(bob.id, first.id, "b1");
+    final Message a2 = controller.newMessage(alice.id, second.id, "a2");
+
+    final Iterator<Message> byAlice = model.messagesByAuthor(alice.id).all().iterator();
+    assertEquals(a1.id, byAlice.next().id);
+    assertEquals(a2.id, byAlice.next().id);
+    assertFalse(byAlice.hasNext());
+
+    assertFalse(model.messagesByAuthor(Uuid.NULL).all().iterator().hasNext());
+
+    assertEquals(first.id, model.conversationOf(a1.id));
+    assertEquals(second.id, model.conversationOf(a2.id));
+
+    final Iterator<Message> page = model.authorPage(alice.id, a1.id, null, true, 10).iterator();
+    assertEquals(a2.id, page.next().id);
+    assertFalse(page.hasNext());
+
+    assertEquals(2, model.countMessages(first.id, a1.creation));
+  }
+
+  @Test
+  public void testDeleteMessage() {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+
+    final Message first = controller.newMessage(user.id, conversation.id, "first");
+    final Message middle = controller.newMessage(user.id, conversation.id, "middle");
+    final Message last = controller.newMessage(user.id, conversation.id, "last");
+
+    assertTrue(controller.deleteMessage(user.id, middle.id));
+    assertFalse(controller.deleteMessage(user.id, middle.id));
+
+    assertNull(model.messageById().first(middle.id));
+    assertNull(model.conversationOf(middle.id));
+    assertEquals(last.id, model.messageById().first(first.id).next);
+    assertEquals(2, model.countMessages(conversation.id, first.creation));
+    assertFalse(model.searchMessages(null, "middle", 10).iterator().hasNext());
+
+    assertTrue(controller.deleteMessage(user.id, last.id));
+    assertEquals(first.id, model.conversationPayloadById().first(conversation.id).lastMessage);
+
+    assertTrue(controller.deleteMessage(user.id, first.id));
+    assertEquals(Uuid.NULL, model.conversationPayloadById().first(conversation.id).firstMessage);
+    assertEquals(Uuid.NULL, model.conversationPayloadById().first(conversation.id).lastMessage);
+
+    // The conversation still works once it is empty.
+    final Message again = controller.newMessage(user.id, conversation.id, "again");
+    assertEquals(again.id, model.conversationPayloadById().first(conversation.id).firstMessage);
+
+    final Iterator<Message> byUser = model.messagesByAuthor(user.id).all().iterator();
+    assertEquals(again.id, byUser.next().id);
+    assertFalse(byUser.hasNext());
+  }
+
+  @Test
+  public void testDeleteConversation() {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader deleted = controller.newConversation("deleted", user.id);
+    final ConversationHeader kept = controller.newConversation("kept", user.id);
+
+    final Message gone = controller.newMessage(user.id, deleted.id, "hello gone");
+    final Message stays = controller.newMessage(user.id, kept.id, "hello kept");
+
+    assertTrue(controller.deleteConversation(user.id, deleted.id));
+    assertFalse(controller.deleteConversation(user.id, deleted.id));
+
+    assertNull(model.conversationById().first(deleted.id));
+    assertNull(model.conversationPayloadById().first(deleted.id));
+    assertNull(model.conversationByText().first("deleted"));
+    assertNull(model.messageById().first(gone.id));
+    assertNull(controller.newMessage(user.id, deleted.id, "too late"));
+
+    final Iterator<Message> found = model.searchMessages(null, "hello", 10).iterator();
+    assertEquals(stays.id, found.next().id);
+    assertFalse(found.hasNext());
+
+    final Iterator<Message> byUser = model.messagesByAuthor(user.id).all().iterator();
+    assertEquals(stays.id, byUser.next().id);
+    assertFalse(byUser.hasNext());
+
+    model.compact();
+
+    assertEquals(0, model.conversationById().removed());
+    assertEquals(0, model.messageById().removed());
+    assertEquals(kept.id, model.conversationById().first(kept.id).id);
+    assertEquals(stays.id, model.messageById().first(stays.id).id);
+    assertEquals(stays.id, model.searchMessages(kept.id, "hello", 10).iterator().next().id);
+  }
+
+  @Test
+  public void testOnlyAllowedUsersDelete() {
+
+    final User creator = controller.newUser("creator");
+    final User author = controller.newUser("author");
+    final User owner = controller.newUser("owner");
+    final User stranger = controller.newUser("stranger");
+
+    final ConversationHeader conversation = controller.newConversation("conversation", creator.id);
+    controller.newUserAccessLevel(conversation.id, owner.id, AccessLevel.OWNER);
+
+    final Message mine = controller.newMessage(author.id, conversation.id, "mine");
+    final Message theirs = controller.newMessage(author.id, conversation.id, "theirs");
+
+    // Anyone else needs to be an owner or the creator.
+    assertFalse(controller.deleteMessage(stranger.id, mine.id));
+    assertNotNull(model.messageById().first(mine.id));
+
+    assertTrue(controller.deleteMessage(author.id, mine.id));
+    assertTrue(controller.deleteMessage(owner.id, theirs.id));
+
+    // Only the creator can delete the conversation.
+    assertFalse(controller.deleteConversation(stranger.id, conversation.id));
+    assertFalse(controller.deleteConversation(owner.id, conversation.id));
+    assertNotNull(model.conversationById().first(conversation.id));
+
+    assertTrue(controller.deleteConversation(creator.id, conversation.id));
+  }
 }
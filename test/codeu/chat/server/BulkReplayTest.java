@@ -0,0 +1,312 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.AccessLevel;
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Interests;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.common.UserAccessLevel;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class BulkReplayTest {
+
+  private static final Uuid ROOT = new Uuid(0x5EED);
+
+  private File directory;
+  private ExecutorService pool;
+
+  // Every id made so far, so that records can reuse them on purpose.
+  private final List<Uuid> users = new ArrayList<>();
+  private final List<Uuid> conversations = new ArrayList<>();
+  private final List<Uuid> messages = new ArrayList<>();
+  private int ids = 0;
+
+  @Before
+  public void doBefore() throws Exception {
+    directory = Files.createTempDirectory("replay").toFile();
+    pool = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void doAfter() {
+    pool.shutdownNow();
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testSameAsOneAtATime() throws Exception {
+
+    try (final WriteAheadLog log = open()) {
+      log.replay(0, new Skip());
+      writeRandom(log, new Random(1), 20000);
+    }
+
+    final Model sequential = new Model();
+    final Model bulk = new Model();
+
+    replaySequentially(sequential);
+    replayInBulk(bulk);
+
+    assertTrue(bulk.messageById().size() > 1000);
+    assertEquals(dump(sequential), dump(bulk));
+  }
+
+  @Test
+  public void testSameWithMessagesAlreadyInModel() throws Exception {
+
+    // Half the log is replayed one at a time into both models first, the way
+    // a snapshot could have been, so that the rest deletes and links to
+    // messages that are already in the model.
+    final Random random = new Random(2);
+    try (final WriteAheadLog log = open()) {
+      log.replay(0, new Skip());
+      writeRandom(log, random, 5000);
+    }
+
+    final Model sequential = new Model();
+    final Model bulk = new Model();
+    replaySequentially(sequential);
+    replaySequentially(bulk);
+
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+
+    try (final WriteAheadLog log = open()) {
+      log.replay(0, new Skip());
+      writeRandom(log, random, 5000);
+    }
+
+    replaySequentially(sequential);
+    replayInBulk(bulk);
+
+    assertEquals(dump(sequential), dump(bulk));
+  }
+
+  @Test
+  public void testDeletedWhileKeptAside() throws Exception {
+
+    final User user = new User(new Uuid(ROOT, 1), "user", Time.fromMs(1));
+    final ConversationHeader conversation = new ConversationHeader(new Uuid(ROOT, 2), user.id, Time.fromMs(2), "chat");
+    final Message a = message(3, user.id, "a");
+    final Message b = message(4, user.id, "b");
+    final Message c = message(5, user.id, "c");
+
+    try (final WriteAheadLog log = open()) {
+      log.replay(0, new Skip());
+      log.append(LogRecords.ADD_USER, LogRecords.addUser(user));
+      log.append(LogRecords.ADD_CONVERSATION, LogRecords.addConversation(conversation));
+      log.append(LogRecords.ADD_MESSAGE, LogRecords.addMessage(conversation.id, a));
+      log.append(LogRecords.ADD_MESSAGE, LogRecords.addMessage(conversation.id, b));
+      log.append(LogRecords.ADD_MESSAGE, LogRecords.addMessage(conversation.id, c));
+      log.append(LogRecords.DELETE_MESSAGE, LogRecords.deleteMessage(b.id));
+      // The id is free again once the message has gone.
+      log.append(LogRecords.ADD_USER, LogRecords.addUser(new User(b.id, "reused", Time.fromMs(9))));
+    }
+
+    final Model model = new Model();
+    replayInBulk(model);
+
+    final ConversationPayload payload = model.conversationPayloadById().first(conversation.id);
+    assertEquals(a.id, payload.firstMessage);
+    assertEquals(c.id, payload.lastMessage);
+    assertEquals(c.id, model.messageById().first(a.id).next);
+    assertNull(model.messageById().first(b.id));
+    assertEquals("reused", model.userById().first(b.id).name);
+  }
+
+  private WriteAheadLog open() throws Exception {
+    return new WriteAheadLog(directory, ServerConfig.Durability.ASYNC, new Metrics());
+  }
+
+  private void replaySequentially(Model model) throws Exception {
+    final Controller controller = new Controller(Uuid.NULL, model);
+    try (final WriteAheadLog log = open()) {
+      log.replay(0, new WriteAheadLog.Visitor() {
+        @Override
+        public void visit(byte type, ByteBuffer payload) {
+          LogRecords.apply(type, payload, controller);
+        }
+      });
+    }
+  }
+
+  private void replayInBulk(Model model) throws Exception {
+    final BulkReplay replay = new BulkReplay(model, new Controller(Uuid.NULL, model));
+    try (final WriteAheadLog log = open()) {
+      log.replay(0, replay, replay, pool);
+    }
+    replay.finish();
+  }
+
+  // Append records of every kind, including ones that the controller turns
+  // down: messages by unknown authors or in unknown or deleted conversations,
+  // and ids that are already in use.
+  private void writeRandom(WriteAheadLog log, Random random, int count) throws Exception {
+
+    for (int i = 0; i < count; i++) {
+
+      final int pick = random.nextInt(100);
+      final Time time = Time.fromMs(1000 + i / 3);
+
+      if (pick < 3 || users.isEmpty()) {
+        final User user = new User(id(random), "user " + i, time);
+        users.add(user.id);
+        log.append(LogRecords.ADD_USER, LogRecords.addUser(user));
+      } else if (pick < 8 || conversations.isEmpty()) {
+        final ConversationHeader conversation = new ConversationHeader(id(random), any(random, users), time, "chat " + i);
+        conversations.add(conversation.id);
+        log.append(LogRecords.ADD_CONVERSATION, LogRecords.addConversation(conversation));
+      } else if (pick < 80) {
+        final Uuid conversation = random.nextInt(50) == 0 ? new Uuid(ROOT, 999999) : any(random, conversations);
+        final Message message = new Message(id(random), Uuid.NULL, Uuid.NULL, time, any(random, users),
+                                            "word" + random.nextInt(20) + " message " + i);
+        messages.add(message.id);
+        log.append(LogRecords.ADD_MESSAGE, LogRecords.addMessage(conversation, message));
+      } else if (pick < 88 && !messages.isEmpty()) {
+        log.append(LogRecords.DELETE_MESSAGE, LogRecords.deleteMessage(any(random, messages)));
+      } else if (pick < 90) {
+        log.append(LogRecords.DELETE_CONVERSATION, LogRecords.deleteConversation(any(random, conversations)));
+      } else if (pick < 94) {
+        log.append(LogRecords.ADD_INTEREST, LogRecords.addInterest(any(random, users), any(random, conversations), time));
+      } else if (pick < 96) {
+        log.append(LogRecords.REMOVE_INTEREST, LogRecords.removeInterest(any(random, users), any(random, conversations)));
+      } else if (pick < 97) {
+        log.append(LogRecords.STATUS_UPDATE, LogRecords.statusUpdate(any(random, users), time));
+      } else if (pick < 99) {
+        log.append(LogRecords.NEW_ACCESS_LEVEL,
+                   LogRecords.newAccessLevel(any(random, conversations), any(random, users), AccessLevel.MEMBER));
+      } else {
+        log.append(LogRecords.SET_DEFAULT_ACCESS_LEVEL,
+                   LogRecords.setDefaultAccessLevel(any(random, conversations), AccessLevel.OWNER));
+      }
+    }
+  }
+
+  // A new id, or now and then one that has been used before.
+  private Uuid id(Random random) {
+    if (random.nextInt(40) == 0) {
+      final List<Uuid> used = new ArrayList<>(users);
+      used.addAll(conversations);
+      used.addAll(messages);
+      return any(random, used);
+    }
+    return new Uuid(ROOT, ++ids);
+  }
+
+  private static Uuid any(Random random, List<Uuid> ids) {
+    return ids.isEmpty() ? new Uuid(ROOT, 999998) : ids.get(random.nextInt(ids.size()));
+  }
+
+  private static Message message(int id, Uuid author, String content) {
+    return new Message(new Uuid(ROOT, id), Uuid.NULL, Uuid.NULL, Time.fromMs(id), author, content);
+  }
+
+  // Everything that can be seen of the model, in the order it can be seen.
+  private static String dump(Model model) {
+
+    final StringBuilder out = new StringBuilder();
+
+    for (final User user : model.userById().all()) {
+
+      out.append("user ").append(user.id).append(' ').append(user.name).append(' ')
+         .append(user.creation.inMs()).append('\n');
+
+      for (final Message message : model.messagesByAuthor(user.id).all()) {
+        out.append("  wrote ").append(message.id).append('\n');
+      }
+
+      final Interests interests = model.interestsByUserId().first(user.id);
+      if (interests != null) {
+        final List<String> sorted = new ArrayList<>();
+        for (final Uuid interest : interests.interests) {
+          sorted.add(interest.toString());
+        }
+        Collections.sort(sorted);
+        out.append("  interests ").append(sorted).append(' ').append(interests.creation.inMs())
+           .append(' ').append(interests.lastStatusUpdate.inMs()).append('\n');
+      }
+    }
+
+    for (final ConversationHeader conversation : model.conversationById().all()) {
+
+      final ConversationPayload payload = model.conversationPayloadById().first(conversation.id);
+      out.append("conversation ").append(conversation.id).append(' ').append(conversation.title)
+         .append(' ').append(payload.firstMessage).append(' ').append(payload.lastMessage).append('\n');
+
+      for (Message message = model.messageById().first(payload.firstMessage);
+           message != null;
+           message = model.messageById().first(message.next)) {
+        out.append("  next ").append(message.id).append(' ').append(message.author).append(' ')
+           .append(message.content()).append(' ').append(message.creation.inMs()).append('\n');
+      }
+
+      for (final Message message : model.messagesByConversation(conversation.id).all()) {
+        out.append("  by time ").append(message.id).append('\n');
+      }
+
+      for (final Message message : model.searchMessages(conversation.id, "word1", 1000, new ArrayList<Uuid>())) {
+        out.append("  found ").append(message.id).append('\n');
+      }
+
+      final UserAccessLevel defaultAccessLevel = model.defaultAccessLevelsByConvId().first(conversation.id);
+      if (defaultAccessLevel != null) {
+        out.append("  default ").append(defaultAccessLevel.getAccessLevel()).append('\n');
+      }
+
+      final List<String> access = new ArrayList<>();
+      if (model.accessLevelsByConvId().first(conversation.id) != null) {
+        for (final UserAccessLevel level : model.accessLevelsByConvId().first(conversation.id)) {
+          access.add(level.getUser() + "=" + level.getAccessLevel());
+        }
+      }
+      Collections.sort(access);
+      out.append("  access ").append(access).append('\n');
+    }
+
+    for (final Message message : model.messageByTime().all()) {
+      out.append("at ").append(message.creation.inMs()).append(' ').append(message.id).append('\n');
+    }
+
+    return out.toString();
+  }
+
+  private static final class Skip implements WriteAheadLog.Visitor {
+    @Override
+    public void visit(byte type, ByteBuffer payload) { }
+  }
+}
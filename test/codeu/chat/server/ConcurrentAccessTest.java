@@ -0,0 +1,260 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class ConcurrentAccessTest {
+
+  private static final int WRITERS = 4;
+  private static final int READERS = 4;
+  private static final int MESSAGES_PER_WRITER = 500;
+
+  private Model model;
+  private Controller controller;
+  private View view;
+
+  @Before
+  public void doBefore() {
+    model = new Model();
+    controller = new Controller(Uuid.NULL, model);
+    view = new View(model);
+  }
+
+  @Test
+  public void testReadersAndWritersTogether() throws Exception {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final Thread[] threads = new Thread[WRITERS + READERS];
+
+    for (int i = 0; i < WRITERS; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int m = 0; m < MESSAGES_PER_WRITER; m++) {
+              assertNotNull(controller.newMessage(user.id, conversation.id, "hello"));
+            }
+          } catch (Throwable ex) {
+            error.compareAndSet(null, ex);
+          }
+        }
+      };
+    }
+
+    for (int i = WRITERS; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int r = 0; r < MESSAGES_PER_WRITER; r++) {
+              view.getUsers();
+              view.getConversations();
+              for (final ConversationPayload payload :
+                   view.getConversationPayloads(Arrays.asList(conversation.id))) {
+                view.findMessage(payload.lastMessage);
+              }
+            }
+          } catch (Throwable ex) {
+            error.compareAndSet(null, ex);
+          }
+        }
+      };
+    }
+
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(error.get());
+
+    // Every message must have been linked into the conversation exactly once.
+    int count = 0;
+    for (Message message = view.findMessage(view.getConversationPayload(conversation.id).firstMessage);
+         message != null;
+         message = view.findMessage(message.next)) {
+      count += 1;
+    }
+
+    assertEquals(WRITERS * MESSAGES_PER_WRITER, count);
+  }
+
+  @Test
+  public void testWritesMoveTheVersion() {
+
+    final long before = model.version();
+
+    final User user = controller.newUser("user");
+    assertEquals(before + 2, model.version());
+
+    // A write made of other writes is one write.
+    controller.newConversation("conversation", user.id);
+    assertEquals(before + 4, model.version());
+
+    // Reads leave the version alone.
+    view.getUsers();
+    view.findUser(user.id);
+    assertEquals(before + 4, model.version());
+  }
+
+  @Test
+  public void testReadThatTripsOverAWriteRunsAgain() {
+
+    final int[] runs = { 0 };
+
+    final String name = model.read(new Model.Reader<String>() {
+      @Override
+      public String read() {
+        if (runs[0]++ == 0) {
+          // Stand in for a read that saw half of a write and failed in a way
+          // that is not an exception.
+          final Thread writer = new Thread() {
+            @Override
+            public void run() {
+              controller.newUser("user");
+            }
+          };
+          writer.start();
+          try {
+            writer.join();
+          } catch (InterruptedException ex) {
+            throw new IllegalStateException(ex);
+          }
+          throw new AssertionError("torn read");
+        }
+        return view.getUsers().iterator().next().name;
+      }
+    });
+
+    assertEquals("user", name);
+    assertEquals(2, runs[0]);
+  }
+
+  @Test(expected = AssertionError.class)
+  public void testReadThatFailsOnItsOwnFails() {
+    model.read(new Model.Reader<Object>() {
+      @Override
+      public Object read() {
+        throw new AssertionError("failed");
+      }
+    });
+  }
+
+  @Test
+  public void testReadsSeeWholeWrites() throws Exception {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final Thread[] threads = new Thread[1 + READERS];
+
+    // Adding a message changes the payload, the message before it and the
+    // indexes in separate steps, and deleting one undoes them. A read must see
+    // all of a write or none of it.
+    threads[0] = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int m = 0; m < MESSAGES_PER_WRITER; m++) {
+            final Message message = controller.newMessage(user.id, conversation.id, "hello");
+            if (m % 3 == 0) {
+              assertTrue(controller.deleteMessage(message.id));
+            }
+          }
+        } catch (Throwable ex) {
+          error.compareAndSet(null, ex);
+        }
+      }
+    };
+
+    for (int i = 1; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int r = 0; r < MESSAGES_PER_WRITER; r++) {
+              final String problem = model.read(new Model.Reader<String>() {
+                @Override
+                public String read() {
+                  return checkChain(conversation.id);
+                }
+              });
+              assertNull(problem, problem);
+            }
+          } catch (Throwable ex) {
+            error.compareAndSet(null, ex);
+          }
+        }
+      };
+    }
+
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(error.get());
+    assertNull(checkChain(conversation.id));
+  }
+
+  // Walk a conversation from its first message and say what is wrong with it,
+  // or return null if the chain ends at the last message and has every
+  // message the conversation's index has.
+  private String checkChain(Uuid conversation) {
+
+    final ConversationPayload payload = model.conversationPayloadById().first(conversation);
+
+    int count = 0;
+    Message last = null;
+    for (Message message = model.messageById().first(payload.firstMessage);
+         message != null;
+         message = model.messageById().first(message.next)) {
+      last = message;
+      count += 1;
+    }
+
+    if (!Uuid.equals(last == null ? Uuid.NULL : last.id, payload.lastMessage)) {
+      return "The chain does not end at the last message";
+    }
+
+    if (count != model.countMessages(conversation, Time.fromMs(0))) {
+      return "The chain has " + count + " messages but the index has " +
+             model.countMessages(conversation, Time.fromMs(0));
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,273 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.BodyArena;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class MemoryBudgetTest {
+
+  // Room for a little more than one conversation of MESSAGES messages.
+  private static final int MESSAGES = 20;
+  private static final long BUDGET = 12000;
+
+  private File directory;
+  private Model model;
+  private Controller controller;
+  private View view;
+
+  private User user;
+  private ConversationHeader apples;
+  private ConversationHeader bananas;
+
+  @Before
+  public void doBefore() throws Exception {
+
+    directory = Files.createTempDirectory("cold").toFile();
+    model = new Model(null, new ColdSegments(directory), BUDGET);
+    controller = new Controller(Uuid.NULL, model);
+    view = new View(model);
+
+    user = controller.newUser("user");
+    apples = controller.newConversation("apples", user.id);
+    bananas = controller.newConversation("bananas", user.id);
+
+    for (int i = 0; i < MESSAGES; i++) {
+      controller.newMessage(user.id, apples.id, "apple " + i);
+    }
+    for (int i = 0; i < MESSAGES; i++) {
+      controller.newMessage(user.id, bananas.id, "banana " + i);
+    }
+  }
+
+  @After
+  public void doAfter() {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testOldestConversationGoesCold() {
+
+    assertTrue(model.footprint() <= BUDGET);
+    assertEquals(1, directory.listFiles().length);
+
+    // The apples are out of memory but can still be counted.
+    assertFalse(model.messagesByConversation(apples.id).all().iterator().hasNext());
+    assertEquals(MESSAGES, model.countMessages(apples.id, Time.fromMs(0)));
+    assertTrue(model.conversationsWrittenIn(user.id, Time.fromMs(0)).contains(apples.id));
+
+    assertEquals(MESSAGES, model.countMessages(bananas.id, Time.fromMs(0)));
+  }
+
+  @Test
+  public void testColdConversationsComeBack() {
+
+    // Reading the apples brings them back, and the bananas go cold instead.
+    assertEquals(contents("apple"), contents(view.getMessagePage(apples.id, Uuid.NULL, null, true, 100)));
+    assertEquals(contents("apple"), chain(apples.id));
+    assertFalse(model.messagesByConversation(bananas.id).all().iterator().hasNext());
+
+    // A search brings back the cold conversations it matches.
+    assertEquals(contents("banana"), contents(view.searchMessages(Uuid.NULL, "banana", 100)));
+
+    // Paging through a user's messages brings back everything they wrote in.
+    // Messages sent in the same millisecond can come back in another order.
+    final Set<String> both = new HashSet<>(contents("apple"));
+    both.addAll(contents("banana"));
+    final List<String> byAuthor = contents(view.getMessagesByAuthor(user.id, Uuid.NULL, null, true, 100));
+    assertEquals(both.size(), byAuthor.size());
+    assertEquals(both, new HashSet<>(byAuthor));
+
+    // That went over budget until the next message.
+    controller.newMessage(user.id, bananas.id, "banana " + MESSAGES);
+    assertFalse(model.messagesByConversation(apples.id).all().iterator().hasNext());
+
+    assertEquals(1, directory.listFiles().length);
+    assertTrue(model.footprint() <= BUDGET);
+  }
+
+  @Test
+  public void testWriteToColdConversation() {
+
+    final Message added = controller.newMessage(user.id, apples.id, "apple " + MESSAGES);
+    assertNotNull(added);
+
+    final List<String> expected = contents("apple");
+    expected.add("apple " + MESSAGES);
+    assertEquals(expected, chain(apples.id));
+
+    // Make the apples go cold again and delete from them.
+    view.getMessagePage(bananas.id, Uuid.NULL, null, true, 100);
+    assertFalse(model.messagesByConversation(apples.id).all().iterator().hasNext());
+
+    assertTrue(controller.deleteMessage(added.id));
+    assertEquals(contents("apple"), chain(apples.id));
+
+    assertTrue(controller.deleteConversation(bananas.id));
+    assertEquals(0, model.countMessages(bananas.id, Time.fromMs(0)));
+  }
+
+  @Test
+  public void testWarmingKeepsArenaBodies() throws Exception {
+
+    final File elsewhere = Files.createTempDirectory("cold").toFile();
+    try {
+      final BodyArena arena = BodyArena.direct(1024 * 1024);
+      final Model bounded = new Model(arena, new ColdSegments(elsewhere), BUDGET);
+      final Controller writer = new Controller(Uuid.NULL, bounded);
+      final View reader = new View(bounded);
+
+      final User someone = writer.newUser("someone");
+      final ConversationHeader first = writer.newConversation("first", someone.id);
+      final ConversationHeader second = writer.newConversation("second", someone.id);
+      for (int i = 0; i < MESSAGES; i++) {
+        writer.newMessage(someone.id, first.id, "apple " + i);
+      }
+      for (int i = 0; i < MESSAGES; i++) {
+        writer.newMessage(someone.id, second.id, "banana " + i);
+      }
+
+      final long bytes = arena.bytes();
+
+      // Each read sends the other conversation cold, over and over.
+      for (int i = 0; i < 5; i++) {
+        assertEquals(contents("apple"), contents(reader.getMessagePage(first.id, Uuid.NULL, null, true, 100)));
+        assertEquals(contents("banana"), contents(reader.getMessagePage(second.id, Uuid.NULL, null, true, 100)));
+      }
+
+      assertEquals(bytes, arena.bytes());
+    } finally {
+      for (final File file : elsewhere.listFiles()) {
+        file.delete();
+      }
+      elsewhere.delete();
+    }
+  }
+
+  @Test
+  public void testSpillsRunOnTheSpiller() throws Exception {
+
+    final File elsewhere = Files.createTempDirectory("cold").toFile();
+    try {
+      final List<Runnable> queued = new ArrayList<>();
+      final Model bounded = new Model(null, new ColdSegments(elsewhere), BUDGET, new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+          queued.add(runnable);
+        }
+      });
+      final Controller writer = new Controller(Uuid.NULL, bounded);
+
+      final User someone = writer.newUser("someone");
+      final ConversationHeader first = writer.newConversation("first", someone.id);
+      final ConversationHeader second = writer.newConversation("second", someone.id);
+      for (int i = 0; i < MESSAGES; i++) {
+        writer.newMessage(someone.id, first.id, "apple " + i);
+      }
+      for (int i = 0; i < MESSAGES; i++) {
+        writer.newMessage(someone.id, second.id, "banana " + i);
+      }
+
+      // Nothing was moved out while writing, and only one spill was queued.
+      assertTrue(bounded.footprint() > BUDGET);
+      assertEquals(0, elsewhere.listFiles().length);
+      assertEquals(1, queued.size());
+
+      queued.remove(0).run();
+
+      assertTrue(bounded.footprint() <= BUDGET);
+      assertEquals(1, elsewhere.listFiles().length);
+      assertFalse(bounded.messagesByConversation(first.id).all().iterator().hasNext());
+    } finally {
+      for (final File file : elsewhere.listFiles()) {
+        file.delete();
+      }
+      elsewhere.delete();
+    }
+  }
+
+  @Test
+  public void testFootprint() {
+
+    final Model unbounded = new Model();
+    final Controller writer = new Controller(Uuid.NULL, unbounded);
+
+    final User someone = writer.newUser("someone");
+    final long empty = unbounded.footprint();
+
+    final ConversationHeader conversation = writer.newConversation("conversation", someone.id);
+    final long withConversation = unbounded.footprint();
+    assertTrue(withConversation > empty);
+
+    writer.newMessage(someone.id, conversation.id, "short");
+    final long withShort = unbounded.footprint();
+    writer.newMessage(someone.id, conversation.id, "a much longer message than the one before");
+    final long withLong = unbounded.footprint();
+
+    assertTrue(withShort > withConversation);
+    assertTrue(withLong - withShort > withShort - withConversation);
+
+    assertTrue(writer.deleteConversation(conversation.id));
+    assertEquals(empty, unbounded.footprint());
+  }
+
+  // The bodies of every message in a conversation, following the links from
+  // the first message.
+  private List<String> chain(Uuid conversation) {
+    final List<String> found = new ArrayList<>();
+    for (Message message = view.findMessage(view.getConversationPayload(conversation).firstMessage);
+         message != null;
+         message = view.findMessage(message.next)) {
+      found.add(message.content());
+    }
+    return found;
+  }
+
+  private static List<String> contents(String word) {
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < MESSAGES; i++) {
+      expected.add(word + " " + i);
+    }
+    return expected;
+  }
+
+  private static List<String> contents(Iterable<Message> messages) {
+    final List<String> found = new ArrayList<>();
+    for (final Message message : messages) {
+      found.add(message.content());
+    }
+    return found;
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// REPLAY BENCHMARK
+//
+// Compares replaying a log one record at a time through the controller with
+// replaying it in bulk (see BulkReplay). This is not part of the test run.
+// Run it by hand with the number of records and, optionally, the number of
+// threads to decode with:
+//
+//   java -Xmx24g -cp bin:third_party/* codeu.chat.server.ReplayBenchmark 10000000 8
+//
+// The log has a user for every 10,000 records and a conversation for every
+// 1,000, and the rest are messages, one in a hundred of which is deleted
+// again. Both replays must end with the same number of messages.
+public final class ReplayBenchmark {
+
+  private static final int DEFAULT_COUNT = 10000000;
+
+  public static void main(String[] args) throws Exception {
+
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_COUNT;
+    final int threads = args.length > 1 ?
+        Integer.parseInt(args[1]) :
+        Runtime.getRuntime().availableProcessors();
+
+    final File directory = Files.createTempDirectory("replay-benchmark").toFile();
+
+    try {
+
+      long start = System.nanoTime();
+      write(directory, count);
+      System.out.format("%,d records, %,d bytes, written in %,d ms\n",
+                        count, directory.listFiles()[0].length(), (System.nanoTime() - start) / 1000000);
+
+      final int sequential = sequential(directory);
+      System.gc();
+      final int bulk = bulk(directory, threads);
+
+      if (sequential != bulk) {
+        throw new IllegalStateException(
+            "Sequential replay kept " + sequential + " messages and bulk replay kept " + bulk);
+      }
+
+    } finally {
+      for (final File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  private static void write(File directory, int count) throws Exception {
+
+    final Uuid root = new Uuid(0x5EEDF00D);
+    final Random random = new Random(42);
+
+    final int users = Math.max(1, count / 10000);
+    final int conversations = Math.max(1, count / 1000);
+
+    try (final WriteAheadLog log = new WriteAheadLog(directory, ServerConfig.Durability.ASYNC, new Metrics())) {
+
+      int id = 0;
+      int written = 0;
+      long time = 1000000000000L;
+
+      for (int i = 0; i < users; i++, written++) {
+        log.append(LogRecords.ADD_USER, LogRecords.addUser(
+            new User(new Uuid(root, ++id), "user " + i, Time.fromMs(time++))));
+      }
+
+      final int firstConversation = id + 1;
+      for (int i = 0; i < conversations; i++, written++) {
+        log.append(LogRecords.ADD_CONVERSATION, LogRecords.addConversation(new ConversationHeader(
+            new Uuid(root, ++id), new Uuid(root, 1 + random.nextInt(users)), Time.fromMs(time++), "conversation " + i)));
+      }
+
+      int lastMessage = 0;
+      while (written < count) {
+
+        if (lastMessage > 0 && random.nextInt(100) == 0) {
+          log.append(LogRecords.DELETE_MESSAGE, LogRecords.deleteMessage(new Uuid(root, lastMessage)));
+          lastMessage = 0;
+        } else {
+          lastMessage = ++id;
+          log.append(LogRecords.ADD_MESSAGE, LogRecords.addMessage(
+              new Uuid(root, firstConversation + random.nextInt(conversations)),
+              new Message(new Uuid(root, lastMessage), Uuid.NULL, Uuid.NULL, Time.fromMs(time++),
+                          new Uuid(root, 1 + random.nextInt(users)),
+                          "message " + lastMessage + " with a few more words in it")));
+        }
+
+        written++;
+      }
+    }
+  }
+
+  private static int sequential(File directory) throws Exception {
+
+    final Model model = new Model();
+    final Controller controller = new Controller(Uuid.NULL, model);
+
+    final long start = System.nanoTime();
+
+    try (final WriteAheadLog log = new WriteAheadLog(directory, ServerConfig.Durability.ASYNC, new Metrics())) {
+      log.replay(0, new WriteAheadLog.Visitor() {
+        @Override
+        public void visit(byte type, ByteBuffer payload) {
+          LogRecords.apply(type, payload, controller);
+        }
+      });
+    }
+
+    report("sequential", start, model);
+    return model.messageById().size();
+  }
+
+  private static int bulk(File directory, int threads) throws Exception {
+
+    final Model model = new Model();
+    final BulkReplay replay = new BulkReplay(model, new Controller(Uuid.NULL, model));
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+    final long start = System.nanoTime();
+
+    try (final WriteAheadLog log = new WriteAheadLog(directory, ServerConfig.Durability.ASYNC, new Metrics())) {
+      log.replay(0, replay, replay, pool);
+      replay.finish();
+    } finally {
+      pool.shutdownNow();
+    }
+
+    report("bulk x" + threads, start, model);
+    return model.messageById().size();
+  }
+
+  private static void report(String name, long start, Model model) {
+    final long ms = (System.nanoTime() - start) / 1000000;
+    System.out.format("  %-12s %,8d ms   %,d messages\n", name, ms, model.messageById().size());
+  }
+}
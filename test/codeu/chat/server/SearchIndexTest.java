@@ -0,0 +1,233 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class SearchIndexTest {
+
+  private static final Uuid SERVER = new Uuid(1);
+  private static final Uuid FIRST = new Uuid(SERVER, 100);
+  private static final Uuid SECOND = new Uuid(SERVER, 200);
+
+  private SearchIndex index;
+  private int next;
+
+  @Before
+  public void doBefore() {
+    index = new SearchIndex();
+    next = 0;
+  }
+
+  @Test
+  public void testTokens() {
+    assertEquals(Arrays.asList("hello", "world", "it", "s", "2017"),
+                 SearchIndex.tokens("  Hello, WORLD! it's 2017..."));
+    assertEquals(Arrays.asList(), SearchIndex.tokens("?!"));
+  }
+
+  @Test
+  public void testEveryWordMustMatch() {
+
+    add(FIRST, "the quick brown fox");
+    add(FIRST, "the lazy dog");
+    add(FIRST, "a quick dog");
+
+    assertEquals(Arrays.asList("the quick brown fox", "a quick dog"), search(null, "quick", 10));
+    assertEquals(Arrays.asList("a quick dog"), search(null, "DOG quick", 10));
+    assertEquals(Arrays.asList(), search(null, "quick cat", 10));
+    assertEquals(Arrays.asList(), search(null, "", 10));
+  }
+
+  @Test
+  public void testPrefix() {
+
+    add(FIRST, "meeting at noon");
+    add(FIRST, "meet me there");
+    add(FIRST, "metal band");
+    add(FIRST, "we meet and meet again");
+
+    assertEquals(Arrays.asList("meeting at noon", "meet me there", "we meet and meet again"),
+                 search(null, "meet*", 10));
+    assertEquals(Arrays.asList("meet me there", "we meet and meet again"),
+                 search(null, "meet", 10));
+    assertEquals(Arrays.asList(), search(null, "zz*", 10));
+  }
+
+  @Test
+  public void testConversationFilter() {
+
+    add(FIRST, "hello from the first");
+    add(SECOND, "hello from the second");
+    add(FIRST, "bye from the first");
+
+    assertEquals(Arrays.asList("hello from the first", "bye from the first"),
+                 search(FIRST, "from", 10));
+    assertEquals(Arrays.asList("hello from the second"), search(SECOND, "hello", 10));
+    assertEquals(Arrays.asList("hello from the first", "hello from the second"),
+                 search(null, "hello", 10));
+  }
+
+  @Test
+  public void testLimitKeepsNewest() {
+
+    for (int i = 0; i < 500; i++) {
+      add(i % 2 == 0 ? FIRST : SECOND, "message number " + i);
+    }
+
+    assertEquals(Arrays.asList("message number 496", "message number 498"),
+                 search(FIRST, "message", 2));
+    assertEquals(Arrays.asList(), search(FIRST, "message", 0));
+    assertEquals(250, search(FIRST, "number", 1000).size());
+  }
+
+  @Test
+  public void testRemove() {
+
+    add(FIRST, "one apple");
+    final Message second = add(FIRST, "two apples");
+    add(SECOND, "three apples");
+    add(FIRST, "four apples");
+
+    assertTrue(index.remove(FIRST, second));
+    assertFalse(index.remove(FIRST, second));
+    assertFalse(index.remove(SECOND, second));
+    assertEquals(1, index.removed());
+
+    assertEquals(Arrays.asList("three apples", "four apples"), search(null, "apples", 10));
+    assertEquals(Arrays.asList("four apples"), search(null, "apples", 1));
+    assertEquals(Arrays.asList("one apple", "four apples"), search(FIRST, "apple*", 10));
+  }
+
+  @Test
+  public void testRemoveConversationAndCompact() {
+
+    add(FIRST, "red fish");
+    add(SECOND, "blue fish");
+    add(FIRST, "red herring");
+
+    index.removeConversation(FIRST);
+
+    assertEquals(2, index.removed());
+    assertEquals(Arrays.asList("blue fish"), search(null, "fish", 10));
+    assertEquals(Arrays.asList(), search(null, "red", 10));
+
+    index.compact();
+
+    assertEquals(0, index.removed());
+    assertEquals(Arrays.asList("blue fish"), search(null, "fish", 10));
+    assertEquals(Arrays.asList(), search(null, "re*", 10));
+    assertEquals(Arrays.asList(), search(FIRST, "fish", 10));
+
+    add(FIRST, "red again");
+    assertEquals(Arrays.asList("red again"), search(FIRST, "red", 10));
+  }
+
+  @Test
+  public void testCompactRenumbers() {
+
+    final Message[] messages = new Message[3000];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = add(i % 3 == 0 ? FIRST : SECOND, "message number " + i);
+    }
+    for (int i = 0; i < messages.length; i++) {
+      if (i % 3 != 0) {
+        assertTrue(index.remove(SECOND, messages[i]));
+      }
+    }
+
+    index.compact();
+
+    assertEquals(1000, index.size());
+    assertEquals(0, index.removed());
+    assertEquals(Arrays.asList("message number 2994", "message number 2997"),
+                 search(null, "message", 2));
+    assertEquals(1000, search(FIRST, "number", 5000).size());
+    assertEquals(Arrays.asList(), search(SECOND, "number", 10));
+
+    // New messages take the numbers after the ones that were kept.
+    add(SECOND, "message number last");
+    assertEquals(1001, index.size());
+    assertEquals(Arrays.asList("message number 2997", "message number last"),
+                 search(null, "message", 2));
+    assertTrue(index.remove(FIRST, messages[2997]));
+    assertEquals(Arrays.asList("message number 2994", "message number last"),
+                 search(null, "message", 2));
+  }
+
+  @Test
+  public void testEvictAndRestore() {
+
+    final Message red = add(FIRST, "red fish");
+    add(SECOND, "blue fish");
+    final Message herring = add(FIRST, "red herring");
+
+    index.evict(FIRST);
+
+    // Cold matches are handed back by id and left out of the results.
+    final Collection<Uuid> cold = new ArrayList<>();
+    assertEquals(Arrays.asList("blue fish"), contents(index.search(null, "fish", 10, cold)));
+    assertEquals(Arrays.asList(red.id), cold);
+
+    cold.clear();
+    assertEquals(Arrays.asList(), contents(index.search(FIRST, "red", 1, cold)));
+    assertEquals(Arrays.asList(herring.id), cold);
+
+    // Compacting keeps cold messages, which are still in the conversation.
+    index.compact();
+
+    final Map<Uuid, Message> restored = new HashMap<>();
+    restored.put(red.id, red);
+    restored.put(herring.id, herring);
+    index.restore(FIRST, restored);
+
+    cold.clear();
+    assertEquals(Arrays.asList("red fish", "red herring"), contents(index.search(null, "red", 10, cold)));
+    assertTrue(cold.isEmpty());
+    assertTrue(index.remove(FIRST, herring));
+  }
+
+  private Message add(Uuid conversation, String content) {
+    final Message message = new Message(
+        new Uuid(conversation, next++), Uuid.NULL, Uuid.NULL, Time.now(), SERVER, content);
+    index.add(conversation, message, content);
+    return message;
+  }
+
+  private List<String> search(Uuid conversation, String query, int limit) {
+    return contents(index.search(conversation, query, limit));
+  }
+
+  private static List<String> contents(Collection<Message> messages) {
+    final List<String> found = new ArrayList<>();
+    for (final Message message : messages) {
+      found.add(message.content());
+    }
+    return found;
+  }
+}
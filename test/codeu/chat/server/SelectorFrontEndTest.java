@@ -0,0 +1,334 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Secret;
+import codeu.chat.common.User;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Frame;
+
+public final class SelectorFrontEndTest {
+
+  // Long enough for any answer on a slow machine. A request that is held up
+  // behind a stalled client is never answered at all.
+  private static final int TIMEOUT_MS = 5000;
+
+  private File directory;
+  private Server server;
+  private SelectorFrontEnd frontEnd;
+  private Thread selector;
+
+  @Before
+  public void doBefore() throws Exception {
+
+    directory = Files.createTempDirectory("front-end").toFile();
+
+    final ServerConfig config = new ServerConfig();
+    config.logPath = directory.getPath();
+
+    server = new Server(new Uuid(1), new Secret((byte) 1), new NoOpRelay(), config);
+    frontEnd = new SelectorFrontEnd(server, 0);
+
+    selector = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        frontEnd.run();
+      }
+    });
+    selector.start();
+  }
+
+  @After
+  public void doAfter() throws Exception {
+    frontEnd.close();
+    selector.join();
+    server.stop();
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testSessionFrames() throws Exception {
+
+    try (final Socket socket = connect()) {
+
+      startSession(socket);
+
+      // Both frames in one write. Each comes back with its own id.
+      final ByteArrayOutputStream both = new ByteArrayOutputStream();
+      Frame.SERIALIZER.write(both, new Frame(1, newUser("one")));
+      Frame.SERIALIZER.write(both, new Frame(2, newUser("two")));
+      socket.getOutputStream().write(both.toByteArray());
+      socket.getOutputStream().flush();
+
+      final Map<Integer, String> names = new HashMap<>();
+      for (int i = 0; i < 2; i++) {
+        final Frame response = Frame.SERIALIZER.read(socket.getInputStream());
+        names.put(response.id, newUserName(new ByteArrayInputStream(response.body)));
+      }
+
+      assertEquals("one", names.get(1));
+      assertEquals("two", names.get(2));
+    }
+  }
+
+  @Test
+  public void testFrameInPieces() throws Exception {
+
+    try (final Socket socket = connect()) {
+
+      startSession(socket);
+
+      final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      Frame.SERIALIZER.write(frame, new Frame(7, newUser("pieces")));
+
+      final OutputStream out = socket.getOutputStream();
+      for (final byte b : frame.toByteArray()) {
+        out.write(b);
+        out.flush();
+      }
+
+      final Frame response = Frame.SERIALIZER.read(socket.getInputStream());
+      assertEquals(7, response.id);
+      assertEquals("pieces", newUserName(new ByteArrayInputStream(response.body)));
+    }
+  }
+
+  @Test
+  public void testOneShotHandOff() throws Exception {
+
+    try (final Socket socket = connect()) {
+
+      socket.getOutputStream().write(newUser("one shot"));
+      socket.getOutputStream().flush();
+
+      final InputStream in = socket.getInputStream();
+      assertEquals("one shot", newUserName(in));
+
+      // The connection is closed once the response is sent.
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void testStalledOneShotHoldsUpNothingElse() throws Exception {
+
+    try (final Socket stalled = connect()) {
+
+      // Only the network code, so the request can never be read in full.
+      Serializers.INTEGER.write(stalled.getOutputStream(), NetworkCode.NEW_USER_REQUEST);
+      stalled.getOutputStream().flush();
+
+      try (final Socket socket = connect()) {
+        startSession(socket);
+        Frame.SERIALIZER.write(socket.getOutputStream(), new Frame(1, newUser("session")));
+        socket.getOutputStream().flush();
+        final Frame response = Frame.SERIALIZER.read(socket.getInputStream());
+        assertEquals("session", newUserName(new ByteArrayInputStream(response.body)));
+      }
+
+      try (final Socket socket = connect()) {
+        socket.getOutputStream().write(newUser("another one shot"));
+        socket.getOutputStream().flush();
+        assertEquals("another one shot", newUserName(socket.getInputStream()));
+      }
+
+      // The stalled request is still answered once the rest of it arrives.
+      Serializers.STRING.write(stalled.getOutputStream(), "stalled");
+      stalled.getOutputStream().flush();
+      assertEquals(NetworkCode.NEW_USER_RESPONSE, (int) Serializers.INTEGER.read(stalled.getInputStream()));
+      assertEquals("stalled", Serializers.nullable(User.SERIALIZER).read(stalled.getInputStream()).name);
+    }
+  }
+
+  @Test
+  public void testDroppedPeers() throws Exception {
+
+    // A session that goes away part way through a frame.
+    try (final Socket socket = connect()) {
+      startSession(socket);
+      final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      Frame.SERIALIZER.write(frame, new Frame(1, newUser("never")));
+      socket.getOutputStream().write(frame.toByteArray(), 0, frame.size() / 2);
+      socket.getOutputStream().flush();
+    }
+
+    // A connection that goes away before sending anything.
+    connect().close();
+
+    // A session that says its frame is far too big.
+    try (final Socket socket = connect()) {
+      startSession(socket);
+      Serializers.INTEGER.write(socket.getOutputStream(), 1);
+      Serializers.INTEGER.write(socket.getOutputStream(), Frame.MAX_BODY_BYTES + 1);
+      socket.getOutputStream().flush();
+      assertEquals(-1, socket.getInputStream().read());
+    }
+
+    // None of which gets in the way of the next session.
+    try (final Socket socket = connect()) {
+      startSession(socket);
+      Frame.SERIALIZER.write(socket.getOutputStream(), new Frame(2, newUser("after")));
+      socket.getOutputStream().flush();
+      final Frame response = Frame.SERIALIZER.read(socket.getInputStream());
+      assertEquals("after", newUserName(new ByteArrayInputStream(response.body)));
+    }
+  }
+
+  @Test
+  public void testLargeFrame() throws Exception {
+
+    final StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      name.append((char) ('a' + i % 26));
+    }
+
+    try (final Socket socket = connect()) {
+
+      startSession(socket);
+
+      // Far bigger than the first buffer, so it grows several times over.
+      Frame.SERIALIZER.write(socket.getOutputStream(), new Frame(3, newUser(name.toString())));
+      socket.getOutputStream().flush();
+
+      final Frame response = Frame.SERIALIZER.read(socket.getInputStream());
+      assertEquals(3, response.id);
+      assertEquals(name.toString(), newUserName(new ByteArrayInputStream(response.body)));
+    }
+  }
+
+  @Test
+  public void testQuietLargeFrameHoldsLittle() throws Exception {
+
+    try (final Socket socket = connect()) {
+
+      startSession(socket);
+
+      // The header of the largest frame there can be, and a little of its body.
+      Serializers.INTEGER.write(socket.getOutputStream(), 1);
+      Serializers.INTEGER.write(socket.getOutputStream(), Frame.MAX_BODY_BYTES);
+      socket.getOutputStream().write(new byte[100]);
+      socket.getOutputStream().flush();
+
+      final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+      while (frontEnd.buffered() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      // Only enough for what has arrived, not for the whole frame.
+      assertTrue(frontEnd.buffered() > 0);
+      assertTrue(frontEnd.buffered() < 1024);
+    }
+  }
+
+  @Test
+  public void testBufferLimitDropsPeer() throws Exception {
+
+    final SelectorFrontEnd limited = new SelectorFrontEnd(server, 0, 4096);
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        limited.run();
+      }
+    });
+    thread.start();
+
+    try {
+
+      try (final Socket socket = connect(limited)) {
+        startSession(socket);
+        Serializers.INTEGER.write(socket.getOutputStream(), 1);
+        Serializers.INTEGER.write(socket.getOutputStream(), 100000);
+        try {
+          socket.getOutputStream().write(new byte[20000]);
+          socket.getOutputStream().flush();
+        } catch (IOException ex) {
+          // The peer may be dropped before all of it is written.
+        }
+        // Closing a socket with bytes still unread resets it, so either
+        // means the peer was dropped.
+        try {
+          assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketException ex) {
+          // Reset.
+        }
+      }
+
+      // The dropped peer's buffer no longer counts, and others still work.
+      try (final Socket socket = connect(limited)) {
+        startSession(socket);
+        Frame.SERIALIZER.write(socket.getOutputStream(), new Frame(2, newUser("after")));
+        socket.getOutputStream().flush();
+        final Frame response = Frame.SERIALIZER.read(socket.getInputStream());
+        assertEquals("after", newUserName(new ByteArrayInputStream(response.body)));
+      }
+      assertEquals(0, limited.buffered());
+
+    } finally {
+      limited.close();
+      thread.join();
+    }
+  }
+
+  private Socket connect() throws IOException {
+    return connect(frontEnd);
+  }
+
+  private static Socket connect(SelectorFrontEnd frontEnd) throws IOException {
+    final Socket socket = new Socket("localhost", frontEnd.port());
+    socket.setSoTimeout(TIMEOUT_MS);
+    socket.setTcpNoDelay(true);
+    return socket;
+  }
+
+  private static void startSession(Socket socket) throws IOException {
+    Serializers.INTEGER.write(socket.getOutputStream(), NetworkCode.SESSION_REQUEST);
+    socket.getOutputStream().flush();
+    assertEquals(NetworkCode.SESSION_RESPONSE, (int) Serializers.INTEGER.read(socket.getInputStream()));
+  }
+
+  private static byte[] newUser(String name) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, NetworkCode.NEW_USER_REQUEST);
+    Serializers.STRING.write(out, name);
+    return out.toByteArray();
+  }
+
+  private static String newUserName(InputStream in) throws IOException {
+    assertEquals(NetworkCode.NEW_USER_RESPONSE, (int) Serializers.INTEGER.read(in));
+    return Serializers.nullable(User.SERIALIZER).read(in).name;
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.AccessLevel;
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Interests;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class SnapshotsTest {
+
+  // Small enough that the first conversation goes cold.
+  private static final long BUDGET = 4000;
+
+  private File directory;
+  private File cold;
+
+  private Model model;
+  private Controller controller;
+
+  @Before
+  public void doBefore() throws Exception {
+    directory = Files.createTempDirectory("snapshots").toFile();
+    cold = Files.createTempDirectory("cold").toFile();
+    model = new Model(null, new ColdSegments(cold), BUDGET);
+    controller = new Controller(Uuid.NULL, model);
+  }
+
+  @After
+  public void doAfter() {
+    delete(directory);
+    delete(cold);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+
+    final User owner = controller.newUser("owner");
+    final User member = controller.newUser("member");
+
+    final ConversationHeader apples = controller.newConversation("apples", owner.id);
+    final List<Message> sent = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      sent.add(controller.newMessage(owner.id, apples.id, "apple " + i));
+    }
+
+    final ConversationHeader bananas = controller.newConversation("bananas", owner.id);
+    controller.setDefaultAccessLevel(bananas.id, AccessLevel.MEMBER);
+    controller.newUserAccessLevel(bananas.id, member.id, AccessLevel.OWNER);
+    final Message banana = controller.newMessage(member.id, bananas.id, "banana");
+    final Message deleted = controller.newMessage(member.id, bananas.id, "gone");
+    assertTrue(controller.deleteMessage(deleted.id));
+
+    controller.newInterest(owner.id, bananas.id, Time.fromMs(1000));
+    controller.statusUpdate(owner.id, Time.fromMs(2000));
+    controller.newInterest(member.id, apples.id, Time.fromMs(3000));
+    controller.removeInterest(member.id, apples.id);
+
+    final Snapshots snapshots = new Snapshots(directory);
+    snapshots.write(7, Snapshots.capture(model));
+
+    final Model loaded = new Model();
+    final View view = new View(loaded);
+    assertEquals(7, snapshots.load(new Controller(Uuid.NULL, loaded)));
+
+    assertEquals("owner", view.findUser(owner.id).name);
+    assertEquals(member.creation.inMs(), view.findUser(member.id).creation.inMs());
+    assertEquals("apples", view.findConversation(apples.id).title);
+    assertEquals(owner.id, view.findConversation(bananas.id).owner);
+
+    for (final Message message : sent) {
+      assertEquals(message.content(), view.findMessage(message.id).content());
+    }
+    assertEquals(banana.creation.inMs(), view.findMessage(banana.id).creation.inMs());
+    assertNull(view.findMessage(deleted.id));
+
+    assertEquals(AccessLevel.MEMBER, view.getDefaultAccessLevel(bananas.id));
+    assertEquals(AccessLevel.OWNER, view.findUserAccessLevel(bananas.id, member.id).getAccessLevel());
+
+    final Interests owners = view.findInterests(owner.id);
+    assertTrue(owners.interests.contains(bananas.id));
+    assertEquals(1000, owners.creation.inMs());
+    assertEquals(2000, owners.lastStatusUpdate.inMs());
+
+    final Interests members = view.findInterests(member.id);
+    assertTrue(members.interests.isEmpty());
+    assertEquals(3000, members.creation.inMs());
+  }
+
+  @Test
+  public void testMessagesKeepTheirLinks() throws Exception {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader relayed = controller.newConversation("relayed", user.id);
+
+    controller.newMessage(user.id, relayed.id, "first");
+    controller.newMessage(user.id, relayed.id, "second");
+    // A message from a relay can be older than the ones added before it. It
+    // is still linked in after them.
+    controller.newMessage(new Uuid(0x2E1A7), user.id, relayed.id, "from the relay", Time.fromMs(1));
+    controller.newMessage(user.id, relayed.id, "third");
+
+    // Push the conversation out of memory so it is written from its segment.
+    final ConversationHeader other = controller.newConversation("other", user.id);
+    for (int i = 0; i < 10; i++) {
+      controller.newMessage(user.id, other.id, "other " + i);
+    }
+    assertFalse(model.messagesByConversation(relayed.id).all().iterator().hasNext());
+
+    final Snapshots snapshots = new Snapshots(directory);
+    snapshots.write(1, Snapshots.capture(model));
+
+    final Model loaded = new Model();
+    assertEquals(1, snapshots.load(new Controller(Uuid.NULL, loaded)));
+
+    final List<String> expected = new ArrayList<>();
+    expected.add("first");
+    expected.add("second");
+    expected.add("from the relay");
+    expected.add("third");
+    assertEquals(expected, chain(loaded, relayed.id));
+  }
+
+  @Test
+  public void testDamagedSnapshotFallsBack() throws Exception {
+
+    final User user = controller.newUser("user");
+
+    final Snapshots snapshots = new Snapshots(directory);
+    snapshots.write(1, Snapshots.capture(model));
+
+    controller.newUser("later");
+    snapshots.write(2, Snapshots.capture(model));
+
+    // Cut the newest snapshot short.
+    try (final RandomAccessFile raw = new RandomAccessFile(new File(directory, "snapshot-2.snap"), "rw")) {
+      raw.setLength(raw.length() - 1);
+    }
+
+    final Model loaded = new Model();
+    assertEquals(1, snapshots.load(new Controller(Uuid.NULL, loaded)));
+    assertEquals(1, new View(loaded).getUsers().size());
+    assertEquals("user", new View(loaded).findUser(user.id).name);
+  }
+
+  @Test
+  public void testOnlyNewestAreKept() throws Exception {
+
+    final Snapshots snapshots = new Snapshots(directory);
+    assertEquals(0, snapshots.oldest());
+
+    for (int i = 1; i <= Snapshots.KEEP + 2; i++) {
+      snapshots.write(i, Snapshots.capture(model));
+    }
+
+    assertEquals(3, snapshots.oldest());
+    assertEquals(Snapshots.KEEP, directory.list().length);
+  }
+
+  // The contents of a conversation's messages, following their links.
+  private static List<String> chain(Model model, Uuid conversation) {
+    final List<String> contents = new ArrayList<>();
+    Message message = model.messageById().first(model.conversationPayloadById().first(conversation).firstMessage);
+    while (message != null) {
+      contents.add(message.content());
+      message = model.messageById().first(message.next);
+    }
+    return contents;
+  }
+
+  private static void delete(File directory) {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+}
@@ -0,0 +1,259 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class TimeOrderedMessagesTest {
+
+  private static final Uuid SERVER = new Uuid(1);
+
+  private TimeOrderedMessages messages;
+  private int next;
+
+  @Before
+  public void doBefore() {
+    messages = new TimeOrderedMessages();
+    next = 0;
+  }
+
+  @Test
+  public void testForwardPages() {
+
+    final List<Message> all = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      all.add(add(1000 + i, "m" + i));
+    }
+
+    assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), contents(messages.page(Uuid.NULL, null, true, 4)));
+    assertEquals(Arrays.asList("m4", "m5", "m6", "m7"), contents(messages.page(all.get(3).id, all.get(3).creation, true, 4)));
+    assertEquals(Arrays.asList("m8", "m9"), contents(messages.page(all.get(7).id, all.get(7).creation, true, 4)));
+    assertEquals(Arrays.asList(), contents(messages.page(all.get(9).id, all.get(9).creation, true, 4)));
+  }
+
+  @Test
+  public void testBackwardPages() {
+
+    final List<Message> all = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      all.add(add(1000 + i, "m" + i));
+    }
+
+    assertEquals(Arrays.asList("m7", "m8", "m9"), contents(messages.page(Uuid.NULL, null, false, 3)));
+    assertEquals(Arrays.asList("m4", "m5", "m6"), contents(messages.page(all.get(7).id, all.get(7).creation, false, 3)));
+    assertEquals(Arrays.asList("m0"), contents(messages.page(all.get(1).id, all.get(1).creation, false, 3)));
+    assertEquals(Arrays.asList(), contents(messages.page(all.get(0).id, all.get(0).creation, false, 3)));
+  }
+
+  @Test
+  public void testTimeCursor() {
+
+    add(1000, "a");
+    add(2000, "b");
+    add(2000, "c");
+    add(3000, "d");
+
+    assertEquals(Arrays.asList("b", "c", "d"), contents(messages.page(Uuid.NULL, Time.fromMs(2000), true, 10)));
+    assertEquals(Arrays.asList("a", "b", "c"), contents(messages.page(Uuid.NULL, Time.fromMs(2000), false, 10)));
+    assertEquals(Arrays.asList("d"), contents(messages.page(Uuid.NULL, Time.fromMs(2500), true, 10)));
+    assertEquals(Arrays.asList(), contents(messages.page(Uuid.NULL, Time.fromMs(500), false, 10)));
+  }
+
+  @Test
+  public void testSameTimeUsesIdCursor() {
+
+    final Message a = add(1000, "a");
+    final Message b = add(1000, "b");
+    add(1000, "c");
+
+    assertEquals(Arrays.asList("b", "c"), contents(messages.page(a.id, a.creation, true, 10)));
+    assertEquals(Arrays.asList("c"), contents(messages.page(b.id, b.creation, true, 10)));
+    assertEquals(Arrays.asList("a"), contents(messages.page(b.id, b.creation, false, 10)));
+  }
+
+  @Test
+  public void testOlderMessageIsPutInPlace() {
+
+    for (int i = 0; i < 8; i++) {
+      add(1000 + 10 * i, "m" + i);
+    }
+    add(1015, "late");
+    add(0, "first");
+
+    assertEquals(10, messages.size());
+    assertEquals(Arrays.asList("first", "m0", "m1", "late", "m2"),
+                 contents(messages.page(Uuid.NULL, null, true, 5)));
+  }
+
+  @Test
+  public void testUnknownCursorFallsBack() {
+
+    add(1000, "a");
+    add(2000, "b");
+
+    final Uuid stranger = new Uuid(SERVER, 999);
+
+    assertEquals(Arrays.asList("a", "b"), contents(messages.page(stranger, null, true, 10)));
+    assertEquals(Arrays.asList("b"), contents(messages.page(stranger, Time.fromMs(1500), true, 10)));
+  }
+
+  @Test
+  public void testDeletedCursorKeepsItsPlace() {
+
+    add(1000, "a");
+    final Message b = add(2000, "b");
+    add(3000, "c");
+    assertTrue(messages.remove(b));
+
+    assertEquals(Arrays.asList("c"), contents(messages.page(b.id, b.creation, true, 10)));
+    assertEquals(Arrays.asList("a"), contents(messages.page(b.id, b.creation, false, 10)));
+
+    // Messages sent at the cursor's own time are not repeated.
+    assertEquals(Arrays.asList(), contents(messages.page(b.id, Time.fromMs(3000), true, 10)));
+  }
+
+  @Test
+  public void testAccessor() {
+
+    add(1000, "a");
+    add(2000, "b");
+    add(2000, "c");
+    add(3000, "d");
+
+    assertEquals(Arrays.asList("a", "b", "c", "d"), contents(messages.all()));
+    assertEquals(Arrays.asList("b", "c"), contents(messages.at(Time.fromMs(2000))));
+    assertEquals(Arrays.asList("b", "c", "d"), contents(messages.after(Time.fromMs(1500))));
+    assertEquals(Arrays.asList("a", "b", "c"), contents(messages.before(Time.fromMs(2000))));
+    assertEquals(Arrays.asList("b", "c", "d"), contents(messages.range(Time.fromMs(2000), Time.fromMs(3000))));
+    assertEquals(Arrays.asList(), contents(messages.range(Time.fromMs(3000), Time.fromMs(1000))));
+
+    assertEquals("b", messages.first(Time.fromMs(2000)).content());
+    assertNull(messages.first(Time.fromMs(2500)));
+
+    assertEquals(3, messages.countAfter(Time.fromMs(2000)));
+    assertEquals(0, messages.countAfter(Time.fromMs(4000)));
+  }
+
+  @Test
+  public void testSliceIsNotChangedByLaterAdds() {
+
+    add(1000, "a");
+    add(3000, "c");
+
+    final Iterable<Message> before = messages.all();
+
+    add(4000, "d");
+    add(2000, "b");
+
+    assertEquals(Arrays.asList("a", "c"), contents(before));
+    assertEquals(Arrays.asList("a", "b", "c", "d"), contents(messages.all()));
+  }
+
+  @Test
+  public void testRemove() {
+
+    final Message a = add(1000, "a");
+    final Message b = add(2000, "b");
+    final Message c = add(2000, "c");
+
+    final Iterable<Message> before = messages.all();
+
+    assertTrue(messages.remove(b));
+    assertFalse(messages.remove(b));
+
+    assertEquals(Arrays.asList("a", "b", "c"), contents(before));
+    assertEquals(Arrays.asList("a", "c"), contents(messages.all()));
+    assertEquals(Arrays.asList("c"), contents(messages.page(a.id, a.creation, true, 10)));
+    assertEquals(2, messages.size());
+
+    assertTrue(messages.remove(a));
+    assertTrue(messages.remove(c));
+    assertEquals(Arrays.asList(), contents(messages.all()));
+
+    add(3000, "d");
+    assertEquals(Arrays.asList("d"), contents(messages.all()));
+  }
+
+  @Test
+  public void testAddAllAndRemoveAll() {
+
+    final Message a = add(1000, "a");
+    final Message c = add(3000, "c");
+
+    final List<Message> more = new ArrayList<>();
+    more.add(message(1000, "a2"));
+    more.add(message(2000, "b"));
+    more.add(message(4000, "d"));
+
+    final Iterable<Message> before = messages.all();
+
+    // Messages already here go before new ones sent at the same time.
+    messages.addAll(more);
+    assertEquals(Arrays.asList("a", "c"), contents(before));
+    assertEquals(Arrays.asList("a", "a2", "b", "c", "d"), contents(messages.all()));
+    assertEquals(5, messages.size());
+
+    messages.removeAll(new HashSet<>(Arrays.asList(a.id, more.get(1).id, more.get(2).id)));
+    assertEquals(Arrays.asList("a2", "c"), contents(messages.all()));
+    assertEquals(Arrays.asList("c"), contents(messages.page(more.get(0).id, more.get(0).creation, true, 10)));
+
+    messages.removeAll(new HashSet<>(Arrays.asList(more.get(0).id, c.id)));
+    assertEquals(0, messages.size());
+
+    add(5000, "e");
+    assertEquals(Arrays.asList("e"), contents(messages.all()));
+  }
+
+  @Test
+  public void testLimit() {
+
+    for (int i = 0; i < TimeOrderedMessages.MAX_PAGE + 10; i++) {
+      add(i, "m" + i);
+    }
+
+    assertEquals(0, messages.page(Uuid.NULL, null, true, 0).size());
+    assertEquals(0, messages.page(Uuid.NULL, null, true, -1).size());
+    assertEquals(TimeOrderedMessages.MAX_PAGE, messages.page(Uuid.NULL, null, true, Integer.MAX_VALUE).size());
+  }
+
+  private Message add(long ms, String content) {
+    final Message message = message(ms, content);
+    messages.add(message);
+    return message;
+  }
+
+  private Message message(long ms, String content) {
+    return new Message(new Uuid(SERVER, next++), Uuid.NULL, Uuid.NULL, Time.fromMs(ms), SERVER, content);
+  }
+
+  private static List<String> contents(Iterable<Message> page) {
+    final List<String> found = new ArrayList<>();
+    for (final Message message : page) {
+      found.add(message.content());
+    }
+    return found;
+  }
+}
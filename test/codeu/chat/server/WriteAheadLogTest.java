@@ -0,0 +1,478 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.ServerMetrics;
+import codeu.chat.common.User;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class WriteAheadLogTest {
+
+  private File directory;
+  private File file;
+
+  @Before
+  public void doBefore() throws Exception {
+    directory = Files.createTempDirectory("wal").toFile();
+    file = new File(directory, "log-0.wal");
+  }
+
+  @After
+  public void doAfter() {
+    for (final File child : directory.listFiles()) {
+      child.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+
+    write("one", "two", "three");
+
+    assertEquals(strings("one", "two", "three"), read());
+  }
+
+  @Test
+  public void testTornRecordIsDropped() throws Exception {
+
+    write("one", "two", "three");
+    final long whole = file.length();
+
+    // Cut the last record off part way through its body.
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      raw.setLength(whole - 2);
+    }
+
+    assertEquals(strings("one", "two"), read());
+    assertEquals(whole - record("three").remaining(), file.length());
+
+    // New records go where the torn one was.
+    write("four");
+    assertEquals(strings("one", "two", "four"), read());
+  }
+
+  @Test
+  public void testCorruptRecordStopsReplay() throws Exception {
+
+    write("one", "two", "three");
+
+    // Flip a byte in the body of the second record.
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      final long at = record("one").remaining() + WriteAheadLog.HEADER_BYTES + 2;
+      raw.seek(at);
+      final int b = raw.read();
+      raw.seek(at);
+      raw.write(b ^ 0x01);
+    }
+
+    assertEquals(strings("one"), read());
+  }
+
+  @Test
+  public void testBadLengthStopsReplay() throws Exception {
+
+    write("one");
+
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      raw.seek(raw.length());
+      raw.writeInt(WriteAheadLog.MAX_RECORD_BYTES + 1);
+      raw.writeInt(0);
+    }
+
+    assertEquals(strings("one"), read());
+  }
+
+  @Test
+  public void testReplayThroughController() throws Exception {
+
+    final Model model = new Model();
+    final Controller controller = new Controller(Uuid.NULL, model);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    final Message kept = controller.newMessage(user.id, conversation.id, "a \"quoted\"\nmessage");
+    final Message deleted = controller.newMessage(user.id, conversation.id, "gone");
+    assertTrue(controller.deleteMessage(deleted.id));
+
+    try (final WriteAheadLog log = open(ServerConfig.Durability.ASYNC)) {
+      log.replay(0, ignore());
+      log.append(LogRecords.ADD_USER, LogRecords.addUser(user));
+      log.append(LogRecords.ADD_CONVERSATION, LogRecords.addConversation(conversation));
+      log.append(LogRecords.ADD_MESSAGE, LogRecords.addMessage(conversation.id, kept));
+      log.append(LogRecords.ADD_MESSAGE, LogRecords.addMessage(conversation.id, deleted));
+      log.append(LogRecords.DELETE_MESSAGE, LogRecords.deleteMessage(deleted.id));
+    }
+
+    final Model replayed = new Model();
+    final Controller replayer = new Controller(Uuid.NULL, replayed);
+    final View view = new View(replayed);
+
+    try (final WriteAheadLog log = open(ServerConfig.Durability.ASYNC)) {
+      assertEquals(5, log.replay(0, new WriteAheadLog.Visitor() {
+        @Override
+        public void visit(byte type, ByteBuffer payload) {
+          LogRecords.apply(type, payload, replayer);
+        }
+      }));
+    }
+
+    assertEquals("user", view.findUser(user.id).name);
+    assertEquals("conversation", view.findConversation(conversation.id).title);
+    assertEquals(kept.content(), view.findMessage(kept.id).content());
+    assertEquals(kept.creation.inMs(), view.findMessage(kept.id).creation.inMs());
+    assertNull(view.findMessage(deleted.id));
+  }
+
+  @Test
+  public void testFlushWritesAsyncRecords() throws Exception {
+
+    try (final WriteAheadLog log = open(ServerConfig.Durability.ASYNC)) {
+      log.append((byte) 1, payload("one"));
+      log.flush();
+      assertEquals(record("one").remaining(), file.length());
+    }
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+
+    final int threads = 8;
+    final int each = 50;
+    final Metrics metrics = new Metrics();
+
+    try (final WriteAheadLog log = new WriteAheadLog(directory, ServerConfig.Durability.FSYNC, metrics)) {
+
+      final List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        writers.add(new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < each; j++) {
+                log.append((byte) 1, payload("record"));
+              }
+            } catch (Exception ex) {
+              throw new RuntimeException(ex);
+            }
+          }
+        }));
+      }
+      for (final Thread writer : writers) {
+        writer.start();
+      }
+      for (final Thread writer : writers) {
+        writer.join();
+      }
+
+      // Every append has returned, so every record is already in the file.
+      assertEquals(threads * each * record("record").remaining(), file.length());
+    }
+
+    // Appends that came in while a batch was being forced shared a commit.
+    long commits = 0;
+    for (final ServerMetrics.Timing timing : metrics.snapshot(Time.now()).commands) {
+      if (timing.name.equals("LOG_BATCH")) {
+        commits = timing.count;
+      }
+    }
+    assertTrue(commits > 0 && commits <= threads * each);
+    assertEquals(threads * each, read().size());
+  }
+
+  @Test
+  public void testPublishUnderLockKeepsOrder() throws Exception {
+
+    final int threads = 8;
+    final int each = 100;
+    final Lock ordering = new ReentrantLock();
+    final int[] counter = { 0 };
+
+    try (final WriteAheadLog log = open(ServerConfig.Durability.FSYNC)) {
+
+      final List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        writers.add(new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < each; j++) {
+                // The way the server logs a change: publish while holding
+                // the lock that orders the changes, wait once it is let go.
+                final long ticket;
+                ordering.lock();
+                try {
+                  ticket = log.publish((byte) 1, payload(Integer.toString(counter[0]++)));
+                } finally {
+                  ordering.unlock();
+                }
+                log.awaitDurable(ticket);
+              }
+            } catch (Exception ex) {
+              throw new RuntimeException(ex);
+            }
+          }
+        }));
+      }
+      for (final Thread writer : writers) {
+        writer.start();
+      }
+      for (final Thread writer : writers) {
+        writer.join();
+      }
+
+      // Every wait has returned, so every record is already in the file.
+      long bytes = 0;
+      for (int i = 0; i < threads * each; i++) {
+        bytes += record(Integer.toString(i)).remaining();
+      }
+      assertEquals(bytes, file.length());
+    }
+
+    final List<String> found = read();
+    for (int i = 0; i < found.size(); i++) {
+      assertEquals(Integer.toString(i), found.get(i));
+    }
+  }
+
+  @Test
+  public void testRingWrapsAround() throws Exception {
+
+    final int threads = 4;
+    final int each = 2 * WriteAheadLog.RING_SLOTS;
+
+    // Now and then a record bigger than a slot, and bigger than a batch.
+    final StringBuilder big = new StringBuilder();
+    while (big.length() < 1536 * 1024) {
+      big.append("0123456789abcdef");
+    }
+
+    try (final WriteAheadLog log = open(ServerConfig.Durability.ASYNC)) {
+
+      final List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        final int thread = i;
+        writers.add(new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < each; j++) {
+                log.append((byte) 1, payload(j % 2000 == 1999 ? thread + ":" + big : thread + ":" + j));
+              }
+            } catch (Exception ex) {
+              throw new RuntimeException(ex);
+            }
+          }
+        }));
+      }
+      for (final Thread writer : writers) {
+        writer.start();
+      }
+      for (final Thread writer : writers) {
+        writer.join();
+      }
+    }
+
+    final List<String> found = read();
+    assertEquals(threads * each, found.size());
+
+    // Each thread's records are in the order it appended them.
+    final int[] next = new int[threads];
+    for (final String value : found) {
+      final int thread = Integer.parseInt(value.substring(0, value.indexOf(':')));
+      final String expected = next[thread] % 2000 == 1999 ? thread + ":" + big : thread + ":" + next[thread];
+      assertEquals(expected, value);
+      next[thread]++;
+    }
+  }
+
+  @Test
+  public void testRollAndDeleteBefore() throws Exception {
+
+    try (final WriteAheadLog log = open(ServerConfig.Durability.FLUSH)) {
+      log.append((byte) 1, payload("one"));
+      assertEquals(1, log.roll());
+      log.append((byte) 1, payload("two"));
+      assertEquals(2, log.roll());
+      log.append((byte) 1, payload("three"));
+    }
+
+    assertEquals(strings("one", "two", "three"), read());
+    assertEquals(strings("two", "three"), read(1));
+
+    try (final WriteAheadLog log = open(ServerConfig.Durability.ASYNC)) {
+      log.deleteBefore(2);
+    }
+
+    assertFalse(file.exists());
+    assertFalse(new File(directory, "log-1.wal").exists());
+    assertEquals(strings("three"), read());
+
+    // New records go in the newest segment.
+    write("four");
+    assertEquals(strings("three", "four"), read(2));
+  }
+
+  @Test
+  public void testTornSegmentDropsLaterSegments() throws Exception {
+
+    try (final WriteAheadLog log = open(ServerConfig.Durability.FLUSH)) {
+      log.append((byte) 1, payload("one"));
+      log.roll();
+      log.append((byte) 1, payload("two"));
+    }
+
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      raw.setLength(raw.length() - 2);
+    }
+
+    assertEquals(strings(), read());
+    assertFalse(new File(directory, "log-1.wal").exists());
+
+    write("three");
+    assertEquals(strings("three"), read());
+    assertEquals(record("three").remaining(), file.length());
+  }
+
+  @Test
+  public void testParallelReplay() throws Exception {
+
+    // Enough records to fill several blocks.
+    final List<String> values = new ArrayList<>();
+    for (int i = 0; i < 100000; i++) {
+      values.add("record " + i);
+    }
+    write(values.toArray(new String[values.size()]));
+
+    final ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      assertEquals(values, readInParallel(pool));
+
+      // Flip a byte in a record well past the first block.
+      final int bad = 60000;
+      try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+        long at = 0;
+        for (int i = 0; i < bad; i++) {
+          at += record(values.get(i)).remaining();
+        }
+        at += WriteAheadLog.HEADER_BYTES + 2;
+        raw.seek(at);
+        final int b = raw.read();
+        raw.seek(at);
+        raw.write(b ^ 0x01);
+      }
+
+      assertEquals(values.subList(0, bad), readInParallel(pool));
+      assertEquals(values.subList(0, bad), read());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private List<String> readInParallel(ExecutorService pool) throws Exception {
+    final List<String> found = new ArrayList<>();
+    try (final WriteAheadLog log = open(ServerConfig.Durability.ASYNC)) {
+      log.replay(0, new WriteAheadLog.Decoder<String>() {
+        @Override
+        public String decode(byte type, ByteBuffer payload) {
+          return BufferSerializers.STRING.read(payload);
+        }
+      }, new WriteAheadLog.Handler<String>() {
+        @Override
+        public void handle(String record) {
+          found.add(record);
+        }
+      }, pool);
+    }
+    return found;
+  }
+
+  private WriteAheadLog open(ServerConfig.Durability durability) throws Exception {
+    return new WriteAheadLog(directory, durability, new Metrics());
+  }
+
+  private void write(String... values) throws Exception {
+    try (final WriteAheadLog log = open(ServerConfig.Durability.ASYNC)) {
+      log.replay(0, ignore());
+      for (final String value : values) {
+        log.append((byte) 1, payload(value));
+      }
+    }
+  }
+
+  private List<String> read() throws Exception {
+    return read(0);
+  }
+
+  private List<String> read(long from) throws Exception {
+    final List<String> found = new ArrayList<>();
+    try (final WriteAheadLog log = open(ServerConfig.Durability.ASYNC)) {
+      log.replay(from, new WriteAheadLog.Visitor() {
+        @Override
+        public void visit(byte type, ByteBuffer payload) {
+          assertEquals(1, type);
+          found.add(BufferSerializers.STRING.read(payload));
+        }
+      });
+    }
+    return found;
+  }
+
+  private static ByteBuffer record(String value) {
+    return WriteAheadLog.frame((byte) 1, payload(value));
+  }
+
+  private static ByteBuffer payload(String value) {
+    final ByteBuffer out = ByteBuffer.allocate(BufferSerializers.STRING.size(value));
+    BufferSerializers.STRING.write(out, value);
+    out.flip();
+    return out;
+  }
+
+  private static List<String> strings(String... values) {
+    final List<String> list = new ArrayList<>();
+    for (final String value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  private static WriteAheadLog.Visitor ignore() {
+    return new WriteAheadLog.Visitor() {
+      @Override
+      public void visit(byte type, ByteBuffer payload) { }
+    };
+  }
+}
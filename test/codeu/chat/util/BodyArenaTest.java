@@ -0,0 +1,96 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class BodyArenaTest {
+
+  @Test
+  public void testDirect() throws IOException {
+    check(BodyArena.direct(64));
+  }
+
+  @Test
+  public void testMapped() throws IOException {
+
+    final File directory = new File(System.getProperty("java.io.tmpdir"),
+                                    "arena-test-" + System.nanoTime());
+    try {
+      check(BodyArena.mapped(directory, 64));
+    } finally {
+      final File[] files = directory.listFiles();
+      if (files != null) {
+        for (final File file : files) {
+          file.delete();
+        }
+      }
+      directory.delete();
+    }
+  }
+
+  // Bodies of 40 bytes do not fit twice in a 64 byte segment and the 100 byte
+  // body does not fit in one at all.
+  private static void check(BodyArena arena) throws IOException {
+
+    final String[] bodies = {
+        "hello",
+        "",
+        repeat('a', 40),
+        repeat('b', 40),
+        repeat('c', 100),
+        "caf\u00e9"
+    };
+
+    final long[] positions = new long[bodies.length];
+    for (int i = 0; i < bodies.length; i++) {
+      positions[i] = arena.append(bodies[i].getBytes());
+    }
+
+    long total = 0;
+    for (int i = 0; i < bodies.length; i++) {
+
+      final byte[] expected = bodies[i].getBytes();
+      total += expected.length;
+
+      assertEquals(new String(expected), arena.decode(positions[i], expected.length));
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      arena.write(positions[i], expected.length, out);
+      assertArrayEquals(expected, out.toByteArray());
+
+      final ByteBuffer buffer = ByteBuffer.allocate(expected.length + 2);
+      buffer.put((byte) 1);
+      arena.write(positions[i], expected.length, buffer);
+      assertEquals(expected.length + 1, buffer.position());
+    }
+
+    assertEquals(total, arena.bytes());
+  }
+
+  private static String repeat(char c, int count) {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      builder.append(c);
+    }
+    return builder.toString();
+  }
+}
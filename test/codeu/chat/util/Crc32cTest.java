@@ -0,0 +1,66 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class Crc32cTest {
+
+  @Test
+  public void testKnownValues() {
+    assertEquals(0x00000000L, crc(new byte[0]));
+    assertEquals(0xE3069283L, crc("123456789".getBytes()));
+    assertEquals(0x8A9136AAL, crc(new byte[32]));
+  }
+
+  @Test
+  public void testBuffersMatchArrays() {
+
+    final byte[] bytes = "The quick brown fox jumps over the lazy dog".getBytes();
+
+    final Crc32c heap = new Crc32c();
+    heap.update(ByteBuffer.wrap(bytes));
+
+    final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes);
+    direct.flip();
+    final Crc32c fromDirect = new Crc32c();
+    fromDirect.update(direct);
+
+    assertEquals(crc(bytes), heap.getValue());
+    assertEquals(crc(bytes), fromDirect.getValue());
+    assertFalse(direct.hasRemaining());
+  }
+
+  @Test
+  public void testReset() {
+
+    final Crc32c crc = new Crc32c();
+    crc.update(1);
+    crc.reset();
+    crc.update("123456789".getBytes(), 0, 9);
+
+    assertEquals(0xE3069283L, crc.getValue());
+  }
+
+  private static long crc(byte[] bytes) {
+    final Crc32c crc = new Crc32c();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+}
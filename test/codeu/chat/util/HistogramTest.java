@@ -0,0 +1,79 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class HistogramTest {
+
+  @Test
+  public void testEmpty() {
+    final Histogram histogram = new Histogram();
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.mean());
+    assertEquals(0, histogram.percentile(0.99));
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+
+    final Histogram histogram = new Histogram();
+    for (int i = 1; i <= 7; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(7, histogram.count());
+    assertEquals(4, histogram.mean());
+    assertEquals(4, histogram.percentile(0.5));
+    assertEquals(7, histogram.percentile(1.0));
+    assertEquals(7, histogram.max());
+  }
+
+  @Test
+  public void testPercentilesWithinOneEighth() {
+
+    final Histogram histogram = new Histogram();
+    for (long i = 1; i <= 100000; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(100000, histogram.count());
+    assertEquals(100000, histogram.max());
+
+    checkClose(50000, histogram.percentile(0.50));
+    checkClose(90000, histogram.percentile(0.90));
+    checkClose(99000, histogram.percentile(0.99));
+  }
+
+  @Test
+  public void testOutOfRangeValuesAreClamped() {
+
+    final Histogram histogram = new Histogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+
+    assertEquals(2, histogram.count());
+    assertEquals(0, histogram.percentile(0.5));
+    assertEquals(Histogram.MAX_VALUE, histogram.percentile(1.0));
+  }
+
+  // Percentiles are rounded up to the top of their bucket, so they are never
+  // lower than the exact value and at most an eighth higher.
+  private static void checkClose(long expected, long actual) {
+    assertTrue(actual + " < " + expected, actual >= expected);
+    assertTrue(actual + " too far above " + expected, actual <= expected + expected / 8);
+  }
+}
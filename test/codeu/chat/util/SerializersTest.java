@@ -0,0 +1,79 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class SerializersTest {
+
+  @Test
+  public void testIntegerAndLong() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, -2);
+    Serializers.LONG.write(out, Long.MIN_VALUE + 7);
+
+    // Big-endian, exactly as before the writes were batched.
+    final byte[] bytes = out.toByteArray();
+    assertEquals(12, bytes.length);
+    assertEquals((byte) 0xFF, bytes[0]);
+    assertEquals((byte) 0xFE, bytes[3]);
+    assertEquals((byte) 0x80, bytes[4]);
+    assertEquals((byte) 0x07, bytes[11]);
+
+    final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+    assertEquals(-2, (int) Serializers.INTEGER.read(in));
+    assertEquals(Long.MIN_VALUE + 7, (long) Serializers.LONG.read(in));
+  }
+
+  @Test
+  public void testString() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.STRING.write(out, "hello");
+
+    assertEquals("hello", Serializers.STRING.read(new ByteArrayInputStream(out.toByteArray())));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testIntegerAtEndOfStream() throws IOException {
+    Serializers.INTEGER.read(new ByteArrayInputStream(new byte[] { 1, 2 }));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testShortBytes() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, 10);
+    out.write(new byte[4]);
+
+    Serializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test(expected = IOException.class)
+  public void testOversizedBytes() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, Serializers.MAX_BYTES + 1);
+
+    Serializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TimelineTest {
+
+  // A small wheel with short ticks so that timers go round it several times.
+  private static final long TICK_MS = 2;
+  private static final int WHEEL_SIZE = 8;
+
+  private Timeline timeline;
+
+  @Before
+  public void doBefore() {
+    timeline = new Timeline(TICK_MS, WHEEL_SIZE);
+  }
+
+  @After
+  public void doAfter() {
+    timeline.stop();
+    timeline.join();
+  }
+
+  @Test
+  public void testScheduleNowKeepsOrder() throws Exception {
+
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(100);
+
+    for (int i = 0; i < 100; i++) {
+      final int value = i;
+      timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          order.add(value);
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(Integer.valueOf(i), order.get(i));
+    }
+  }
+
+  @Test
+  public void testTimersRunInOrderAndNotEarly() throws Exception {
+
+    // Added out of order and spread over several turns of the wheel.
+    final long[] delays = { 60, 5, 100, 33, 0, 17 };
+
+    final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+    final List<String> early = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(delays.length);
+
+    for (final long delay : delays) {
+      final long due = System.currentTimeMillis() + delay;
+      timeline.scheduleAt(due, new Runnable() {
+        @Override
+        public void run() {
+          final long now = System.currentTimeMillis();
+          if (now < due) {
+            early.add(delay + "ms timer ran " + (due - now) + "ms early");
+          }
+          order.add(delay);
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(early.toString(), early.isEmpty());
+
+    final List<Long> sorted = new ArrayList<>(order);
+    Collections.sort(sorted);
+    assertEquals(sorted, order);
+  }
+
+  @Test
+  public void testSoonerTimerWakesScheduler() throws Exception {
+
+    // The scheduler is asleep until the far timer when the near one arrives.
+    final CountDownLatch far = new CountDownLatch(1);
+    final CountDownLatch near = new CountDownLatch(1);
+
+    timeline.scheduleIn(2000, new Runnable() {
+      @Override
+      public void run() { far.countDown(); }
+    });
+    Thread.sleep(20);
+    timeline.scheduleIn(10, new Runnable() {
+      @Override
+      public void run() { near.countDown(); }
+    });
+
+    assertTrue(near.await(500, TimeUnit.MILLISECONDS));
+    assertEquals(1, far.getCount());
+  }
+}
@@ -14,6 +14,9 @@
 
 package codeu.chat.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -149,4 +152,64 @@ public final class UuidTest {
 
     assertEquals(start, end);
   }
+
+  @Test
+  public void testDeepChain() throws IOException {
+
+    final Uuid deep = new Uuid(new Uuid(new Uuid(new Uuid(1), 2), 3), 4);
+    final Uuid same = Uuid.parse("1.2.3.4");
+
+    assertEquals(deep, same);
+    assertEquals(deep.hashCode(), same.hashCode());
+    assertEquals("1.2.3.4", deep.toString());
+
+    assertEquals(3, deep.root().id());
+    assertEquals(2, deep.root().root().id());
+    assertEquals(1, deep.root().root().root().id());
+    assertNull(deep.root().root().root().root());
+
+    assertFalse(Uuid.equals(deep, Uuid.parse("1.2.3")));
+    assertFalse(Uuid.equals(deep, Uuid.parse("9.2.3.4")));
+  }
+
+  @Test
+  public void testHashMatchesEquals() throws IOException {
+
+    final Uuid a = new Uuid(new Uuid(7), 11);
+    final Uuid b = Uuid.parse("7.11");
+
+    assertEquals(a.hashCode(), b.hashCode());
+    assertEquals(a.root(), b.root());
+    assertEquals(a.root().hashCode(), new Uuid(7).hashCode());
+  }
+
+  @Test(expected = IOException.class)
+  public void testTooLargeId() throws IOException {
+    Uuid.parse("1." + Long.toString(0x100000000L));
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void testBadCharacter() throws IOException {
+    Uuid.parse("1.2x");
+  }
+
+  @Test
+  public void testWireFormat() throws IOException {
+
+    final Uuid id = new Uuid(new Uuid(new Uuid(1), 2), 3);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Uuid.SERIALIZER.write(out, id);
+
+    // The length, then each id from the tail back to the root.
+    final byte[] expected = { 3, 0, 0, 0, 3, 0, 0, 0, 2, 0, 0, 0, 1 };
+    assertArrayEquals(expected, out.toByteArray());
+
+    assertEquals(id, Uuid.SERIALIZER.read(new ByteArrayInputStream(expected)));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testReadAtEndOfStream() throws IOException {
+    Uuid.SERIALIZER.read(new ByteArrayInputStream(new byte[0]));
+  }
 }
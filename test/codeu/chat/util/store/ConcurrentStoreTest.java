@@ -0,0 +1,193 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+public final class ConcurrentStoreTest {
+
+  private static final Comparator<Integer> COMPARATOR = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) { return a.compareTo(b); }
+  };
+
+  private ConcurrentStore<Integer, Integer> store;
+
+  @Before
+  public void doBefore() {
+    store = new ConcurrentStore<>(COMPARATOR);
+  }
+
+  @Test
+  public void testOrderPingPongOrderInsert() {
+
+    store.insert(0, 0);
+    store.insert(4, 40);
+    store.insert(1, 10);
+    store.insert(3, 30);
+    store.insert(2, 20);
+
+    final int[] order = { 0, 10, 20, 30, 40 };
+    assertOrder(store.all(), order);
+  }
+
+  @Test
+  public void testBeforeAfterRange() {
+
+    for (int i = 0; i < 5; i++) {
+      store.insert(i, i * 10);
+    }
+
+    assertOrder(store.before(2), new int[] { 0, 10, 20 });
+    assertOrder(store.after(2), new int[] { 20, 30, 40 });
+    assertOrder(store.range(1, 3), new int[] { 10, 20, 30 });
+    assertOrder(store.range(3, 1), new int[] { });
+  }
+
+  @Test
+  public void testEqualKeysKeepInsertOrder() {
+
+    store.insert(2, 20);
+    store.insert(1, 10);
+    store.insert(2, 21);
+    store.insert(3, 30);
+    store.insert(2, 22);
+    store.insert(1, 11);
+    store.insert(2, 23);
+
+    assertOrder(store.at(2), new int[] { 20, 21, 22, 23 });
+    assertOrder(store.all(), new int[] { 10, 11, 20, 21, 22, 23, 30 });
+    assertOrder(store.range(1, 2), new int[] { 10, 11, 20, 21, 22, 23 });
+
+    assertEquals(Integer.valueOf(20), store.first(2));
+    assertEquals(Integer.valueOf(10), store.first(1));
+  }
+
+  @Test
+  public void testMissingKey() {
+
+    store.insert(1, 10);
+    store.insert(3, 30);
+
+    assertNull(store.first(2));
+    assertOrder(store.at(2), new int[] { });
+    assertOrder(store.at(0), new int[] { });
+    assertOrder(store.at(4), new int[] { });
+  }
+
+  @Test
+  public void testRemove() {
+
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(3, 30);
+
+    final Iterable<Integer> before = store.at(2);
+    final Iterator<Integer> started = store.all().iterator();
+    assertEquals(Integer.valueOf(10), started.next());
+    assertEquals(Integer.valueOf(20), started.next());
+
+    assertTrue(store.remove(2, 20));
+    assertFalse(store.remove(2, 20));
+    assertFalse(store.remove(5, 50));
+
+    assertOrder(store.all(), new int[] { 10, 21, 30 });
+    assertOrder(before, new int[] { 21 });
+    assertEquals(Integer.valueOf(21), store.first(2));
+
+    // An iteration that already had the bucket still sees what it held.
+    assertEquals(Integer.valueOf(21), started.next());
+
+    assertTrue(store.remove(2, 21));
+    assertNull(store.first(2));
+    assertOrder(store.range(1, 3), new int[] { 10, 30 });
+
+    // The emptied key can be used again.
+    store.insert(2, 22);
+    assertOrder(store.all(), new int[] { 10, 22, 30 });
+  }
+
+  @Test
+  public void testReadWhileWriting() throws Exception {
+
+    final int keys = 50;
+    final int perKey = 200;
+    final AtomicReference<String> failure = new AtomicReference<>();
+
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < perKey; i++) {
+          for (int key = 0; key < keys; key++) {
+            store.insert(key, key * perKey + i);
+          }
+        }
+      }
+    };
+    writer.start();
+
+    // Every read must see each key's values in order, with no gaps or nulls.
+    while (writer.isAlive()) {
+      int lastKey = -1;
+      int expected = 0;
+      for (final Integer value : store.all()) {
+        if (value == null) {
+          failure.set("null value");
+          break;
+        }
+        final int key = value / perKey;
+        if (key != lastKey) {
+          lastKey = key;
+          expected = key * perKey;
+        }
+        if (value != expected) {
+          failure.set("expected " + expected + " but read " + value);
+          break;
+        }
+        expected += 1;
+      }
+    }
+
+    writer.join();
+
+    assertNull(failure.get(), failure.get());
+
+    int count = 0;
+    for (final Integer value : store.all()) {
+      count += 1;
+    }
+    assertEquals(keys * perKey, count);
+  }
+
+  private static void assertOrder(Iterable<Integer> actual, int[] expected) {
+
+    int at = 0;
+
+    for (final Integer i : actual) {
+      assertTrue(at < expected.length);
+      assertTrue(i == expected[at]);
+      at += 1;
+    }
+
+    assertTrue(at == expected.length);
+  }
+}
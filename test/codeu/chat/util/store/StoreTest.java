@@ -147,6 +147,55 @@ public final class StoreTest {
     assertTrue(store.first(4) == 40);
   }
 
+  @Test
+  public void testRemove() {
+
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(3, 30);
+
+    assertTrue(store.remove(2, 20));
+    assertFalse(store.remove(2, 20));
+    assertFalse(store.remove(4, 40));
+    assertEquals(1, store.tombstones());
+
+    assertOrder(store.all(), new int[] { 10, 21, 30 });
+    assertOrder(store.at(2), new int[] { 21 });
+    assertEquals(Integer.valueOf(21), store.first(2));
+
+    assertTrue(store.remove(2, 21));
+    assertNull(store.first(2));
+    assertOrder(store.range(2, 3), new int[] { 30 });
+  }
+
+  @Test
+  public void testCompact() {
+
+    for (int i = 0; i < 10; i++) {
+      store.insert(i % 3, i);
+    }
+    for (int i = 0; i < 10; i += 2) {
+      store.remove(i % 3, i);
+    }
+
+    store.compact();
+
+    assertEquals(0, store.tombstones());
+    assertOrder(store.all(), new int[] { 3, 9, 1, 7, 5 });
+    assertEquals(Integer.valueOf(3), store.first(0));
+    assertEquals(Integer.valueOf(1), store.first(1));
+
+    store.remove(2, 5);
+    store.compact();
+
+    assertNull(store.first(2));
+    assertOrder(store.after(1), new int[] { 1, 7 });
+
+    store.insert(2, 50);
+    assertOrder(store.all(), new int[] { 3, 9, 1, 7, 50 });
+  }
+
   private static void assertOrder(Iterable<Integer> actual, int[] expected) {
 
     int at = 0;
@@ -0,0 +1,133 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.Random;
+
+import codeu.chat.common.RandomUuidGenerator;
+import codeu.chat.util.Uuid;
+
+// UUID INDEX BENCHMARK
+//
+// Compares looking messages up by id in a Store (a tree ordered by the Uuid
+// comparator the model used to use) and in a UuidIndex. This is not part of
+// the test run. Run it by hand with the number of ids to use:
+//
+//   java -Xmx4g -cp bin:third_party/* codeu.chat.util.store.UuidIndexBenchmark 10000000
+//
+// The ids are made the same way the server makes message ids: the server's
+// id as the root and a random number under it, from RandomUuidGenerator. A
+// few numbers come up twice; both the Store and the index keep the first,
+// where the server would have made another id.
+public final class UuidIndexBenchmark {
+
+  private static final Comparator<Uuid> UUID_COMPARE = new Comparator<Uuid>() {
+
+    @Override
+    public int compare(Uuid a, Uuid b) {
+
+      if (a == b) { return 0; }
+
+      if (a == null && b != null) { return -1; }
+
+      if (a != null && b == null) { return 1; }
+
+      final int order = Integer.compare(a.id(), b.id());
+      return order == 0 ? compare(a.root(), b.root()) : order;
+    }
+  };
+
+  private static final int DEFAULT_COUNT = 10000000;
+  private static final int LOOKUPS = 5000000;
+  private static final int ROUNDS = 3;
+
+  public static void main(String[] args) {
+
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_COUNT;
+
+    final Uuid server = new Uuid(0x5EEDF00D);
+    final Uuid.Generator generator = new RandomUuidGenerator(server, 7);
+    final Uuid[] ids = new Uuid[count];
+    for (int i = 0; i < count; i++) {
+      ids[i] = generator.make();
+    }
+
+    // Look up copies of the ids, the way ids arrive off the network, in a
+    // random order.
+    final Random random = new Random(42);
+    final Uuid[] lookups = new Uuid[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      lookups[i] = new Uuid(new Uuid(server.id()), ids[random.nextInt(count)].id());
+    }
+
+    System.out.format("%,d ids, %,d lookups\n", count, LOOKUPS);
+
+    for (int round = 1; round <= ROUNDS; round++) {
+      System.out.format("round %d\n", round);
+      runStore(ids, lookups);
+      runIndex(ids, lookups);
+    }
+  }
+
+  private static void runStore(Uuid[] ids, Uuid[] lookups) {
+
+    final Store<Uuid, Uuid> store = new Store<>(UUID_COMPARE);
+
+    long start = System.nanoTime();
+    for (final Uuid id : ids) {
+      store.insert(id, id);
+    }
+    final long insert = System.nanoTime() - start;
+
+    int found = 0;
+    start = System.nanoTime();
+    for (final Uuid id : lookups) {
+      found += store.first(id) == null ? 0 : 1;
+    }
+    final long lookup = System.nanoTime() - start;
+
+    report("Store", ids.length, insert, lookups.length, lookup, found);
+  }
+
+  private static void runIndex(Uuid[] ids, Uuid[] lookups) {
+
+    final UuidIndex<Uuid> index = new UuidIndex<>();
+
+    long start = System.nanoTime();
+    for (final Uuid id : ids) {
+      index.insert(id, id);
+    }
+    final long insert = System.nanoTime() - start;
+
+    int found = 0;
+    start = System.nanoTime();
+    for (final Uuid id : lookups) {
+      found += index.first(id) == null ? 0 : 1;
+    }
+    final long lookup = System.nanoTime() - start;
+
+    report("UuidIndex", ids.length, insert, lookups.length, lookup, found);
+  }
+
+  private static void report(String name, int inserts, long insertNs, int lookups, long lookupNs, int found) {
+    System.out.format(
+        "  %-10s insert %7.1f ns/op   lookup %7.1f ns/op   (%d found)\n",
+        name,
+        (double) insertNs / inserts,
+        (double) lookupNs / lookups,
+        found);
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.util.Uuid;
+
+public final class UuidIndexTest {
+
+  private static final Uuid SERVER = new Uuid(7);
+
+  private UuidIndex<Integer> index;
+
+  @Before
+  public void doBefore() {
+    index = new UuidIndex<>();
+  }
+
+  @Test
+  public void testFindByEqualUuid() {
+
+    assertTrue(index.insert(new Uuid(SERVER, 1), 1));
+    assertTrue(index.insert(new Uuid(new Uuid(SERVER, 1), 2), 2));
+
+    // Different instances with the same chain must find the same value.
+    assertEquals(Integer.valueOf(1), index.first(new Uuid(new Uuid(7), 1)));
+    assertEquals(Integer.valueOf(2), index.first(new Uuid(new Uuid(new Uuid(7), 1), 2)));
+
+    assertNull(index.first(new Uuid(SERVER, 2)));
+    assertNull(index.first(new Uuid(1)));
+    assertNull(index.first(null));
+  }
+
+  @Test
+  public void testFirstValueIsKept() {
+
+    assertTrue(index.insert(Uuid.NULL, 1));
+    assertFalse(index.insert(new Uuid(0), 2));
+
+    assertEquals(Integer.valueOf(1), index.first(Uuid.NULL));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testGrowKeepsEverythingInOrder() {
+
+    final int count = 10000;
+
+    for (int i = 0; i < count; i++) {
+      assertTrue(index.insert(new Uuid(SERVER, i), i));
+    }
+
+    assertEquals(count, index.size());
+
+    for (int i = 0; i < count; i++) {
+      assertEquals(Integer.valueOf(i), index.first(new Uuid(SERVER, i)));
+    }
+
+    int expected = 0;
+    for (final Integer value : index.all()) {
+      assertEquals(expected, (int) value);
+      expected += 1;
+    }
+    assertEquals(count, expected);
+  }
+
+  @Test
+  public void testRemove() {
+
+    for (int i = 0; i < 100; i++) {
+      index.insert(new Uuid(SERVER, i), i);
+    }
+
+    for (int i = 0; i < 100; i += 3) {
+      assertTrue(index.remove(new Uuid(SERVER, i)));
+    }
+    assertFalse(index.remove(new Uuid(SERVER, 0)));
+    assertFalse(index.remove(new Uuid(SERVER, 1000)));
+
+    assertEquals(66, index.size());
+    assertEquals(34, index.removed());
+    assertRemovedEveryThird(100);
+
+    // A removed key can be added again, and goes to the end of the order.
+    assertTrue(index.insert(new Uuid(SERVER, 0), 0));
+    assertEquals(Integer.valueOf(0), index.first(new Uuid(SERVER, 0)));
+    assertEquals(67, index.size());
+    assertTrue(index.remove(new Uuid(SERVER, 0)));
+  }
+
+  @Test
+  public void testCompact() {
+
+    for (int i = 0; i < 10000; i++) {
+      index.insert(new Uuid(SERVER, i), i);
+    }
+    for (int i = 0; i < 10000; i += 3) {
+      index.remove(new Uuid(SERVER, i));
+    }
+
+    index.compact();
+
+    assertEquals(0, index.removed());
+    assertEquals(6666, index.size());
+    assertRemovedEveryThird(10000);
+
+    // Removing after a compaction must still clear the right place in the
+    // insertion order.
+    assertTrue(index.remove(new Uuid(SERVER, 1)));
+    assertNull(index.first(new Uuid(SERVER, 1)));
+    assertEquals(Integer.valueOf(2), index.all().iterator().next());
+  }
+
+  @Test
+  public void testReplace() {
+
+    for (int i = 0; i < 3; i++) {
+      index.insert(new Uuid(SERVER, i), i);
+    }
+
+    assertTrue(index.replace(new Uuid(SERVER, 1), 10));
+    assertFalse(index.replace(new Uuid(SERVER, 3), 30));
+
+    assertEquals(Integer.valueOf(10), index.first(new Uuid(SERVER, 1)));
+    assertNull(index.first(new Uuid(SERVER, 3)));
+    assertEquals(3, index.size());
+
+    // The new value keeps the old one's place in the order.
+    final Iterator<Integer> all = index.all().iterator();
+    assertEquals(Integer.valueOf(0), all.next());
+    assertEquals(Integer.valueOf(10), all.next());
+    assertEquals(Integer.valueOf(2), all.next());
+    assertFalse(all.hasNext());
+
+    // A removed key cannot be given a value again without inserting it.
+    assertTrue(index.remove(new Uuid(SERVER, 1)));
+    assertFalse(index.replace(new Uuid(SERVER, 1), 11));
+
+    // Compacting moves values in the order, and a replace must follow them.
+    index.compact();
+    assertTrue(index.replace(new Uuid(SERVER, 2), 20));
+    assertEquals(Integer.valueOf(20), index.first(new Uuid(SERVER, 2)));
+
+    final Iterator<Integer> compacted = index.all().iterator();
+    assertEquals(Integer.valueOf(0), compacted.next());
+    assertEquals(Integer.valueOf(20), compacted.next());
+    assertFalse(compacted.hasNext());
+  }
+
+  @Test
+  public void testTombstonesDoNotFillTheTable() {
+
+    // Adding and removing forever must keep reusing the room tombstones take
+    // up rather than growing without end.
+    for (int i = 0; i < 100000; i++) {
+      assertTrue(index.insert(new Uuid(SERVER, i), i));
+      assertTrue(index.remove(new Uuid(SERVER, i)));
+    }
+
+    assertEquals(0, index.size());
+    assertFalse(index.all().iterator().hasNext());
+  }
+
+  @Test
+  public void testReadWhileWriting() throws Exception {
+
+    final int count = 200000;
+    final AtomicReference<String> failure = new AtomicReference<>();
+
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          index.insert(new Uuid(SERVER, i), i);
+        }
+      }
+    };
+    writer.start();
+
+    // Whatever a reader sees must be right, and everything it saw before
+    // must still be there.
+    while (writer.isAlive() && failure.get() == null) {
+      final int seen = index.size();
+      for (int i = 0; i < seen; i += 97) {
+        final Integer value = index.first(new Uuid(SERVER, i));
+        if (value == null || value != i) {
+          failure.set("id " + i + " found " + value + " with " + seen + " added");
+        }
+      }
+      int at = 0;
+      for (final Integer value : index.all()) {
+        if (value == null || value != at) {
+          failure.set("all() gave " + value + " at " + at);
+          break;
+        }
+        at += 1;
+      }
+    }
+
+    writer.join();
+
+    assertNull(failure.get(), failure.get());
+    assertEquals(count, index.size());
+  }
+
+  private void assertRemovedEveryThird(int count) {
+
+    for (int i = 0; i < count; i++) {
+      if (i % 3 == 0) {
+        assertNull(index.first(new Uuid(SERVER, i)));
+      } else {
+        assertEquals(Integer.valueOf(i), index.first(new Uuid(SERVER, i)));
+      }
+    }
+
+    int expected = 1;
+    int seen = 0;
+    for (final Integer value : index.all()) {
+      assertEquals(expected, (int) value);
+      expected += expected % 3 == 1 ? 1 : 2;
+      seen += 1;
+    }
+    assertEquals(index.size(), seen);
+  }
+}